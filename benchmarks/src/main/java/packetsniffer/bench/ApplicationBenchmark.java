@@ -0,0 +1,114 @@
+package packetsniffer.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import packetsniffer.decode.PacketDecoder;
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.dns.DnsMessage;
+import packetsniffer.http.HttpParser;
+import packetsniffer.output.TextBuffer;
+
+/**
+ * Time to take apart one application message: a DNS response with the
+ * message view, and HTTP requests and responses with the incremental
+ * parser as the reassembler would feed it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApplicationBenchmark {
+
+    static final int BATCH = 256;
+
+    private final DnsMessage dns = new DnsMessage();
+    private final TextBuffer names = new TextBuffer(1024);
+    private final HttpParser.Listener listener = new HttpParser.Listener() {
+        public boolean headersComplete(HttpParser parser) {
+            return false;
+        }
+
+        public void messageComplete(HttpParser parser, long timestampMicros) {
+            messages++;
+        }
+    };
+    private final HttpParser requests = new HttpParser(true, listener);
+    private final HttpParser responses = new HttpParser(false, listener);
+    private Frames dnsFrames;
+    private int[] dnsOffsets;
+    private int[] dnsLengths;
+    private Frames requestFrames;
+    private Frames responseFrames;
+    private int[] tcpOffsets;
+    private long messages;
+
+    @Setup
+    public void setup() {
+        dnsFrames = Frames.synthetic("dns-response", BATCH);
+        requestFrames = Frames.synthetic("http-request", BATCH);
+        responseFrames = Frames.synthetic("http-response", BATCH);
+        // Every frame has the same headers, so one decode finds the payload of all
+        PacketDecoder decoder = new PacketDecoder();
+        PacketRecord rec = new PacketRecord();
+        dnsOffsets = new int[BATCH];
+        dnsLengths = new int[BATCH];
+        tcpOffsets = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            decoder.decode(0, dnsFrames.wireLengths[i], dnsFrames.frames[i], rec);
+            dnsOffsets[i] = rec.l7Offset;
+            dnsLengths[i] = rec.l7Length;
+            decoder.decode(0, requestFrames.wireLengths[i], requestFrames.frames[i], rec);
+            tcpOffsets[i] = rec.l7Offset;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int dnsResponse() {
+        int sum = 0;
+        for (int i = 0; i < BATCH; i++) {
+            dns.wrap(dnsFrames.frames[i], dnsOffsets[i], dnsLengths[i]);
+            names.clear();
+            for (int r = 0; r < dns.recordCount(); r++) {
+                dns.appendName(dns.nameOffset(r), names);
+            }
+            sum += names.length();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long httpRequest() {
+        for (int i = 0; i < BATCH; i++) {
+            ByteBuffer frame = requestFrames.frames[i];
+            requests.parse(frame, tcpOffsets[i], frame.limit() - tcpOffsets[i], i);
+        }
+        return messages;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long httpResponse() {
+        for (int i = 0; i < BATCH; i++) {
+            ByteBuffer frame = responseFrames.frames[i];
+            responses.parse(frame, tcpOffsets[i], frame.limit() - tcpOffsets[i], i);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,59 @@
+package packetsniffer.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import packetsniffer.decode.PacketDecoder;
+import packetsniffer.decode.PacketRecord;
+
+/**
+ * Time to decode one frame into a record, for every layer and protocol the
+ * decoder knows. Decoding must not allocate, so the GC profiler should
+ * report about 0 bytes per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    static final int BATCH = 1024;
+
+    @Param({"arp", "ipv4-udp", "ipv4-tcp", "ipv6-udp", "ipv6-tcp", "dns-query", "dns-response", "http-request",
+            "http-response", "payload-1400"})
+    public String frame;
+
+    private final PacketDecoder decoder = new PacketDecoder();
+    private final PacketRecord rec = new PacketRecord();
+    private Frames frames;
+
+    @Setup
+    public void setup() {
+        frames = Frames.synthetic(frame, BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int decode() {
+        int sum = 0;
+        for (int i = 0; i < BATCH; i++) {
+            decoder.decode(frames.timestamps[i], frames.wireLengths[i], frames.frames[i], rec);
+            sum += rec.l7Offset + rec.appProtocol;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,253 @@
+package packetsniffer.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Frames for the benchmarks, either built here or read from a capture
+ * file. Every frame is in its own direct buffer, like the ones the capture
+ * library hands out.
+ */
+final class Frames {
+
+    /**
+     * Kinds of synthetic frame, one per layer and protocol the decoder knows
+     */
+    static final String[] KINDS = {"arp", "ipv4-udp", "ipv4-tcp", "ipv6-udp", "ipv6-tcp", "dns-query",
+            "dns-response", "http-request", "http-response", "payload-1400"};
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_ARP = 0x0806;
+    private static final int PROTO_TCP = 6;
+    private static final int PROTO_UDP = 17;
+    private static final int TCP_ACK = 0x10;
+    private static final int TCP_PSH = 0x08;
+
+    private static final byte[] QUESTION = {3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o',
+            'm', 0, 0, 1, 0, 1};
+    private static final String HTTP_REQUEST = "GET /index.html HTTP/1.1\r\nHost: www.example.com\r\n"
+            + "User-Agent: packetsniffer-bench\r\nAccept: */*\r\n\r\n";
+    private static final String HTTP_RESPONSE = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n"
+            + "Content-Length: 512\r\n\r\n";
+
+    final ByteBuffer[] frames;
+    final int[] wireLengths;
+    final long[] timestamps;
+
+    private Frames(List<byte[]> frames, List<Integer> wireLengths, List<Long> timestamps) {
+        int n = frames.size();
+        this.frames = new ByteBuffer[n];
+        this.wireLengths = new int[n];
+        this.timestamps = new long[n];
+        for (int i = 0; i < n; i++) {
+            byte[] frame = frames.get(i);
+            this.frames[i] = ByteBuffer.allocateDirect(frame.length);
+            this.frames[i].put(frame).flip();
+            this.wireLengths[i] = wireLengths.get(i);
+            this.timestamps[i] = timestamps.get(i);
+        }
+    }
+
+    int size() {
+        return frames.length;
+    }
+
+    /**
+     * Builds {@code count} frames of one kind. The frames differ in their
+     * ports and ids, so they belong to different flows.
+     */
+    static Frames synthetic(String kind, int count) {
+        List<byte[]> frames = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            frames.add(build(kind, i));
+        }
+        return of(frames);
+    }
+
+    /**
+     * Builds {@code count} frames taking turns over every kind.
+     */
+    static Frames mix(int count) {
+        List<byte[]> frames = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            frames.add(build(KINDS[i % KINDS.length], i));
+        }
+        return of(frames);
+    }
+
+    private static Frames of(List<byte[]> frames) {
+        List<Integer> wireLengths = new ArrayList<Integer>(frames.size());
+        List<Long> timestamps = new ArrayList<Long>(frames.size());
+        long now = System.currentTimeMillis() * 1000;
+        for (int i = 0; i < frames.size(); i++) {
+            wireLengths.add(frames.get(i).length);
+            timestamps.add(now + i);
+        }
+        return new Frames(frames, wireLengths, timestamps);
+    }
+
+    private static byte[] build(String kind, int i) {
+        int client = 0x0A000000 | (i & 0xFFFF);
+        int server = 0x5DB8D822;
+        int port = 1024 + (i & 0x7FFF);
+        if (kind.equals("arp")) {
+            ByteBuffer arp = ByteBuffer.allocate(28);
+            arp.putShort((short) 1).putShort((short) ETHERTYPE_IPV4).put((byte) 6).put((byte) 4).putShort((short) 1);
+            arp.put(new byte[6]).putInt(client).put(new byte[6]).putInt(server);
+            return ethernet(ETHERTYPE_ARP, arp.array());
+        } else if (kind.equals("ipv4-udp")) {
+            return ipv4(PROTO_UDP, client, server, udp(port, 5000, filler(64)));
+        } else if (kind.equals("ipv4-tcp")) {
+            return ipv4(PROTO_TCP, client, server, tcp(port, 443, i, i, TCP_ACK | TCP_PSH, filler(100)));
+        } else if (kind.equals("ipv6-udp")) {
+            return ipv6(PROTO_UDP, i, udp(port, 5000, filler(64)));
+        } else if (kind.equals("ipv6-tcp")) {
+            return ipv6(PROTO_TCP, i, tcp(port, 443, i, i, TCP_ACK | TCP_PSH, filler(100)));
+        } else if (kind.equals("dns-query")) {
+            return ipv4(PROTO_UDP, client, server, udp(port, 53, dns(i, false)));
+        } else if (kind.equals("dns-response")) {
+            return ipv4(PROTO_UDP, server, client, udp(53, port, dns(i, true)));
+        } else if (kind.equals("http-request")) {
+            return ipv4(PROTO_TCP, client, server, tcp(port, 80, i, i, TCP_ACK | TCP_PSH, ascii(HTTP_REQUEST)));
+        } else if (kind.equals("http-response")) {
+            byte[] head = ascii(HTTP_RESPONSE);
+            byte[] payload = Arrays.copyOf(head, head.length + 512);
+            Arrays.fill(payload, head.length, payload.length, (byte) 'x');
+            return ipv4(PROTO_TCP, server, client, tcp(80, port, i, i, TCP_ACK | TCP_PSH, payload));
+        } else if (kind.equals("payload-1400")) {
+            return ipv4(PROTO_UDP, client, server, udp(port, 5000, filler(1400)));
+        }
+        throw new IllegalArgumentException("Unknown frame kind: " + kind);
+    }
+
+    private static byte[] ethernet(int etherType, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(14 + payload.length);
+        b.put(new byte[]{0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte) 0x88, (byte) 0x99, (byte) 0xAA,
+                (byte) 0xBB});
+        b.putShort((short) etherType).put(payload);
+        return b.array();
+    }
+
+    private static byte[] ipv4(int protocol, int src, int dst, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(20 + payload.length);
+        b.put((byte) 0x45).put((byte) 0).putShort((short) (20 + payload.length));
+        b.putShort((short) 0x1234).putShort((short) 0x4000).put((byte) 64).put((byte) protocol).putShort((short) 0);
+        b.putInt(src).putInt(dst).put(payload);
+        return ethernet(ETHERTYPE_IPV4, b.array());
+    }
+
+    private static byte[] ipv6(int protocol, int i, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(40 + payload.length);
+        b.putInt(0x60000000 | (i & 0xFFFFF)).putShort((short) payload.length).put((byte) protocol).put((byte) 64);
+        b.putLong(0x20010DB800000000L).putLong(i);
+        b.putLong(0x2606470000000000L).putLong(0x6810840DL);
+        b.put(payload);
+        return ethernet(ETHERTYPE_IPV6, b.array());
+    }
+
+    private static byte[] udp(int srcPort, int dstPort, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(8 + payload.length);
+        b.putShort((short) srcPort).putShort((short) dstPort).putShort((short) (8 + payload.length));
+        b.putShort((short) 0).put(payload);
+        return b.array();
+    }
+
+    private static byte[] tcp(int srcPort, int dstPort, long seq, long ack, int flags, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(20 + payload.length);
+        b.putShort((short) srcPort).putShort((short) dstPort).putInt((int) seq).putInt((int) ack);
+        b.put((byte) 0x50).put((byte) flags).putShort((short) 65535).putShort((short) 0).putShort((short) 0);
+        b.put(payload);
+        return b.array();
+    }
+
+    /**
+     * A query for www.example.com, or its response with two addresses
+     */
+    private static byte[] dns(int id, boolean response) {
+        ByteBuffer b = ByteBuffer.allocate(12 + QUESTION.length + (response ? 2 * 16 : 0));
+        b.putShort((short) id).putShort((short) (response ? 0x8180 : 0x0100));
+        b.putShort((short) 1).putShort((short) (response ? 2 : 0)).putShort((short) 0).putShort((short) 0);
+        b.put(QUESTION);
+        if (response) {
+            for (int n = 0; n < 2; n++) {
+                // Name is a pointer to the question
+                b.putShort((short) 0xC00C).putShort((short) 1).putShort((short) 1).putInt(300);
+                b.putShort((short) 4).putInt(0x5DB8D822 + n);
+            }
+        }
+        return b.array();
+    }
+
+    private static byte[] filler(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (i * 31 + 7);
+        }
+        return b;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads a classic pcap file with Ethernet frames.
+     *
+     * @throws IOException if the file can not be read or is not an Ethernet
+     * pcap file
+     */
+    static Frames read(Path file) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (b.remaining() < 24) {
+            throw new EOFException("Too short for a pcap file: " + file);
+        }
+        int magic = b.getInt(0);
+        boolean nanos;
+        if (magic == 0xA1B2C3D4 || magic == 0xA1B23C4D) {
+            b.order(ByteOrder.BIG_ENDIAN);
+            nanos = magic == 0xA1B23C4D;
+        } else if (magic == 0xD4C3B2A1 || magic == 0x4D3CB2A1) {
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            nanos = magic == 0x4D3CB2A1;
+        } else {
+            throw new IOException("Not a pcap file (pcapng is not supported): " + file);
+        }
+        if (b.getInt(20) != 1) {
+            throw new IOException("Not an Ethernet capture: " + file);
+        }
+        List<byte[]> frames = new ArrayList<byte[]>();
+        List<Integer> wireLengths = new ArrayList<Integer>();
+        List<Long> timestamps = new ArrayList<Long>();
+        int x = 24;
+        while (b.limit() - x >= 16) {
+            long seconds = b.getInt(x) & 0xFFFFFFFFL;
+            long fraction = b.getInt(x + 4) & 0xFFFFFFFFL;
+            int captured = b.getInt(x + 8);
+            int wire = b.getInt(x + 12);
+            x += 16;
+            if (captured < 0 || captured > b.limit() - x) {
+                break; // Truncated file
+            }
+            byte[] frame = new byte[captured];
+            b.position(x);
+            b.get(frame);
+            x += captured;
+            frames.add(frame);
+            wireLengths.add(wire);
+            timestamps.add(seconds * 1000000 + (nanos ? fraction / 1000 : fraction));
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("No frames in " + file);
+        }
+        return new Frames(frames, wireLengths, timestamps);
+    }
+}
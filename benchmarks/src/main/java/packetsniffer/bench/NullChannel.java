@@ -0,0 +1,43 @@
+package packetsniffer.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Channel that throws away everything written to it, so the benchmarks
+ * measure the text and not the disk.
+ */
+final class NullChannel implements GatheringByteChannel {
+
+    private long written;
+
+    public int write(ByteBuffer src) {
+        int n = src.remaining();
+        src.position(src.limit());
+        written += n;
+        return n;
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long n = 0;
+        for (int i = offset; i < offset + length; i++) {
+            n += write(srcs[i]);
+        }
+        return n;
+    }
+
+    public long write(ByteBuffer[] srcs) {
+        return write(srcs, 0, srcs.length);
+    }
+
+    long written() {
+        return written;
+    }
+
+    public boolean isOpen() {
+        return true;
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,72 @@
+package packetsniffer.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import packetsniffer.decode.PacketDecoder;
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.output.OutputSink;
+import packetsniffer.output.RecordPrinter;
+import packetsniffer.pipeline.Backpressure;
+
+/**
+ * Time to decode one frame and format its text, hex dump included, as the
+ * sniffer prints it. The text goes through the output sink to a channel
+ * that throws it away.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrintBenchmark {
+
+    static final int BATCH = 1024;
+
+    @Param({"arp", "ipv4-udp", "ipv4-tcp", "ipv6-udp", "ipv6-tcp", "dns-query", "dns-response", "http-request",
+            "http-response", "payload-1400"})
+    public String frame;
+
+    private final PacketDecoder decoder = new PacketDecoder();
+    private final PacketRecord rec = new PacketRecord();
+    private Frames frames;
+    private OutputSink sink;
+    private RecordPrinter printer;
+
+    @Setup
+    public void setup() {
+        frames = Frames.synthetic(frame, BATCH);
+        sink = new OutputSink(new NullChannel(), 64 * 1024, 64, Backpressure.BLOCK);
+        printer = new RecordPrinter(sink.newProducer());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        printer.flush();
+        sink.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void print() {
+        for (int i = 0; i < BATCH; i++) {
+            decoder.decode(frames.timestamps[i], frames.wireLengths[i], frames.frames[i], rec);
+            printer.accept(rec, frames.frames[i]);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package packetsniffer.bench;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import packetsniffer.decode.PacketDecoder;
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.output.OutputSink;
+import packetsniffer.output.RecordPrinter;
+import packetsniffer.pipeline.Backpressure;
+
+/**
+ * Decoding and printing of recorded traffic: the frames of the pcap file
+ * given with {@code -p pcap=<file>}, or by default a mix of all synthetic
+ * frames. The frames are taken in turn, {@link #BATCH} per invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrafficBenchmark {
+
+    static final int BATCH = 1024;
+
+    @Param("")
+    public String pcap;
+
+    private final PacketDecoder decoder = new PacketDecoder();
+    private final PacketRecord rec = new PacketRecord();
+    private Frames frames;
+    private int next;
+    private OutputSink sink;
+    private RecordPrinter printer;
+
+    @Setup
+    public void setup() throws IOException {
+        frames = pcap.isEmpty() ? Frames.mix(BATCH) : Frames.read(Paths.get(pcap));
+        sink = new OutputSink(new NullChannel(), 64 * 1024, 64, Backpressure.BLOCK);
+        printer = new RecordPrinter(sink.newProducer());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        printer.flush();
+        sink.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int decode() {
+        int sum = 0;
+        int i = next;
+        for (int n = 0; n < BATCH; n++) {
+            decoder.decode(frames.timestamps[i], frames.wireLengths[i], frames.frames[i], rec);
+            sum += rec.l7Offset + rec.appProtocol;
+            i = i + 1 < frames.size() ? i + 1 : 0;
+        }
+        next = i;
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void print() {
+        int i = next;
+        for (int n = 0; n < BATCH; n++) {
+            decoder.decode(frames.timestamps[i], frames.wireLengths[i], frames.frames[i], rec);
+            printer.accept(rec, frames.frames[i]);
+            i = i + 1 < frames.size() ? i + 1 : 0;
+        }
+        next = i;
+    }
+}
@@ -0,0 +1,91 @@
+package packetsniffer;
+
+import java.io.PrintStream;
+import java.util.function.LongSupplier;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapStat;
+
+import packetsniffer.metrics.MetricRegistry;
+
+/**
+ * libpcap's own counters of a live capture: frames the kernel received,
+ * frames it dropped because the handler did not read them in time, and
+ * frames the interface dropped before the kernel saw them.
+ *
+ * They are read from the metrics thread while the capture thread is in the
+ * libpcap loop, so every read is synchronized and stops once the handle is
+ * about to be closed.
+ */
+final class CaptureStats {
+
+    private static final int RECEIVED = 0;
+    private static final int DROPPED = 1;
+    private static final int INTERFACE_DROPPED = 2;
+
+    private final Pcap pcap;
+    private final String name;
+    private final PcapStat stat = new PcapStat();
+    private final long[] last = new long[3];
+    private boolean closed;
+
+    /**
+     * @param name the interface, used as the metric label and report title
+     */
+    CaptureStats(Pcap pcap, String name) {
+        this.pcap = pcap;
+        this.name = name;
+    }
+
+    void register(MetricRegistry registry) {
+        String labels = "interface=\"" + name + "\"";
+        registry.counter("capture_received_total", "Frames received by libpcap", labels, counter(RECEIVED));
+        registry.counter("capture_dropped_total", "Frames dropped by libpcap because the sniffer fell behind",
+                labels, counter(DROPPED));
+        registry.counter("capture_interface_dropped_total", "Frames dropped by the network interface", labels,
+                counter(INTERFACE_DROPPED));
+    }
+
+    private LongSupplier counter(final int which) {
+        return new LongSupplier() {
+            public long getAsLong() {
+                return read(which);
+            }
+        };
+    }
+
+    /**
+     * @return frames libpcap dropped so far
+     */
+    long dropped() {
+        return read(DROPPED);
+    }
+
+    /**
+     * @return the counter, or its last value once the handle is closed
+     */
+    private synchronized long read(int which) {
+        if (!closed && pcap.stats(stat) == Pcap.OK) {
+            last[RECEIVED] = stat.getRecv();
+            last[DROPPED] = stat.getDrop();
+            last[INTERFACE_DROPPED] = stat.getIfDrop();
+        }
+        return last[which];
+    }
+
+    /**
+     * Reads the counters a last time; must be called before the handle is
+     * closed.
+     */
+    synchronized void close() {
+        read(RECEIVED);
+        closed = true;
+    }
+
+    synchronized void report(PrintStream out) {
+        out.println("\n---------Capture " + name + "---------");
+        out.printf("Received: %d\n", last[RECEIVED]);
+        out.printf("Dropped: %d\n", last[DROPPED]);
+        out.printf("Dropped by interface: %d\n", last[INTERFACE_DROPPED]);
+    }
+}
@@ -0,0 +1,304 @@
+package packetsniffer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import packetsniffer.decode.ConsumerChain;
+import packetsniffer.decode.RecordConsumer;
+import packetsniffer.dns.DnsCorrelator;
+import packetsniffer.dns.DnsLatency;
+import packetsniffer.dns.DnsMessage;
+import packetsniffer.flow.FlowTable;
+import packetsniffer.flow.FlowTracker;
+import packetsniffer.flow.StreamReassembler;
+import packetsniffer.http.HttpTracker;
+import packetsniffer.match.PatternFile;
+import packetsniffer.output.BinaryRecordWriter;
+import packetsniffer.output.OutputSink;
+import packetsniffer.output.RecordPrinter;
+import packetsniffer.output.TextBuffer;
+import packetsniffer.recorder.Trigger;
+import packetsniffer.stats.LogHistogram;
+import packetsniffer.store.CaptureStore;
+import packetsniffer.talkers.TalkerAggregator;
+
+/**
+ * Creates the consumer of each decoding thread from the command line
+ * options, and keeps hold of the consumers for the report at the end.
+ *
+ * {@link #get()} is called on the capture thread before decoding starts,
+ * the report after the decoding threads have finished, so the consumers'
+ * counters can be read without locking.
+ */
+final class ConsumerFactory implements Supplier<RecordConsumer> {
+
+    private static final int STREAM_BUFFER_LIMIT = 1024 * 1024;
+
+    private final Options options;
+    private final OutputSink sink;
+    private final String recordPrefix;
+    private final String[] interfaceNames;
+    private final Trigger flight;
+    private final TalkerAggregator talkers;
+    private final CaptureStore store;
+    private final PatternFile patterns;
+    private final List<BinaryRecordWriter> writers = new ArrayList<BinaryRecordWriter>();
+    private final List<FlowTracker> trackers = new ArrayList<FlowTracker>();
+    private final List<HttpTracker> httpTrackers = new ArrayList<HttpTracker>();
+    private final List<DnsCorrelator> correlators = new ArrayList<DnsCorrelator>();
+    private int threads;
+
+    /**
+     * @param options decides which consumers each thread gets
+     * @param sink where the text output goes
+     * @param interfaceNames names of the merged interfaces or files, printed
+     * with each packet, or null for a single capture
+     * @param flight the flight recorder DNS and HTTP errors trigger, or null
+     */
+    ConsumerFactory(Options options, OutputSink sink, String[] interfaceNames, Trigger flight) {
+        this.options = options;
+        this.sink = sink;
+        this.interfaceNames = interfaceNames;
+        this.flight = flight;
+        this.talkers = options.top == 0 ? null
+                : new TalkerAggregator(Math.max(1, options.workers), options.topWindow * 1000L * 1000L,
+                        options.topSlide * 1000L * 1000L, options.top, sink.newProducer());
+        // Files of one run sort together and after those of earlier runs
+        this.recordPrefix = "records-" + System.currentTimeMillis();
+        this.store = options.storeDir == null ? null : openStore(options);
+        this.patterns = options.matchFile == null ? null : new PatternFile(Paths.get(options.matchFile));
+    }
+
+    private static CaptureStore openStore(Options options) {
+        CaptureStore store = new CaptureStore(Paths.get(options.storeDir),
+                options.storeSegmentMegabytes * 1024L * 1024L, options.storeMegabytes * 1024L * 1024L,
+                options.storeMinutes * 60L * 1000L * 1000L);
+        try {
+            store.open();
+        } catch (IOException e) {
+            // New segments are still written, older ones are just not retired
+            System.err.printf("Can't list the capture store %s: %s\n", options.storeDir, e.getMessage());
+        }
+        return store;
+    }
+
+    public RecordConsumer get() {
+        // Every thread gets an equal share of the flow and DNS table limits
+        int threadCount = Math.max(1, options.workers);
+        List<RecordConsumer> consumers = new ArrayList<RecordConsumer>(3);
+        if (!options.noText) {
+            consumers.add(new RecordPrinter(sink.newProducer(), interfaceNames));
+        }
+        if (options.flows || options.http) {
+            // Flow summaries and HTTP transactions share the thread's producer
+            OutputSink.Producer producer = sink.newProducer();
+            FlowTracker tracker = new FlowTracker(Math.max(1, options.maxFlows / threadCount),
+                    options.flowTimeout * 1000L * 1000L, producer, options.flows);
+            if (options.http) {
+                HttpTracker http = new HttpTracker(tracker.table(), producer);
+                if (options.flightOnHttpError) {
+                    http.triggerOnServerError(flight);
+                }
+                long memory = options.reassemblyMegabytes * 1024L * 1024L / threadCount;
+                tracker.reassemble(new StreamReassembler(http, memory, STREAM_BUFFER_LIMIT));
+                httpTrackers.add(http);
+            }
+            trackers.add(tracker);
+            consumers.add(tracker);
+        }
+        if (options.dnsLatency) {
+            DnsCorrelator correlator = new DnsCorrelator(Math.max(1, options.dnsPending / threadCount),
+                    options.dnsTimeout * 1000L);
+            if (options.flightOnServfail) {
+                correlator.triggerOnServfail(flight);
+            }
+            correlators.add(correlator);
+            consumers.add(correlator);
+        }
+        if (talkers != null) {
+            consumers.add(talkers.newConsumer());
+        }
+        if (options.recordDir != null) {
+            Path dir = Paths.get(options.recordDir);
+            BinaryRecordWriter writer = new BinaryRecordWriter(dir, recordPrefix, threads,
+                    options.segmentMegabytes * 1024L * 1024L);
+            writers.add(writer);
+            consumers.add(writer);
+        }
+        if (store != null) {
+            consumers.add(store.newWriter());
+        }
+        if (patterns != null) {
+            consumers.add(patterns.newMatcher(sink.newProducer()));
+        }
+        threads++;
+        return consumers.size() == 1 ? consumers.get(0) : new ConsumerChain(consumers);
+    }
+
+    /**
+     * Stops the work the consumers do in the background, once the capture
+     * is over.
+     */
+    void close() {
+        if (patterns != null) {
+            patterns.close();
+        }
+    }
+
+    void report(PrintStream out) {
+        if (options.flows) {
+            long created = 0;
+            long[] evictions = new long[FlowTable.EVICT_REASONS];
+            for (FlowTracker tracker : trackers) {
+                FlowTable table = tracker.table();
+                created += table.created();
+                for (int i = 0; i < evictions.length; i++) {
+                    evictions[i] += table.evictions(i);
+                }
+            }
+            out.println("\n---------TCP Flows---------");
+            out.printf("Connections: %d\n", created);
+            for (int i = 0; i < evictions.length; i++) {
+                out.printf("Ended by %s: %d\n", FlowTable.evictionName(i), evictions[i]);
+            }
+        }
+        if (options.http) {
+            long transactions = 0, unanswered = 0, unmatched = 0;
+            long delivered = 0, buffered = 0, gaps = 0, gapBytes = 0, overflows = 0;
+            for (HttpTracker http : httpTrackers) {
+                transactions += http.transactions();
+                unanswered += http.unanswered();
+                unmatched += http.unmatched();
+            }
+            for (FlowTracker tracker : trackers) {
+                StreamReassembler reassembler = tracker.reassembler();
+                delivered += reassembler.deliveredBytes();
+                buffered += reassembler.bufferedSegments();
+                gaps += reassembler.gaps();
+                gapBytes += reassembler.gapBytes();
+                overflows += reassembler.overflows();
+            }
+            out.println("\n---------TCP Reassembly---------");
+            out.printf("Stream bytes: %d\n", delivered);
+            out.printf("Out of order segments: %d\n", buffered);
+            out.printf("Gaps: %d (%d bytes, %d over the memory limit)\n", gaps, gapBytes, overflows);
+            out.println("\n---------HTTP---------");
+            out.printf("Transactions: %d\n", transactions);
+            out.printf("Requests without response: %d\n", unanswered);
+            out.printf("Responses without request: %d\n", unmatched);
+        }
+        if (options.dnsLatency) {
+            reportDns(out);
+        }
+        if (talkers != null) {
+            talkers.report(out);
+        }
+        if (!writers.isEmpty()) {
+            long written = 0, dropped = 0, segments = 0;
+            for (BinaryRecordWriter writer : writers) {
+                written += writer.written();
+                dropped += writer.dropped();
+                segments += writer.segments();
+            }
+            out.println("\n---------Binary Records---------");
+            out.printf("Written: %d records in %d files\n", written, segments);
+            out.printf("Dropped: %d records\n", dropped);
+        }
+        if (store != null) {
+            store.report(out);
+        }
+        if (patterns != null) {
+            patterns.report(out);
+        }
+    }
+
+    /**
+     * Merges the DNS statistics of all threads and prints one line for all
+     * queries, then one per server and one per query type.
+     */
+    private void reportDns(PrintStream out) {
+        long queries = 0, retransmitted = 0, timedOut = 0, pushedOut = 0, waiting = 0, unmatched = 0;
+        long[] rcodes = new long[16];
+        DnsLatency all = new DnsLatency();
+        Map<String, DnsLatency> servers = new LinkedHashMap<String, DnsLatency>();
+        DnsLatency[] types = new DnsLatency[DnsCorrelator.OTHER_TYPE + 1];
+        TextBuffer name = new TextBuffer(64);
+        for (DnsCorrelator correlator : correlators) {
+            queries += correlator.queries();
+            retransmitted += correlator.retransmitted();
+            timedOut += correlator.timedOut();
+            pushedOut += correlator.pushedOut();
+            waiting += correlator.waitingAtEnd();
+            unmatched += correlator.unmatched();
+            for (int i = 0; i < rcodes.length; i++) {
+                rcodes[i] += correlator.rcodes(i);
+            }
+            for (int i = 0; i < correlator.serverCount(); i++) {
+                DnsLatency stats = correlator.server(i);
+                if (stats == null) {
+                    continue;
+                }
+                name.clear();
+                if (i == 0) {
+                    name.append("other");
+                } else if (correlator.isIpv6Server(i)) {
+                    name.appendIpv6(correlator.serverAddrHi(i), correlator.serverAddrLo(i));
+                } else {
+                    name.appendIpv4(correlator.serverAddrLo(i));
+                }
+                DnsLatency total = servers.get(name.toString());
+                if (total == null) {
+                    servers.put(name.toString(), total = new DnsLatency());
+                }
+                total.add(stats);
+                all.add(stats);
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (correlator.type(i) != null) {
+                    if (types[i] == null) {
+                        types[i] = new DnsLatency();
+                    }
+                    types[i].add(correlator.type(i));
+                }
+            }
+        }
+        out.println("\n---------DNS Latency---------");
+        out.printf("Queries: %d (%d retransmitted)\n", queries, retransmitted);
+        out.printf("Answered: %d\n", all.answered());
+        out.printf("Unanswered: %d timed out, %d pushed out of a full table, %d still waiting at the end\n",
+                timedOut, pushedOut, waiting);
+        out.printf("Responses without query: %d\n", unmatched);
+        out.printf("Response codes: NOERROR %d, FORMERR %d, SERVFAIL %d, NXDOMAIN %d, other %d\n",
+                rcodes[DnsMessage.RCODE_NOERROR], rcodes[DnsMessage.RCODE_FORMERR],
+                rcodes[DnsMessage.RCODE_SERVFAIL], rcodes[DnsMessage.RCODE_NXDOMAIN],
+                all.answered() - rcodes[DnsMessage.RCODE_NOERROR] - rcodes[DnsMessage.RCODE_FORMERR]
+                        - rcodes[DnsMessage.RCODE_SERVFAIL] - rcodes[DnsMessage.RCODE_NXDOMAIN]);
+        out.printf("%-40s %9s %9s %9s %9s %9s %9s %9s %9s %9s\n", "Latency (ms)", "answered", "unanswer.",
+                "NXDOMAIN", "SERVFAIL", "p50", "p90", "p99", "p99.9", "max");
+        printLatency(out, "All", all);
+        for (Map.Entry<String, DnsLatency> server : servers.entrySet()) {
+            printLatency(out, "Server " + server.getKey(), server.getValue());
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] != null) {
+                String type = i == DnsCorrelator.OTHER_TYPE ? "other" : DnsMessage.typeName(i);
+                printLatency(out, "Type " + (type != null ? type : "TYPE" + i), types[i]);
+            }
+        }
+    }
+
+    private static void printLatency(PrintStream out, String name, DnsLatency stats) {
+        LogHistogram latency = stats.latency;
+        out.printf("%-40s %9d %9d %9d %9d %9.3f %9.3f %9.3f %9.3f %9.3f\n", name, stats.answered(),
+                stats.unanswered(), stats.nxdomain(), stats.servfail(), latency.percentile(50) / 1000.0,
+                latency.percentile(90) / 1000.0, latency.percentile(99) / 1000.0,
+                latency.percentile(99.9) / 1000.0, latency.max() / 1000.0);
+    }
+}
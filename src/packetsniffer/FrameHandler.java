@@ -0,0 +1,290 @@
+package packetsniffer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import packetsniffer.decode.IpReassembler;
+import packetsniffer.decode.PacketDecoder;
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+import packetsniffer.metrics.MetricRegistry;
+import packetsniffer.metrics.PacketMetrics;
+import packetsniffer.pipeline.DecodePipeline;
+import packetsniffer.pipeline.FrameMerger;
+import packetsniffer.pipeline.LoadShedder;
+import packetsniffer.pipeline.Sampler;
+import packetsniffer.recorder.FlightRecorder;
+import packetsniffer.source.PacketSource;
+
+/**
+ * Receives frames from a packet source, decodes them and hands the record
+ * to a consumer, or queues them on a decode pipeline.
+ *
+ * Frames are decoded where the source keeps them, libpcap's buffer or the
+ * mapped capture file, without being copied first, and the decoder reuses
+ * one record. Whatever has to outlive the frame, a queued frame or a
+ * buffered segment, is copied out in bulk.
+ *
+ * IP fragments are held back until their datagram is complete, which is
+ * then decoded and passed on as one frame. This happens on the capture
+ * thread, because the fragments of a datagram can only be told apart by
+ * flow after reassembly.
+ *
+ * Sampling and shedding load happen here as well, after reassembly and
+ * before anything is queued, so frames left out cost no more than their
+ * headers.
+ */
+final class FrameHandler implements PacketSource.Handler, FrameMerger.Output {
+
+    /** Datagrams being reassembled at the same time */
+    private static final int FRAGMENT_DATAGRAMS = 1024;
+    /** Linux gives fragments 30 seconds as well (ipfrag_time) */
+    private static final long FRAGMENT_TIMEOUT_MICROS = 30L * 1000 * 1000;
+
+    private final PacketDecoder decoder = new PacketDecoder();
+    private final PacketRecord record = new PacketRecord();
+    private final RecordConsumer consumer;
+    private final DecodePipeline pipeline;
+    private final ReplayStats stats;
+    private final PacketMetrics.Recorder recorder;
+    private final FlightRecorder flight;
+    private final IpReassembler reassembler;
+    private final Sampler sampler;
+    private final int sampleRate;
+    private final LoadShedder shedder;
+
+    /**
+     * @param options decides between decoding on the capture thread and a
+     * pipeline of worker threads
+     * @param snaplen largest frame that will be captured
+     * @param consumers creates the consumer of each decoding thread
+     * @param stats replay statistics to update, or null when capturing live
+     * @param metrics where the decoding threads count their packets, or null
+     * @param flight keeps every frame before it is decoded, or null
+     * @param captureDrops frames libpcap has dropped so far, or null when
+     * replaying files
+     */
+    FrameHandler(Options options, int snaplen, Supplier<RecordConsumer> consumers, ReplayStats stats,
+            PacketMetrics metrics, FlightRecorder flight, LongSupplier captureDrops) {
+        this.stats = stats;
+        this.flight = flight;
+        this.reassembler = options.reassembleIp
+                ? new IpReassembler(FRAGMENT_DATAGRAMS, options.fragmentMegabytes * 1024L * 1024L,
+                        FRAGMENT_TIMEOUT_MICROS)
+                : null;
+        this.sampler = options.sampleEvery > 1 || options.sampleFlows > 1
+                ? new Sampler(options.sampleEvery, options.sampleFlows)
+                : null;
+        this.sampleRate = sampler == null ? 1 : sampler.rate();
+        if (options.workers == 0) {
+            this.consumer = consumers.get();
+            this.pipeline = null;
+            this.recorder = metrics == null ? null : metrics.recorder();
+            if (stats != null) {
+                decoder.setLayerTimes(stats.layerNanos());
+            }
+        } else {
+            this.consumer = null;
+            this.recorder = null;
+            int largest = reassembler == null ? snaplen : Math.max(snaplen, IpReassembler.MAX_FRAME);
+            this.pipeline = new DecodePipeline(options.workers, options.queueDepth, largest,
+                    options.backpressure, consumers, metrics);
+            if (stats != null) {
+                pipeline.enableLayerTimes();
+            }
+            if (metrics != null) {
+                registerQueues(metrics.registry());
+            }
+            pipeline.setSampleRate(sampleRate);
+            pipeline.start();
+            // The workers decode again, here the headers are enough
+            decoder.setApplicationLayer(false);
+        }
+        this.shedder = newShedder(options, captureDrops);
+        if (metrics != null) {
+            registerSampling(metrics.registry());
+        }
+    }
+
+    /**
+     * @return the shedder, or null when frames are always decoded in full
+     */
+    private LoadShedder newShedder(Options options, final LongSupplier captureDrops) {
+        int deepest = options.headersOnly ? LoadShedder.HEADERS : LoadShedder.FULL;
+        if (!options.adaptive) {
+            return deepest == LoadShedder.FULL ? null : new LoadShedder(deepest, null, null);
+        }
+        IntSupplier fill = null;
+        if (pipeline != null) {
+            fill = new IntSupplier() {
+                public int getAsInt() {
+                    return pipeline.fill();
+                }
+            };
+        }
+        return new LoadShedder(deepest, fill, new LongSupplier() {
+            public long getAsLong() {
+                long drops = captureDrops == null ? 0 : captureDrops.getAsLong();
+                return pipeline == null ? drops : drops + pipeline.drops();
+            }
+        });
+    }
+
+    private void registerSampling(MetricRegistry registry) {
+        registry.gauge("sample_rate", "Frames each decoded frame stands for", "", new LongSupplier() {
+            public long getAsLong() {
+                return sampleRate;
+            }
+        });
+        if (sampler != null) {
+            registry.counter("sampled_out_total", "Frames left out by sampling", "", new LongSupplier() {
+                public long getAsLong() {
+                    return sampler.dropped();
+                }
+            });
+        }
+        if (shedder != null) {
+            registry.gauge("decode_depth", "How deep frames are decoded: 0 full, 1 headers, 2 counters only", "",
+                    new LongSupplier() {
+                        public long getAsLong() {
+                            return shedder.currentDepth();
+                        }
+                    });
+        }
+    }
+
+    private void registerQueues(MetricRegistry registry) {
+        for (int i = 0; i < pipeline.workerCount(); i++) {
+            final int worker = i;
+            String labels = "worker=\"" + worker + "\"";
+            registry.gauge("queue_depth", "Frames waiting for a decoding thread", labels, new LongSupplier() {
+                public long getAsLong() {
+                    return pipeline.backlog(worker);
+                }
+            });
+            registry.counter("queue_dropped_total", "Frames dropped because a decoding thread fell behind",
+                    labels, new LongSupplier() {
+                        public long getAsLong() {
+                            return pipeline.drops(worker);
+                        }
+                    });
+        }
+    }
+
+    public void frame(long timestampMicros, int wireLength, ByteBuffer frame) {
+        frame(timestampMicros, wireLength, frame, 0);
+    }
+
+    /**
+     * Handles a frame of one of several interfaces or files, passed on by
+     * the merge.
+     *
+     * @param captured the frame between position and limit
+     * @param interfaceId number of the interface or file it came from
+     */
+    public void frame(long timestampMicros, int wireLength, ByteBuffer captured, int interfaceId) {
+        // Recorded first, so a trigger fired by the decoding thread finds the frame
+        if (flight != null) {
+            flight.append(timestampMicros, wireLength, captured);
+        }
+        int depth = shedder == null ? LoadShedder.FULL : shedder.depth();
+        if (pipeline == null) {
+            decoder.setApplicationLayer(depth == LoadShedder.FULL);
+        }
+        if (recorder != null) {
+            recorder.beforeDecode(decoder);
+        }
+        decoder.decode(timestampMicros, wireLength, captured, record);
+        record.interfaceId = interfaceId;
+        int captureLength = record.captureLength;
+        if (reassembler != null && record.isFragment()) {
+            int result = reassembler.add(record, captured);
+            if (result == IpReassembler.HELD) {
+                if (recorder != null) {
+                    recorder.afterDecode(decoder, record);
+                }
+                if (stats != null) {
+                    stats.end(captureLength, wireLength);
+                }
+                return;
+            }
+            if (result == IpReassembler.COMPLETE) {
+                captured = reassembler.datagram();
+                decoder.decode(timestampMicros, captured.remaining(), captured, record);
+                record.interfaceId = interfaceId;
+                record.ipFragments = reassembler.datagramFragments();
+            }
+        }
+        if (recorder != null) {
+            recorder.afterDecode(decoder, record);
+        }
+        if (depth == LoadShedder.COUNTERS || sampler != null && !sampler.keep(record.flowHash())) {
+            if (stats != null) {
+                stats.end(captureLength, wireLength);
+            }
+            return;
+        }
+        int limit = captured.limit();
+        if (depth == LoadShedder.HEADERS && record.l7Offset > 0 && record.l7Offset < record.frameEnd) {
+            // Cut after the transport header, the payload is not wanted
+            captured.limit(record.l7Offset);
+            record.frameEnd = record.l7Offset;
+            record.captureLength = record.l7Offset - record.frameOffset;
+        }
+        record.sampleRate = sampleRate;
+        if (pipeline != null) {
+            // The flow hash only needs the headers, the worker decodes the frame again
+            pipeline.offer(timestampMicros, record.wireLength, interfaceId, captured, record.flowHash());
+        } else {
+            if (stats != null) {
+                stats.begin();
+            }
+            consumer.accept(record, captured);
+            if (stats != null) {
+                stats.mark(ReplayStats.OUTPUT);
+            }
+        }
+        captured.limit(limit);
+        if (stats != null) {
+            stats.end(captureLength, wireLength);
+        }
+    }
+
+    /**
+     * Finishes every frame received so far: waits for the workers to drain
+     * their queues, or flushes and closes the consumer when decoding on the
+     * capture thread.
+     */
+    void close() {
+        if (reassembler != null) {
+            reassembler.close();
+        }
+        if (pipeline == null) {
+            consumer.flush();
+            consumer.close();
+            return;
+        }
+        pipeline.close();
+        if (stats != null) {
+            pipeline.addLayerTimes(stats.layerNanos());
+        }
+    }
+
+    void report(PrintStream out) {
+        if (pipeline != null) {
+            pipeline.report(out);
+        }
+        if (reassembler != null && reassembler.fragments() > 0) {
+            reassembler.report(out);
+        }
+        if (sampler != null) {
+            sampler.report(out);
+        }
+        if (shedder != null) {
+            shedder.report(out);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package packetsniffer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import packetsniffer.pipeline.Backpressure;
+import packetsniffer.pipeline.FrameMerger;
+import packetsniffer.source.PacketSource;
+
+/**
+ * Captures from several interfaces or files at once. Every source is read
+ * on its own thread, and the thread that calls {@link #run} passes the
+ * frames of all of them on in timestamp order.
+ */
+final class MergedCapture {
+
+    private final List<PacketSource> sources;
+    private final FrameMerger merger;
+
+    /**
+     * @param windowMicros see {@link FrameMerger}, -1 for files
+     * @param backpressure what a capture thread does when the merge falls
+     * behind
+     */
+    MergedCapture(List<PacketSource> sources, int snaplen, int queueDepth, long windowMicros,
+            Backpressure backpressure) {
+        this.sources = sources;
+        this.merger = new FrameMerger(sources.size(), queueDepth, snaplen, windowMicros, backpressure);
+    }
+
+    /**
+     * Captures until every source has ended.
+     */
+    void run(FrameMerger.Output output) {
+        Thread[] threads = new Thread[sources.size()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new CaptureThread(i);
+            threads[i].start();
+        }
+        try {
+            merger.run(output);
+        } finally {
+            merger.close();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    void report(PrintStream out) {
+        String[] names = new String[sources.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = sources.get(i).name();
+        }
+        merger.report(out, names);
+    }
+
+    private final class CaptureThread extends Thread implements PacketSource.Handler {
+
+        private final int index;
+
+        CaptureThread(int index) {
+            super("capture-" + sources.get(index).name());
+            setDaemon(true);
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            PacketSource source = sources.get(index);
+            try {
+                source.capture(this);
+            } catch (IOException e) {
+                System.err.printf("Error while reading %s: %s\n", source.name(), e.getMessage());
+            } finally {
+                merger.finish(index);
+            }
+        }
+
+        public void frame(long timestampMicros, int wireLength, ByteBuffer frame) {
+            merger.offer(index, timestampMicros, wireLength, frame);
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package packetsniffer;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import packetsniffer.pipeline.Backpressure;
+
+/**
+ * Command line options for the sniffer.
+ *
+ * With no arguments the sniffer keeps its original behaviour: list the
+ * network devices and ask on stdin which one to listen to.
+ */
+final class Options {
+
+    /** Keeps sampled byte counts scaled back up within an int */
+    private static final int MAX_SAMPLE_RATE = 32768;
+
+    /**
+     * Capture files to replay instead of opening a live device, merged in
+     * timestamp order when there are several
+     */
+    List<String> readFiles = new ArrayList<String>();
+
+    /**
+     * Devices to capture on, empty to ask on stdin
+     */
+    List<String> interfaces = new ArrayList<String>();
+
+    /**
+     * Milliseconds a frame of one live interface waits for earlier frames
+     * of the others when they are silent
+     */
+    int reorderWindow = 100;
+
+    /**
+     * Discard the per-packet text and only print the replay summary
+     */
+    boolean benchmark;
+
+    /**
+     * How many times the capture file is replayed
+     */
+    int repeat = 1;
+
+    /**
+     * Filter expression compiled into the kernel, empty to capture everything
+     */
+    String filter = "udp";
+
+    /**
+     * Decoding threads, 0 decodes on the capture thread
+     */
+    int workers;
+
+    /**
+     * Frames each decoding thread can have queued
+     */
+    int queueDepth = 4096;
+
+    /**
+     * What the capture thread does when a worker falls behind
+     */
+    Backpressure backpressure = Backpressure.DROP;
+
+    /**
+     * File the packet text is written to, null for stdout
+     */
+    String outputFile;
+
+    /**
+     * What decoding threads do when the output falls behind
+     */
+    Backpressure outputBackpressure = Backpressure.BLOCK;
+
+    /**
+     * Directory the binary records are archived in, null to not archive
+     */
+    String recordDir;
+
+    /**
+     * Size of each binary record file in megabytes
+     */
+    int segmentMegabytes = 64;
+
+    /**
+     * Skip the packet text, for example when only archiving records
+     */
+    boolean noText;
+
+    /**
+     * Decode one frame in this many, 1 for all
+     */
+    int sampleEvery = 1;
+
+    /**
+     * Decode one flow in this many, 1 for all
+     */
+    int sampleFlows = 1;
+
+    /**
+     * Never decode past the transport header
+     */
+    boolean headersOnly;
+
+    /**
+     * Decode less deep while the decoding threads fall behind or frames are
+     * dropped
+     */
+    boolean adaptive;
+
+    /**
+     * Put fragmented IP datagrams back together before decoding them
+     */
+    boolean reassembleIp = true;
+
+    /**
+     * Megabytes the fragments waiting for the rest of their datagram may use
+     */
+    int fragmentMegabytes = 16;
+
+    /**
+     * Track TCP connections and report each one when it ends
+     */
+    boolean flows;
+
+    /**
+     * Seconds a connection may be silent before it is reported and forgotten
+     */
+    int flowTimeout = 120;
+
+    /**
+     * Most connections tracked at the same time, over all decoding threads
+     */
+    int maxFlows = 1000000;
+
+    /**
+     * Reassemble TCP streams and report every HTTP request and response
+     */
+    boolean http;
+
+    /**
+     * Megabytes all reassembly buffers together may use
+     */
+    int reassemblyMegabytes = 256;
+
+    /**
+     * Match DNS queries with their responses and report the response times
+     */
+    boolean dnsLatency;
+
+    /**
+     * Milliseconds a DNS query waits for its response before it is unanswered
+     */
+    int dnsTimeout = 5000;
+
+    /**
+     * Most DNS queries waiting for a response at the same time, over all
+     * decoding threads
+     */
+    int dnsPending = 100000;
+
+    /**
+     * Loopback port the metrics are served on, -1 to not collect metrics
+     */
+    int metricsPort = -1;
+
+    /**
+     * Keys written per dimension for every top talkers window, 0 for none
+     */
+    int top;
+
+    /**
+     * Seconds of traffic a top talkers window covers
+     */
+    int topWindow = 60;
+
+    /**
+     * Seconds between top talkers windows, 0 for the window length
+     */
+    int topSlide;
+
+    /**
+     * Directory flight recorder dumps are written to, null to not record
+     */
+    String flightDir;
+
+    /**
+     * Seconds of recent frames the flight recorder keeps
+     */
+    int flightSeconds = 60;
+
+    /**
+     * Most megabytes of frames the flight recorder keeps; twice this is
+     * allocated
+     */
+    int flightMegabytes = 64;
+
+    /**
+     * Dump the flight recorder on DNS SERVFAIL responses
+     */
+    boolean flightOnServfail;
+
+    /**
+     * Dump the flight recorder on HTTP 5xx responses
+     */
+    boolean flightOnHttpError;
+
+    /**
+     * Directory of the indexed capture store, null to not store frames
+     */
+    String storeDir;
+
+    /**
+     * Size of each capture store segment in megabytes
+     */
+    int storeSegmentMegabytes = 64;
+
+    /**
+     * Most megabytes the capture store keeps, 0 for no limit
+     */
+    int storeMegabytes;
+
+    /**
+     * Minutes of capture the store keeps, 0 for no limit
+     */
+    int storeMinutes;
+
+    /**
+     * File of payload patterns to search for, null to not search
+     */
+    String matchFile;
+
+    private Options() {
+    }
+
+    /**
+     * Parses the command line.
+     *
+     * @param args command line arguments
+     * @return the parsed options, or null if the arguments were invalid (the
+     * usage has already been printed to stderr in that case)
+     */
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-r") || arg.equals("--read")) {
+                if (++i >= args.length) {
+                    return usage("Missing file name after " + arg);
+                }
+                options.readFiles.add(args[i]);
+            } else if (arg.equals("-i") || arg.equals("--interface")) {
+                if (++i >= args.length) {
+                    return usage("Missing device name after " + arg);
+                }
+                options.interfaces.add(args[i]);
+            } else if (arg.equals("--reorder-window")) {
+                if (++i >= args.length) {
+                    return usage("Missing milliseconds after " + arg);
+                }
+                options.reorderWindow = parseInt(args[i]);
+                if (options.reorderWindow < 0) {
+                    return usage("Invalid reorder window: " + args[i]);
+                }
+            } else if (arg.equals("--benchmark")) {
+                options.benchmark = true;
+            } else if (arg.equals("--repeat")) {
+                if (++i >= args.length) {
+                    return usage("Missing count after " + arg);
+                }
+                options.repeat = parseInt(args[i]);
+                if (options.repeat < 1) {
+                    return usage("Invalid repeat count: " + args[i]);
+                }
+            } else if (arg.equals("-f") || arg.equals("--filter")) {
+                if (++i >= args.length) {
+                    return usage("Missing expression after " + arg);
+                }
+                options.filter = args[i].trim();
+            } else if (arg.equals("--workers")) {
+                if (++i >= args.length) {
+                    return usage("Missing count after " + arg);
+                }
+                options.workers = parseInt(args[i]);
+                if (options.workers < 0) {
+                    return usage("Invalid worker count: " + args[i]);
+                }
+            } else if (arg.equals("--queue-depth")) {
+                if (++i >= args.length) {
+                    return usage("Missing count after " + arg);
+                }
+                options.queueDepth = parseInt(args[i]);
+                if (options.queueDepth < 1) {
+                    return usage("Invalid queue depth: " + args[i]);
+                }
+            } else if (arg.equals("--backpressure")) {
+                if (++i >= args.length) {
+                    return usage("Missing policy after " + arg);
+                }
+                options.backpressure = Backpressure.parse(args[i]);
+                if (options.backpressure == null) {
+                    return usage("Invalid backpressure policy: " + args[i]);
+                }
+            } else if (arg.equals("-o") || arg.equals("--output")) {
+                if (++i >= args.length) {
+                    return usage("Missing file name after " + arg);
+                }
+                options.outputFile = args[i];
+            } else if (arg.equals("--output-backpressure")) {
+                if (++i >= args.length) {
+                    return usage("Missing policy after " + arg);
+                }
+                options.outputBackpressure = Backpressure.parse(args[i]);
+                if (options.outputBackpressure == null) {
+                    return usage("Invalid backpressure policy: " + args[i]);
+                }
+            } else if (arg.equals("--records")) {
+                if (++i >= args.length) {
+                    return usage("Missing directory after " + arg);
+                }
+                options.recordDir = args[i];
+            } else if (arg.equals("--segment-size")) {
+                if (++i >= args.length) {
+                    return usage("Missing size after " + arg);
+                }
+                options.segmentMegabytes = parseInt(args[i]);
+                if (options.segmentMegabytes < 1) {
+                    return usage("Invalid segment size: " + args[i]);
+                }
+            } else if (arg.equals("--no-text")) {
+                options.noText = true;
+            } else if (arg.equals("--sample")) {
+                if (++i >= args.length) {
+                    return usage("Missing rate after " + arg);
+                }
+                options.sampleEvery = parseInt(args[i]);
+                if (options.sampleEvery < 1) {
+                    return usage("Invalid sampling rate: " + args[i]);
+                }
+            } else if (arg.equals("--sample-flows")) {
+                if (++i >= args.length) {
+                    return usage("Missing rate after " + arg);
+                }
+                options.sampleFlows = parseInt(args[i]);
+                if (options.sampleFlows < 1) {
+                    return usage("Invalid flow sampling rate: " + args[i]);
+                }
+            } else if (arg.equals("--headers-only")) {
+                options.headersOnly = true;
+            } else if (arg.equals("--adaptive")) {
+                options.adaptive = true;
+            } else if (arg.equals("--no-reassembly")) {
+                options.reassembleIp = false;
+            } else if (arg.equals("--fragment-memory")) {
+                if (++i >= args.length) {
+                    return usage("Missing size after " + arg);
+                }
+                options.fragmentMegabytes = parseInt(args[i]);
+                if (options.fragmentMegabytes < 1) {
+                    return usage("Invalid fragment memory: " + args[i]);
+                }
+            } else if (arg.equals("--flows")) {
+                options.flows = true;
+            } else if (arg.equals("--flow-timeout")) {
+                if (++i >= args.length) {
+                    return usage("Missing seconds after " + arg);
+                }
+                options.flowTimeout = parseInt(args[i]);
+                if (options.flowTimeout < 1) {
+                    return usage("Invalid flow timeout: " + args[i]);
+                }
+            } else if (arg.equals("--max-flows")) {
+                if (++i >= args.length) {
+                    return usage("Missing count after " + arg);
+                }
+                options.maxFlows = parseInt(args[i]);
+                if (options.maxFlows < 1) {
+                    return usage("Invalid flow count: " + args[i]);
+                }
+            } else if (arg.equals("--http")) {
+                options.http = true;
+            } else if (arg.equals("--reassembly-memory")) {
+                if (++i >= args.length) {
+                    return usage("Missing size after " + arg);
+                }
+                options.reassemblyMegabytes = parseInt(args[i]);
+                if (options.reassemblyMegabytes < 1) {
+                    return usage("Invalid reassembly memory: " + args[i]);
+                }
+            } else if (arg.equals("--dns-latency")) {
+                options.dnsLatency = true;
+            } else if (arg.equals("--dns-timeout")) {
+                if (++i >= args.length) {
+                    return usage("Missing milliseconds after " + arg);
+                }
+                options.dnsTimeout = parseInt(args[i]);
+                if (options.dnsTimeout < 1) {
+                    return usage("Invalid DNS timeout: " + args[i]);
+                }
+            } else if (arg.equals("--dns-pending")) {
+                if (++i >= args.length) {
+                    return usage("Missing count after " + arg);
+                }
+                options.dnsPending = parseInt(args[i]);
+                if (options.dnsPending < 1) {
+                    return usage("Invalid query count: " + args[i]);
+                }
+            } else if (arg.equals("--metrics")) {
+                if (++i >= args.length) {
+                    return usage("Missing port after " + arg);
+                }
+                options.metricsPort = parseInt(args[i]);
+                if (options.metricsPort < 0 || options.metricsPort > 65535) {
+                    return usage("Invalid metrics port: " + args[i]);
+                }
+            } else if (arg.equals("--top")) {
+                if (++i >= args.length) {
+                    return usage("Missing count after " + arg);
+                }
+                options.top = parseInt(args[i]);
+                if (options.top < 1) {
+                    return usage("Invalid top count: " + args[i]);
+                }
+            } else if (arg.equals("--top-window")) {
+                if (++i >= args.length) {
+                    return usage("Missing seconds after " + arg);
+                }
+                options.topWindow = parseInt(args[i]);
+                if (options.topWindow < 1) {
+                    return usage("Invalid top talkers window: " + args[i]);
+                }
+            } else if (arg.equals("--top-slide")) {
+                if (++i >= args.length) {
+                    return usage("Missing seconds after " + arg);
+                }
+                options.topSlide = parseInt(args[i]);
+                if (options.topSlide < 1) {
+                    return usage("Invalid top talkers slide: " + args[i]);
+                }
+            } else if (arg.equals("--flight-recorder")) {
+                if (++i >= args.length) {
+                    return usage("Missing directory after " + arg);
+                }
+                options.flightDir = args[i];
+            } else if (arg.equals("--flight-seconds")) {
+                if (++i >= args.length) {
+                    return usage("Missing seconds after " + arg);
+                }
+                options.flightSeconds = parseInt(args[i]);
+                if (options.flightSeconds < 1) {
+                    return usage("Invalid flight recorder window: " + args[i]);
+                }
+            } else if (arg.equals("--flight-size")) {
+                if (++i >= args.length) {
+                    return usage("Missing size after " + arg);
+                }
+                options.flightMegabytes = parseInt(args[i]);
+                if (options.flightMegabytes < 1 || options.flightMegabytes > 1024) {
+                    return usage("Invalid flight recorder size: " + args[i]);
+                }
+            } else if (arg.equals("--flight-trigger")) {
+                if (++i >= args.length) {
+                    return usage("Missing event after " + arg);
+                }
+                if (args[i].equals("dns-servfail")) {
+                    options.flightOnServfail = true;
+                } else if (args[i].equals("http-5xx")) {
+                    options.flightOnHttpError = true;
+                } else {
+                    return usage("Invalid flight recorder trigger: " + args[i]);
+                }
+            } else if (arg.equals("--store")) {
+                if (++i >= args.length) {
+                    return usage("Missing directory after " + arg);
+                }
+                options.storeDir = args[i];
+            } else if (arg.equals("--store-segment")) {
+                if (++i >= args.length) {
+                    return usage("Missing size after " + arg);
+                }
+                options.storeSegmentMegabytes = parseInt(args[i]);
+                if (options.storeSegmentMegabytes < 1 || options.storeSegmentMegabytes > 1024) {
+                    return usage("Invalid store segment size: " + args[i]);
+                }
+            } else if (arg.equals("--store-size")) {
+                if (++i >= args.length) {
+                    return usage("Missing size after " + arg);
+                }
+                options.storeMegabytes = parseInt(args[i]);
+                if (options.storeMegabytes < 0) {
+                    return usage("Invalid store size: " + args[i]);
+                }
+            } else if (arg.equals("--store-age")) {
+                if (++i >= args.length) {
+                    return usage("Missing minutes after " + arg);
+                }
+                options.storeMinutes = parseInt(args[i]);
+                if (options.storeMinutes < 0) {
+                    return usage("Invalid store age: " + args[i]);
+                }
+            } else if (arg.equals("--match")) {
+                if (++i >= args.length) {
+                    return usage("Missing file after " + arg);
+                }
+                options.matchFile = args[i];
+            } else if (arg.equals("-h") || arg.equals("--help")) {
+                return usage(null);
+            } else {
+                return usage("Unknown option: " + arg);
+            }
+        }
+        if (options.readFiles.isEmpty() && (options.benchmark || options.repeat != 1)) {
+            return usage("--benchmark and --repeat need a capture file (-r)");
+        }
+        if (!options.readFiles.isEmpty() && !options.interfaces.isEmpty()) {
+            return usage("-r and -i can't be combined");
+        }
+        if (options.topSlide == 0) {
+            options.topSlide = options.topWindow;
+        }
+        if (options.topWindow % options.topSlide != 0 || options.topWindow / options.topSlide > 60) {
+            return usage("--top-window must be a multiple of --top-slide, at most 60 times it");
+        }
+        if ((long) options.sampleEvery * options.sampleFlows > MAX_SAMPLE_RATE) {
+            return usage("--sample and --sample-flows together may leave out at most 1 in " + MAX_SAMPLE_RATE);
+        }
+        if (options.flightDir == null && (options.flightOnServfail || options.flightOnHttpError)) {
+            return usage("--flight-trigger needs --flight-recorder");
+        }
+        if (options.flightOnServfail && !options.dnsLatency) {
+            return usage("--flight-trigger dns-servfail needs --dns-latency");
+        }
+        if (options.flightOnHttpError && !options.http) {
+            return usage("--flight-trigger http-5xx needs --http");
+        }
+        return options;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Options usage(String error) {
+        PrintStream err = System.err;
+        if (error != null) {
+            err.println(error);
+        }
+        err.println("Usage: PacketSniffer [options]");
+        err.println("  -r, --read <file>   replay a pcap/pcapng file instead of a live device;");
+        err.println("                      give it again to merge several files by timestamp");
+        err.println("  -i, --interface <name>  capture on this device instead of asking;");
+        err.println("                      give it again to merge several devices by timestamp");
+        err.println("  --reorder-window <ms>  wait this long for frames of silent devices (default 100)");
+        err.println("  --benchmark         discard packet output and report throughput only");
+        err.println("  --repeat <n>        replay the file n times (default 1)");
+        err.println("  -f, --filter <expr> tcpdump filter expression (default \"udp\", \"\" for everything);");
+        err.println("                      files are read without libpcap if it only names protocols (\"tcp or udp\")");
+        err.println("  --workers <n>       decode on n threads, sharded by flow (default 0: capture thread)");
+        err.println("  --queue-depth <n>   frames queued per decoding thread (default 4096)");
+        err.println("  --backpressure <p>  drop or block when a decoding thread falls behind (default drop)");
+        err.println("  -o, --output <file> write the packet text to a file instead of stdout");
+        err.println("  --output-backpressure <p>  drop or block when the output falls behind (default block)");
+        err.println("  --records <dir>     also archive every packet as a binary record in dir");
+        err.println("  --segment-size <mb> size of each binary record file (default 64)");
+        err.println("  --no-text           do not print the packet text");
+        err.println("  --sample <n>        decode one frame in n, counts are scaled back up");
+        err.println("  --sample-flows <n>  decode every frame of one flow in n, picked by flow hash");
+        err.println("  --headers-only      skip payloads and the application layer");
+        err.println("  --adaptive          decode only headers, then only count frames, while");
+        err.println("                      decoding falls behind; back to full when it catches up");
+        err.println("  --no-reassembly     decode IP fragments one by one instead of reassembling them");
+        err.println("  --fragment-memory <mb>  memory for IP fragments waiting for the rest (default 16)");
+        err.println("  --flows             track TCP connections and report each one when it ends");
+        err.println("  --flow-timeout <s>  report connections idle for this long (default 120)");
+        err.println("  --max-flows <n>     most connections tracked at once (default 1000000)");
+        err.println("  --http              reassemble TCP streams and report HTTP requests and responses");
+        err.println("  --reassembly-memory <mb>  memory for out of order TCP segments (default 256)");
+        err.println("  --dns-latency       match DNS queries with responses and report response times");
+        err.println("  --dns-timeout <ms>  DNS queries without response for this long are unanswered (default 5000)");
+        err.println("  --dns-pending <n>   most DNS queries waiting for a response at once (default 100000)");
+        err.println("  --metrics <port>    publish metrics over JMX and at http://127.0.0.1:port/metrics");
+        err.println("  --top <n>           write the n heaviest sources, ports and DNS names of every window");
+        err.println("  --top-window <s>    length of a top talkers window (default 60)");
+        err.println("  --top-slide <s>     write a window this often, sliding (default: window length)");
+        err.println("  --flight-recorder <dir>  keep recent frames in memory and dump them to a pcap");
+        err.println("                      file in dir on a trigger, SIGUSR2 or the JMX dump operation");
+        err.println("  --flight-seconds <s>  how far back the flight recorder goes (default 60)");
+        err.println("  --flight-size <mb>  most frames the flight recorder keeps (default 64, uses twice that)");
+        err.println("  --flight-trigger <event>  also dump on dns-servfail or http-5xx; may be repeated");
+        err.println("  --store <dir>       keep every frame in indexed pcap segments in dir, searched");
+        err.println("                      with packetsniffer.store.StoreQuery");
+        err.println("  --store-segment <mb>  size of each capture store segment (default 64)");
+        err.println("  --store-size <mb>   delete the oldest segments beyond this size (default 0: keep all)");
+        err.println("  --store-age <min>   delete segments older than this (default 0: keep all)");
+        err.println("  --match <file>      report TCP and UDP payloads containing a pattern of file, one per");
+        err.println("                      line, \\xHH for any byte; edits to the file apply within a second");
+        err.println("  -h, --help          show this help");
+        return null;
+    }
+}
@@ -1,31 +1,60 @@
 package packetsniffer;
 
-import java.math.BigInteger;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Scanner;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
 
 import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapAddr;
+import org.jnetpcap.PcapBpfProgram;
 import org.jnetpcap.PcapIf;
-import org.jnetpcap.nio.JBuffer;
-import org.jnetpcap.packet.JHeader;
-import org.jnetpcap.packet.PcapPacket;
-import org.jnetpcap.packet.PcapPacketHandler;
-import org.jnetpcap.packet.format.FormatUtils;
-import org.jnetpcap.protocol.network.Ip4;
-import org.jnetpcap.protocol.tcpip.Http;
-import org.jnetpcap.protocol.tcpip.Tcp;
-import org.jnetpcap.protocol.tcpip.Udp;
+import org.jnetpcap.PcapSockAddr;
+
+import packetsniffer.metrics.MetricRegistry;
+import packetsniffer.metrics.MetricsServer;
+import packetsniffer.metrics.PacketMetrics;
+import packetsniffer.output.OutputSink;
+import packetsniffer.pipeline.Backpressure;
+import packetsniffer.recorder.FlightRecorder;
+import packetsniffer.source.CaptureFileReader;
+import packetsniffer.source.LibpcapSource;
+import packetsniffer.source.PacketSource;
+import packetsniffer.source.ProtocolFilter;
 
 public class PacketSniffer {
 
+    private static final int SNAPLEN = 64 * 1024; // Capture all packets, no truncation
+    private static final int OUTPUT_CHUNK_SIZE = 256 * 1024;
+    private static final int OUTPUT_CHUNKS = 64;
+
     /**
      * Main startup method
      *
-     * @param args ignored
+     * @param args command line options, see {@link Options}
      */
     public static void main(String[] args) {
+        Options options = Options.parse(args);
+        if (options == null) {
+            return;
+        }
+        if (!options.readFiles.isEmpty()) {
+            replay(options);
+            return;
+        }
+
         List<PcapIf> alldevs = new ArrayList<PcapIf>(); // Will be filled with NICs  
         StringBuilder errbuf = new StringBuilder(); // For any error msgs  
 
@@ -40,44 +69,45 @@ public class PacketSniffer {
                     .toString());
             return;
         }
-
-        System.out.println("Network devices found:");
-
-        int i = 0;
-        for (PcapIf device : alldevs) {
-            String description
-                    = (device.getDescription() != null) ? device.getDescription()
-                    : "No description available";
-            System.out.printf("#%d: %s [%s]\n", i++, device.getName(), description);
+        List<PcapIf> devices = options.interfaces.isEmpty() ? chooseDevices(alldevs)
+                : findDevices(alldevs, options.interfaces);
+        if (devices == null) {
+            return;
         }
-
-        System.out.println("Choose one device from the above list");
-        int ch = -1;
-        while (ch < 0 || ch >= alldevs.size()) {
-            ch = new Scanner(System.in).nextInt();
+        for (PcapIf device : devices) {
+            System.out
+                    .printf("\nListening to '%s' :\n",
+                            (device.getDescription() != null) ? device.getDescription()
+                            : device.getName());
         }
-        PcapIf device = alldevs.get(ch);
-
-        System.out
-                .printf("\nListening to '%s' :\n",
-                        (device.getDescription() != null) ? device.getDescription()
-                        : device.getName());
 
         /**
          * *************************************************************************
-         * Second we open up the selected device 
+         * Second we open up the selected devices 
              *************************************************************************
          */
-        int snaplen = 64 * 1024;           // Capture all packets, no truncation  
+        int snaplen = SNAPLEN;
         int flags = Pcap.MODE_PROMISCUOUS; // capture all packets  
         int timeout = 10 * 1000;           // 10 seconds
-        Pcap pcap
-                = Pcap.openLive(device.getName(), snaplen, flags, timeout, errbuf);
+        final List<Pcap> pcaps = new ArrayList<Pcap>();
+        String[] names = new String[devices.size()];
+        for (int d = 0; d < devices.size(); d++) {
+            PcapIf device = devices.get(d);
+            names[d] = device.getName();
+            Pcap pcap
+                    = Pcap.openLive(device.getName(), snaplen, flags, timeout, errbuf);
 
-        if (pcap == null) {
-            System.err.printf("Error while opening device for capture: "
-                    + errbuf.toString());
-            return;
+            if (pcap == null) {
+                System.err.printf("Error while opening device for capture: "
+                        + errbuf.toString());
+                closeAll(pcaps);
+                return;
+            }
+            pcaps.add(pcap);
+            if (!setFilter(pcap, options.filter, netmask(device))) {
+                closeAll(pcaps);
+                return;
+            }
         }
         /**
          * *************************************************************************
@@ -85,507 +115,525 @@ public class PacketSniffer {
          * libpcap loop. 
              *************************************************************************
          */
-        PcapPacketHandler<String> jpacketHandler = new PcapPacketHandler<String>() {
-
-            public void nextPacket(PcapPacket packet, String user) {
-                Udp udp = new Udp();
-                if (!packet.hasHeader(udp)) {
-                    return;
+        if (!createDirs(options)) {
+            closeAll(pcaps);
+            return;
+        }
+        OutputSink sink = openSink(options);
+        if (sink == null) {
+            closeAll(pcaps);
+            return;
+        }
+        List<CaptureStats> captureStats = new ArrayList<CaptureStats>();
+        for (int d = 0; d < pcaps.size(); d++) {
+            captureStats.add(new CaptureStats(pcaps.get(d), names[d]));
+        }
+        PacketMetrics metrics = null;
+        MetricsServer metricsServer = null;
+        if (options.metricsPort >= 0) {
+            metrics = newMetrics(sink);
+            for (CaptureStats stats : captureStats) {
+                stats.register(metrics.registry());
+            }
+            metricsServer = startMetrics(metrics, options.metricsPort);
+            if (metricsServer == null) {
+                closeAll(pcaps);
+                closeSink(sink);
+                return;
+            }
+        }
+        FlightRecorder flight = newFlightRecorder(options, metrics);
+        ConsumerFactory consumers = new ConsumerFactory(options, sink, names.length > 1 ? names : null, flight);
+        LongSupplier captureDrops = new LongSupplier() {
+            public long getAsLong() {
+                long drops = 0;
+                for (CaptureStats stats : captureStats) {
+                    drops += stats.dropped();
                 }
-                System.out.println(packet.toString()); //Uncomment this to cheat (Also great way to check if you're doing it right)
-
-                /**
-                 * ****************************FRAME*********************************************
-                 */
-                System.out.println("\n---------Frame---------");
-                System.out.printf("Arrival time: %s\nWire Length: %-4d\nCaptured Length: %-4d\n",
-                        new Date(packet.getCaptureHeader().timestampInMillis()),
-                        packet.getCaptureHeader().wirelen(), // Original length  
-                        packet.getCaptureHeader().caplen() // Length actually captured  
-                );
-
-                int size = packet.size();
-                int x = 0; // The current byte pointer
-
-                /**
-                 * ******************************ETHERNET***************************************
-                 */
-                //http://www.comptechdoc.org/independent/networking/guide/ethernetdata.gif
-                System.out.println("\n---------Ethernet---------");
-                System.out.printf("Destination MAC Address: %02x:%02x:%02x:%02x:%02x:%02x\n", packet.getUByte(x), packet.getUByte(++x),
-                        packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x));
-                System.out.printf("Source MAC Address: %02x:%02x:%02x:%02x:%02x:%02x\n", packet.getUByte(++x), packet.getUByte(++x),
-                        packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x));
-                int ethernetType = packet.getUShort(++x); // 12th byte
-                if (ethernetType == 2048) {
-                    System.out.printf("EtherType: 0x%x [IPv4]\n", ethernetType);
-                } else if (ethernetType == 34525) {
-                    System.out.printf("EtherType: 0x%x [IPv6]\n", ethernetType);
-                } else {
-                    System.out.printf("EtherType: 0x%x [Other]\n", ethernetType);
+                return drops;
+            }
+        };
+        FrameHandler jpacketHandler = new FrameHandler(options, snaplen, consumers, null, metrics, flight,
+                captureDrops);
+        final List<PacketSource> sources = liveSources(pcaps, names, snaplen);
+        // A live capture usually ends with Ctrl-C. Stop the loops so queued
+        // frames and output still get written, then let the JVM exit.
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                for (PacketSource live : sources) {
+                    live.stop();
                 }
-                x++;
-                /**
-                 * *****************************Internet Protocol***********************************
-                 */
-                //http://www.diablotin.com/librairie/networking/puis/figs/puis_1603.gif
-                System.out.println("\n---------Internet Protocol---------"); //IPv6 not handled (not even sure many sites use IPv6)
-                int version = packet.getUByte(++x) >> 4;
-                int protocolType = 0;
-                System.out.printf("Version: %d\n", version);
-                if (version == 4) { //IPv4
-                    System.out.printf("Header Length: %d\n", (packet.getUByte(x) >> 4) * (packet.getUByte(x) & 15));
-                    System.out.printf("Differentiated Services Field: %d\n", packet.getUByte(++x));
-                    System.out.printf("Total Length: %d\n", ((packet.getUByte(++x) << 8) | packet.getUByte(++x)));
-                    System.out.printf("Identification: 0x%x (%d)\n", ((packet.getUByte(++x) << 8) | packet.getUByte(++x)), ((packet.getUByte(--x) << 8) | packet.getUByte(++x)));
-                    System.out.printf("Flags: 0x%x\n", packet.getUByte(++x) >> 5);
-                    System.out.printf("Fragment offset: %d\n", ((packet.getUByte(x) & 31) << 8) | packet.getUByte(++x));
-                    System.out.printf("Time to live: %d\n", packet.getUByte(++x));
-                    protocolType = packet.getUByte(++x);
-                    System.out.printf("Protocol: %d", protocolType);
-                    if (protocolType == 6) {
-                        System.out.printf(" (TCP)\n");
-                    } else if (protocolType == 17) {
-                        System.out.printf(" (UDP)\n");
-                    }
-                    System.out.printf("Checksum: %d\n", ((packet.getUByte(++x) << 8) | packet.getUByte(++x)));
-                    System.out.printf("Source IP: %d.%d.%d.%d\n", packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x));
-                    System.out.printf("Destination IP: %d.%d.%d.%d\n", packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x));
+                try {
+                    mainThread.join(15 * 1000);
+                } catch (InterruptedException e) {
                 }
-                if (version == 6) { //IPv6
-                    System.out.printf("Traffic Class: %d\n", (packet.getUByte(x) & 15) << 4 | packet.getUByte(++x) >> 4);
-                    System.out.printf("Flow Label: %d\n", (packet.getUByte(x) & 15) << 12 | packet.getUByte(++x) << 8 | packet.getUByte(++x));
-                    System.out.printf("Payload Length: %d\n", packet.getUByte(++x) << 8 | packet.getUByte(++x));
-                    protocolType = packet.getUByte(++x);
-                    System.out.printf("Next Header: %d", protocolType);
-                    if (protocolType == 6) {
-                        System.out.printf(" (TCP)\n");
-                    } else if (protocolType == 17) {
-                        System.out.printf(" (UDP)\n");
-                    } else {
-                        System.out.printf("\n");
-                    }
-                    System.out.printf("Hop Limit: %d\n", packet.getUByte(++x));
-                    System.out.printf("Source IP: %04X:%04X:%04X:%04X:%04X:%04X:%04X:%04X\n", packet.getUByte(++x) << 8 | packet.getUByte(++x), packet.getUByte(++x) << 8 | packet.getUByte(++x),
-                            packet.getUByte(++x) << 8 | packet.getUByte(++x), packet.getUByte(++x) << 8 | packet.getUByte(++x),
-                            packet.getUByte(++x) << 8 | packet.getUByte(++x), packet.getUByte(++x) << 8 | packet.getUByte(++x),
-                            packet.getUByte(++x) << 8 | packet.getUByte(++x), packet.getUByte(++x) << 8 | packet.getUByte(++x));
-                    System.out.printf("Destination IP: %04X:%04X:%04X:%04X:%04X:%04X:%04X:%04X\n", packet.getUByte(++x) << 8 | packet.getUByte(++x), packet.getUByte(++x) << 8 | packet.getUByte(++x),
-                            packet.getUByte(++x) << 8 | packet.getUByte(++x), packet.getUByte(++x) << 8 | packet.getUByte(++x),
-                            packet.getUByte(++x) << 8 | packet.getUByte(++x), packet.getUByte(++x) << 8 | packet.getUByte(++x),
-                            packet.getUByte(++x) << 8 | packet.getUByte(++x), packet.getUByte(++x) << 8 | packet.getUByte(++x));
+            }
+        });
 
+        /**
+         * *************************************************************************
+         * Tells us how many times to Loop jpacketHandler. Several devices
+         * each get their own capture thread and are merged by timestamp.
+             *************************************************************************
+         */
+        MergedCapture merged = null;
+        if (sources.size() == 1) {
+            capture(sources.get(0), jpacketHandler);
+        } else {
+            merged = new MergedCapture(sources, snaplen, options.queueDepth, options.reorderWindow * 1000L,
+                    options.backpressure);
+            merged.run(jpacketHandler);
+        }
+        /**
+         * *************************************************************************
+         * Last thing to do is close the pcap handles 
+             *************************************************************************
+         */
+        jpacketHandler.close();
+        consumers.close();
+        if (flight != null) {
+            flight.close();
+        }
+        for (CaptureStats stats : captureStats) {
+            stats.close();
+        }
+        closeAll(pcaps);
+        closeSink(sink);
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        for (CaptureStats stats : captureStats) {
+            stats.report(System.err);
+        }
+        if (merged != null) {
+            merged.report(System.err);
+        }
+        jpacketHandler.report(System.err);
+        reportSink(sink, System.err);
+        consumers.report(System.err);
+        if (flight != null) {
+            flight.report(System.err);
+        }
+    }
+
+    /**
+     * Lists the devices and asks on stdin which ones to listen to.
+     *
+     * @return the chosen devices, or null if stdin ended first
+     */
+    private static List<PcapIf> chooseDevices(List<PcapIf> alldevs) {
+        System.out.println("Network devices found:");
+
+        int i = 0;
+        for (PcapIf device : alldevs) {
+            String description
+                    = (device.getDescription() != null) ? device.getDescription()
+                    : "No description available";
+            System.out.printf("#%d: %s [%s]\n", i++, device.getName(), description);
+        }
+
+        System.out.println("Choose one or more devices from the above list (for example 0 or 0,2)");
+        Scanner in = new Scanner(System.in);
+        while (in.hasNextLine()) {
+            List<PcapIf> devices = new ArrayList<PcapIf>();
+            for (String choice : in.nextLine().trim().split("[,\\s]+")) {
+                int ch;
+                try {
+                    ch = Integer.parseInt(choice);
+                } catch (NumberFormatException e) {
+                    ch = -1;
                 }
-                /**
-                 * *****************************Transport Layer***********************************
-                 */
-                boolean port53 = false;
-                if (protocolType == 6) {//TCP
-                    System.out.println("\n---------Transmission Control Protocol---------");
-                    System.out.printf("Source Port: %d\n", packet.getUByte(++x) << 8 | packet.getUByte(++x));
-                    System.out.printf("Destination Port: %d\n", packet.getUByte(++x) << 8 | packet.getUByte(++x));
-                    byte input[] = new byte[8];
-                    for (int i = 0; i < 4; i++) {
-                        input[i] = 0;
-                    }
-                    for (int i = 4; i < 8; i++) {
-                        input[i] = (byte) (packet.getUByte(++x));
-                    }
-                    BigInteger unsigned = new BigInteger(input);
-                    System.out.printf("Sequence Number: %d\n", unsigned);
-                    for (int i = 4; i < 8; i++) {
-                        input[i] = (byte) (packet.getUByte(++x));
-                    }
-                    unsigned = new BigInteger(input);
-                    System.out.printf("Acknowledge Number: %d\n", unsigned);
-                    System.out.printf("Data Offset: %d\n", packet.getUByte(++x) >> 4);
-                    System.out.printf("Reserved: %d\n", (packet.getUByte(x) & 15) >> 1);
-                    System.out.printf("Flags: %d\n", (packet.getUByte(x) & 1) << 8 | packet.getUByte(++x));
-                    System.out.printf("Window Size: %d\n", packet.getUByte(++x) << 8 | packet.getUByte(++x));
-                    System.out.printf("Checksum: %d\n", packet.getUByte(++x) << 8 | packet.getUByte(++x));
-                    System.out.printf("Urgent Pointer: %d\n", packet.getUByte(++x) << 8 | packet.getUByte(++x));
-
-                } else if (protocolType == 17) {//UDP
-                    System.out.println("\n---------User Datagram Protocol---------");
-                    int tempPort = packet.getUByte(++x) << 8 | packet.getUByte(++x);
-                    System.out.printf("Source Port: %d\n", tempPort);
-                    if (tempPort == 53) {
-                        port53 = true;
-                    }
-                    tempPort = packet.getUByte(++x) << 8 | packet.getUByte(++x);
-                    if (tempPort == 53) {
-                        port53 = true;
-                    }
-                    System.out.printf("Destination Port: %d\n", tempPort);
-                    System.out.printf("Length: %d\n", packet.getUByte(++x) << 8 | packet.getUByte(++x));
-                    System.out.printf("Checksum: %d\n", packet.getUByte(++x) << 8 | packet.getUByte(++x));
-                }
-                System.out.println("\n---------Application Layer---------");
-                /**
-                 * *****************************Application Layer***********************************
-                 */
-                //Checks for HTTP or DNS Packet or other packet.
-                /**
-                 * *********************************************************************************
-                 */
-                //Uncomment this if you want it to print(see) every Byte of the packet
-                x++;//move pointer to start of Application Layer
-                byte s[] = new byte[5];
-                for (int i = x; i < x + 5; i++) {
-                    if ((i) >= size) {
-                        break;
-                    }
-                    s[i - x] = (byte) packet.getUByte(i);
+                if (ch < 0 || ch >= alldevs.size()) {
+                    devices = null;
+                    break;
                 }
-                String s2 = new String(s);
-                if (s2.contains("HTTP")) {
-                    System.out.printf("RequestVersion: ");
-                    for (int i = x; i < size; i++) {
-                        if ((byte) packet.getUByte(i) == ' ') {
-                            x++;
-                            break;
-                        }
-                        System.out.print((char) packet.getUByte(i));
-                        x++;
-                    }
-                    System.out.printf("\nResponseCode: ");
-                    for (int i = x; i < size; i++) {
-                        if ((byte) packet.getUByte(i) == ' ') {
-                            x++;
-                            break;
-                        }
-                        System.out.print((char) packet.getUByte(i));
-                        x++;
-                    }
-                    System.out.printf("\nResponseCodeMsg: ");
-                    for (int i = x; i < size; i++) {
-                        if ((byte) packet.getUByte(i) == ' ') {
-                            x++;
-                            break;
-                        }
-                        System.out.print((char) packet.getUByte(i));
-                        x++;
-                    }
-                    while (x <= size) {
-                        x += printNextString(x, size, packet);
-                    }
-                } else if (s2.contains("GET") || s2.contains("POST")) {
-                    System.out.printf("RequestMethod: ");
-                    for (int i = x; i < size; i++) {
-                        if ((byte) packet.getUByte(i) == ' ') {
-                            x++;
-                            break;
-                        }
-                        System.out.print((char) packet.getUByte(i));
-                        x++;
-                    }
-                    System.out.printf("\nRequestURL: ");
-                    for (int i = x; i < size; i++) {
-                        if ((byte) packet.getUByte(i) == ' ') {
-                            x++;
-                            break;
-                        }
-                        System.out.print((char) packet.getUByte(i));
-                        x++;
-                    }
-                    System.out.printf("\nRequestVersion: ");
-                    for (int i = x; i < size; i++) {
-                        if ((byte) packet.getUByte(i) == ' ') {
-                            x++;
-                            break;
-                        }
-                        System.out.print((char) packet.getUByte(i));
-                        x++;
-                    }
-                    while (x <= size) {
-                        x += printNextString(x, size, packet);
-                    }
-                } else if (protocolType == 17 && port53 == true) {//UDP
-                    //http://stackoverflow.com/questions/7565300/identifying-dns-packets
-                    int i = x;
-                    //Check if it's DNS
-                    int id = (packet.getUByte(i) << 8) | packet.getUByte(++i);
-                    int qr = packet.getUByte(++i) >> 7;//qr is 8th bit //Set to 0 when the query is generated; changed to 1 when that query is changed to a response by a replying server.
-                    int opCode = (packet.getUByte(i) >> 3) & 15;//opCode is bits 4-7
-                    //Flags
-                    int aa = (packet.getUByte(i) % 4) >> 2; //aa is bit 3
-                    int tc = (packet.getUByte(i) % 2) >> 1; //tc is bit 2
-                    int rd = (packet.getUByte(i)) & 1; //rd is bit 1
-                    int ra = (packet.getUByte(++i) >> 7);
-                    int zero = (packet.getUByte(i) >> 4) & 7; //padding
-                    int responseCode = (packet.getUByte(i) & 15);
-                    int qdCount = (packet.getUByte(++i) << 8) | packet.getUByte(++i);
-                    if (qdCount == 1 && zero == 0) { //Must be 0 for DNS
-                        int anCount = (packet.getUByte(++i) << 8) | packet.getUByte(++i);
-                        int nsCount = (packet.getUByte(++i) << 8) | packet.getUByte(++i);
-                        int arCount = (packet.getUByte(++i) << 8) | packet.getUByte(++i);
-                        System.out.printf("--------DNS---------\n");
-                        System.out.printf("Id: %d\n", id);
-                        System.out.printf("Qr: %d\n", qr);
-                        System.out.printf("OpCode: %d\n", opCode);
-                        System.out.printf("Authoritative Answer Flag: %d\n", aa);
-                        System.out.printf("Truncation Flag: %d\n", tc);
-                        System.out.printf("Recursion Desired: %d\n", rd);
-                        System.out.printf("RecursionAvailable: %d\n", ra);
-                        System.out.printf("ResponseCode: %d\n", responseCode);
-                        System.out.printf("QD Count: %d\n", qdCount);
-                        System.out.printf("AN Count: %d\n", anCount);
-                        System.out.printf("NS Count: %d\n", nsCount);
-                        System.out.printf("AR Count: %d\n", arCount);
-                        System.out.printf("\nQuery:\n");
-                        x += 13;
-                        System.out.printf("\nName: ");
-                        int xcount = printNextStringDNS(x, size, packet);
-                        x += xcount;
-                        System.out.printf("[Name Length: %d]\n", xcount - 1);
-                        xcount = x - xcount;
-                        System.out.printf("Type: %d\n", (packet.getUByte(x) << 8) | packet.getUByte(++x));
-                        System.out.printf("Class: %d\n", (packet.getUByte(++x) << 8) | packet.getUByte(++x));
-                        if ((x + 1) < size) {
-                            System.out.printf("\nAnswer:\n\n");
-                            if (packet.getUByte(++x) == 0) {
-                                System.out.printf("Name: <Root>\n");
-                                x = AuthoritativeNameServer(x, size, packet);
-                            } else {
-                                int ptr = packet.getUByte(++x);
-                                int placeHolder = 0;
-                                while ((x + 1) < size) {
-                                    if (((packet.getUByte(x + 1) << 8) | packet.getUByte(x + 2)) == 6) {
-                                        System.out.printf("Name: ");
-                                        printNextStringDNS(placeHolder, size, packet);
-                                        x = AuthoritativeNameServer(x, size, packet);
-                                        continue;
-                                    } else if (ptr == 12) {
-                                        System.out.printf("Name: ");
-                                        printNextStringDNS(xcount, size, packet);
-                                    } else if (ptr == 43) {
-                                        System.out.printf("Name: ");
-                                        printNextStringDNS(placeHolder, size, packet);
-                                    } else {
-                                        x++;
-                                        while (x < size) {
-                                            x += dumpPayload(x, size, packet);
-                                        }
-                                        break;
-                                    }
-                                    int type = (packet.getUByte(++x) << 8) | packet.getUByte(++x);
-                                    System.out.printf("Type: %d\n", type);
-                                    System.out.printf("Class: %d\n", (packet.getUByte(++x) << 8) | packet.getUByte(++x));
-                                    byte input[] = new byte[8];
-                                    for (int i2 = 0; i2 < 4; i2++) {
-                                        input[i2] = 0;
-                                    }
-                                    for (int i2 = 4; i2 < 8; i2++) {
-                                        input[i2] = (byte) (packet.getUByte(++x));
-                                    }
-                                    BigInteger unsigned = new BigInteger(input);
-                                    System.out.printf("Time to Live: %d\n", unsigned);
-                                    int dataLength = (packet.getUByte(++x) << 8) | packet.getUByte(++x);
-                                    System.out.printf("Data Length: %d\n", dataLength);
-                                    if (dataLength < 3) {
-
-                                    } else if (type == 5) {
-                                        packet.getUByte(++x);
-                                        System.out.printf("CNAME: ");
-                                        placeHolder = x + 1;
-                                        x += printNextStringDNS(x + 1, size, packet);
-                                        System.out.printf("\n");
-                                    } else if (type == 28) {
-                                        System.out.printf("AAAA Address: %02x%02x:%02x%02x:%02x%02x:%02x%02x:%02x%02x:%02x%02x:%02x%02x:%02x%02x\n", packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x));
-                                    } else if (dataLength > 4) {
-                                        packet.getUByte(++x);
-                                        System.out.printf("Domain Name: ");
-                                        placeHolder = x + 1;
-                                        x += printNextStringDNS(x + 1, size, packet);
-                                        System.out.printf("\n");
-                                    } else {
-                                        System.out.printf("Address: %d.%d.%d.%d\n", packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x), packet.getUByte(++x));
-                                    }
-                                    System.out.printf("\n");
-                                    if ((x + 1) < size) {
-                                        if (packet.getUByte(++x) == 192) {
-                                            ptr = packet.getUByte(++x);
-                                        }
-                                    }
-                                }
-                            }
-                            //x+=dumpPayload(x,size,packet);
-                        }
-                    } else {//UDP
-                        if (x < size) {
-                            //System.out.printf("\n------Payload-------\n");
-                        }
-                        while (x < size) {
-                            x += dumpPayload(x, size, packet);
-                        }
-                    }
-                } else { //TCP
-                    if (x + 3 >= size) {
-                        return;
-                    }
-                    if (packet.getUByte(x) == 1 && packet.getUByte(x + 1) == 1 && packet.getUByte(x + 2) == 8 && packet.getUByte(x + 3) == 10) {
-                        if (packet.getUByte(x + 12) == 'G' || packet.getUByte(x + 12) == 'P' || packet.getUByte(x + 12) == 'H') {
-                            x += 12;
-                            while (x < size) {
-                                x += printNextString(x, size, packet);
-                            }
-                        }
-                    }
-                    while (x < size) {
-                        x += dumpPayload(x, size, packet);
-                    }
+                devices.add(alldevs.get(ch));
+            }
+            if (devices != null) {
+                return devices;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the devices with the given names, or null if one does not exist
+     */
+    private static List<PcapIf> findDevices(List<PcapIf> alldevs, List<String> names) {
+        List<PcapIf> devices = new ArrayList<PcapIf>();
+        for (String name : names) {
+            PcapIf found = null;
+            for (PcapIf device : alldevs) {
+                if (device.getName().equals(name)) {
+                    found = device;
                 }
+            }
+            if (found == null) {
+                System.err.printf("Unknown device %s\n", name);
+                return null;
+            }
+            devices.add(found);
+        }
+        return devices;
+    }
+
+    private static List<PacketSource> liveSources(List<Pcap> pcaps, String[] names, int snaplen) {
+        List<PacketSource> sources = new ArrayList<PacketSource>();
+        for (int d = 0; d < pcaps.size(); d++) {
+            sources.add(new LibpcapSource(pcaps.get(d), names[d], snaplen));
+        }
+        return sources;
+    }
+
+    /**
+     * Reads a source into the handler until it ends.
+     */
+    private static void capture(PacketSource source, PacketSource.Handler handler) {
+        try {
+            source.capture(handler);
+        } catch (IOException e) {
+            System.err.printf("Error while reading %s: %s\n", source.name(), e.getMessage());
+        }
+    }
+
+    private static void closeAll(List<Pcap> pcaps) {
+        for (Pcap pcap : pcaps) {
+            pcap.close();
+        }
+    }
+
+    /**
+     * Compiles a tcpdump style filter expression and installs it on the
+     * handle. The kernel then throws away frames that do not match before
+     * they are copied up to the handler.
+     *
+     * @param pcap an open handle
+     * @param expression the filter, nothing is installed if it is empty
+     * @param netmask IPv4 netmask of the capture network, only used by
+     * "broadcast" expressions
+     * @return false if the expression does not compile or cannot be installed
+     */
+    private static boolean setFilter(Pcap pcap, String expression, int netmask) {
+        if (expression.isEmpty()) {
+            return true;
+        }
+        PcapBpfProgram program = new PcapBpfProgram();
+        if (pcap.compile(program, expression, 1, netmask) != Pcap.OK) {
+            System.err.printf("Invalid filter '%s': %s\n", expression, pcap.getErr());
+            return false;
+        }
+        int r = pcap.setFilter(program);
+        Pcap.freecode(program);
+        if (r != Pcap.OK) {
+            System.err.printf("Error while installing filter: %s\n", pcap.getErr());
+            return false;
+        }
+        return true;
+    }
 
-                /*for (int i = x; i < size; i ++) {  
-                  	  System.out.printf("%c", packet.getUByte(i));
-                  	  if(packet.getUByte(i) == 0){
-                  		System.out.printf("\n");
-                  	  }
-                    }*/
-                System.out.println("\n-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.");
+    /**
+     * @return the netmask of the device's first IPv4 address, or 0 if it has
+     * none
+     */
+    private static int netmask(PcapIf device) {
+        for (PcapAddr address : device.getAddresses()) {
+            PcapSockAddr mask = address.getNetmask();
+            byte[] b = mask == null ? null : mask.getData();
+            if (b != null && b.length >= 4 && mask.getFamily() == PcapSockAddr.AF_INET) {
+                return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
             }
+        }
+        return 0;
+    }
 
-            private int AuthoritativeNameServer(int x, int size, PcapPacket packet) {
-                try {
-                    System.out.printf("Type: %d\n", (packet.getUByte(++x) << 8) | packet.getUByte(++x));
-                    System.out.printf("Class: %d\n", (packet.getUByte(++x) << 8) | packet.getUByte(++x));
-                    byte input[] = new byte[8];
-                    for (int i2 = 0; i2 < 4; i2++) {
-                        input[i2] = 0;
-                    }
-                    for (int i2 = 4; i2 < 8; i2++) {
-                        input[i2] = (byte) (packet.getUByte(++x));
-                    }
-                    BigInteger unsigned = new BigInteger(input);
-                    System.out.printf("Time to Live: %d\n", unsigned);
-                    System.out.printf("Data Length: %d\n", (packet.getUByte(++x) << 8) | packet.getUByte(++x));
-                    System.out.printf("Class: %d\n", (packet.getUByte(++x) << 8) | packet.getUByte(++x));
-                    System.out.printf("Primary Name Server: ");
-                    x += printNextStringDNS(x, size, packet);
-                    x++;
-                    System.out.printf("Responsible Authority's Mailbox: ");
-                    x += printNextStringDNS(x, size, packet);
-                    x--;
-                    for (int i2 = 4; i2 < 8; i2++) {
-                        input[i2] = (byte) (packet.getUByte(++x));
-                    }
-                    unsigned = new BigInteger(input);
-                    System.out.printf("Serial Number: %d\n", unsigned);
-                    for (int i2 = 4; i2 < 8; i2++) {
-                        input[i2] = (byte) (packet.getUByte(++x));
-                    }
-                    unsigned = new BigInteger(input);
-                    System.out.printf("Refresh Invterval: %d\n", unsigned);
-                    for (int i2 = 4; i2 < 8; i2++) {
-                        input[i2] = (byte) (packet.getUByte(++x));
-                    }
-                    unsigned = new BigInteger(input);
-                    System.out.printf("Retry Invterval: %d\n", unsigned);
-                    for (int i2 = 4; i2 < 8; i2++) {
-                        input[i2] = (byte) (packet.getUByte(++x));
-                    }
-                    unsigned = new BigInteger(input);
-                    System.out.printf("Expire Limit: %d\n", unsigned);
-                    for (int i2 = 4; i2 < 8; i2++) {
-                        input[i2] = (byte) (packet.getUByte(++x));
-                    }
-                    unsigned = new BigInteger(input);
-                    System.out.printf("Maximum TTL: %d\n", unsigned);
-                } catch (Exception e) {
-                }
-                return x;
+    /**
+     * Creates the directories given with --records and --flight-recorder if
+     * they do not exist yet.
+     *
+     * @return false if one cannot be created
+     */
+    private static boolean createDirs(Options options) {
+        for (String dir : new String[]{options.recordDir, options.flightDir, options.storeDir}) {
+            if (dir == null) {
+                continue;
+            }
+            try {
+                Files.createDirectories(Paths.get(dir));
+            } catch (IOException e) {
+                System.err.printf("Can't create directory %s: %s\n", dir, e.getMessage());
+                return false;
             }
+        }
+        return true;
+    }
 
-            private int printNextString(int x, int size, PcapPacket packet) {
-                int incr = 0;
-                int i = 0;
-                for (i = x; i < size; i++) {
-                    if ((byte) packet.getUByte(i) == 10) {
-                        System.out.print("\n");
-                        try {
-                            if ((byte) packet.getUByte(i + 1) == 13) {
-                                System.out.print("\n");
-                                incr += 3;
-                                while (x + incr < size) {
-                                    incr += dumpPayload(x + incr, size, packet);
-                                }
-                            }
-                        } catch (java.nio.BufferUnderflowException e) {
-                            System.out.print("BufferUnderflowException\n");
-                        }
-                        incr++;
-                        break;
-                    }
-                    System.out.print((char) packet.getUByte(i));
-                    incr++;
-                }
-                return incr;
+    /**
+     * Starts the flight recorder if --flight-recorder was given and makes
+     * SIGUSR2 and its JMX operation dump it. Some JVMs keep SIGUSR2 for
+     * themselves, SIGHUP is used then.
+     *
+     * @return the recorder, or null if not asked for
+     */
+    private static FlightRecorder newFlightRecorder(Options options, PacketMetrics metrics) {
+        if (options.flightDir == null) {
+            return null;
+        }
+        FlightRecorder flight = new FlightRecorder(Paths.get(options.flightDir),
+                options.flightSeconds * 1000L * 1000L, options.flightMegabytes * 1024 * 1024, SNAPLEN);
+        try {
+            flight.registerMBean();
+        } catch (JMException e) {
+            System.err.printf("Can't register %s: %s\n", FlightRecorder.OBJECT_NAME, e.getMessage());
+        }
+        String signal = flight.handleSignal("USR2") ? "USR2" : flight.handleSignal("HUP") ? "HUP" : null;
+        System.err.printf("Flight recorder: SIG%s or JMX %s dumps the last %d seconds to %s\n",
+                signal != null ? signal : "(none)", FlightRecorder.OBJECT_NAME, options.flightSeconds,
+                options.flightDir);
+        if (metrics != null) {
+            flight.register(metrics.registry());
+        }
+        return flight;
+    }
+
+    /**
+     * Opens the packet text output: the file given with --output, stdout, or
+     * nowhere in benchmark mode.
+     *
+     * @return the sink, or null if the output file cannot be opened
+     */
+    private static OutputSink openSink(Options options) {
+        GatheringByteChannel channel;
+        if (options.benchmark) {
+            // Packets are still formatted, the text just goes nowhere
+            channel = new DiscardChannel();
+        } else if (options.outputFile != null) {
+            try {
+                channel = FileChannel.open(Paths.get(options.outputFile), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                System.err.printf("Can't open output file %s: %s\n", options.outputFile, e.getMessage());
+                return null;
+            }
+        } else {
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        return new OutputSink(channel, OUTPUT_CHUNK_SIZE, OUTPUT_CHUNKS, options.outputBackpressure);
+    }
+
+    private static void closeSink(OutputSink sink) {
+        try {
+            sink.close();
+        } catch (IOException e) {
+            System.err.printf("Error while writing output: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the packet metrics, with the output sink's counters.
+     */
+    private static PacketMetrics newMetrics(final OutputSink sink) {
+        MetricRegistry registry = new MetricRegistry("packetsniffer_");
+        registry.gauge("output_backlog_chunks", "Chunks of packet text waiting to be written", "",
+                new LongSupplier() {
+                    public long getAsLong() {
+                        return sink.backlog();
+                    }
+                });
+        registry.counter("output_written_bytes_total", "Bytes of packet text written", "", new LongSupplier() {
+            public long getAsLong() {
+                return sink.writtenBytes();
+            }
+        });
+        registry.counter("output_dropped_total", "Packets whose text was dropped because the output fell behind",
+                "", new LongSupplier() {
+                    public long getAsLong() {
+                        return sink.droppedRecords();
+                    }
+                });
+        return new PacketMetrics(registry);
+    }
+
+    /**
+     * Publishes the metrics over JMX and HTTP.
+     *
+     * @return the server, or null if the port can't be used
+     */
+    private static MetricsServer startMetrics(PacketMetrics metrics, int port) {
+        try {
+            MetricsServer server = MetricsServer.start(metrics.registry(), port);
+            System.err.printf("Metrics at http://127.0.0.1:%d/metrics and JMX %s\n", server.port(),
+                    MetricsServer.OBJECT_NAME);
+            return server;
+        } catch (IOException e) {
+            System.err.printf("Can't serve metrics on port %d: %s\n", port, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void reportSink(OutputSink sink, PrintStream out) {
+        out.println("\n---------Output---------");
+        out.printf("Written: %d bytes\n", sink.writtenBytes());
+        out.printf("Dropped: %d packets\n", sink.droppedRecords());
+    }
+
+    /**
+     * Replays capture files through the packet handler as fast as they can
+     * be read and prints throughput and per-layer decode time at the end.
+     *
+     * @param options parsed command line options
+     */
+    private static void replay(Options options) {
+        ReplayStats stats = new ReplayStats();
+        if (!createDirs(options)) {
+            return;
+        }
+        OutputSink sink = openSink(options);
+        if (sink == null) {
+            return;
+        }
+        PacketMetrics metrics = null;
+        MetricsServer metricsServer = null;
+        if (options.metricsPort >= 0) {
+            metrics = newMetrics(sink);
+            metricsServer = startMetrics(metrics, options.metricsPort);
+            if (metricsServer == null) {
+                closeSink(sink);
+                return;
+            }
+        }
+        List<String> files = options.readFiles;
+        String[] names = files.toArray(new String[files.size()]);
+        FlightRecorder flight = newFlightRecorder(options, metrics);
+        ConsumerFactory consumers = new ConsumerFactory(options, sink, names.length > 1 ? names : null, flight);
+        FrameHandler jpacketHandler = new FrameHandler(options, SNAPLEN, consumers, stats, metrics, flight, null);
+        stats.start();
+        MergedCapture merged = null;
+        if (files.size() == 1) {
+            capture(fileSource(options, files.get(0)), jpacketHandler);
+        } else {
+            List<PacketSource> sources = new ArrayList<PacketSource>();
+            for (String file : files) {
+                sources.add(fileSource(options, file));
             }
+            // Files are read as fast as the merge takes them, nothing is dropped
+            merged = new MergedCapture(sources, SNAPLEN, options.queueDepth, -1, Backpressure.BLOCK);
+            merged.run(jpacketHandler);
+        }
+        // The run is not over until the queued frames have been decoded and written
+        jpacketHandler.close();
+        consumers.close();
+        if (flight != null) {
+            flight.close();
+        }
+        closeSink(sink);
+        stats.stop();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        stats.report(System.out);
+        if (merged != null) {
+            merged.report(System.out);
+        }
+        jpacketHandler.report(System.out);
+        reportSink(sink, System.out);
+        consumers.report(System.out);
+        if (flight != null) {
+            flight.report(System.out);
+        }
+    }
 
-            private int printNextStringDNS(int x, int size, PcapPacket packet) {
-                int incr = 0;
-                for (int i = x; i < size; i++) {
-                    //System.out.print(((byte) packet.getUByte(i))+" ");
-                    if (((byte) packet.getUByte(i) == 0) || ((byte) packet.getUByte(i) == -64)) {
-                        System.out.print("\n");
-                        incr++;
-                        if ((byte) packet.getUByte(i) == -64) {
-                            incr++;
-                        }
+    /**
+     * @return a source that reads one capture file --repeat times
+     */
+    private static PacketSource fileSource(final Options options, final String file) {
+        return new PacketSource() {
+            public String name() {
+                return file;
+            }
+
+            public void capture(Handler handler) throws IOException {
+                for (int run = 0; run < options.repeat; run++) {
+                    PacketSource source = openFile(options, file);
+                    if (source == null) {
                         break;
                     }
-                    if (packet.getUByte(i) >= 32 && packet.getUByte(i) <= 126) {
-                        System.out.print((char) packet.getUByte(i));
-                    } else {
-                        System.out.print(".");
+                    try {
+                        source.capture(handler);
+                    } finally {
+                        source.close();
                     }
-                    incr++;
                 }
-                return incr;
             }
 
-            private int dumpPayload(int x, int size, PcapPacket packet) {
-                int incr = 0;
-                char asciiChar[] = new char[16];
-                char temp;
-                boolean isPrinted = false;
-                for (int i = x; i < size; i++) {
-                    isPrinted = false;
-                    System.out.printf("%02x ", packet.getUByte(x + incr));
-                    temp = (char) packet.getUByte(x + incr);
-                    if (temp >= 32 && temp <= 126) {
-                        asciiChar[incr % 16] = temp;
-                    } else {
-                        asciiChar[incr % 16] = '.';
-                    }
-                    incr++;
-                    if (incr % 4 == 0) {
-                        System.out.printf(" ");
-                    }
-                    if (incr % 16 == 0) {
-                        System.out.printf("\t%s\n", new String(asciiChar));
-                        isPrinted = true;
-                    }
-                }
-                if (!isPrinted) {
-                    System.out.printf("\t%s\n", new String(asciiChar));
-                }
-                return incr;
+            public void stop() {
+                // Files end by themselves
+            }
+
+            public void close() {
             }
         };
+    }
 
-        /**
-         * *************************************************************************
-         * Tells us how many times to Loop jpacketHandler.
-             *************************************************************************
-         */
-        pcap.loop(Pcap.LOOP_INFINITE, jpacketHandler, "");
-        //pcap.loop(10, jpacketHandler, "");  
-        /**
-         * *************************************************************************
-         * Last thing to do is close the pcap handle 
-             *************************************************************************
-         */
-        pcap.close();
+    /**
+     * Opens a capture file with the pure Java reader, or through libpcap
+     * when the filter is more than a list of protocols.
+     *
+     * @return the source, or null if the file cannot be opened
+     */
+    private static PacketSource openFile(Options options, String file) {
+        ProtocolFilter filter = options.filter.isEmpty() ? null : ProtocolFilter.parse(options.filter);
+        if (options.filter.isEmpty() || filter != null) {
+            try {
+                return new CaptureFileReader(Paths.get(file), SNAPLEN, filter);
+            } catch (IOException e) {
+                System.err.printf("Error while opening capture file: %s\n", e.getMessage());
+                return null;
+            }
+        }
+        StringBuilder errbuf = new StringBuilder();
+        Pcap pcap = Pcap.openOffline(file, errbuf);
+        if (pcap == null) {
+            System.err.printf("Error while opening capture file: %s\n", errbuf
+                    .toString());
+            return null;
+        }
+        if (!setFilter(pcap, options.filter, 0)) {
+            pcap.close();
+            return null;
+        }
+        return new LibpcapSource(pcap, file, SNAPLEN);
+    }
+
+    /**
+     * Channel that accepts and forgets everything written to it.
+     */
+    private static final class DiscardChannel implements GatheringByteChannel {
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += write(srcs[i]);
+            }
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
     }
 }
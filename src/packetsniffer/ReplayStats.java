@@ -0,0 +1,97 @@
+package packetsniffer;
+
+import java.io.PrintStream;
+
+import packetsniffer.decode.PacketDecoder;
+
+/**
+ * Throughput and per-layer timing collected while replaying a capture file.
+ *
+ * The decoder charges its own layers into {@link #layerNanos()}. The packet
+ * handler times the output with {@link #begin()} and {@link #mark(int)} and
+ * calls {@link #end(int, int)} when it is done with the packet. Everything is
+ * kept in primitive fields so the measurement itself does not allocate.
+ */
+final class ReplayStats {
+
+    static final int OUTPUT = PacketDecoder.LAYER_COUNT;
+
+    private static final String[] LAYER_NAMES = {
+        "Ethernet", "Internet Protocol", "Transport", "Application", "Output"
+    };
+
+    private final long[] layerNanos = new long[LAYER_NAMES.length];
+    private long packets;
+    private long capturedBytes;
+    private long wireBytes;
+    private long startNanos;
+    private long elapsedNanos;
+    private long last;
+
+    /**
+     * Starts the wall clock for the replay.
+     */
+    void start() {
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Stops the wall clock, after every queued frame has been decoded.
+     */
+    void stop() {
+        elapsedNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return per-layer nanoseconds, indexed by the PacketDecoder layers and
+     * {@link #OUTPUT}
+     */
+    long[] layerNanos() {
+        return layerNanos;
+    }
+
+    void begin() {
+        last = System.nanoTime();
+    }
+
+    /**
+     * Charges the time since the previous mark to the given layer.
+     *
+     * @param layer a PacketDecoder layer or {@link #OUTPUT}
+     */
+    void mark(int layer) {
+        long now = System.nanoTime();
+        layerNanos[layer] += now - last;
+        last = now;
+    }
+
+    void end(int caplen, int wirelen) {
+        packets++;
+        capturedBytes += caplen;
+        wireBytes += wirelen;
+    }
+
+    void report(PrintStream out) {
+        double seconds = elapsedNanos / 1e9;
+        out.println("\n---------Replay Summary---------");
+        out.printf("Packets: %d\n", packets);
+        out.printf("Captured Bytes: %d\n", capturedBytes);
+        out.printf("Wire Bytes: %d\n", wireBytes);
+        out.printf("Elapsed: %.3f s\n", seconds);
+        if (seconds > 0) {
+            out.printf("Packets/sec: %.0f\n", packets / seconds);
+            out.printf("Bytes/sec: %.0f (%.1f Mbit/s)\n", capturedBytes / seconds,
+                    capturedBytes * 8 / seconds / 1e6);
+        }
+        long total = 0;
+        for (long nanos : layerNanos) {
+            total += nanos;
+        }
+        out.println("Time per layer:");
+        for (int i = 0; i < layerNanos.length; i++) {
+            out.printf("  %-18s %8.1f ns/packet %5.1f%%\n", LAYER_NAMES[i] + ":",
+                    packets == 0 ? 0.0 : (double) layerNanos[i] / packets,
+                    total == 0 ? 0.0 : 100.0 * layerNanos[i] / total);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package packetsniffer.decode;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Searches frame bytes eight at a time.
+ *
+ * Each step reads one long and tests all of its bytes at once with a few
+ * arithmetic operations (SIMD within a register), instead of one
+ * {@code get} and compare per byte. The tests are exact per byte: no carry
+ * crosses from one byte into the next, so the first marked byte is the
+ * answer in either byte order. The last few bytes of a range are checked
+ * one by one.
+ */
+public final class ByteScan {
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+
+    private ByteScan() {
+    }
+
+    /**
+     * @return index of the first {@code b} between {@code from} and
+     * {@code end}, or {@code end} if there is none
+     */
+    public static int indexOf(ByteBuffer buffer, int from, int end, byte b) {
+        long pattern = (b & 0xFFL) * ONES;
+        boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i <= end - 8; i += 8) {
+            long hits = zeros(buffer.getLong(i) ^ pattern);
+            if (hits != 0) {
+                return i + first(hits, bigEndian);
+            }
+        }
+        for (; i < end; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Copies bytes out of a buffer in one array copy or bulk get, whether
+     * it is on the heap, direct or mapped. Position and limit are the same
+     * afterwards.
+     */
+    public static void copy(ByteBuffer src, int from, byte[] dst, int offset, int length) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + from, dst, offset, length);
+            return;
+        }
+        int position = src.position();
+        int limit = src.limit();
+        src.limit(from + length);
+        src.position(from);
+        src.get(dst, offset, length);
+        src.limit(limit);
+        src.position(position);
+    }
+
+    /**
+     * @return the high bit set in every byte of {@code x} that is zero,
+     * nothing else
+     */
+    static long zeros(long x) {
+        return ~(((x & LOW7) + LOW7) | x | LOW7);
+    }
+
+    /**
+     * @return position in memory order of the first marked byte
+     */
+    private static int first(long hits, boolean bigEndian) {
+        return (bigEndian ? Long.numberOfLeadingZeros(hits) : Long.numberOfTrailingZeros(hits)) >>> 3;
+    }
+}
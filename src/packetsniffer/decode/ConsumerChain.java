@@ -0,0 +1,36 @@
+package packetsniffer.decode;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Passes every record to several consumers in turn.
+ */
+public final class ConsumerChain implements RecordConsumer {
+
+    private final RecordConsumer[] consumers;
+
+    public ConsumerChain(List<RecordConsumer> consumers) {
+        this.consumers = consumers.toArray(new RecordConsumer[consumers.size()]);
+    }
+
+    public void accept(PacketRecord rec, ByteBuffer frame) {
+        for (RecordConsumer consumer : consumers) {
+            consumer.accept(rec, frame);
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (RecordConsumer consumer : consumers) {
+            consumer.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (RecordConsumer consumer : consumers) {
+            consumer.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package packetsniffer.decode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Recognises and decodes the start of one application protocol.
+ *
+ * Besides the built-in DNS and HTTP dissectors, more are found with
+ * {@link java.util.ServiceLoader}: a jar on the class path lists its
+ * implementations in {@code META-INF/services/packetsniffer.decode.Dissector}.
+ * One instance of each is shared by all decoding threads, so a dissector
+ * must not keep state between calls, and like the decoder it should not
+ * allocate.
+ *
+ * Payload is first offered to the dissector registered for its
+ * destination port, then to the one for its source port, then to every
+ * probing dissector in {@link #probeOrder()}. The decoder remembers per
+ * flow which dissector recognised it, and offers the later packets of the
+ * flow to that dissector alone.
+ */
+public interface Dissector {
+
+    /**
+     * @return short name for the output, for example "DNS"
+     */
+    String name();
+
+    /**
+     * @param protocol {@link PacketRecord#PROTO_TCP} or
+     * {@link PacketRecord#PROTO_UDP}
+     * @return ports whose payload is offered to this dissector first; a
+     * port already taken by an earlier dissector stays with that one
+     */
+    int[] ports(int protocol);
+
+    /**
+     * @param protocol {@link PacketRecord#PROTO_TCP} or
+     * {@link PacketRecord#PROTO_UDP}
+     * @return true to also be offered payload on any other port, after the
+     * port dispatch found nothing
+     */
+    boolean probes(int protocol);
+
+    /**
+     * @return position among the probing dissectors, lower goes first;
+     * cheap and specific checks should go before loose ones
+     */
+    default int probeOrder() {
+        return 100;
+    }
+
+    /**
+     * Decodes the payload between {@code x} and {@code end}, which holds at
+     * least one byte. Only the application fields of the record may be
+     * written, and only when the payload is recognised; the decoder sets
+     * {@link PacketRecord#appProtocol}.
+     *
+     * @return true if the payload belongs to this protocol
+     */
+    boolean dissect(ByteBuffer frame, int x, int end, PacketRecord rec);
+}
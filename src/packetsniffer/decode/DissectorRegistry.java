@@ -0,0 +1,158 @@
+package packetsniffer.decode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * The application protocol dissectors, with dispatch tables indexed by
+ * port and the probing dissectors in order.
+ *
+ * Every dissector gets an application protocol number: DNS and HTTP keep
+ * {@link PacketRecord#APP_DNS} and {@link PacketRecord#APP_HTTP}, the ones
+ * found by the {@link ServiceLoader} follow in the order they are found.
+ * The registry does not change once built and is shared by all decoders.
+ */
+public final class DissectorRegistry {
+
+    /** Application protocol numbers have to fit the byte of a binary record */
+    public static final int MAX_DISSECTORS = 255;
+
+    private final Dissector[] dissectors;
+    private final byte[] tcpPorts = new byte[65536];
+    private final byte[] udpPorts = new byte[65536];
+    private final byte[] tcpProbes;
+    private final byte[] udpProbes;
+
+    /**
+     * @param dissectors in the order of their application protocol numbers,
+     * starting at 1
+     */
+    public DissectorRegistry(List<Dissector> dissectors) {
+        int count = Math.min(MAX_DISSECTORS, dissectors.size());
+        this.dissectors = new Dissector[count + 1];
+        for (int app = 1; app <= count; app++) {
+            Dissector dissector = dissectors.get(app - 1);
+            this.dissectors[app] = dissector;
+            register(tcpPorts, dissector.ports(PacketRecord.PROTO_TCP), app);
+            register(udpPorts, dissector.ports(PacketRecord.PROTO_UDP), app);
+        }
+        tcpProbes = probeOrder(PacketRecord.PROTO_TCP);
+        udpProbes = probeOrder(PacketRecord.PROTO_UDP);
+    }
+
+    private static void register(byte[] table, int[] ports, int app) {
+        for (int port : ports) {
+            if (table[port] == 0) {
+                table[port] = (byte) app;
+            }
+        }
+    }
+
+    /**
+     * @return the application protocol numbers of the dissectors that probe
+     * the transport protocol, in probe order
+     */
+    private byte[] probeOrder(int protocol) {
+        List<Integer> apps = new ArrayList<Integer>();
+        for (int app = 1; app < dissectors.length; app++) {
+            if (dissectors[app].probes(protocol)) {
+                apps.add(app);
+            }
+        }
+        // A stable sort, dissectors with the same order keep theirs
+        Collections.sort(apps, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(dissectors[a].probeOrder(), dissectors[b].probeOrder());
+            }
+        });
+        byte[] order = new byte[apps.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = (byte) (int) apps.get(i);
+        }
+        return order;
+    }
+
+    /**
+     * @return the built-in dissectors followed by those found on the class
+     * path, loaded on first use
+     */
+    public static DissectorRegistry shared() {
+        return Shared.REGISTRY;
+    }
+
+    private static final class Shared {
+        static final DissectorRegistry REGISTRY = load();
+    }
+
+    /**
+     * Builds a registry of the built-in dissectors and every one the
+     * {@link ServiceLoader} finds. A dissector that fails to load is
+     * reported and left out.
+     */
+    public static DissectorRegistry load() {
+        List<Dissector> all = new ArrayList<Dissector>(Arrays.<Dissector>asList(new DnsDissector(),
+                new HttpDissector()));
+        Iterator<Dissector> found = ServiceLoader.load(Dissector.class).iterator();
+        while (true) {
+            try {
+                if (!found.hasNext()) {
+                    break;
+                }
+                Dissector dissector = found.next();
+                if (all.size() == MAX_DISSECTORS) {
+                    System.err.printf("Too many dissectors, %s is left out\n", dissector.name());
+                } else {
+                    all.add(dissector);
+                }
+            } catch (ServiceConfigurationError e) {
+                System.err.printf("Could not load a dissector: %s\n", e.getMessage());
+            }
+        }
+        return new DissectorRegistry(all);
+    }
+
+    /**
+     * @return the highest application protocol number in use
+     */
+    public int count() {
+        return dissectors.length - 1;
+    }
+
+    /**
+     * @return the dissector of an application protocol number
+     */
+    public Dissector dissector(int appProtocol) {
+        return dissectors[appProtocol];
+    }
+
+    /**
+     * @return name of an application protocol number, null for none or an
+     * unknown number
+     */
+    public String name(int appProtocol) {
+        return appProtocol > 0 && appProtocol < dissectors.length ? dissectors[appProtocol].name() : null;
+    }
+
+    /**
+     * @return application protocol number of the dissector registered for
+     * the port, 0 for none
+     */
+    int byPort(int protocol, int port) {
+        byte[] table = protocol == PacketRecord.PROTO_TCP ? tcpPorts : udpPorts;
+        return table[port] & 0xFF;
+    }
+
+    /**
+     * @return application protocol numbers of the probing dissectors, in
+     * order
+     */
+    byte[] probes(int protocol) {
+        return protocol == PacketRecord.PROTO_TCP ? tcpProbes : udpProbes;
+    }
+}
@@ -0,0 +1,70 @@
+package packetsniffer.decode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the DNS header and the first question of UDP port 53 traffic.
+ */
+final class DnsDissector implements Dissector {
+
+    private static final int DNS_PORT = 53;
+    private static final int DNS_HEADER_LENGTH = 12;
+    private static final int DNS_MAX_NAME_LENGTH = 255;
+    private static final int[] UDP_PORTS = {DNS_PORT};
+    private static final int[] NO_PORTS = {};
+
+    public String name() {
+        return "DNS";
+    }
+
+    public int[] ports(int protocol) {
+        return protocol == PacketRecord.PROTO_UDP ? UDP_PORTS : NO_PORTS;
+    }
+
+    public boolean probes(int protocol) {
+        return false;
+    }
+
+    public boolean dissect(ByteBuffer frame, int x, int end, PacketRecord rec) {
+        if (end - x < DNS_HEADER_LENGTH) {
+            return false;
+        }
+        rec.dnsId = PacketDecoder.u16(frame, x);
+        rec.dnsFlags = PacketDecoder.u16(frame, x + 2);
+        rec.dnsQdCount = PacketDecoder.u16(frame, x + 4);
+        rec.dnsAnCount = PacketDecoder.u16(frame, x + 6);
+        rec.dnsNsCount = PacketDecoder.u16(frame, x + 8);
+        rec.dnsArCount = PacketDecoder.u16(frame, x + 10);
+        if (rec.dnsQdCount > 0) {
+            decodeQuestion(frame, x + DNS_HEADER_LENGTH, end, rec);
+        }
+        return true;
+    }
+
+    /**
+     * Hashes the first question name with {@link DnsNameHash} and reads its
+     * type and class. Names that are truncated or compressed
+     * (questions practically never are) leave the hash at 0.
+     */
+    private static void decodeQuestion(ByteBuffer frame, int x, int end, PacketRecord rec) {
+        int hash = DnsNameHash.EMPTY;
+        int nameLength = 0;
+        while (x < end) {
+            int len = PacketDecoder.u8(frame, x++);
+            if (len == 0) {
+                if (end - x >= 4) {
+                    rec.dnsQnameHash = hash;
+                    rec.dnsQtype = PacketDecoder.u16(frame, x);
+                    rec.dnsQclass = PacketDecoder.u16(frame, x + 2);
+                }
+                return;
+            }
+            nameLength += len + 1;
+            if (len > 63 || end - x < len || nameLength > DNS_MAX_NAME_LENGTH) {
+                return;
+            }
+            hash = DnsNameHash.addLabel(hash, nameLength == len + 1, frame, x, x + len);
+            x += len;
+        }
+    }
+}
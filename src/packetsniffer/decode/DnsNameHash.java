@@ -0,0 +1,44 @@
+package packetsniffer.decode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The hash of DNS names kept in {@link PacketRecord#dnsQnameHash}: 32 bit
+ * FNV-1a of the name as dotted lower case text, so the same name always
+ * gets the same hash whatever its case or compression.
+ *
+ * The decoder and the full DNS parser both hash names with it, a label at
+ * a time, so their values can be compared.
+ */
+public final class DnsNameHash {
+
+    /** Hash of the root name, before any label is added */
+    public static final int EMPTY = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private DnsNameHash() {
+    }
+
+    /**
+     * Adds one label to a name hash.
+     *
+     * @param hash {@link #EMPTY}, or the hash of the labels before
+     * @param first whether this is the first label, which has no dot before it
+     * @param from index of the first byte of the label, after its length
+     * @param end index just after the label
+     * @return the hash of the name up to and including the label
+     */
+    public static int addLabel(int hash, boolean first, ByteBuffer buffer, int from, int end) {
+        if (!first) {
+            hash = (hash ^ '.') * FNV_PRIME;
+        }
+        for (int i = from; i < end; i++) {
+            int c = buffer.get(i) & 0xFF;
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = (hash ^ c) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
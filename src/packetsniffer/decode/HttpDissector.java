@@ -0,0 +1,92 @@
+package packetsniffer.decode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Recognises the first segment of an HTTP/1.x request or response by its
+ * method or version, on the usual ports and by probing any other TCP port.
+ */
+final class HttpDissector implements Dissector {
+
+    private static final int[] TCP_PORTS = {80, 8000, 8080};
+    private static final int[] NO_PORTS = {};
+
+    public String name() {
+        return "HTTP";
+    }
+
+    public int[] ports(int protocol) {
+        return protocol == PacketRecord.PROTO_TCP ? TCP_PORTS : NO_PORTS;
+    }
+
+    public boolean probes(int protocol) {
+        return protocol == PacketRecord.PROTO_TCP;
+    }
+
+    public boolean dissect(ByteBuffer frame, int x, int end, PacketRecord rec) {
+        int length = end - x;
+        if (length < 4) {
+            return false;
+        }
+        int method = method(frame.getInt(x), length > 4 ? PacketDecoder.u8(frame, x + 4) : 0);
+        if (method == PacketRecord.HTTP_NONE) {
+            return false;
+        }
+        rec.httpMethod = method;
+        if (method == PacketRecord.HTTP_RESPONSE) {
+            rec.httpStatus = status(frame, x, end);
+        }
+        return true;
+    }
+
+    /**
+     * Recognises the start of an HTTP message from its first five bytes.
+     *
+     * @param word the first four bytes, big endian
+     * @param fifth the fifth byte
+     * @return one of the HTTP_ constants
+     */
+    private static int method(int word, int fifth) {
+        switch (word) {
+            case 0x48545450: // HTTP
+                return fifth == '/' ? PacketRecord.HTTP_RESPONSE : PacketRecord.HTTP_NONE;
+            case 0x47455420: // "GET "
+                return PacketRecord.HTTP_GET;
+            case 0x504F5354: // POST
+                return PacketRecord.HTTP_POST;
+            case 0x48454144: // HEAD
+                return PacketRecord.HTTP_HEAD;
+            case 0x50555420: // "PUT "
+                return PacketRecord.HTTP_PUT;
+            case 0x44454C45: // DELE
+                return fifth == 'T' ? PacketRecord.HTTP_DELETE : PacketRecord.HTTP_NONE;
+            case 0x4F505449: // OPTI
+                return fifth == 'O' ? PacketRecord.HTTP_OPTIONS : PacketRecord.HTTP_NONE;
+            default:
+                return PacketRecord.HTTP_NONE;
+        }
+    }
+
+    /**
+     * Reads the three digit status code following "HTTP/x.y ".
+     *
+     * @return the status code, or 0 if it cannot be found
+     */
+    private static int status(ByteBuffer frame, int x, int end) {
+        int limit = Math.min(end - 3, x + 16);
+        for (int i = x + 5; i < limit; i++) {
+            if (frame.get(i) == ' ') {
+                int status = 0;
+                for (int j = i + 1; j < i + 4; j++) {
+                    int digit = frame.get(j) - '0';
+                    if (digit < 0 || digit > 9) {
+                        return 0;
+                    }
+                    status = status * 10 + digit;
+                }
+                return status;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,540 @@
+package packetsniffer.decode;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Puts fragmented IPv4 and IPv6 datagrams back together, so that the
+ * transport and application decoders see whole datagrams, for example DNS
+ * responses larger than the path MTU.
+ *
+ * Fragments are kept per datagram, under version, addresses, protocol and
+ * identification, in a table with a fixed number of slots kept in the
+ * order the datagrams started; the oldest is the next to time out and is
+ * given up early when the table or the memory is full. Payload is stored
+ * in pages that are created on first use, up to a hard limit, and then
+ * recycled. Fragments that exactly repeat one already held are ignored;
+ * fragments that partly overlap another drop the whole datagram (RFC
+ * 5722), which also defeats overlap based evasion.
+ *
+ * When the last missing fragment arrives, the datagram is rebuilt as one
+ * frame: the link and network headers of the first fragment with the
+ * fragmentation fields undone, followed by the whole payload. Not thread
+ * safe; used by the thread that receives the frames.
+ */
+public final class IpReassembler {
+
+    /** The frame is not a fragment that can be held; pass it on as it is */
+    public static final int PASS = 0;
+    /** The fragment is held until its datagram is complete */
+    public static final int HELD = 1;
+    /** The datagram is complete and waits in {@link #datagram()} */
+    public static final int COMPLETE = 2;
+
+    private static final int MAX_PAYLOAD = 65535;
+    private static final int MAX_HEADER = 256;
+    private static final int MAX_FRAGMENTS = 64;
+    private static final int PAGE_SHIFT = 11;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGES = (MAX_PAYLOAD >> PAGE_SHIFT) + 1;
+
+    /** Largest frame a reassembled datagram can take */
+    public static final int MAX_FRAME = MAX_HEADER + MAX_PAYLOAD;
+
+    private final int capacity;
+    private final long timeoutMicros;
+    private final int maxPages;
+
+    // Datagrams in a ring, oldest at head; finished datagrams leave a hole
+    // until the head passes them
+    private final long[] srcHi;
+    private final long[] srcLo;
+    private final long[] dstHi;
+    private final long[] dstLo;
+    private final int[] id;
+    private final int[] kind;
+    private final long[] firstSeen;
+    private final int[] payloadLength;
+    private final int[] received;
+    private final int[] fragmentCount;
+    private final int[] headerLength;
+    private final int[] l3Offset;
+    private final byte[] headers;
+    private final char[] starts;
+    private final char[] ends;
+    private final int[] slotPages;
+    private final boolean[] waiting;
+    private int head;
+    private int size;
+
+    // Open addressing index of ring slot + 1, 0 is empty
+    private final int[] index;
+    private final int indexMask;
+    private final int indexShift;
+
+    private byte[][] pages = new byte[64][];
+    private int[] freePages = new int[64];
+    private int freeCount;
+    private int created;
+    private int pagesInUse;
+    private int peakPages;
+
+    private final ByteBuffer datagram = ByteBuffer.allocate(MAX_FRAME);
+    private int datagramFragments;
+
+    private long fragments;
+    private long reassembled;
+    private long duplicates;
+    private long overlapping;
+    private long malformed;
+    private long truncated;
+    private long timedOut;
+    private long pushedOut;
+    private long incompleteAtEnd;
+
+    /**
+     * @param capacity most datagrams being reassembled at the same time
+     * @param maxBytes memory limit for the held payload
+     * @param timeoutMicros how long the fragments of a datagram may take
+     * to arrive, in capture time
+     */
+    public IpReassembler(int capacity, long maxBytes, long timeoutMicros) {
+        this.capacity = capacity;
+        this.timeoutMicros = timeoutMicros;
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE, Math.max(PAGES, maxBytes / PAGE_SIZE));
+        srcHi = new long[capacity];
+        srcLo = new long[capacity];
+        dstHi = new long[capacity];
+        dstLo = new long[capacity];
+        id = new int[capacity];
+        kind = new int[capacity];
+        firstSeen = new long[capacity];
+        payloadLength = new int[capacity];
+        received = new int[capacity];
+        fragmentCount = new int[capacity];
+        headerLength = new int[capacity];
+        l3Offset = new int[capacity];
+        headers = new byte[capacity * MAX_HEADER];
+        starts = new char[capacity * MAX_FRAGMENTS];
+        ends = new char[capacity * MAX_FRAGMENTS];
+        slotPages = new int[capacity * PAGES];
+        waiting = new boolean[capacity];
+        int indexSize = Integer.highestOneBit(Math.max(2, capacity - 1)) << 2;
+        index = new int[indexSize];
+        indexMask = indexSize - 1;
+        indexShift = 32 - Integer.numberOfTrailingZeros(indexSize);
+    }
+
+    /**
+     * Takes a fragment. The record must have been decoded from the frame
+     * and {@link PacketRecord#isFragment()} be true.
+     *
+     * @return {@link #HELD} if the fragment was taken, {@link #COMPLETE} if
+     * it completed its datagram, or {@link #PASS} if it could not be used:
+     * it is malformed, cut short by the snaplen, inside a tunnel, or its
+     * datagram had to be given up
+     */
+    public int add(PacketRecord rec, ByteBuffer frame) {
+        if (rec.tunnel != PacketRecord.TUNNEL_NONE) {
+            // The length fields of the outer headers would have to be rebuilt as well
+            return PASS;
+        }
+        fragments++;
+        expire(rec.timestampMicros);
+        int start;
+        int end;
+        if (rec.ipVersion == 4) {
+            start = rec.l4Offset;
+            end = rec.l3Offset + rec.ipLength;
+        } else {
+            start = rec.ipFragmentHeader + 8;
+            end = rec.ipLength == 0 ? -1 : rec.l3Offset + 40 + rec.ipLength;
+        }
+        int offset = rec.ipFragmentOffset * 8;
+        boolean last = (rec.ipFlags & PacketRecord.IP_MORE_FRAGMENTS) == 0;
+        int length = end - start;
+        if (length <= 0 || !last && (length & 7) != 0 || offset + length > MAX_PAYLOAD
+                || offset == 0 && start - rec.frameOffset > MAX_HEADER) {
+            malformed++;
+            return PASS;
+        }
+        if (end > rec.frameEnd) {
+            truncated++;
+            return PASS;
+        }
+
+        int k = rec.ipVersion << 8 | rec.protocol;
+        int hash = hash(rec, k);
+        int slot = find(hash, rec, k);
+        if (slot < 0) {
+            slot = open(rec, k, hash);
+        }
+        int firstRange = slot * MAX_FRAGMENTS;
+        int stop = offset + length;
+        for (int i = firstRange; i < firstRange + fragmentCount[slot]; i++) {
+            if (starts[i] == offset && ends[i] == stop) {
+                duplicates++;
+                return HELD;
+            }
+            if (offset < ends[i] && starts[i] < stop) {
+                overlapping++;
+                discard(slot);
+                return PASS;
+            }
+        }
+        int total = payloadLength[slot];
+        if (last ? total >= 0 || stop < maxEnd(slot) : total >= 0 && stop > total) {
+            // A second last fragment, or fragments beyond the last one
+            malformed++;
+            discard(slot);
+            return PASS;
+        }
+        if (fragmentCount[slot] == MAX_FRAGMENTS || !store(slot, frame, start, offset, length)) {
+            if (fragmentCount[slot] == MAX_FRAGMENTS) {
+                malformed++;
+            } else {
+                pushedOut++;
+            }
+            discard(slot);
+            return PASS;
+        }
+        if (offset == 0) {
+            int h = start - rec.frameOffset;
+            ByteScan.copy(frame, rec.frameOffset, headers, slot * MAX_HEADER, h);
+            headerLength[slot] = h;
+            l3Offset[slot] = rec.l3Offset - rec.frameOffset;
+        }
+        if (last) {
+            payloadLength[slot] = stop;
+        }
+        starts[firstRange + fragmentCount[slot]] = (char) offset;
+        ends[firstRange + fragmentCount[slot]] = (char) stop;
+        fragmentCount[slot]++;
+        received[slot] += length;
+        // Overlaps are refused, so the datagram is complete when the byte counts add up
+        if (payloadLength[slot] < 0 || received[slot] != payloadLength[slot] || headerLength[slot] < 0) {
+            return HELD;
+        }
+        boolean built = build(slot);
+        datagramFragments = fragmentCount[slot];
+        discard(slot);
+        if (!built) {
+            malformed++;
+            return PASS;
+        }
+        reassembled++;
+        return COMPLETE;
+    }
+
+    /**
+     * @return the frame of the datagram completed by the last call to
+     * {@link #add}, between position and limit; valid until the next call
+     */
+    public ByteBuffer datagram() {
+        return datagram;
+    }
+
+    /**
+     * @return how many fragments the datagram in {@link #datagram()} was
+     * put together from
+     */
+    public int datagramFragments() {
+        return datagramFragments;
+    }
+
+    /**
+     * Gives up the datagrams that are still incomplete.
+     */
+    public void close() {
+        while (size > 0) {
+            if (waiting[head]) {
+                incompleteAtEnd++;
+                discard(head);
+            }
+            pop();
+        }
+    }
+
+    public void report(PrintStream out) {
+        out.println("\n---------IP Fragments---------");
+        out.printf("Fragments: %d, datagrams reassembled: %d\n", fragments, reassembled);
+        out.printf("Duplicates ignored: %d\n", duplicates);
+        out.printf("Dropped: %d overlapping, %d malformed, %d cut short by the snaplen\n",
+                overlapping, malformed, truncated);
+        out.printf("Given up: %d timed out, %d pushed out, %d incomplete at the end\n",
+                timedOut, pushedOut, incompleteAtEnd);
+        out.printf("Memory: %d KB at most of %d KB\n",
+                (long) peakPages * PAGE_SIZE / 1024, (long) maxPages * PAGE_SIZE / 1024);
+    }
+
+    /**
+     * Starts a datagram in a new slot, giving up the oldest one if the
+     * table is full.
+     */
+    private int open(PacketRecord rec, int k, int hash) {
+        if (size == capacity) {
+            if (waiting[head]) {
+                pushedOut++;
+                discard(head);
+            }
+            pop();
+        }
+        int slot = head + size < capacity ? head + size : head + size - capacity;
+        size++;
+        srcHi[slot] = rec.srcAddrHi;
+        srcLo[slot] = rec.srcAddrLo;
+        dstHi[slot] = rec.dstAddrHi;
+        dstLo[slot] = rec.dstAddrLo;
+        id[slot] = rec.ipId;
+        kind[slot] = k;
+        firstSeen[slot] = rec.timestampMicros;
+        payloadLength[slot] = -1;
+        received[slot] = 0;
+        fragmentCount[slot] = 0;
+        headerLength[slot] = -1;
+        waiting[slot] = true;
+        insert(slot, hash);
+        return slot;
+    }
+
+    private int maxEnd(int slot) {
+        int max = 0;
+        for (int i = slot * MAX_FRAGMENTS; i < slot * MAX_FRAGMENTS + fragmentCount[slot]; i++) {
+            max = Math.max(max, ends[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Copies fragment payload into the pages of a datagram, creating pages
+     * as needed.
+     *
+     * @return false if there is no memory left, even after giving up older
+     * datagrams
+     */
+    private boolean store(int slot, ByteBuffer frame, int from, int offset, int length) {
+        while (length > 0) {
+            int p = offset >> PAGE_SHIFT;
+            int at = offset & (PAGE_SIZE - 1);
+            int n = Math.min(length, PAGE_SIZE - at);
+            int page = slotPages[slot * PAGES + p] - 1;
+            if (page < 0) {
+                page = allocate(slot);
+                if (page < 0) {
+                    return false;
+                }
+                slotPages[slot * PAGES + p] = page + 1;
+            }
+            ByteScan.copy(frame, from, pages[page], at, n);
+            from += n;
+            offset += n;
+            length -= n;
+        }
+        return true;
+    }
+
+    private int allocate(int slot) {
+        while (freeCount == 0 && created == maxPages) {
+            // Give up the oldest datagram, but not the one being stored
+            if (size == 0 || head == slot) {
+                return -1;
+            }
+            if (waiting[head]) {
+                pushedOut++;
+                discard(head);
+            }
+            pop();
+        }
+        int page;
+        if (freeCount > 0) {
+            page = freePages[--freeCount];
+        } else {
+            if (created == pages.length) {
+                pages = Arrays.copyOf(pages, (int) Math.min(maxPages, 2L * created));
+                freePages = Arrays.copyOf(freePages, pages.length);
+            }
+            page = created++;
+            pages[page] = new byte[PAGE_SIZE];
+        }
+        pagesInUse++;
+        peakPages = Math.max(peakPages, pagesInUse);
+        return page;
+    }
+
+    /**
+     * Builds the frame of a complete datagram into {@link #datagram}.
+     *
+     * @return false if the datagram would be longer than IP allows
+     */
+    private boolean build(int slot) {
+        int h = headerLength[slot];
+        int l3 = l3Offset[slot];
+        int total = payloadLength[slot];
+        ByteBuffer out = datagram;
+        out.clear();
+        if (kind[slot] >> 8 == 4) {
+            int ihl = h - l3;
+            if (ihl + total > MAX_PAYLOAD) {
+                return false;
+            }
+            out.put(headers, slot * MAX_HEADER, h);
+            out.putShort(l3 + 2, (short) (ihl + total));
+            // Keep don't fragment, clear more fragments and the offset
+            out.putShort(l3 + 6, (short) (out.getShort(l3 + 6) & 0x4000));
+            out.putShort(l3 + 10, (short) 0);
+            out.putShort(l3 + 10, (short) checksum(out, l3, ihl));
+        } else {
+            // Leave out the fragment header, the last 8 bytes of the header copy
+            int fragmentHeader = h - 8;
+            int extensions = fragmentHeader - l3 - 40;
+            if (extensions + total > MAX_PAYLOAD) {
+                return false;
+            }
+            out.put(headers, slot * MAX_HEADER, fragmentHeader);
+            int field = l3 + 6;
+            for (int y = l3 + 40; y < fragmentHeader; ) {
+                int type = PacketDecoder.u8(out, field);
+                field = y;
+                y += PacketDecoder.extensionHeaderLength(out, y, type);
+            }
+            out.put(field, headers[slot * MAX_HEADER + fragmentHeader]);
+            out.putShort(l3 + 4, (short) (extensions + total));
+        }
+        for (int p = 0; p << PAGE_SHIFT < total; p++) {
+            int page = slotPages[slot * PAGES + p] - 1;
+            out.put(pages[page], 0, Math.min(PAGE_SIZE, total - (p << PAGE_SHIFT)));
+        }
+        out.flip();
+        return true;
+    }
+
+    private static int checksum(ByteBuffer header, int from, int length) {
+        int sum = 0;
+        for (int i = from; i < from + length; i += 2) {
+            sum += PacketDecoder.u16(header, i);
+        }
+        while (sum >> 16 != 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    /**
+     * Frees the pages of a datagram and takes it out of the index. Its
+     * ring slot stays until the head passes it.
+     */
+    private void discard(int slot) {
+        for (int i = slot * PAGES; i < (slot + 1) * PAGES; i++) {
+            if (slotPages[i] != 0) {
+                freePages[freeCount++] = slotPages[i] - 1;
+                slotPages[i] = 0;
+                pagesInUse--;
+            }
+        }
+        waiting[slot] = false;
+        remove(slot, hash(slot));
+    }
+
+    /**
+     * Gives up the datagrams older than the timeout.
+     */
+    private void expire(long now) {
+        while (size > 0 && (!waiting[head] || now - firstSeen[head] > timeoutMicros)) {
+            if (waiting[head]) {
+                timedOut++;
+                discard(head);
+            }
+            pop();
+        }
+    }
+
+    private void pop() {
+        head = head + 1 < capacity ? head + 1 : 0;
+        size--;
+    }
+
+    /*
+     * Index
+     */
+
+    private static int hash(long srcHi, long srcLo, long dstHi, long dstLo, int id, int k) {
+        long h = ((srcHi * 31 + srcLo) * 31 + dstHi) * 31 + dstLo;
+        h = (h * 0x9E3779B97F4A7C15L + id) * 0x9E3779B97F4A7C15L + k;
+        return (int) (h ^ h >>> 32);
+    }
+
+    private static int hash(PacketRecord rec, int k) {
+        return hash(rec.srcAddrHi, rec.srcAddrLo, rec.dstAddrHi, rec.dstAddrLo, rec.ipId, k);
+    }
+
+    private int hash(int slot) {
+        return hash(srcHi[slot], srcLo[slot], dstHi[slot], dstLo[slot], id[slot], kind[slot]);
+    }
+
+    private int home(int hash) {
+        return (hash * 0x9E3779B9) >>> indexShift;
+    }
+
+    private int find(int hash, PacketRecord rec, int k) {
+        for (int i = home(hash); ; i = (i + 1) & indexMask) {
+            int entry = index[i];
+            if (entry == 0) {
+                return -1;
+            }
+            int slot = entry - 1;
+            if (id[slot] == rec.ipId && kind[slot] == k && srcLo[slot] == rec.srcAddrLo
+                    && dstLo[slot] == rec.dstAddrLo && srcHi[slot] == rec.srcAddrHi
+                    && dstHi[slot] == rec.dstAddrHi) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(int slot, int hash) {
+        int i = home(hash);
+        while (index[i] != 0) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = slot + 1;
+    }
+
+    /**
+     * Removes a datagram from the index, shifting later entries of the
+     * probe sequence back so lookups never need tombstones.
+     */
+    private void remove(int slot, int hash) {
+        int i = home(hash);
+        while (index[i] != slot + 1) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = 0;
+        for (int j = (i + 1) & indexMask; index[j] != 0; j = (j + 1) & indexMask) {
+            int s = index[j] - 1;
+            int h = home(hash(s));
+            // Move the entry unless its home lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < h && h <= j) : (i < h || h <= j);
+            if (!stays) {
+                index[i] = index[j];
+                index[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    /*
+     * Statistics
+     */
+
+    public long fragments() {
+        return fragments;
+    }
+
+    public long reassembled() {
+        return reassembled;
+    }
+
+    public long dropped() {
+        return overlapping + malformed + truncated + timedOut + pushedOut;
+    }
+}
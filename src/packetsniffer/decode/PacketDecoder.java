@@ -0,0 +1,502 @@
+package packetsniffer.decode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes Ethernet, IPv4/IPv6, TCP/UDP and, through the {@link Dissector}s,
+ * the start of application messages into a {@link PacketRecord}.
+ *
+ * VLAN tags, MPLS labels and GRE and VXLAN tunnels are stepped over in
+ * place, without copying, until the innermost IP packet; what was stepped
+ * over is noted in the encapsulation fields of the record.
+ *
+ * The decoder only reads the frame with absolute gets and only writes
+ * primitive fields of the record, so decoding does not allocate. A decoder
+ * is not thread safe, not least because it remembers the dissector of
+ * recent flows; every decoding thread should own one decoder and one
+ * record.
+ */
+public final class PacketDecoder {
+
+    public static final int LAYER_LINK = 0;
+    public static final int LAYER_NETWORK = 1;
+    public static final int LAYER_TRANSPORT = 2;
+    public static final int LAYER_APPLICATION = 3;
+    public static final int LAYER_COUNT = 4;
+
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    private static final int ETHERTYPE_QINQ_OLD = 0x9100;
+    private static final int ETHERTYPE_MPLS = 0x8847;
+    private static final int ETHERTYPE_MPLS_MULTICAST = 0x8848;
+    private static final int ETHERTYPE_BRIDGING = 0x6558;
+    private static final int GRE_CHECKSUM = 0x8000;
+    private static final int GRE_ROUTING = 0x4000;
+    private static final int GRE_KEY = 0x2000;
+    private static final int GRE_SEQUENCE = 0x1000;
+    private static final int VXLAN_PORT = 4789;
+    private static final int VXLAN_HEADER_LENGTH = 8;
+    private static final int MAX_TUNNELS = 4;
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int IPV6_FRAGMENT_HEADER_LENGTH = 8;
+    private static final int MAX_EXTENSION_HEADERS = 16;
+    private static final int TCP_HEADER_LENGTH = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+    static final int IPPROTO_FRAGMENT = 44;
+    /** Flows whose dissector is remembered, per decoder */
+    private static final int FLOW_CACHE_SIZE = 4096;
+
+    private final DissectorRegistry dissectors;
+    private final int[] flowKeys = new int[FLOW_CACHE_SIZE];
+    private final byte[] flowApps = new byte[FLOW_CACHE_SIZE];
+    private long[] layerNanos;
+    private boolean applicationLayer = true;
+
+    /**
+     * Creates a decoder with the built-in dissectors and those found on the
+     * class path.
+     */
+    public PacketDecoder() {
+        this(DissectorRegistry.shared());
+    }
+
+    public PacketDecoder(DissectorRegistry dissectors) {
+        this.dissectors = dissectors;
+    }
+
+    /**
+     * Turns on per-layer timing. The time spent in each layer is added to
+     * {@code nanos[LAYER_...]}.
+     *
+     * @param nanos array of at least {@link #LAYER_COUNT} entries, or null to
+     * turn timing off
+     */
+    public void setLayerTimes(long[] nanos) {
+        this.layerNanos = nanos;
+    }
+
+    /**
+     * Decides whether {@link #decode} goes on into the application layer.
+     * Without it the record has everything up to the transport header, which
+     * is all a capture thread handing frames to workers, or one shedding
+     * load, needs.
+     */
+    public void setApplicationLayer(boolean decode) {
+        this.applicationLayer = decode;
+    }
+
+    /**
+     * @return the array layer times are added to, null if timing is off
+     */
+    public long[] layerTimes() {
+        return layerNanos;
+    }
+
+    /**
+     * Decodes the frame between {@code frame.position()} and
+     * {@code frame.limit()}. The buffer must be in big endian order (the
+     * default for a ByteBuffer); its position and limit are left untouched.
+     *
+     * @param timestampMicros capture time in microseconds since the epoch
+     * @param wireLength original length of the frame on the wire
+     * @param frame the captured bytes
+     * @param rec record to fill, cleared first
+     */
+    public void decode(long timestampMicros, int wireLength, ByteBuffer frame, PacketRecord rec) {
+        rec.clear();
+        int start = frame.position();
+        int end = frame.limit();
+        rec.timestampMicros = timestampMicros;
+        rec.wireLength = wireLength;
+        rec.captureLength = end - start;
+        rec.frameOffset = start;
+        rec.frameEnd = end;
+
+        long[] times = layerNanos;
+        long t = times == null ? 0 : System.nanoTime();
+        int x = decodeEthernet(frame, start, end, rec);
+        if (times != null) {
+            t = charge(times, LAYER_LINK, t);
+        }
+        if (x < 0) {
+            return;
+        }
+        int ipEnd = decodeIp(frame, x, end, rec);
+        for (int n = 0; n < MAX_TUNNELS && ipEnd >= 0 && !rec.isFragment(); n++) {
+            // A fragmented tunnel is only opened once it has been reassembled
+            int inner = decodeTunnel(frame, rec.l4Offset, ipEnd, rec);
+            if (inner < 0) {
+                break;
+            }
+            rec.clearNetwork();
+            ipEnd = decodeIp(frame, inner, ipEnd, rec);
+        }
+        if (times != null) {
+            t = charge(times, LAYER_NETWORK, t);
+        }
+        if (ipEnd < 0) {
+            return;
+        }
+        int l7End = decodeTransport(frame, rec.l4Offset, ipEnd, rec);
+        if (times != null) {
+            t = charge(times, LAYER_TRANSPORT, t);
+        }
+        if (l7End < 0 || !applicationLayer) {
+            return;
+        }
+        decodeApplication(frame, rec.l7Offset, l7End, rec);
+        if (times != null) {
+            charge(times, LAYER_APPLICATION, t);
+        }
+    }
+
+    private static long charge(long[] times, int layer, long since) {
+        long now = System.nanoTime();
+        times[layer] += now - since;
+        return now;
+    }
+
+    /**
+     * @return offset of the network header, or -1 if the frame is too short
+     */
+    private static int decodeEthernet(ByteBuffer frame, int x, int end, PacketRecord rec) {
+        if (end - x < ETHERNET_HEADER_LENGTH) {
+            return -1;
+        }
+        rec.dstMac = (long) u16(frame, x) << 32 | u32(frame, x + 2);
+        rec.srcMac = (long) u16(frame, x + 6) << 32 | u32(frame, x + 8);
+        rec.etherType = u16(frame, x + 12);
+        return decodeTags(frame, x + ETHERNET_HEADER_LENGTH, end, rec);
+    }
+
+    /**
+     * Steps over VLAN tags and MPLS labels, leaving the EtherType of what
+     * follows them in the record. The payload of an MPLS stack has no type;
+     * it is taken for IP by its version, anything else is left undecoded.
+     * Only the tags of the outer frame are noted in the record; those inside
+     * a tunnel are stepped over.
+     *
+     * @param x index of the first tag, or of the network header if
+     * {@code rec.etherType} is not a tag
+     * @return offset of the network header, or -1 if a tag is truncated
+     */
+    private static int decodeTags(ByteBuffer frame, int x, int end, PacketRecord rec) {
+        boolean outer = rec.tunnel == PacketRecord.TUNNEL_NONE;
+        while (true) {
+            int type = rec.etherType;
+            if (type == ETHERTYPE_VLAN || type == ETHERTYPE_QINQ || type == ETHERTYPE_QINQ_OLD) {
+                if (end - x < 4) {
+                    return -1;
+                }
+                if (outer) {
+                    int vlan = u16(frame, x) & 0xFFF;
+                    if (rec.vlanCount == 0) {
+                        rec.outerVlan = vlan;
+                    } else if (rec.vlanCount == 1) {
+                        rec.innerVlan = vlan;
+                    }
+                    rec.vlanCount++;
+                }
+                rec.etherType = u16(frame, x + 2);
+                x += 4;
+            } else if (type == ETHERTYPE_MPLS || type == ETHERTYPE_MPLS_MULTICAST) {
+                boolean bottom;
+                do {
+                    if (end - x < 4) {
+                        return -1;
+                    }
+                    int entry = frame.getInt(x);
+                    if (outer && rec.mplsCount++ == 0) {
+                        rec.mplsLabel = entry >>> 12;
+                    }
+                    bottom = (entry & 0x100) != 0;
+                    x += 4;
+                } while (!bottom);
+                int version = x < end ? u8(frame, x) >> 4 : 0;
+                if (version == 4) {
+                    rec.etherType = PacketRecord.ETHERTYPE_IPV4;
+                } else if (version == 6) {
+                    rec.etherType = PacketRecord.ETHERTYPE_IPV6;
+                }
+                return x;
+            } else {
+                return x;
+            }
+        }
+    }
+
+    /**
+     * Opens a GRE or VXLAN tunnel. The outermost tunnel is noted in the
+     * record.
+     *
+     * @param x index of the transport header of the outer packet
+     * @param end end of the outer IP payload
+     * @return offset of the inner network header, with {@code rec.etherType}
+     * set to its type, or -1 if the packet is not a tunnel that can be opened
+     */
+    private static int decodeTunnel(ByteBuffer frame, int x, int end, PacketRecord rec) {
+        int outer = rec.l3Offset;
+        long key;
+        int inner;
+        int type;
+        if (rec.protocol == PacketRecord.PROTO_GRE) {
+            if (end - x < 4) {
+                return -1;
+            }
+            int flags = u16(frame, x);
+            if ((flags & 7) != 0 || (flags & GRE_ROUTING) != 0) {
+                return -1; // Enhanced GRE of PPTP, or source routing that nobody uses
+            }
+            type = u16(frame, x + 2);
+            int at = x + 4 + ((flags & GRE_CHECKSUM) != 0 ? 4 : 0);
+            key = (flags & GRE_KEY) != 0 && end - at >= 4 ? u32(frame, at) : -1;
+            inner = at + ((flags & GRE_KEY) != 0 ? 4 : 0) + ((flags & GRE_SEQUENCE) != 0 ? 4 : 0);
+            if (inner > end) {
+                return -1;
+            }
+            if (type == ETHERTYPE_BRIDGING) {
+                rec.tunnelOuter(PacketRecord.TUNNEL_GRE, key, outer);
+                return decodeEthernet(frame, inner, end, rec);
+            }
+            if (type != PacketRecord.ETHERTYPE_IPV4 && type != PacketRecord.ETHERTYPE_IPV6
+                    && type != ETHERTYPE_MPLS && type != ETHERTYPE_MPLS_MULTICAST) {
+                return -1;
+            }
+            rec.tunnelOuter(PacketRecord.TUNNEL_GRE, key, outer);
+            rec.etherType = type;
+            return decodeTags(frame, inner, end, rec);
+        }
+        if (rec.protocol == PacketRecord.PROTO_UDP && end - x >= UDP_HEADER_LENGTH + VXLAN_HEADER_LENGTH
+                && u16(frame, x + 2) == VXLAN_PORT && (u8(frame, x + 8) & 0x08) != 0) {
+            key = u32(frame, x + 12) >>> 8;
+            rec.tunnelOuter(PacketRecord.TUNNEL_VXLAN, key, outer);
+            return decodeEthernet(frame, x + UDP_HEADER_LENGTH + VXLAN_HEADER_LENGTH, end, rec);
+        }
+        return -1;
+    }
+
+    /**
+     * @return end of the IP payload (captured bytes only), or -1 if the frame
+     * is not IP or there is no transport header to decode
+     */
+    private static int decodeIp(ByteBuffer frame, int x, int end, PacketRecord rec) {
+        rec.l3Offset = x;
+        if (rec.etherType == PacketRecord.ETHERTYPE_IPV4) {
+            if (end - x < IPV4_HEADER_LENGTH || u8(frame, x) >> 4 != 4) {
+                return -1;
+            }
+            int ihl = (u8(frame, x) & 15) * 4;
+            if (ihl < IPV4_HEADER_LENGTH || end - x < ihl) {
+                return -1;
+            }
+            rec.ipVersion = 4;
+            rec.ipHeaderLength = ihl;
+            rec.ipTos = u8(frame, x + 1);
+            rec.ipLength = u16(frame, x + 2);
+            rec.ipId = u16(frame, x + 4);
+            rec.ipFlags = u8(frame, x + 6) >> 5;
+            rec.ipFragmentOffset = u16(frame, x + 6) & 0x1FFF;
+            rec.ttl = u8(frame, x + 8);
+            rec.protocol = u8(frame, x + 9);
+            rec.ipChecksum = u16(frame, x + 10);
+            rec.srcAddrLo = u32(frame, x + 12);
+            rec.dstAddrLo = u32(frame, x + 16);
+            rec.l4Offset = x + ihl;
+            if (rec.ipFragmentOffset != 0) {
+                return -1; // Only the first fragment carries the transport header
+            }
+            // Ethernet pads short frames, the IP length tells where the data stops
+            return rec.ipLength >= ihl ? Math.min(end, x + rec.ipLength) : end;
+        }
+        if (rec.etherType == PacketRecord.ETHERTYPE_IPV6) {
+            if (end - x < IPV6_HEADER_LENGTH || u8(frame, x) >> 4 != 6) {
+                return -1;
+            }
+            int first = frame.getInt(x);
+            rec.ipVersion = 6;
+            rec.ipTos = (first >>> 20) & 0xFF;
+            rec.ipFlowLabel = first & 0xFFFFF;
+            rec.ipLength = u16(frame, x + 4);
+            rec.ttl = u8(frame, x + 7);
+            rec.srcAddrHi = frame.getLong(x + 8);
+            rec.srcAddrLo = frame.getLong(x + 16);
+            rec.dstAddrHi = frame.getLong(x + 24);
+            rec.dstAddrLo = frame.getLong(x + 32);
+            int y = x + IPV6_HEADER_LENGTH;
+            // A length of 0 means a jumbogram, whose length is in a hop-by-hop option
+            int payloadEnd = rec.ipLength == 0 ? end : Math.min(end, y + rec.ipLength);
+            int next = u8(frame, x + 6);
+            for (int n = 0; n < MAX_EXTENSION_HEADERS && isExtensionHeader(next); n++) {
+                if (payloadEnd - y < 8) {
+                    break;
+                }
+                int length = extensionHeaderLength(frame, y, next);
+                if (next == IPPROTO_FRAGMENT) {
+                    int field = u16(frame, y + 2);
+                    rec.ipFragmentHeader = y;
+                    rec.ipFragmentOffset = field >> 3;
+                    rec.ipFlags = field & PacketRecord.IP_MORE_FRAGMENTS;
+                    rec.ipId = frame.getInt(y + 4);
+                }
+                next = u8(frame, y);
+                y += length;
+                if (rec.ipFragmentOffset != 0) {
+                    break; // The rest is the middle of the payload
+                }
+            }
+            rec.protocol = next;
+            rec.ipHeaderLength = y - x;
+            rec.l4Offset = y;
+            if (y > payloadEnd || isExtensionHeader(next) || rec.ipFragmentOffset != 0) {
+                return -1; // Truncated, too many extension headers, or no transport header
+            }
+            return payloadEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true for the IPv6 extension headers that are followed by
+     * another header. ESP (50) is not: what follows it is encrypted.
+     */
+    static boolean isExtensionHeader(int next) {
+        switch (next) {
+            case 0:   // Hop-by-hop options
+            case 43:  // Routing
+            case IPPROTO_FRAGMENT:
+            case 51:  // Authentication header
+            case 60:  // Destination options
+            case 135: // Mobility
+            case 139: // Host identity protocol
+            case 140: // Shim6
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param at index of the extension header, with at least 8 bytes
+     * @return length of the extension header in bytes
+     */
+    static int extensionHeaderLength(ByteBuffer frame, int at, int type) {
+        if (type == IPPROTO_FRAGMENT) {
+            return IPV6_FRAGMENT_HEADER_LENGTH;
+        }
+        if (type == 51) {
+            return (u8(frame, at + 1) + 2) * 4; // In 4 byte units, less 2
+        }
+        return (u8(frame, at + 1) + 1) * 8; // In 8 byte units, less 1
+    }
+
+    /**
+     * @return end of the application data, or -1 if the transport is not
+     * TCP/UDP or its header is truncated
+     */
+    private static int decodeTransport(ByteBuffer frame, int x, int end, PacketRecord rec) {
+        if (rec.protocol == PacketRecord.PROTO_TCP) {
+            if (end - x < TCP_HEADER_LENGTH) {
+                return -1;
+            }
+            rec.srcPort = u16(frame, x);
+            rec.dstPort = u16(frame, x + 2);
+            rec.seq = u32(frame, x + 4);
+            rec.ack = u32(frame, x + 8);
+            rec.tcpHeaderLength = (u8(frame, x + 12) >> 4) * 4;
+            rec.tcpFlags = (u8(frame, x + 12) & 1) << 8 | u8(frame, x + 13);
+            rec.tcpWindow = u16(frame, x + 14);
+            rec.l4Checksum = u16(frame, x + 16);
+            rec.tcpUrgent = u16(frame, x + 18);
+            // The data offset covers the options, the payload starts after them
+            int header = Math.max(TCP_HEADER_LENGTH, rec.tcpHeaderLength);
+            rec.l7Offset = Math.min(end, x + header);
+            rec.l7Length = end - rec.l7Offset;
+            return end;
+        }
+        if (rec.protocol == PacketRecord.PROTO_UDP) {
+            if (end - x < UDP_HEADER_LENGTH) {
+                return -1;
+            }
+            rec.srcPort = u16(frame, x);
+            rec.dstPort = u16(frame, x + 2);
+            rec.udpLength = u16(frame, x + 4);
+            rec.l4Checksum = u16(frame, x + 6);
+            if (rec.udpLength >= UDP_HEADER_LENGTH) {
+                end = Math.min(end, x + rec.udpLength);
+            }
+            rec.l7Offset = x + UDP_HEADER_LENGTH;
+            rec.l7Length = end - rec.l7Offset;
+            return end;
+        }
+        return -1;
+    }
+
+    /**
+     * Offers the payload to the dissector that recognised the flow before,
+     * or else to the dissectors of its ports and then to the probing ones.
+     */
+    private void decodeApplication(ByteBuffer frame, int x, int end, PacketRecord rec) {
+        if (x >= end) {
+            return;
+        }
+        int flow = rec.flowHash();
+        int slot = flow & (FLOW_CACHE_SIZE - 1);
+        if (flowKeys[slot] == flow && flowApps[slot] != 0) {
+            dissect(flowApps[slot] & 0xFF, frame, x, end, rec);
+            return;
+        }
+        int protocol = rec.protocol;
+        int destination = dissectors.byPort(protocol, rec.dstPort);
+        int source = dissectors.byPort(protocol, rec.srcPort);
+        int app;
+        if (destination != 0 && dissect(destination, frame, x, end, rec)) {
+            app = destination;
+        } else if (source != 0 && source != destination && dissect(source, frame, x, end, rec)) {
+            app = source;
+        } else {
+            app = probe(frame, x, end, rec, destination, source);
+        }
+        if (app != 0) {
+            flowKeys[slot] = flow;
+            flowApps[slot] = (byte) app;
+        }
+    }
+
+    /**
+     * @param tried1 application protocol already tried by port, or 0
+     * @param tried2 application protocol already tried by port, or 0
+     * @return the application protocol that recognised the payload, 0 if
+     * none did
+     */
+    private int probe(ByteBuffer frame, int x, int end, PacketRecord rec, int tried1, int tried2) {
+        for (byte probe : dissectors.probes(rec.protocol)) {
+            int app = probe & 0xFF;
+            if (app != tried1 && app != tried2 && dissect(app, frame, x, end, rec)) {
+                return app;
+            }
+        }
+        return 0;
+    }
+
+    private boolean dissect(int app, ByteBuffer frame, int x, int end, PacketRecord rec) {
+        if (!dissectors.dissector(app).dissect(frame, x, end, rec)) {
+            return false;
+        }
+        rec.appProtocol = app;
+        return true;
+    }
+
+    static int u8(ByteBuffer frame, int i) {
+        return frame.get(i) & 0xFF;
+    }
+
+    static int u16(ByteBuffer frame, int i) {
+        return frame.getShort(i) & 0xFFFF;
+    }
+
+    static long u32(ByteBuffer frame, int i) {
+        return frame.getInt(i) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,319 @@
+package packetsniffer.decode;
+
+/**
+ * Everything the decoder knows about one frame.
+ *
+ * A record is mutable and meant to be reused: each decoding thread owns one
+ * instance which {@link PacketDecoder} overwrites for every frame, so no
+ * objects are created per packet. Byte offsets are absolute indexes into the
+ * buffer the frame was decoded from. Addresses are kept as two longs each;
+ * IPv4 addresses sit in the low 32 bits of the low word.
+ *
+ * For tunnelled traffic the Ethernet, IP and transport fields describe the
+ * innermost packet, so flows are tracked and sharded by what is inside the
+ * tunnel; the encapsulation fields keep the VLAN tags, MPLS labels and
+ * tunnel that were stripped on the way in.
+ */
+public final class PacketRecord {
+
+    public static final int ETHERTYPE_IPV4 = 0x0800;
+    public static final int ETHERTYPE_IPV6 = 0x86DD;
+
+    public static final int PROTO_TCP = 6;
+    public static final int PROTO_UDP = 17;
+    public static final int PROTO_GRE = 47;
+
+    public static final int TUNNEL_NONE = 0;
+    public static final int TUNNEL_GRE = 1;
+    public static final int TUNNEL_VXLAN = 2;
+
+    /** More fragments bit of ipFlags, for IPv4 and IPv6 */
+    public static final int IP_MORE_FRAGMENTS = 1;
+    /** Don't fragment bit of ipFlags, IPv4 only */
+    public static final int IP_DONT_FRAGMENT = 2;
+
+    public static final int TCP_FIN = 0x001;
+    public static final int TCP_SYN = 0x002;
+    public static final int TCP_RST = 0x004;
+    public static final int TCP_PSH = 0x008;
+    public static final int TCP_ACK = 0x010;
+    public static final int TCP_URG = 0x020;
+
+    public static final int APP_NONE = 0;
+    public static final int APP_DNS = 1;
+    public static final int APP_HTTP = 2;
+
+    public static final int HTTP_NONE = 0;
+    public static final int HTTP_GET = 1;
+    public static final int HTTP_POST = 2;
+    public static final int HTTP_HEAD = 3;
+    public static final int HTTP_PUT = 4;
+    public static final int HTTP_DELETE = 5;
+    public static final int HTTP_OPTIONS = 6;
+    public static final int HTTP_RESPONSE = 7;
+
+    /*
+     * Frame
+     */
+    public long timestampMicros;
+    public int wireLength;
+    public int captureLength;
+    /** Index of the first byte of the frame */
+    public int frameOffset;
+    /** Index one past the last captured byte */
+    public int frameEnd;
+    /**
+     * Number of the interface or file the frame came from, in the order they
+     * were given; set by the capture side after decoding
+     */
+    public int interfaceId;
+    /**
+     * How many captured frames this one stands for when only a sample is
+     * decoded; counts multiplied by it estimate all of the traffic. 1 when
+     * nothing is sampled, set by the capture side after decoding
+     */
+    public int sampleRate = 1;
+
+    /*
+     * Ethernet
+     */
+    public long dstMac;
+    public long srcMac;
+    /** EtherType of the network header, after any VLAN tags and MPLS labels */
+    public int etherType;
+
+    /*
+     * Encapsulation, of the outer frame when it carries a tunnel
+     */
+    /** Number of 802.1Q and 802.1ad tags */
+    public int vlanCount;
+    /** VLAN id of the first tag, the service tag with QinQ */
+    public int outerVlan;
+    /** VLAN id of the second tag, the customer tag with QinQ */
+    public int innerVlan;
+    /** Number of MPLS labels */
+    public int mplsCount;
+    /** Label at the top of the MPLS stack */
+    public int mplsLabel;
+    /** Outermost tunnel, one of the TUNNEL_ constants */
+    public int tunnel;
+    /** VXLAN network identifier or GRE key, -1 if the GRE header has no key */
+    public long tunnelKey;
+    /** Index of the IP header carrying the outermost tunnel */
+    public int tunnelL3Offset;
+
+    /*
+     * Internet Protocol, ipVersion is 0 when the frame does not carry IP
+     */
+    public int l3Offset;
+    public int ipVersion;
+    /** Includes the IPv4 options and the IPv6 extension headers */
+    public int ipHeaderLength;
+    /** Total length for IPv4, payload length for IPv6 */
+    public int ipLength;
+    /** Differentiated services field for IPv4, traffic class for IPv6 */
+    public int ipTos;
+    public int ipFlowLabel;
+    /** Identification, from the fragment header for IPv6 */
+    public int ipId;
+    public int ipFlags;
+    /** In units of 8 bytes */
+    public int ipFragmentOffset;
+    /** Index of the IPv6 fragment header, 0 if there is none */
+    public int ipFragmentHeader;
+    /**
+     * Number of fragments the datagram was reassembled from, 0 if it was
+     * not or it was decoded by a pipeline worker
+     */
+    public int ipFragments;
+    /** Time to live for IPv4, hop limit for IPv6 */
+    public int ttl;
+    /** Transport protocol, after any IPv6 extension headers */
+    public int protocol;
+    public int ipChecksum;
+    public long srcAddrHi;
+    public long srcAddrLo;
+    public long dstAddrHi;
+    public long dstAddrLo;
+
+    /*
+     * Transport, protocol tells which of the fields are valid
+     */
+    public int l4Offset;
+    public int srcPort;
+    public int dstPort;
+    public long seq;
+    public long ack;
+    /** TCP header length in bytes */
+    public int tcpHeaderLength;
+    /** The nine TCP flag bits including NS */
+    public int tcpFlags;
+    public int tcpWindow;
+    public int tcpUrgent;
+    public int udpLength;
+    public int l4Checksum;
+
+    /*
+     * Application
+     */
+    public int l7Offset;
+    public int l7Length;
+    public int appProtocol;
+    public int dnsId;
+    /** The 16 flag bits of the DNS header: QR, opcode, AA, TC, RD, RA, Z, rcode */
+    public int dnsFlags;
+    public int dnsQdCount;
+    public int dnsAnCount;
+    public int dnsNsCount;
+    public int dnsArCount;
+    /** {@link DnsNameHash} of the first question name, 0 if unknown */
+    public int dnsQnameHash;
+    public int dnsQtype;
+    public int dnsQclass;
+    public int httpMethod;
+    public int httpStatus;
+
+    /**
+     * Resets every decoded field so nothing leaks over from the previous
+     * frame.
+     */
+    public void clear() {
+        timestampMicros = 0;
+        wireLength = 0;
+        captureLength = 0;
+        frameOffset = 0;
+        frameEnd = 0;
+        interfaceId = 0;
+        sampleRate = 1;
+        dstMac = 0;
+        srcMac = 0;
+        etherType = 0;
+        vlanCount = 0;
+        outerVlan = 0;
+        innerVlan = 0;
+        mplsCount = 0;
+        mplsLabel = 0;
+        tunnel = TUNNEL_NONE;
+        tunnelKey = 0;
+        tunnelL3Offset = 0;
+        clearNetwork();
+        l7Offset = 0;
+        l7Length = 0;
+        appProtocol = APP_NONE;
+        dnsId = 0;
+        dnsFlags = 0;
+        dnsQdCount = 0;
+        dnsAnCount = 0;
+        dnsNsCount = 0;
+        dnsArCount = 0;
+        dnsQnameHash = 0;
+        dnsQtype = 0;
+        dnsQclass = 0;
+        httpMethod = HTTP_NONE;
+        httpStatus = 0;
+    }
+
+    /**
+     * Resets the IP and transport fields, which are decoded again for the
+     * inner packet of a tunnel.
+     */
+    void clearNetwork() {
+        l3Offset = 0;
+        ipVersion = 0;
+        ipHeaderLength = 0;
+        ipLength = 0;
+        ipTos = 0;
+        ipFlowLabel = 0;
+        ipId = 0;
+        ipFlags = 0;
+        ipFragmentOffset = 0;
+        ipFragmentHeader = 0;
+        ipFragments = 0;
+        ttl = 0;
+        protocol = 0;
+        ipChecksum = 0;
+        srcAddrHi = 0;
+        srcAddrLo = 0;
+        dstAddrHi = 0;
+        dstAddrLo = 0;
+        l4Offset = 0;
+        srcPort = 0;
+        dstPort = 0;
+        seq = 0;
+        ack = 0;
+        tcpHeaderLength = 0;
+        tcpFlags = 0;
+        tcpWindow = 0;
+        tcpUrgent = 0;
+        udpLength = 0;
+        l4Checksum = 0;
+    }
+
+    /**
+     * Notes a tunnel unless it is inside another one.
+     */
+    void tunnelOuter(int type, long key, int outerL3Offset) {
+        if (tunnel == TUNNEL_NONE) {
+            tunnel = type;
+            tunnelKey = key;
+            tunnelL3Offset = outerL3Offset;
+        }
+    }
+
+    /**
+     * @return true for a fragment of an IP datagram, including the first
+     */
+    public boolean isFragment() {
+        return ipVersion != 0 && (ipFragmentOffset != 0 || (ipFlags & IP_MORE_FRAGMENTS) != 0);
+    }
+
+    public boolean isTcp() {
+        return ipVersion != 0 && protocol == PROTO_TCP;
+    }
+
+    public boolean isUdp() {
+        return ipVersion != 0 && protocol == PROTO_UDP;
+    }
+
+    public int dnsRcode() {
+        return dnsFlags & 15;
+    }
+
+    public boolean isDnsResponse() {
+        return (dnsFlags & 0x8000) != 0;
+    }
+
+    /**
+     * Hashes the 5-tuple so that both directions of a flow get the same
+     * value. Frames that are not IP hash their MAC addresses instead.
+     * Fragments leave out the ports, which only the first one carries, so
+     * that all fragments of a datagram get the same value.
+     *
+     * @return the flow hash
+     */
+    public int flowHash() {
+        long h;
+        if (ipVersion == 0) {
+            h = mix(srcMac) + mix(dstMac) + etherType;
+        } else {
+            boolean fragment = isFragment();
+            long src = mix(srcAddrHi ^ mix(srcAddrLo ^ (long) (fragment ? 0 : srcPort) << 48));
+            long dst = mix(dstAddrHi ^ mix(dstAddrLo ^ (long) (fragment ? 0 : dstPort) << 48));
+            h = src + dst + protocol; // Addition does not care about the order
+        }
+        h = mix(h);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * The 64 bit finalizer from MurmurHash3
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,35 @@
+package packetsniffer.decode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives every decoded frame.
+ *
+ * The record and the buffer are only valid for the duration of the call;
+ * both are overwritten by the next frame. A consumer that needs data later
+ * has to copy it.
+ */
+public interface RecordConsumer {
+
+    /**
+     * @param rec the decoded record
+     * @param frame the buffer the record was decoded from, offsets in the
+     * record are absolute indexes into it
+     */
+    void accept(PacketRecord rec, ByteBuffer frame);
+
+    /**
+     * Called when the thread feeding this consumer runs out of frames for
+     * the moment, and once more at the end. Consumers that batch their
+     * output should pass it on here.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Called once after the last frame and the last {@link #flush()}, on the
+     * thread that fed this consumer.
+     */
+    default void close() {
+    }
+}
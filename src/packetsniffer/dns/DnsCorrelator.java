@@ -0,0 +1,365 @@
+package packetsniffer.dns;
+
+import java.nio.ByteBuffer;
+
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+import packetsniffer.recorder.Trigger;
+
+/**
+ * Matches the DNS queries of one decoding thread with their responses and
+ * collects the response times per server and per query type.
+ *
+ * A query waits in the table under client address, client port and DNS id
+ * until its response arrives or it is older than the timeout, which makes
+ * it unanswered. The table has a fixed number of slots kept in the order
+ * the queries arrived, so the oldest query is always the next to time
+ * out, and when a flood of queries fills the table the oldest one is
+ * given up early. Servers beyond the first {@link #MAX_SERVERS} and types
+ * beyond 255 are counted together, so the memory stays the same whatever
+ * the traffic looks like.
+ *
+ * The pipeline hashes both directions of a conversation to the same
+ * thread, so a query and its response always meet in the same correlator.
+ */
+public final class DnsCorrelator implements RecordConsumer {
+
+    /**
+     * Servers that get their own statistics, the rest count as "other"
+     */
+    public static final int MAX_SERVERS = 64;
+
+    /**
+     * Query types below this get their own statistics, the rest count as
+     * {@link #OTHER_TYPE}
+     */
+    public static final int TYPES = 256;
+    public static final int OTHER_TYPE = TYPES;
+
+    private final int capacity;
+    private final long timeoutMicros;
+
+    // Waiting queries in a ring, oldest at head; answered queries leave a
+    // hole until the head passes them
+    private final long[] clientHi;
+    private final long[] clientLo;
+    private final long[] queryTime;
+    private final int[] key;
+    private final int[] qnameHash;
+    private final short[] qtype;
+    private final byte[] server;
+    private final boolean[] waiting;
+    private int head;
+    private int size;
+
+    // Open addressing index of ring slot + 1, 0 is empty
+    private final int[] index;
+    private final int indexMask;
+    private final int indexShift;
+
+    // Server 0 is "other"
+    private final long[] serverHi = new long[MAX_SERVERS + 1];
+    private final long[] serverLo = new long[MAX_SERVERS + 1];
+    private final boolean[] serverIpv6 = new boolean[MAX_SERVERS + 1];
+    private final DnsLatency[] servers = new DnsLatency[MAX_SERVERS + 1];
+    private int serverCount = 1;
+    private final DnsLatency[] types = new DnsLatency[TYPES + 1];
+
+    private final long[] rcodes = new long[16];
+    private long queries;
+    private long retransmitted;
+    private long timedOut;
+    private long pushedOut;
+    private long waitingAtEnd;
+    private long unmatched;
+    private Trigger servfailTrigger;
+
+    /**
+     * @param capacity most queries waiting for a response at the same time
+     * @param timeoutMicros how long a query waits before it is unanswered
+     */
+    public DnsCorrelator(int capacity, long timeoutMicros) {
+        this.capacity = capacity;
+        this.timeoutMicros = timeoutMicros;
+        clientHi = new long[capacity];
+        clientLo = new long[capacity];
+        queryTime = new long[capacity];
+        key = new int[capacity];
+        qnameHash = new int[capacity];
+        qtype = new short[capacity];
+        server = new byte[capacity];
+        waiting = new boolean[capacity];
+        int indexSize = Integer.highestOneBit(Math.max(2, capacity - 1)) << 2;
+        index = new int[indexSize];
+        indexMask = indexSize - 1;
+        indexShift = 32 - Integer.numberOfTrailingZeros(indexSize);
+    }
+
+    /**
+     * @param trigger fired for every SERVFAIL response, matched or not
+     */
+    public void triggerOnServfail(Trigger trigger) {
+        this.servfailTrigger = trigger;
+    }
+
+    public void accept(PacketRecord rec, ByteBuffer frame) {
+        if (rec.appProtocol != PacketRecord.APP_DNS) {
+            return;
+        }
+        expire(rec.timestampMicros);
+        if (rec.isDnsResponse()) {
+            response(rec);
+        } else {
+            query(rec);
+        }
+    }
+
+    /**
+     * Counts the queries still waiting for a response.
+     */
+    @Override
+    public void close() {
+        while (size > 0) {
+            if (waiting[head]) {
+                waitingAtEnd++;
+            }
+            pop();
+        }
+    }
+
+    private void query(PacketRecord rec) {
+        queries++;
+        int k = rec.srcPort << 16 | rec.dnsId;
+        int hash = hash(rec.srcAddrHi, rec.srcAddrLo, k);
+        if (find(hash, rec.srcAddrHi, rec.srcAddrLo, k) >= 0) {
+            // The client asked again; time the response from the first try
+            retransmitted++;
+            return;
+        }
+        if (size == capacity) {
+            if (waiting[head]) {
+                pushedOut++;
+                unanswered(head);
+            }
+            pop();
+        }
+        int slot = head + size < capacity ? head + size : head + size - capacity;
+        size++;
+        clientHi[slot] = rec.srcAddrHi;
+        clientLo[slot] = rec.srcAddrLo;
+        queryTime[slot] = rec.timestampMicros;
+        key[slot] = k;
+        qnameHash[slot] = rec.dnsQnameHash;
+        qtype[slot] = (short) Math.min(rec.dnsQtype, OTHER_TYPE);
+        server[slot] = (byte) server(rec.dstAddrHi, rec.dstAddrLo, rec.ipVersion == 6);
+        waiting[slot] = true;
+        insert(slot, hash);
+    }
+
+    private void response(PacketRecord rec) {
+        if (servfailTrigger != null && rec.dnsRcode() == DnsMessage.RCODE_SERVFAIL) {
+            servfailTrigger.fire("dns-servfail");
+        }
+        int k = rec.dstPort << 16 | rec.dnsId;
+        int hash = hash(rec.dstAddrHi, rec.dstAddrLo, k);
+        int slot = find(hash, rec.dstAddrHi, rec.dstAddrLo, k);
+        // A different question under the same id is not the response we wait
+        // for; a response without a question (FORMERR) can not be told apart
+        if (slot < 0 || qnameHash[slot] != rec.dnsQnameHash && rec.dnsQnameHash != 0) {
+            unmatched++;
+            return;
+        }
+        int rcode = rec.dnsRcode();
+        rcodes[rcode]++;
+        long latency = rec.timestampMicros - queryTime[slot];
+        answered(stats(servers, server[slot]), rcode, latency);
+        answered(stats(types, qtype[slot]), rcode, latency);
+        waiting[slot] = false;
+        remove(slot, hash);
+    }
+
+    private static void answered(DnsLatency stats, int rcode, long latency) {
+        stats.latency.record(latency);
+        if (rcode == DnsMessage.RCODE_NXDOMAIN) {
+            stats.nxdomain++;
+        } else if (rcode == DnsMessage.RCODE_SERVFAIL) {
+            stats.servfail++;
+        }
+    }
+
+    private void unanswered(int slot) {
+        stats(servers, server[slot]).unanswered++;
+        stats(types, qtype[slot]).unanswered++;
+        waiting[slot] = false;
+        remove(slot, hash(clientHi[slot], clientLo[slot], key[slot]));
+    }
+
+    private static DnsLatency stats(DnsLatency[] all, int i) {
+        DnsLatency stats = all[i];
+        if (stats == null) {
+            stats = all[i] = new DnsLatency();
+        }
+        return stats;
+    }
+
+    /**
+     * Gives up on the queries older than the timeout.
+     */
+    private void expire(long now) {
+        while (size > 0 && (!waiting[head] || now - queryTime[head] > timeoutMicros)) {
+            if (waiting[head]) {
+                timedOut++;
+                unanswered(head);
+            }
+            pop();
+        }
+    }
+
+    private void pop() {
+        head = head + 1 < capacity ? head + 1 : 0;
+        size--;
+    }
+
+    /**
+     * @return number of the server, 0 if all numbers are taken
+     */
+    private int server(long hi, long lo, boolean ipv6) {
+        // There are few servers, so a linear search is quick enough
+        for (int i = 1; i < serverCount; i++) {
+            if (serverLo[i] == lo && serverHi[i] == hi && serverIpv6[i] == ipv6) {
+                return i;
+            }
+        }
+        if (serverCount > MAX_SERVERS) {
+            return 0;
+        }
+        serverHi[serverCount] = hi;
+        serverLo[serverCount] = lo;
+        serverIpv6[serverCount] = ipv6;
+        return serverCount++;
+    }
+
+    /*
+     * Index
+     */
+
+    private static int hash(long hi, long lo, int key) {
+        long h = (hi * 31 + lo) * 0x9E3779B97F4A7C15L + key;
+        return (int) (h ^ h >>> 32);
+    }
+
+    private int home(int hash) {
+        return (hash * 0x9E3779B9) >>> indexShift;
+    }
+
+    private int find(int hash, long hi, long lo, int k) {
+        for (int i = home(hash); ; i = (i + 1) & indexMask) {
+            int entry = index[i];
+            if (entry == 0) {
+                return -1;
+            }
+            int slot = entry - 1;
+            if (key[slot] == k && clientLo[slot] == lo && clientHi[slot] == hi) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(int slot, int hash) {
+        int i = home(hash);
+        while (index[i] != 0) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = slot + 1;
+    }
+
+    /**
+     * Removes a query from the index, shifting later entries of the probe
+     * sequence back so lookups never need tombstones.
+     */
+    private void remove(int slot, int hash) {
+        int i = home(hash);
+        while (index[i] != slot + 1) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = 0;
+        for (int j = (i + 1) & indexMask; index[j] != 0; j = (j + 1) & indexMask) {
+            int s = index[j] - 1;
+            int h = home(hash(clientHi[s], clientLo[s], key[s]));
+            // Move the entry unless its home lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < h && h <= j) : (i < h || h <= j);
+            if (!stays) {
+                index[i] = index[j];
+                index[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    /*
+     * Statistics, read after the thread has finished
+     */
+
+    public long queries() {
+        return queries;
+    }
+
+    public long retransmitted() {
+        return retransmitted;
+    }
+
+    public long timedOut() {
+        return timedOut;
+    }
+
+    public long pushedOut() {
+        return pushedOut;
+    }
+
+    public long waitingAtEnd() {
+        return waitingAtEnd;
+    }
+
+    public long unmatched() {
+        return unmatched;
+    }
+
+    public long rcodes(int rcode) {
+        return rcodes[rcode];
+    }
+
+    /**
+     * @return number of servers, including "other" as server 0
+     */
+    public int serverCount() {
+        return serverCount;
+    }
+
+    public long serverAddrHi(int server) {
+        return serverHi[server];
+    }
+
+    public long serverAddrLo(int server) {
+        return serverLo[server];
+    }
+
+    public boolean isIpv6Server(int server) {
+        return serverIpv6[server];
+    }
+
+    /**
+     * @return statistics of a server, null if it has neither responses nor
+     * unanswered queries yet
+     */
+    public DnsLatency server(int server) {
+        return servers[server];
+    }
+
+    /**
+     * @param type query type, {@link #OTHER_TYPE} for all types from 256 on
+     * @return statistics of a query type, null if there were none
+     */
+    public DnsLatency type(int type) {
+        return types[type];
+    }
+}
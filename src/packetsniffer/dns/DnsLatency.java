@@ -0,0 +1,41 @@
+package packetsniffer.dns;
+
+import packetsniffer.stats.LogHistogram;
+
+/**
+ * Response times and failures of the DNS queries to one server, or of one
+ * query type.
+ */
+public final class DnsLatency {
+
+    /**
+     * Microseconds between query and response
+     */
+    public final LogHistogram latency = new LogHistogram();
+    long unanswered;
+    long nxdomain;
+    long servfail;
+
+    public long answered() {
+        return latency.count();
+    }
+
+    public long unanswered() {
+        return unanswered;
+    }
+
+    public long nxdomain() {
+        return nxdomain;
+    }
+
+    public long servfail() {
+        return servfail;
+    }
+
+    public void add(DnsLatency other) {
+        latency.add(other.latency);
+        unanswered += other.unanswered;
+        nxdomain += other.nxdomain;
+        servfail += other.servfail;
+    }
+}
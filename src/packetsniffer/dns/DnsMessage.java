@@ -0,0 +1,566 @@
+package packetsniffer.dns;
+
+import java.nio.ByteBuffer;
+
+import packetsniffer.decode.DnsNameHash;
+import packetsniffer.output.TextBuffer;
+
+/**
+ * Reusable view of a DNS message in wire format (RFC 1035).
+ *
+ * {@link #wrap} checks the whole message once, following every compressed
+ * name, and remembers where each question and resource record starts.
+ * Everything else is read from the packet buffer on demand: nothing is
+ * copied, and names only become Strings when {@link #name} is called.
+ * Record indexes run over all sections in message order, questions first.
+ *
+ * Compression pointers must point to an earlier position than the name
+ * they appear in, which every real encoder does and which rules out
+ * loops; a name may also not be longer than 255 bytes or take more than
+ * {@link #MAX_POINTERS} jumps. A message that breaks the rules is still
+ * readable up to the first bad record, see {@link #error()}.
+ *
+ * Not thread safe; each decoding thread uses its own instance.
+ */
+public final class DnsMessage {
+
+    public static final int HEADER_LENGTH = 12;
+    public static final int MAX_RECORDS = 256;
+    public static final int MAX_POINTERS = 64;
+
+    public static final int SECTION_QUESTION = 0;
+    public static final int SECTION_ANSWER = 1;
+    public static final int SECTION_AUTHORITY = 2;
+    public static final int SECTION_ADDITIONAL = 3;
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_NS = 2;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_PTR = 12;
+    public static final int TYPE_MX = 15;
+    public static final int TYPE_TXT = 16;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_SRV = 33;
+    public static final int TYPE_OPT = 41;
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_FORMERR = 1;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+
+    public static final int ERROR_NONE = 0;
+    public static final int ERROR_SHORT = 1;
+    public static final int ERROR_BAD_NAME = 2;
+    public static final int ERROR_BAD_RECORD = 3;
+    public static final int ERROR_TOO_MANY_RECORDS = 4;
+
+    private static final String[] ERROR_NAMES = {"none", "message shorter than its records",
+        "invalid or looping name", "record data does not match its type", "too many records"};
+
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    private int error;
+
+    private int recordCount;
+    private final int[] sections = new int[MAX_RECORDS];
+    private final int[] nameOffsets = new int[MAX_RECORDS];
+    private final int[] fieldOffsets = new int[MAX_RECORDS]; // Type, class, TTL, rdlength
+    private final int[] sectionStart = new int[5];
+
+    // Result of the last walk over a name
+    private int nameHash;
+    private int nameEnd;
+
+    /**
+     * Points the view at a message and checks it.
+     *
+     * @param buffer the packet, big endian
+     * @param offset absolute index of the DNS header
+     * @param length bytes of the message
+     * @return true if the whole message is well formed
+     */
+    public boolean wrap(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.start = offset;
+        this.end = offset + length;
+        this.recordCount = 0;
+        this.error = ERROR_NONE;
+        for (int i = 0; i < sectionStart.length; i++) {
+            sectionStart[i] = 0;
+        }
+        if (length < HEADER_LENGTH) {
+            error = ERROR_SHORT;
+            return false;
+        }
+        int pos = start + HEADER_LENGTH;
+        for (int section = SECTION_QUESTION; section <= SECTION_ADDITIONAL; section++) {
+            sectionStart[section] = recordCount;
+            int count = u16(start + 4 + 2 * section);
+            for (int i = 0; i < count; i++) {
+                pos = record(section, pos);
+                if (pos < 0) {
+                    for (int s = section + 1; s < sectionStart.length; s++) {
+                        sectionStart[s] = recordCount;
+                    }
+                    return false;
+                }
+            }
+        }
+        sectionStart[4] = recordCount;
+        return true;
+    }
+
+    /**
+     * @return one of the ERROR_* constants for the last {@link #wrap}
+     */
+    public int error() {
+        return error;
+    }
+
+    public static String errorName(int error) {
+        return ERROR_NAMES[error];
+    }
+
+    /*
+     * Header
+     */
+
+    public int id() {
+        return u16(start);
+    }
+
+    public int flags() {
+        return u16(start + 2);
+    }
+
+    public boolean isResponse() {
+        return (flags() & 0x8000) != 0;
+    }
+
+    public int opcode() {
+        return (flags() >> 11) & 15;
+    }
+
+    public boolean isAuthoritative() {
+        return (flags() & 0x0400) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (flags() & 0x0200) != 0;
+    }
+
+    public boolean isRecursionDesired() {
+        return (flags() & 0x0100) != 0;
+    }
+
+    public boolean isRecursionAvailable() {
+        return (flags() & 0x0080) != 0;
+    }
+
+    public int rcode() {
+        return flags() & 15;
+    }
+
+    /**
+     * @return the count from the header, which can be more than was parsed
+     */
+    public int headerCount(int section) {
+        return u16(start + 4 + 2 * section);
+    }
+
+    /*
+     * Records
+     */
+
+    /**
+     * @return questions and resource records that were parsed
+     */
+    public int recordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return index of the first parsed record of a section
+     */
+    public int firstRecord(int section) {
+        return sectionStart[section];
+    }
+
+    /**
+     * @return index after the last parsed record of a section
+     */
+    public int endRecord(int section) {
+        return sectionStart[section + 1];
+    }
+
+    public int section(int record) {
+        return sections[record];
+    }
+
+    public int type(int record) {
+        return u16(fieldOffsets[record]);
+    }
+
+    /**
+     * @return the class; for OPT records the requestor's UDP payload size
+     */
+    public int recordClass(int record) {
+        return u16(fieldOffsets[record] + 2);
+    }
+
+    /**
+     * @return time to live in seconds, 0 for questions
+     */
+    public long ttl(int record) {
+        return sections[record] == SECTION_QUESTION ? 0 : u32(fieldOffsets[record] + 4);
+    }
+
+    public int dataLength(int record) {
+        return sections[record] == SECTION_QUESTION ? 0 : u16(fieldOffsets[record] + 8);
+    }
+
+    /**
+     * @return absolute index of the record data in the buffer
+     */
+    public int dataOffset(int record) {
+        return fieldOffsets[record] + 10;
+    }
+
+    /**
+     * @return absolute index of the owner name, for {@link #appendName}
+     */
+    public int nameOffset(int record) {
+        return nameOffsets[record];
+    }
+
+    /*
+     * Record data by type; each accessor is only valid for its types
+     */
+
+    /**
+     * @return the A address in the low 32 bits
+     */
+    public long ipv4(int record) {
+        return u32(dataOffset(record));
+    }
+
+    public long ipv6Hi(int record) {
+        return buffer.getLong(dataOffset(record));
+    }
+
+    public long ipv6Lo(int record) {
+        return buffer.getLong(dataOffset(record) + 8);
+    }
+
+    /**
+     * @return offset of the domain name in the data of CNAME, NS, PTR, MX,
+     * SRV records and of the primary name server of SOA records
+     */
+    public int targetOffset(int record) {
+        switch (type(record)) {
+            case TYPE_MX:
+                return dataOffset(record) + 2;
+            case TYPE_SRV:
+                return dataOffset(record) + 6;
+            default:
+                return dataOffset(record);
+        }
+    }
+
+    public int mxPreference(int record) {
+        return u16(dataOffset(record));
+    }
+
+    public int srvPriority(int record) {
+        return u16(dataOffset(record));
+    }
+
+    public int srvWeight(int record) {
+        return u16(dataOffset(record) + 2);
+    }
+
+    public int srvPort(int record) {
+        return u16(dataOffset(record) + 4);
+    }
+
+    /**
+     * @return offset of the mailbox name of an SOA record
+     */
+    public int soaMailboxOffset(int record) {
+        walkName(dataOffset(record), null, false);
+        return nameEnd;
+    }
+
+    /**
+     * @param field 0 serial, 1 refresh, 2 retry, 3 expire, 4 minimum TTL
+     */
+    public long soaValue(int record, int field) {
+        int data = dataOffset(record);
+        return u32(data + dataLength(record) - 20 + 4 * field);
+    }
+
+    /**
+     * Appends the character strings of a TXT record, each in quotes.
+     */
+    public TextBuffer appendTxt(int record, TextBuffer out) {
+        int i = dataOffset(record);
+        int dataEnd = i + dataLength(record);
+        while (i < dataEnd) {
+            if (i > dataOffset(record)) {
+                out.append(' ');
+            }
+            int n = u8(i++);
+            out.append('"');
+            for (int k = i; k < i + n; k++) {
+                out.appendPrintable(u8(k));
+            }
+            out.append('"');
+            i += n;
+        }
+        return out;
+    }
+
+    /*
+     * Names
+     */
+
+    /**
+     * Appends a name in dotted form, "&lt;Root&gt;" for the root.
+     *
+     * @param offset absolute index of the name, from one of the accessors
+     */
+    public TextBuffer appendName(int offset, TextBuffer out) {
+        int before = out.length();
+        walkName(offset, out, false);
+        if (out.length() == before) {
+            out.append("<Root>");
+        }
+        return out;
+    }
+
+    /**
+     * Creates a String of a name; this allocates, unlike
+     * {@link #appendName}.
+     */
+    public String name(int offset) {
+        TextBuffer text = new TextBuffer(64);
+        return appendName(offset, text).toString();
+    }
+
+    /**
+     * @return FNV-1a hash of the name in lower case, the same value the
+     * decoder puts in PacketRecord.dnsQnameHash for the first question
+     */
+    public int nameHash(int offset) {
+        walkName(offset, null, true);
+        return nameHash;
+    }
+
+    public static String typeName(int type) {
+        switch (type) {
+            case TYPE_A:
+                return "A";
+            case TYPE_NS:
+                return "NS";
+            case TYPE_CNAME:
+                return "CNAME";
+            case TYPE_SOA:
+                return "SOA";
+            case TYPE_PTR:
+                return "PTR";
+            case TYPE_MX:
+                return "MX";
+            case TYPE_TXT:
+                return "TXT";
+            case TYPE_AAAA:
+                return "AAAA";
+            case TYPE_SRV:
+                return "SRV";
+            case TYPE_OPT:
+                return "OPT";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Checks one question or resource record and remembers where it is.
+     *
+     * @return position after the record, -1 if it is malformed
+     */
+    private int record(int section, int pos) {
+        if (recordCount == MAX_RECORDS) {
+            error = ERROR_TOO_MANY_RECORDS;
+            return -1;
+        }
+        if (!walkName(pos, null, false)) {
+            error = ERROR_BAD_NAME;
+            return -1;
+        }
+        int fields = nameEnd;
+        int fixed = section == SECTION_QUESTION ? 4 : 10;
+        if (end - fields < fixed) {
+            error = ERROR_SHORT;
+            return -1;
+        }
+        int next = fields + fixed;
+        if (section != SECTION_QUESTION) {
+            int length = u16(fields + 8);
+            if (end - next < length) {
+                error = ERROR_SHORT;
+                return -1;
+            }
+            if (!checkData(u16(fields), next, next + length)) {
+                return -1;
+            }
+            next += length;
+        }
+        sections[recordCount] = section;
+        nameOffsets[recordCount] = pos;
+        fieldOffsets[recordCount] = fields;
+        recordCount++;
+        return next;
+    }
+
+    /**
+     * Checks that the data of the types this view can read fits the type.
+     */
+    private boolean checkData(int type, int data, int dataEnd) {
+        int length = dataEnd - data;
+        boolean ok;
+        switch (type) {
+            case TYPE_A:
+                ok = length == 4;
+                break;
+            case TYPE_AAAA:
+                ok = length == 16;
+                break;
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+                ok = nameWithin(data, dataEnd) == dataEnd;
+                break;
+            case TYPE_MX:
+                ok = length >= 3 && nameWithin(data + 2, dataEnd) == dataEnd;
+                break;
+            case TYPE_SRV:
+                ok = length >= 7 && nameWithin(data + 6, dataEnd) == dataEnd;
+                break;
+            case TYPE_SOA: {
+                int mailbox = nameWithin(data, dataEnd);
+                ok = mailbox > 0 && nameWithin(mailbox, dataEnd) == dataEnd - 20;
+                break;
+            }
+            case TYPE_TXT: {
+                int i = data;
+                while (i < dataEnd) {
+                    i += 1 + u8(i);
+                }
+                ok = i == dataEnd;
+                break;
+            }
+            default:
+                ok = true;
+        }
+        if (!ok && error == ERROR_NONE) {
+            error = ERROR_BAD_RECORD;
+        }
+        return ok;
+    }
+
+    /**
+     * @return position after a valid name that starts at {@code pos}, or -1
+     * if the name is invalid or runs past {@code limit}
+     */
+    private int nameWithin(int pos, int limit) {
+        if (pos >= limit) {
+            return -1;
+        }
+        if (!walkName(pos, null, false)) {
+            error = ERROR_BAD_NAME;
+            return -1;
+        }
+        return nameEnd <= limit ? nameEnd : -1;
+    }
+
+    /**
+     * Walks a possibly compressed name. Sets {@link #nameEnd} to the
+     * position after the name where it is stored and, if asked to,
+     * {@link #nameHash}.
+     *
+     * @param out receives the dotted name, or null
+     * @param hash whether to compute the hash; checking a name without
+     * output or hash only looks at the label lengths
+     * @return false if the name is malformed
+     */
+    private boolean walkName(int pos, TextBuffer out, boolean hash) {
+        int h = DnsNameHash.EMPTY;
+        int length = 0;
+        int pointers = 0;
+        int runStart = pos; // Pointers must go before this
+        nameEnd = -1;
+        while (true) {
+            if (pos >= end) {
+                return false;
+            }
+            int len = u8(pos);
+            if (len == 0) {
+                if (nameEnd < 0) {
+                    nameEnd = pos + 1;
+                }
+                nameHash = h;
+                return true;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                if (pos + 1 >= end || ++pointers > MAX_POINTERS) {
+                    return false;
+                }
+                int target = start + (((len & 0x3F) << 8) | u8(pos + 1));
+                if (target >= runStart || target < start + HEADER_LENGTH) {
+                    return false;
+                }
+                if (nameEnd < 0) {
+                    nameEnd = pos + 2;
+                }
+                pos = target;
+                runStart = target;
+                continue;
+            }
+            if ((len & 0xC0) != 0 || end - pos - 1 < len) {
+                return false; // Extended label types are obsolete
+            }
+            length += len + 1;
+            if (length > MAX_NAME_LENGTH) {
+                return false;
+            }
+            if (hash) {
+                h = DnsNameHash.addLabel(h, length == len + 1, buffer, pos + 1, pos + 1 + len);
+            }
+            if (out != null) {
+                if (length > len + 1) {
+                    out.append('.');
+                }
+                for (int i = pos + 1; i <= pos + len; i++) {
+                    out.appendPrintable(u8(i));
+                }
+            }
+            pos += len + 1;
+        }
+    }
+
+    private int u8(int i) {
+        return buffer.get(i) & 0xFF;
+    }
+
+    private int u16(int i) {
+        return buffer.getShort(i) & 0xFFFF;
+    }
+
+    private long u32(int i) {
+        return buffer.getInt(i) & 0xFFFFFFFFL;
+    }
+}
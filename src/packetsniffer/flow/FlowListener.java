@@ -0,0 +1,15 @@
+package packetsniffer.flow;
+
+/**
+ * Told about flows as they leave a {@link FlowTable}.
+ */
+public interface FlowListener {
+
+    /**
+     * Called just before a flow is evicted, while its state can still be
+     * read from the table. The flow id is reused afterwards.
+     *
+     * @param reason one of the FlowTable.EVICT_* constants
+     */
+    void flowEvicted(FlowTable table, int flow, int reason);
+}
@@ -0,0 +1,598 @@
+package packetsniffer.flow;
+
+import java.util.Arrays;
+
+import packetsniffer.decode.PacketRecord;
+
+/**
+ * State of every open TCP connection seen by one decoding thread.
+ *
+ * Flows are numbered: a flow id is an index into parallel primitive arrays
+ * that hold the key and the state, and ids of evicted flows are reused
+ * from a free list. The lookup index is an open addressing hash table of
+ * ids with linear probing, so finding the flow of a packet costs a hash and
+ * usually a single array read, and no object is created per flow or per
+ * packet. The arrays start small and double up to the configured maximum;
+ * when the table is full the least recently seen flow makes room.
+ *
+ * Both directions of a connection share one flow. The client is the side
+ * that sent the first SYN, or the sender of the first packet if the
+ * connection was already open when the capture started. Per-direction
+ * values are indexed with {@link #CLIENT} and {@link #SERVER}.
+ *
+ * Time is capture time: flows are evicted when no packet has been seen for
+ * the idle timeout, measured in packet timestamps, so replaying a file
+ * behaves exactly like the live capture did. Closed and reset connections
+ * linger briefly to absorb the last ACKs.
+ *
+ * Not thread safe; each decoding thread owns its own table, which works
+ * because the pipeline sends both directions of a flow to the same thread.
+ */
+public final class FlowTable {
+
+    public static final int CLIENT = 0;
+    public static final int SERVER = 1;
+
+    public static final int STATE_SYN_SENT = 1;
+    public static final int STATE_SYN_RECEIVED = 2;
+    public static final int STATE_ESTABLISHED = 3;
+    public static final int STATE_CLOSING = 4;
+    public static final int STATE_CLOSED = 5;
+    public static final int STATE_RESET = 6;
+
+    public static final int EVICT_IDLE = 0;
+    public static final int EVICT_CLOSED = 1;
+    public static final int EVICT_FULL = 2;
+    public static final int EVICT_END = 3;
+    public static final int EVICT_REASONS = 4;
+
+    private static final String[] STATE_NAMES = {"New", "SYN sent", "SYN received", "Established", "Closing",
+        "Closed", "Reset"};
+    private static final String[] EVICTION_NAMES = {"idle", "closed", "table full", "end of capture"};
+
+    private static final long CLOSED_LINGER_MICROS = 2L * 1000 * 1000;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private static final int ACTIVE = 0;
+    private static final int LINGERING = 1;
+
+    // Flag bits
+    private static final int CLIENT_IS_SOURCE_SIDE = 1; // The client is the lower endpoint of the key
+    private static final int MIDSTREAM = 2;
+    private static final int IPV6 = 4;
+    private static final int FIN_CLIENT = 8;
+    private static final int FIN_SERVER = 16;
+    private static final int SEQ_VALID = 32; // Shifted left by the direction
+    private static final int TIMING = 128; // Shifted left by the direction
+
+    private final int maxFlows;
+    private final long idleTimeoutMicros;
+    private final FlowListener listener;
+
+    private int capacity;
+    private int[] index;
+    private int indexShift;
+    private int indexMask;
+
+    // Key, the lower endpoint first
+    private long[] loAddrHi;
+    private long[] loAddrLo;
+    private long[] hiAddrHi;
+    private long[] hiAddrLo;
+    private int[] ports;
+    private int[] hashes;
+
+    // Per flow
+    private byte[] states;
+    private int[] flags;
+    private long[] firstSeen;
+    private long[] lastSeen;
+    private int[] prev;
+    private int[] next;
+    private byte[] lists;
+
+    // Per direction, at 2 * flow + direction
+    private long[] packets;
+    private long[] bytes;
+    private long[] payloadBytes;
+    private int[] nextSeq;
+    private int[] timedSeq;
+    private long[] timedAt;
+    private int[] srtt;
+    private int[] minRtt;
+    private int[] rttSamples;
+    private int[] retransmissions;
+
+    private final int[] listHead = {-1, -1};
+    private final int[] listTail = {-1, -1};
+    private int freeHead = -1;
+    private int used; // Ids handed out so far, ids below this are either live or free
+    private int size;
+    private int lastDirection;
+    private long created;
+    private final long[] evictions = new long[EVICT_REASONS];
+
+    /**
+     * @param maxFlows most connections tracked at the same time
+     * @param idleTimeoutMicros how long a connection may be silent before it
+     * is evicted
+     * @param listener told about every flow just before it is evicted
+     */
+    public FlowTable(int maxFlows, long idleTimeoutMicros, FlowListener listener) {
+        this.maxFlows = Math.max(1, maxFlows);
+        this.idleTimeoutMicros = idleTimeoutMicros;
+        this.listener = listener;
+        allocate(Math.min(this.maxFlows, INITIAL_CAPACITY));
+    }
+
+    /**
+     * Updates the flow of a TCP segment, creating it if needed, after
+     * evicting the flows that timed out before the segment's timestamp.
+     *
+     * @param rec a decoded TCP record
+     * @return the flow id
+     */
+    public int update(PacketRecord rec) {
+        long now = rec.timestampMicros;
+        expire(now);
+
+        boolean srcIsLow = compareEndpoints(rec) <= 0;
+        long aHi = srcIsLow ? rec.srcAddrHi : rec.dstAddrHi;
+        long aLo = srcIsLow ? rec.srcAddrLo : rec.dstAddrLo;
+        long bHi = srcIsLow ? rec.dstAddrHi : rec.srcAddrHi;
+        long bLo = srcIsLow ? rec.dstAddrLo : rec.srcAddrLo;
+        int portPair = srcIsLow ? rec.srcPort << 16 | rec.dstPort : rec.dstPort << 16 | rec.srcPort;
+        int hash = rec.flowHash();
+        int syn = rec.tcpFlags & (PacketRecord.TCP_SYN | PacketRecord.TCP_ACK);
+
+        int flow = find(hash, aHi, aLo, bHi, bLo, portPair);
+        if (flow >= 0 && syn == PacketRecord.TCP_SYN && states[flow] >= STATE_CLOSED) {
+            // A new connection reusing the ports of one that just closed
+            evict(flow, EVICT_CLOSED);
+            flow = -1;
+        }
+        if (flow < 0) {
+            flow = create(hash, aHi, aLo, bHi, bLo, portPair, now);
+            // Whoever sends a SYN is the client; without one, guess the sender
+            boolean clientIsSource = syn != (PacketRecord.TCP_SYN | PacketRecord.TCP_ACK);
+            if (clientIsSource == srcIsLow) {
+                flags[flow] |= CLIENT_IS_SOURCE_SIDE;
+            }
+            if (rec.ipVersion == 6) {
+                flags[flow] |= IPV6;
+            }
+            if ((rec.tcpFlags & PacketRecord.TCP_SYN) == 0) {
+                flags[flow] |= MIDSTREAM;
+                states[flow] = STATE_ESTABLISHED;
+            }
+        }
+
+        int dir = srcIsLow == ((flags[flow] & CLIENT_IS_SOURCE_SIDE) != 0) ? CLIENT : SERVER;
+        lastDirection = dir;
+        int d = 2 * flow + dir;
+        int o = 2 * flow + (dir ^ 1);
+        packets[d]++;
+        bytes[d] += rec.wireLength;
+        payloadBytes[d] += rec.l7Length;
+
+        // Sequence space: payload, SYN and FIN each take sequence numbers
+        int seq = (int) rec.seq;
+        int length = rec.l7Length;
+        if ((rec.tcpFlags & PacketRecord.TCP_SYN) != 0) {
+            length++;
+        }
+        if ((rec.tcpFlags & PacketRecord.TCP_FIN) != 0) {
+            length++;
+        }
+        int seqEnd = seq + length;
+        int seqValid = SEQ_VALID << dir;
+        int timing = TIMING << dir;
+        if (length > 0) {
+            boolean retransmission = (flags[flow] & seqValid) != 0 && seqEnd - nextSeq[d] <= 0;
+            if (retransmission) {
+                retransmissions[d]++;
+                // Karn: an ACK can no longer tell which copy it acknowledges
+                flags[flow] &= ~timing;
+            } else {
+                nextSeq[d] = seqEnd;
+                flags[flow] |= seqValid;
+                if ((flags[flow] & timing) == 0) {
+                    timedSeq[d] = seqEnd;
+                    timedAt[d] = now;
+                    flags[flow] |= timing;
+                }
+            }
+        }
+        int otherTiming = TIMING << (dir ^ 1);
+        if ((rec.tcpFlags & PacketRecord.TCP_ACK) != 0 && (flags[flow] & otherTiming) != 0
+                && (int) rec.ack - timedSeq[o] >= 0) {
+            addRttSample(o, (int) Math.min(Integer.MAX_VALUE, Math.max(0, now - timedAt[o])));
+            flags[flow] &= ~otherTiming;
+        }
+
+        updateState(flow, dir, rec.tcpFlags);
+        lastSeen[flow] = now;
+        unlink(flow);
+        link(flow, states[flow] >= STATE_CLOSED ? LINGERING : ACTIVE);
+        return flow;
+    }
+
+    /**
+     * @return {@link #CLIENT} or {@link #SERVER}: who sent the segment of
+     * the last {@link #update(PacketRecord)}
+     */
+    public int direction() {
+        return lastDirection;
+    }
+
+    /**
+     * Evicts the flows that have been idle for longer than the timeout, and
+     * closed flows past their linger time.
+     *
+     * @param now current capture time in microseconds
+     */
+    public void expire(long now) {
+        int flow;
+        while ((flow = listHead[LINGERING]) >= 0 && now - lastSeen[flow] >= CLOSED_LINGER_MICROS) {
+            evict(flow, EVICT_CLOSED);
+        }
+        while ((flow = listHead[ACTIVE]) >= 0 && now - lastSeen[flow] >= idleTimeoutMicros) {
+            evict(flow, EVICT_IDLE);
+        }
+    }
+
+    /**
+     * Evicts every flow, for example at the end of the capture. Flows that
+     * were already closed by FIN or RST are evicted as closed, the others
+     * for the given reason.
+     */
+    public void evictAll(int reason) {
+        while (listHead[LINGERING] >= 0) {
+            evict(listHead[LINGERING], EVICT_CLOSED);
+        }
+        while (listHead[ACTIVE] >= 0) {
+            evict(listHead[ACTIVE], reason);
+        }
+    }
+
+    /*
+     * Flow state, valid for live flows and during FlowListener calls
+     */
+
+    public int state(int flow) {
+        return states[flow];
+    }
+
+    public static String stateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    public static String evictionName(int reason) {
+        return EVICTION_NAMES[reason];
+    }
+
+    /**
+     * @return true if the capture started after the connection was opened
+     */
+    public boolean isMidstream(int flow) {
+        return (flags[flow] & MIDSTREAM) != 0;
+    }
+
+    public boolean isIpv6(int flow) {
+        return (flags[flow] & IPV6) != 0;
+    }
+
+    public long addrHi(int flow, int dir) {
+        return isLowSide(flow, dir) ? loAddrHi[flow] : hiAddrHi[flow];
+    }
+
+    public long addrLo(int flow, int dir) {
+        return isLowSide(flow, dir) ? loAddrLo[flow] : hiAddrLo[flow];
+    }
+
+    public int port(int flow, int dir) {
+        return isLowSide(flow, dir) ? ports[flow] >>> 16 : ports[flow] & 0xFFFF;
+    }
+
+    public long firstSeen(int flow) {
+        return firstSeen[flow];
+    }
+
+    public long lastSeen(int flow) {
+        return lastSeen[flow];
+    }
+
+    public long packets(int flow, int dir) {
+        return packets[2 * flow + dir];
+    }
+
+    /**
+     * @return bytes on the wire, headers included
+     */
+    public long bytes(int flow, int dir) {
+        return bytes[2 * flow + dir];
+    }
+
+    public long payloadBytes(int flow, int dir) {
+        return payloadBytes[2 * flow + dir];
+    }
+
+    /**
+     * @return segments sent in this direction that repeated sequence
+     * numbers already seen
+     */
+    public int retransmissions(int flow, int dir) {
+        return retransmissions[2 * flow + dir];
+    }
+
+    /**
+     * Smoothed round trip time of segments sent in this direction, from the
+     * capture point to the receiver's ACK and back, like RFC 6298 SRTT.
+     *
+     * @return microseconds, or -1 without a sample
+     */
+    public int smoothedRtt(int flow, int dir) {
+        return rttSamples[2 * flow + dir] == 0 ? -1 : srtt[2 * flow + dir];
+    }
+
+    public int minRtt(int flow, int dir) {
+        return rttSamples[2 * flow + dir] == 0 ? -1 : minRtt[2 * flow + dir];
+    }
+
+    public int rttSamples(int flow, int dir) {
+        return rttSamples[2 * flow + dir];
+    }
+
+    /*
+     * Table statistics
+     */
+
+    public int size() {
+        return size;
+    }
+
+    public long created() {
+        return created;
+    }
+
+    public long evictions(int reason) {
+        return evictions[reason];
+    }
+
+    private boolean isLowSide(int flow, int dir) {
+        return ((flags[flow] & CLIENT_IS_SOURCE_SIDE) != 0) == (dir == CLIENT);
+    }
+
+    private void updateState(int flow, int dir, int tcpFlags) {
+        int state = states[flow];
+        if ((tcpFlags & PacketRecord.TCP_RST) != 0) {
+            states[flow] = STATE_RESET;
+            return;
+        }
+        if (state >= STATE_CLOSED) {
+            return;
+        }
+        if ((tcpFlags & PacketRecord.TCP_SYN) != 0) {
+            if ((tcpFlags & PacketRecord.TCP_ACK) == 0) {
+                if (state == 0) {
+                    states[flow] = STATE_SYN_SENT;
+                }
+            } else if (state <= STATE_SYN_SENT) {
+                states[flow] = STATE_SYN_RECEIVED;
+            }
+        } else if (state == STATE_SYN_RECEIVED && dir == CLIENT && (tcpFlags & PacketRecord.TCP_ACK) != 0) {
+            states[flow] = STATE_ESTABLISHED;
+        }
+        if ((tcpFlags & PacketRecord.TCP_FIN) != 0) {
+            flags[flow] |= dir == CLIENT ? FIN_CLIENT : FIN_SERVER;
+            boolean both = (flags[flow] & (FIN_CLIENT | FIN_SERVER)) == (FIN_CLIENT | FIN_SERVER);
+            states[flow] = both ? (byte) STATE_CLOSED : (byte) STATE_CLOSING;
+        }
+    }
+
+    private void addRttSample(int d, int sample) {
+        if (rttSamples[d]++ == 0) {
+            srtt[d] = sample;
+            minRtt[d] = sample;
+        } else {
+            srtt[d] += (sample - srtt[d]) >> 3;
+            minRtt[d] = Math.min(minRtt[d], sample);
+        }
+    }
+
+    private static int compareEndpoints(PacketRecord rec) {
+        int c = Long.compareUnsigned(rec.srcAddrHi, rec.dstAddrHi);
+        if (c == 0) {
+            c = Long.compareUnsigned(rec.srcAddrLo, rec.dstAddrLo);
+        }
+        return c != 0 ? c : Integer.compare(rec.srcPort, rec.dstPort);
+    }
+
+    /*
+     * Index
+     */
+
+    private int home(int hash) {
+        // Fibonacci hashing; the pipeline already used the low bits of the
+        // flow hash to pick this thread
+        return (hash * 0x9E3779B9) >>> indexShift;
+    }
+
+    private int find(int hash, long aHi, long aLo, long bHi, long bLo, int portPair) {
+        for (int i = home(hash); ; i = (i + 1) & indexMask) {
+            int entry = index[i];
+            if (entry == 0) {
+                return -1;
+            }
+            int flow = entry - 1;
+            if (hashes[flow] == hash && ports[flow] == portPair && loAddrLo[flow] == aLo && hiAddrLo[flow] == bLo
+                    && loAddrHi[flow] == aHi && hiAddrHi[flow] == bHi) {
+                return flow;
+            }
+        }
+    }
+
+    private void insert(int flow) {
+        int i = home(hashes[flow]);
+        while (index[i] != 0) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = flow + 1;
+    }
+
+    /**
+     * Removes a flow from the index, shifting later entries of the probe
+     * sequence back so lookups never need tombstones.
+     */
+    private void remove(int flow) {
+        int i = home(hashes[flow]);
+        while (index[i] != flow + 1) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = 0;
+        for (int j = (i + 1) & indexMask; index[j] != 0; j = (j + 1) & indexMask) {
+            int h = home(hashes[index[j] - 1]);
+            // Move the entry unless its home lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < h && h <= j) : (i < h || h <= j);
+            if (!stays) {
+                index[i] = index[j];
+                index[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    /*
+     * Allocation
+     */
+
+    private int create(int hash, long aHi, long aLo, long bHi, long bLo, int portPair, long now) {
+        if (freeHead < 0 && used == capacity) {
+            if (capacity < maxFlows) {
+                allocate((int) Math.min(maxFlows, 2L * capacity));
+            } else {
+                int victim = listHead[LINGERING] >= 0 ? listHead[LINGERING] : listHead[ACTIVE];
+                evict(victim, victim == listHead[LINGERING] ? EVICT_CLOSED : EVICT_FULL);
+            }
+        }
+        int flow;
+        if (freeHead >= 0) {
+            flow = freeHead;
+            freeHead = next[flow];
+        } else {
+            flow = used++;
+        }
+        loAddrHi[flow] = aHi;
+        loAddrLo[flow] = aLo;
+        hiAddrHi[flow] = bHi;
+        hiAddrLo[flow] = bLo;
+        ports[flow] = portPair;
+        hashes[flow] = hash;
+        states[flow] = 0;
+        flags[flow] = 0;
+        firstSeen[flow] = now;
+        lastSeen[flow] = now;
+        lists[flow] = -1;
+        for (int d = 2 * flow; d < 2 * flow + 2; d++) {
+            packets[d] = 0;
+            bytes[d] = 0;
+            payloadBytes[d] = 0;
+            rttSamples[d] = 0;
+            retransmissions[d] = 0;
+        }
+        insert(flow);
+        size++;
+        created++;
+        return flow;
+    }
+
+    private void evict(int flow, int reason) {
+        listener.flowEvicted(this, flow, reason);
+        evictions[reason]++;
+        remove(flow);
+        unlink(flow);
+        next[flow] = freeHead;
+        freeHead = flow;
+        size--;
+    }
+
+    private void allocate(int newCapacity) {
+        capacity = newCapacity;
+        loAddrHi = grow(loAddrHi, newCapacity);
+        loAddrLo = grow(loAddrLo, newCapacity);
+        hiAddrHi = grow(hiAddrHi, newCapacity);
+        hiAddrLo = grow(hiAddrLo, newCapacity);
+        ports = grow(ports, newCapacity);
+        hashes = grow(hashes, newCapacity);
+        states = states == null ? new byte[newCapacity] : Arrays.copyOf(states, newCapacity);
+        lists = lists == null ? new byte[newCapacity] : Arrays.copyOf(lists, newCapacity);
+        flags = grow(flags, newCapacity);
+        firstSeen = grow(firstSeen, newCapacity);
+        lastSeen = grow(lastSeen, newCapacity);
+        prev = grow(prev, newCapacity);
+        next = grow(next, newCapacity);
+        packets = grow(packets, 2 * newCapacity);
+        bytes = grow(bytes, 2 * newCapacity);
+        payloadBytes = grow(payloadBytes, 2 * newCapacity);
+        nextSeq = grow(nextSeq, 2 * newCapacity);
+        timedSeq = grow(timedSeq, 2 * newCapacity);
+        timedAt = grow(timedAt, 2 * newCapacity);
+        srtt = grow(srtt, 2 * newCapacity);
+        minRtt = grow(minRtt, 2 * newCapacity);
+        rttSamples = grow(rttSamples, 2 * newCapacity);
+        retransmissions = grow(retransmissions, 2 * newCapacity);
+
+        // Keep the index at most half full
+        int indexSize = Integer.highestOneBit(Math.max(2, newCapacity - 1)) << 2;
+        index = new int[indexSize];
+        indexMask = indexSize - 1;
+        indexShift = 32 - Integer.numberOfTrailingZeros(indexSize);
+        for (int list = 0; list < 2; list++) {
+            for (int flow = listHead[list]; flow >= 0; flow = next[flow]) {
+                insert(flow);
+            }
+        }
+    }
+
+    private static long[] grow(long[] a, int length) {
+        return a == null ? new long[length] : Arrays.copyOf(a, length);
+    }
+
+    private static int[] grow(int[] a, int length) {
+        return a == null ? new int[length] : Arrays.copyOf(a, length);
+    }
+
+    /*
+     * Eviction order: two lists, least recently seen first
+     */
+
+    private void link(int flow, int list) {
+        lists[flow] = (byte) list;
+        prev[flow] = listTail[list];
+        next[flow] = -1;
+        if (listTail[list] >= 0) {
+            next[listTail[list]] = flow;
+        } else {
+            listHead[list] = flow;
+        }
+        listTail[list] = flow;
+    }
+
+    private void unlink(int flow) {
+        int list = lists[flow];
+        if (list < 0) {
+            return;
+        }
+        if (prev[flow] >= 0) {
+            next[prev[flow]] = next[flow];
+        } else {
+            listHead[list] = next[flow];
+        }
+        if (next[flow] >= 0) {
+            prev[next[flow]] = prev[flow];
+        } else {
+            listTail[list] = prev[flow];
+        }
+        lists[flow] = -1;
+    }
+}
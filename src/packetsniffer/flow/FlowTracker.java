@@ -0,0 +1,137 @@
+package packetsniffer.flow;
+
+import java.nio.ByteBuffer;
+
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+import packetsniffer.output.OutputSink;
+import packetsniffer.output.TextBuffer;
+
+import static packetsniffer.flow.FlowTable.CLIENT;
+import static packetsniffer.flow.FlowTable.SERVER;
+
+/**
+ * Tracks the TCP connections of one decoding thread and writes a summary
+ * of every connection when it ends, times out or is pushed out of the
+ * table. Optionally it also passes the segments on to a
+ * {@link StreamReassembler}.
+ */
+public final class FlowTracker implements RecordConsumer, FlowListener {
+
+    private final FlowTable table;
+    private final OutputSink.Producer output;
+    private final boolean summaries;
+    private final TextBuffer text = new TextBuffer(1024);
+    private StreamReassembler reassembler;
+
+    /**
+     * @param maxFlows most connections tracked at the same time
+     * @param idleTimeoutMicros how long a connection may be silent before it
+     * is reported and forgotten
+     * @param output where the summaries go
+     * @param summaries false to only track the connections, for the
+     * reassembler
+     */
+    public FlowTracker(int maxFlows, long idleTimeoutMicros, OutputSink.Producer output, boolean summaries) {
+        this.table = new FlowTable(maxFlows, idleTimeoutMicros, this);
+        this.output = output;
+        this.summaries = summaries;
+    }
+
+    public FlowTable table() {
+        return table;
+    }
+
+    /**
+     * Passes every TCP segment on to a reassembler, which uses this
+     * tracker's flow ids. Must be called before the first record.
+     */
+    public void reassemble(StreamReassembler reassembler) {
+        this.reassembler = reassembler;
+    }
+
+    public StreamReassembler reassembler() {
+        return reassembler;
+    }
+
+    public void accept(PacketRecord rec, ByteBuffer frame) {
+        if (rec.isTcp() && rec.l7Offset != 0) {
+            int flow = table.update(rec);
+            if (reassembler != null) {
+                reassembler.segment(flow, table.direction(), rec, frame);
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        output.flush();
+    }
+
+    /**
+     * Reports the connections that are still open.
+     */
+    @Override
+    public void close() {
+        table.evictAll(FlowTable.EVICT_END);
+        output.flush();
+    }
+
+    public void flowEvicted(FlowTable table, int flow, int reason) {
+        if (reassembler != null) {
+            reassembler.release(flow, table.lastSeen(flow));
+        }
+        if (!summaries) {
+            return;
+        }
+        TextBuffer out = text;
+        out.clear();
+        out.append("\n---------TCP Flow---------\n");
+        out.append("Client: ");
+        appendEndpoint(out, table, flow, CLIENT);
+        out.append("\nServer: ");
+        appendEndpoint(out, table, flow, SERVER);
+        out.append("\nState: ").append(FlowTable.stateName(table.state(flow)));
+        if (table.isMidstream(flow)) {
+            out.append(" (opened before the capture)");
+        }
+        out.append(", ended by ").append(FlowTable.evictionName(reason)).append('\n');
+        out.append("Duration: ").appendDecimal(table.lastSeen(flow) - table.firstSeen(flow), 6).append(" s\n");
+        out.append("Packets: ").append(table.packets(flow, CLIENT)).append(" client, ")
+                .append(table.packets(flow, SERVER)).append(" server\n");
+        out.append("Bytes: ").append(table.bytes(flow, CLIENT)).append(" client, ")
+                .append(table.bytes(flow, SERVER)).append(" server\n");
+        out.append("Payload: ").append(table.payloadBytes(flow, CLIENT)).append(" client, ")
+                .append(table.payloadBytes(flow, SERVER)).append(" server\n");
+        out.append("Retransmissions: ").append(table.retransmissions(flow, CLIENT)).append(" client, ")
+                .append(table.retransmissions(flow, SERVER)).append(" server\n");
+        // Data sent by the client is acknowledged by the server, so its
+        // round trip is the one between here and the server
+        appendRtt(out, "RTT to server: ", flow, CLIENT);
+        appendRtt(out, "RTT to client: ", flow, SERVER);
+        output.write(out);
+    }
+
+    /**
+     * Appends address and port of one side of a flow.
+     */
+    public static void appendEndpoint(TextBuffer out, FlowTable table, int flow, int dir) {
+        if (table.isIpv6(flow)) {
+            out.append('[').appendIpv6(table.addrHi(flow, dir), table.addrLo(flow, dir)).append(']');
+        } else {
+            out.appendIpv4(table.addrLo(flow, dir));
+        }
+        out.append(':').append(table.port(flow, dir));
+    }
+
+    private void appendRtt(TextBuffer out, String label, int flow, int dir) {
+        out.append(label);
+        if (table.rttSamples(flow, dir) == 0) {
+            out.append("unknown\n");
+            return;
+        }
+        out.appendDecimal(table.smoothedRtt(flow, dir), 3).append(" ms (min ");
+        out.appendDecimal(table.minRtt(flow, dir), 3).append(" ms, ");
+        out.append(table.rttSamples(flow, dir)).append(" samples)\n");
+    }
+}
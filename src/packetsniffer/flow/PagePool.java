@@ -0,0 +1,95 @@
+package packetsniffer.flow;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fixed size pages of memory for buffered stream data, with a hard limit
+ * on how many can exist.
+ *
+ * Pages are created on first use and recycled through a free list, so
+ * memory grows with the amount of data actually buffered and then stays
+ * put without further garbage. Pages can be chained; the link of a free
+ * page is used for the free list. Not thread safe.
+ */
+final class PagePool {
+
+    static final int PAGE_SIZE = 4096;
+
+    private final int maxPages;
+    private ByteBuffer[] pages = new ByteBuffer[64];
+    private int[] links = new int[64];
+    private int created;
+    private int freeHead = -1;
+    private int inUse;
+
+    /**
+     * @param maxBytes memory limit, rounded down to whole pages
+     */
+    PagePool(long maxBytes) {
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / PAGE_SIZE));
+    }
+
+    /**
+     * @return a page number, or -1 if the limit has been reached
+     */
+    int allocate() {
+        int page = freeHead;
+        if (page >= 0) {
+            freeHead = links[page];
+        } else if (created < maxPages) {
+            if (created == pages.length) {
+                int length = (int) Math.min(maxPages, 2L * created);
+                pages = Arrays.copyOf(pages, length);
+                links = Arrays.copyOf(links, length);
+            }
+            page = created++;
+            pages[page] = ByteBuffer.allocate(PAGE_SIZE);
+        } else {
+            return -1;
+        }
+        links[page] = -1;
+        inUse++;
+        return page;
+    }
+
+    /**
+     * Frees a page and every page chained after it.
+     */
+    void free(int page) {
+        while (page >= 0) {
+            int next = links[page];
+            links[page] = freeHead;
+            freeHead = page;
+            inUse--;
+            page = next;
+        }
+    }
+
+    /**
+     * @return how many pages could still be allocated
+     */
+    int available() {
+        return maxPages - inUse;
+    }
+
+    /**
+     * The page's memory. Only absolute gets and puts are used on it, so the
+     * position and limit stay as they are.
+     */
+    ByteBuffer buffer(int page) {
+        return pages[page];
+    }
+
+    int next(int page) {
+        return links[page];
+    }
+
+    void link(int page, int next) {
+        links[page] = next;
+    }
+
+    long bytesInUse() {
+        return (long) inUse * PAGE_SIZE;
+    }
+}
@@ -0,0 +1,47 @@
+package packetsniffer.flow;
+
+import java.nio.ByteBuffer;
+
+import packetsniffer.decode.PacketRecord;
+
+/**
+ * Receives the reassembled byte streams of TCP connections from a
+ * {@link StreamReassembler}.
+ *
+ * Directions are {@link FlowTable#CLIENT} and {@link FlowTable#SERVER}.
+ * Data arrives in sequence order without duplicates; where bytes were
+ * never captured, {@link #gap} says how many are missing.
+ */
+public interface StreamListener {
+
+    /**
+     * Called with the first segment of a connection that carries payload.
+     *
+     * @return true to receive the connection's streams, false to ignore the
+     * connection
+     */
+    boolean open(int flow, PacketRecord rec);
+
+    /**
+     * The next bytes of a stream. The buffer is only valid during the call.
+     *
+     * @param offset absolute index of the first byte in {@code buffer}
+     */
+    void data(int flow, int dir, ByteBuffer buffer, int offset, int length, long timestampMicros);
+
+    /**
+     * {@code length} bytes of the stream are missing before the next data.
+     */
+    void gap(int flow, int dir, int length);
+
+    /**
+     * No more data will come in this direction.
+     */
+    void end(int flow, int dir, long timestampMicros);
+
+    /**
+     * The connection is gone, after {@link #end} of both directions. The
+     * flow id will be reused.
+     */
+    void close(int flow);
+}
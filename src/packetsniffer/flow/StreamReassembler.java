@@ -0,0 +1,385 @@
+package packetsniffer.flow;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import packetsniffer.decode.ByteScan;
+import packetsniffer.decode.PacketRecord;
+
+/**
+ * Puts the payload of TCP segments back into stream order.
+ *
+ * Segments that arrive in order, which is nearly all of them, are passed
+ * to the {@link StreamListener} straight from the frame without a copy.
+ * Only segments that arrive ahead of a hole are copied, into pages of a
+ * {@link PagePool}, and delivered once the hole is filled. A hole is given
+ * up on, and reported as a gap, when the other side acknowledges data the
+ * capture never saw, when a stream buffers more than its limit, when the
+ * pool runs dry, or when the connection ends.
+ *
+ * Streams are identified by the flow ids of a {@link FlowTable} and the
+ * direction, and their state lives in arrays indexed by
+ * {@code 2 * flow + direction}. Not thread safe.
+ */
+public final class StreamReassembler {
+
+    private static final byte UNDECIDED = 0;
+    private static final byte TRACKED = 1;
+    private static final byte IGNORED = 2;
+
+    // Stream status bits
+    private static final byte SEQ_VALID = 1;
+    private static final byte FIN_SEEN = 2;
+    private static final byte ENDED = 4;
+
+    private final StreamListener listener;
+    private final PagePool pool;
+    private final int streamLimit;
+
+    // Per flow
+    private byte[] modes = new byte[0];
+
+    // Per stream, at 2 * flow + direction
+    private int[] nextSeq = new int[0];
+    private int[] finSeq = new int[0];
+    private byte[] status = new byte[0];
+    private int[] firstSegment = new int[0];
+    private int[] bufferedBytes = new int[0];
+
+    // Buffered segments, a sorted list per stream
+    private int[] segmentSeq = new int[64];
+    private int[] segmentLength = new int[64];
+    private int[] segmentPage = new int[64];
+    private int[] segmentNext = new int[64];
+    private int segmentsCreated;
+    private int freeSegment = -1;
+
+    private long deliveredBytes;
+    private long bufferedSegments;
+    private long gaps;
+    private long gapBytes;
+    private long overflows;
+
+    /**
+     * @param listener receives the streams
+     * @param memoryLimit bytes all streams together may buffer
+     * @param streamLimit bytes one stream may buffer while it waits for a
+     * missing segment
+     */
+    public StreamReassembler(StreamListener listener, long memoryLimit, int streamLimit) {
+        this.listener = listener;
+        this.pool = new PagePool(memoryLimit);
+        this.streamLimit = streamLimit;
+    }
+
+    /**
+     * Adds one TCP segment.
+     *
+     * @param flow the flow of the segment, from {@link FlowTable#update}
+     * @param dir the direction of the segment, from
+     * {@link FlowTable#direction()}
+     * @param rec the decoded segment
+     * @param frame the buffer the record was decoded from
+     */
+    public void segment(int flow, int dir, PacketRecord rec, ByteBuffer frame) {
+        ensure(flow);
+        if (modes[flow] == IGNORED) {
+            return;
+        }
+        int s = 2 * flow + dir;
+        int flags = rec.tcpFlags;
+        int seq = (int) rec.seq;
+        if ((flags & PacketRecord.TCP_SYN) != 0) {
+            seq++;
+            nextSeq[s] = seq;
+            status[s] |= SEQ_VALID;
+        }
+        if ((flags & PacketRecord.TCP_ACK) != 0) {
+            acknowledged(flow, s ^ 1, (int) rec.ack, rec.timestampMicros);
+        }
+        int length = rec.l7Length;
+        if (length == 0 && (flags & PacketRecord.TCP_FIN) == 0) {
+            return;
+        }
+        if (modes[flow] == UNDECIDED) {
+            if (length == 0) {
+                return;
+            }
+            modes[flow] = listener.open(flow, rec) ? TRACKED : IGNORED;
+            if (modes[flow] == IGNORED) {
+                return;
+            }
+        }
+        if ((status[s] & SEQ_VALID) == 0) {
+            // Picked up in the middle of the stream
+            nextSeq[s] = seq;
+            status[s] |= SEQ_VALID;
+        }
+        if ((flags & PacketRecord.TCP_FIN) != 0) {
+            finSeq[s] = seq + length;
+            status[s] |= FIN_SEEN;
+        }
+        if (length > 0) {
+            add(flow, s, seq, frame, rec.l7Offset, length, rec.timestampMicros);
+        }
+        checkEnd(flow, s, rec.timestampMicros);
+    }
+
+    /**
+     * Ends the streams of a flow that is leaving the flow table: buffered
+     * data is delivered after the gaps in front of it, then the listener is
+     * told that both directions ended and the connection closed.
+     */
+    public void release(int flow, long timestampMicros) {
+        if (flow >= modes.length) {
+            return;
+        }
+        if (modes[flow] == TRACKED) {
+            for (int s = 2 * flow; s < 2 * flow + 2; s++) {
+                if (firstSegment[s] >= 0) {
+                    skipTo(flow, s, segmentSeq[lastSegment(s)] + segmentLength[lastSegment(s)], timestampMicros);
+                }
+                if ((status[s] & ENDED) == 0) {
+                    listener.end(flow, s & 1, timestampMicros);
+                }
+            }
+            listener.close(flow);
+        }
+        for (int s = 2 * flow; s < 2 * flow + 2; s++) {
+            freeSegments(s);
+            status[s] = 0;
+        }
+        modes[flow] = UNDECIDED;
+    }
+
+    public long deliveredBytes() {
+        return deliveredBytes;
+    }
+
+    /**
+     * @return segments that arrived ahead of a hole and had to be copied
+     */
+    public long bufferedSegments() {
+        return bufferedSegments;
+    }
+
+    public long gaps() {
+        return gaps;
+    }
+
+    public long gapBytes() {
+        return gapBytes;
+    }
+
+    /**
+     * @return holes given up on because a memory limit was reached
+     */
+    public long overflows() {
+        return overflows;
+    }
+
+    public long bufferedBytes() {
+        return pool.bytesInUse();
+    }
+
+    private void add(int flow, int s, int seq, ByteBuffer frame, int offset, int length, long ts) {
+        int rel = seq - nextSeq[s];
+        if (rel + length <= 0) {
+            return; // Everything already delivered
+        }
+        if (rel <= 0) {
+            deliver(flow, s, frame, offset - rel, length + rel, ts);
+            drain(flow, s, ts);
+            return;
+        }
+        if (bufferedBytes[s] + length > streamLimit
+                || pool.available() < (length + PagePool.PAGE_SIZE - 1) / PagePool.PAGE_SIZE) {
+            // Give up on the hole rather than on the memory limit
+            overflows++;
+            skipTo(flow, s, seq, ts);
+            // Buffered data may have reached into this segment
+            rel = seq - nextSeq[s];
+            if (rel + length <= 0) {
+                return;
+            }
+            deliver(flow, s, frame, offset - rel, length + rel, ts);
+            drain(flow, s, ts);
+            return;
+        }
+        buffer(s, seq, frame, offset, length);
+    }
+
+    /**
+     * The other side acknowledged everything before {@code ack}, so data
+     * before it that is still missing was lost by the capture.
+     */
+    private void acknowledged(int flow, int s, int ack, long ts) {
+        if (modes[flow] != TRACKED || (status[s] & SEQ_VALID) == 0 || ack - nextSeq[s] <= 0) {
+            return;
+        }
+        if ((status[s] & FIN_SEEN) != 0 && ack - finSeq[s] > 0) {
+            ack = finSeq[s]; // The FIN takes a sequence number but no data
+        }
+        if (ack - nextSeq[s] > 0) {
+            skipTo(flow, s, ack, ts);
+            checkEnd(flow, s, ts);
+        }
+    }
+
+    private void checkEnd(int flow, int s, long ts) {
+        if ((status[s] & (FIN_SEEN | ENDED)) == FIN_SEEN && nextSeq[s] - finSeq[s] >= 0) {
+            status[s] |= ENDED;
+            listener.end(flow, s & 1, ts);
+        }
+    }
+
+    /**
+     * Delivers buffered data before {@code seq}, reporting the holes
+     * between, and moves the stream on to {@code seq}.
+     */
+    private void skipTo(int flow, int s, int seq, long ts) {
+        while (firstSegment[s] >= 0 && segmentSeq[firstSegment[s]] - seq < 0) {
+            int segment = firstSegment[s];
+            int missing = segmentSeq[segment] - nextSeq[s];
+            if (missing > 0) {
+                gap(flow, s, missing);
+            }
+            drain(flow, s, ts);
+        }
+        int missing = seq - nextSeq[s];
+        if (missing > 0) {
+            gap(flow, s, missing);
+            drain(flow, s, ts);
+        }
+    }
+
+    private void gap(int flow, int s, int length) {
+        gaps++;
+        gapBytes += length;
+        nextSeq[s] += length;
+        listener.gap(flow, s & 1, length);
+    }
+
+    /**
+     * Delivers buffered segments for as long as they continue the stream.
+     */
+    private void drain(int flow, int s, long ts) {
+        int segment;
+        while ((segment = firstSegment[s]) >= 0 && segmentSeq[segment] - nextSeq[s] <= 0) {
+            firstSegment[s] = segmentNext[segment];
+            bufferedBytes[s] -= segmentLength[segment];
+            int skip = nextSeq[s] - segmentSeq[segment];
+            int length = segmentLength[segment];
+            for (int page = segmentPage[segment]; page >= 0 && length > 0; page = pool.next(page)) {
+                int n = Math.min(PagePool.PAGE_SIZE, length);
+                if (skip < n) {
+                    deliver(flow, s, pool.buffer(page), skip, n - skip, ts);
+                    skip = 0;
+                } else {
+                    skip -= n;
+                }
+                length -= n;
+            }
+            freeSegment(segment);
+        }
+    }
+
+    private void deliver(int flow, int s, ByteBuffer buffer, int offset, int length, long ts) {
+        nextSeq[s] += length;
+        deliveredBytes += length;
+        listener.data(flow, s & 1, buffer, offset, length, ts);
+    }
+
+    /**
+     * Copies an out of order segment into pages and inserts it into the
+     * stream's list in sequence order.
+     */
+    private void buffer(int s, int seq, ByteBuffer frame, int offset, int length) {
+        int segment = newSegment();
+        segmentSeq[segment] = seq;
+        segmentLength[segment] = length;
+        int previousPage = -1;
+        for (int done = 0; done < length; done += PagePool.PAGE_SIZE) {
+            int page = pool.allocate();
+            int n = Math.min(PagePool.PAGE_SIZE, length - done);
+            ByteBuffer to = pool.buffer(page);
+            ByteScan.copy(frame, offset + done, to.array(), 0, n);
+            if (previousPage < 0) {
+                segmentPage[segment] = page;
+            } else {
+                pool.link(previousPage, page);
+            }
+            previousPage = page;
+        }
+        bufferedBytes[s] += length;
+        bufferedSegments++;
+
+        int previous = -1;
+        int at = firstSegment[s];
+        while (at >= 0 && segmentSeq[at] - seq <= 0) {
+            previous = at;
+            at = segmentNext[at];
+        }
+        segmentNext[segment] = at;
+        if (previous < 0) {
+            firstSegment[s] = segment;
+        } else {
+            segmentNext[previous] = segment;
+        }
+    }
+
+    private int lastSegment(int s) {
+        int segment = firstSegment[s];
+        while (segmentNext[segment] >= 0) {
+            segment = segmentNext[segment];
+        }
+        return segment;
+    }
+
+    private int newSegment() {
+        int segment = freeSegment;
+        if (segment >= 0) {
+            freeSegment = segmentNext[segment];
+            return segment;
+        }
+        if (segmentsCreated == segmentSeq.length) {
+            int length = 2 * segmentsCreated;
+            segmentSeq = Arrays.copyOf(segmentSeq, length);
+            segmentLength = Arrays.copyOf(segmentLength, length);
+            segmentPage = Arrays.copyOf(segmentPage, length);
+            segmentNext = Arrays.copyOf(segmentNext, length);
+        }
+        return segmentsCreated++;
+    }
+
+    private void freeSegment(int segment) {
+        pool.free(segmentPage[segment]);
+        segmentNext[segment] = freeSegment;
+        freeSegment = segment;
+    }
+
+    private void freeSegments(int s) {
+        while (firstSegment[s] >= 0) {
+            int segment = firstSegment[s];
+            firstSegment[s] = segmentNext[segment];
+            bufferedBytes[s] -= segmentLength[segment];
+            freeSegment(segment);
+        }
+        bufferedBytes[s] = 0;
+    }
+
+    private void ensure(int flow) {
+        if (flow < modes.length) {
+            return;
+        }
+        int flows = Math.max(flow + 1, Math.max(64, 2 * modes.length));
+        int old = 2 * modes.length;
+        modes = Arrays.copyOf(modes, flows);
+        nextSeq = Arrays.copyOf(nextSeq, 2 * flows);
+        finSeq = Arrays.copyOf(finSeq, 2 * flows);
+        status = Arrays.copyOf(status, 2 * flows);
+        firstSegment = Arrays.copyOf(firstSegment, 2 * flows);
+        bufferedBytes = Arrays.copyOf(bufferedBytes, 2 * flows);
+        Arrays.fill(firstSegment, old, 2 * flows, -1);
+    }
+}
@@ -0,0 +1,541 @@
+package packetsniffer.http;
+
+import java.nio.ByteBuffer;
+
+import packetsniffer.decode.ByteScan;
+import packetsniffer.decode.PacketRecord;
+
+/**
+ * Incremental HTTP/1.1 parser for one direction of a connection.
+ *
+ * The parser is a state machine fed with the reassembled stream in pieces
+ * of any size. A line that is cut by the end of a piece is kept and the
+ * next piece continues it, so no byte is looked at twice; bodies with a
+ * known length and chunk data are skipped by counting instead of scanning.
+ * Only the parts of a message that are reported are kept: the request
+ * method and target, the status, the Host header and the framing headers.
+ * Lines longer than the line buffer are cut, not rejected.
+ *
+ * After a gap in the middle of headers the parser waits for something that
+ * looks like the start of a message; gaps inside a body of known length
+ * are simply counted as body.
+ */
+public final class HttpParser {
+
+    /**
+     * Told about the messages of a parser.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the headers of a message are complete.
+         *
+         * @return true if the message has no body whatever its headers say,
+         * which is the case for the response to a HEAD request
+         */
+        boolean headersComplete(HttpParser parser);
+
+        /**
+         * Called when a message, body included, is complete. The message's
+         * fields can be read until the call returns.
+         */
+        void messageComplete(HttpParser parser, long timestampMicros);
+    }
+
+    private static final int START_LINE = 0;
+    private static final int HEADER = 1;
+    private static final int BODY_LENGTH = 2;
+    private static final int BODY_UNTIL_CLOSE = 3;
+    private static final int CHUNK_SIZE = 4;
+    private static final int CHUNK_DATA = 5;
+    private static final int CHUNK_END = 6;
+    private static final int TRAILER = 7;
+    private static final int RESYNC = 8;
+    private static final int OFF = 9;
+
+    private static final int MAX_LINE = 1024;
+    private static final int MAX_METHOD = 16;
+    private static final int MAX_TARGET = 512;
+    private static final int MAX_HOST = 256;
+
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes();
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes();
+    private static final byte[] HOST = "host".getBytes();
+    private static final byte[] CHUNKED = "chunked".getBytes();
+    private static final byte[] HTTP_VERSION = "HTTP/".getBytes();
+    private static final byte[][] METHODS = {"GET".getBytes(), "POST".getBytes(), "HEAD".getBytes(),
+        "PUT".getBytes(), "DELETE".getBytes(), "OPTIONS".getBytes()};
+    private static final int[] METHOD_CODES = {PacketRecord.HTTP_GET, PacketRecord.HTTP_POST, PacketRecord.HTTP_HEAD,
+        PacketRecord.HTTP_PUT, PacketRecord.HTTP_DELETE, PacketRecord.HTTP_OPTIONS};
+
+    private final boolean request;
+    private final Listener listener;
+    private int state;
+    private final byte[] line = new byte[MAX_LINE];
+    private int lineLength;
+    private boolean lineStarted;
+    private long remaining;
+
+    // Message
+    private final byte[] methodText = new byte[MAX_METHOD];
+    private int methodLength;
+    private int method;
+    private final byte[] target = new byte[MAX_TARGET];
+    private int targetLength;
+    private final byte[] host = new byte[MAX_HOST];
+    private int hostLength;
+    private int status;
+    private long contentLength;
+    private boolean chunked;
+    private long bodyBytes;
+    private long startedAt;
+
+    private long messages;
+    private long errors;
+
+    /**
+     * @param request true to parse requests, false for responses
+     * @param listener told about every message
+     */
+    public HttpParser(boolean request, Listener listener) {
+        this.request = request;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts over, for a new connection.
+     */
+    public void reset() {
+        state = START_LINE;
+        lineLength = 0;
+        lineStarted = false;
+        remaining = 0;
+        clearMessage();
+    }
+
+    /**
+     * Parses the next bytes of the stream.
+     *
+     * @param offset absolute index of the first byte in {@code buffer}
+     */
+    public void parse(ByteBuffer buffer, int offset, int length, long timestampMicros) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            switch (state) {
+                case BODY_LENGTH:
+                case CHUNK_DATA: {
+                    int n = (int) Math.min(remaining, end - i);
+                    i += n;
+                    body(n, timestampMicros);
+                    break;
+                }
+                case BODY_UNTIL_CLOSE:
+                    bodyBytes += end - i;
+                    i = end;
+                    break;
+                case RESYNC:
+                    if (!looksLikeStart(buffer, i, end)) {
+                        return; // Try again at the start of the next piece
+                    }
+                    state = START_LINE;
+                    break;
+                case OFF:
+                    return;
+                default:
+                    i = line(buffer, i, end, timestampMicros);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * {@code length} bytes of the stream were not captured.
+     */
+    public void gap(int length) {
+        if ((state == BODY_LENGTH || state == CHUNK_DATA) && length <= remaining) {
+            body(length, startedAt);
+        } else if (state == BODY_UNTIL_CLOSE) {
+            bodyBytes += length;
+        } else if (state != OFF) {
+            if (state != START_LINE || lineStarted) {
+                errors++;
+            }
+            state = RESYNC;
+            lineLength = 0;
+            lineStarted = false;
+        }
+    }
+
+    /**
+     * The stream ended. A response that is delimited by the end of the
+     * connection is complete now.
+     */
+    public void end(long timestampMicros) {
+        if (state == BODY_UNTIL_CLOSE) {
+            complete(timestampMicros);
+        } else if ((state != START_LINE && state != RESYNC && state != OFF) || lineStarted) {
+            errors++; // Cut off in the middle of a message
+        }
+        state = OFF;
+    }
+
+    /**
+     * Stops parsing, for example when the connection switches protocols.
+     */
+    public void stop() {
+        state = OFF;
+    }
+
+    public boolean isRequest() {
+        return request;
+    }
+
+    /**
+     * @return one of the PacketRecord.HTTP_* constants, HTTP_NONE for
+     * methods without one
+     */
+    public int method() {
+        return method;
+    }
+
+    public byte[] methodText() {
+        return methodText;
+    }
+
+    public int methodLength() {
+        return methodLength;
+    }
+
+    public byte[] target() {
+        return target;
+    }
+
+    public int targetLength() {
+        return targetLength;
+    }
+
+    public byte[] host() {
+        return host;
+    }
+
+    public int hostLength() {
+        return hostLength;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    /**
+     * @return the Content-Length header, -1 without one
+     */
+    public long contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return body bytes including those lost in gaps, without chunk framing
+     */
+    public long bodyBytes() {
+        return bodyBytes;
+    }
+
+    /**
+     * @return capture time of the first byte of the message
+     */
+    public long startedAt() {
+        return startedAt;
+    }
+
+    public long messages() {
+        return messages;
+    }
+
+    /**
+     * @return messages that could not be parsed or were cut off
+     */
+    public long errors() {
+        return errors;
+    }
+
+    /**
+     * Collects bytes up to the end of the line and handles the line.
+     *
+     * @return index after the consumed bytes
+     */
+    private int line(ByteBuffer buffer, int i, int end, long ts) {
+        if (!lineStarted && state == START_LINE) {
+            startedAt = ts;
+        }
+        lineStarted = true;
+        int lf = ByteScan.indexOf(buffer, i, end, (byte) '\n');
+        int n = Math.min(lf - i, MAX_LINE - lineLength);
+        ByteScan.copy(buffer, i, line, lineLength, n);
+        lineLength += n;
+        if (lf == end) {
+            return end;
+        }
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        lineLength = 0;
+        lineStarted = false;
+        handleLine(length, ts);
+        return lf + 1;
+    }
+
+    private void handleLine(int length, long ts) {
+        switch (state) {
+            case START_LINE:
+                if (length == 0) {
+                    return; // Blank lines between messages are allowed
+                }
+                clearMessage();
+                if (request ? parseRequestLine(length) : parseStatusLine(length)) {
+                    state = HEADER;
+                } else {
+                    errors++;
+                    state = RESYNC;
+                }
+                return;
+            case HEADER:
+                if (length == 0) {
+                    headersComplete(ts);
+                } else {
+                    parseHeader(length);
+                }
+                return;
+            case CHUNK_SIZE: {
+                long size = parseChunkSize(length);
+                if (size < 0) {
+                    errors++;
+                    state = RESYNC;
+                } else if (size == 0) {
+                    state = TRAILER;
+                } else {
+                    remaining = size;
+                    state = CHUNK_DATA;
+                }
+                return;
+            }
+            case CHUNK_END:
+                state = CHUNK_SIZE;
+                return;
+            case TRAILER:
+                if (length == 0) {
+                    complete(ts);
+                }
+                return;
+            default:
+                return;
+        }
+    }
+
+    private boolean parseRequestLine(int length) {
+        int sp = indexOf(line, 0, length, ' ');
+        if (sp <= 0 || sp > MAX_METHOD) {
+            return false;
+        }
+        methodLength = sp;
+        System.arraycopy(line, 0, methodText, 0, sp);
+        method = methodCode(methodText, sp);
+        int start = sp + 1;
+        int sp2 = indexOf(line, start, length, ' ');
+        if (sp2 < 0 || !startsWith(line, sp2 + 1, length, HTTP_VERSION)) {
+            return false;
+        }
+        targetLength = Math.min(sp2 - start, MAX_TARGET);
+        System.arraycopy(line, start, target, 0, targetLength);
+        return true;
+    }
+
+    private boolean parseStatusLine(int length) {
+        if (!startsWith(line, 0, length, HTTP_VERSION)) {
+            return false;
+        }
+        int sp = indexOf(line, 0, length, ' ');
+        if (sp < 0 || sp + 4 > length) {
+            return false;
+        }
+        int code = 0;
+        for (int k = sp + 1; k < sp + 4; k++) {
+            int d = line[k] - '0';
+            if (d < 0 || d > 9) {
+                return false;
+            }
+            code = code * 10 + d;
+        }
+        status = code;
+        return true;
+    }
+
+    private void parseHeader(int length) {
+        int colon = indexOf(line, 0, length, ':');
+        if (colon <= 0) {
+            return;
+        }
+        int start = colon + 1;
+        while (start < length && (line[start] == ' ' || line[start] == '\t')) {
+            start++;
+        }
+        int end = length;
+        while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+            end--;
+        }
+        if (nameEquals(colon, CONTENT_LENGTH)) {
+            long value = 0;
+            for (int k = start; k < end; k++) {
+                int d = line[k] - '0';
+                if (d < 0 || d > 9 || value > Long.MAX_VALUE / 10) {
+                    return;
+                }
+                value = value * 10 + d;
+            }
+            if (end > start) {
+                contentLength = value;
+            }
+        } else if (nameEquals(colon, TRANSFER_ENCODING)) {
+            // Chunked must be the last coding
+            chunked = end - start >= CHUNKED.length && equalsIgnoreCase(line, end - CHUNKED.length, CHUNKED);
+        } else if (nameEquals(colon, HOST)) {
+            hostLength = Math.min(end - start, MAX_HOST);
+            System.arraycopy(line, start, host, 0, hostLength);
+        }
+    }
+
+    private void headersComplete(long ts) {
+        boolean noBody = listener.headersComplete(this);
+        if (!request && (noBody || status / 100 == 1 || status == 204 || status == 304)) {
+            complete(ts);
+        } else if (chunked) {
+            state = CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            remaining = contentLength;
+            state = BODY_LENGTH;
+        } else if (contentLength == 0 || request) {
+            complete(ts);
+        } else {
+            state = BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private void body(int n, long ts) {
+        bodyBytes += n;
+        remaining -= n;
+        if (remaining == 0) {
+            if (state == BODY_LENGTH) {
+                complete(ts);
+            } else {
+                state = CHUNK_END;
+            }
+        }
+    }
+
+    private void complete(long ts) {
+        messages++;
+        state = START_LINE;
+        listener.messageComplete(this, ts);
+        if (!request && status == 101) {
+            state = OFF; // Whatever follows is not HTTP
+        }
+    }
+
+    private void clearMessage() {
+        methodLength = 0;
+        method = PacketRecord.HTTP_NONE;
+        targetLength = 0;
+        hostLength = 0;
+        status = 0;
+        contentLength = -1;
+        chunked = false;
+        bodyBytes = 0;
+    }
+
+    private long parseChunkSize(int length) {
+        long size = 0;
+        int k = 0;
+        for (; k < length; k++) {
+            int c = line[k];
+            int d = c >= '0' && c <= '9' ? c - '0' : (c | 0x20) >= 'a' && (c | 0x20) <= 'f' ? (c | 0x20) - 'a' + 10 : -1;
+            if (d < 0) {
+                break;
+            }
+            if (size > Long.MAX_VALUE >> 4) {
+                return -1;
+            }
+            size = size << 4 | d;
+        }
+        return k == 0 ? -1 : size;
+    }
+
+    /**
+     * Checks whether a piece of stream starts like a request or a response.
+     */
+    private boolean looksLikeStart(ByteBuffer buffer, int i, int end) {
+        if (!request) {
+            if (end - i < HTTP_VERSION.length) {
+                return false;
+            }
+            for (int k = 0; k < HTTP_VERSION.length; k++) {
+                if (buffer.get(i + k) != HTTP_VERSION[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        int k = i;
+        while (k < end && k - i < MAX_METHOD && buffer.get(k) >= 'A' && buffer.get(k) <= 'Z') {
+            k++;
+        }
+        return k - i >= 3 && k < end && buffer.get(k) == ' ';
+    }
+
+    private boolean nameEquals(int length, byte[] name) {
+        return length == name.length && equalsIgnoreCase(line, 0, name);
+    }
+
+    private static boolean equalsIgnoreCase(byte[] b, int at, byte[] lowerCase) {
+        for (int k = 0; k < lowerCase.length; k++) {
+            int c = b[at + k];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lowerCase[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] b, int at, int end, byte[] prefix) {
+        if (end - at < prefix.length) {
+            return false;
+        }
+        for (int k = 0; k < prefix.length; k++) {
+            if (b[at + k] != prefix[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] b, int from, int end, char c) {
+        for (int k = from; k < end; k++) {
+            if (b[k] == c) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private static int methodCode(byte[] m, int length) {
+        for (int k = 0; k < METHODS.length; k++) {
+            if (length == METHODS[k].length && startsWith(m, 0, length, METHODS[k])) {
+                return METHOD_CODES[k];
+            }
+        }
+        return PacketRecord.HTTP_NONE;
+    }
+}
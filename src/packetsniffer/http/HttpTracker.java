@@ -0,0 +1,259 @@
+package packetsniffer.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.flow.FlowTable;
+import packetsniffer.flow.FlowTracker;
+import packetsniffer.flow.StreamListener;
+import packetsniffer.output.OutputSink;
+import packetsniffer.output.TextBuffer;
+import packetsniffer.recorder.Trigger;
+
+/**
+ * Parses HTTP/1.1 conversations from reassembled TCP streams and writes
+ * one summary per request and response.
+ *
+ * Each HTTP connection gets a conversation with a parser per direction.
+ * Requests wait in a queue until their response is complete, so pipelined
+ * requests are paired with the right responses. Conversations are pooled
+ * and reused when connections end. A connection is treated as HTTP if the
+ * decoder recognised HTTP in its first payload or if it uses one of the
+ * usual HTTP ports.
+ */
+public final class HttpTracker implements StreamListener {
+
+    private static final int[] HTTP_PORTS = {80, 8000, 8080};
+
+    private final FlowTable table;
+    private final OutputSink.Producer output;
+    private final TextBuffer text = new TextBuffer(1024);
+    private Conversation[] conversations = new Conversation[64];
+    private final ArrayDeque<Conversation> free = new ArrayDeque<Conversation>();
+
+    private long transactions;
+    private long unanswered;
+    private long unmatched;
+    private Trigger errorTrigger;
+
+    /**
+     * @param table the flow table whose flow ids the streams use, for the
+     * addresses
+     * @param output where the summaries go
+     */
+    public HttpTracker(FlowTable table, OutputSink.Producer output) {
+        this.table = table;
+        this.output = output;
+    }
+
+    /**
+     * @param trigger fired for every 5xx response
+     */
+    public void triggerOnServerError(Trigger trigger) {
+        this.errorTrigger = trigger;
+    }
+
+    public boolean open(int flow, PacketRecord rec) {
+        if (rec.appProtocol != PacketRecord.APP_HTTP && !isHttpPort(rec.srcPort) && !isHttpPort(rec.dstPort)) {
+            return false;
+        }
+        if (flow >= conversations.length) {
+            conversations = Arrays.copyOf(conversations, Math.max(flow + 1, 2 * conversations.length));
+        }
+        Conversation conversation = free.poll();
+        if (conversation == null) {
+            conversation = new Conversation();
+        }
+        conversation.reset(flow);
+        conversations[flow] = conversation;
+        return true;
+    }
+
+    public void data(int flow, int dir, ByteBuffer buffer, int offset, int length, long timestampMicros) {
+        conversations[flow].parser(dir).parse(buffer, offset, length, timestampMicros);
+    }
+
+    public void gap(int flow, int dir, int length) {
+        conversations[flow].parser(dir).gap(length);
+    }
+
+    public void end(int flow, int dir, long timestampMicros) {
+        conversations[flow].parser(dir).end(timestampMicros);
+    }
+
+    public void close(int flow) {
+        Conversation conversation = conversations[flow];
+        conversations[flow] = null;
+        while (conversation.pending > 0) {
+            unanswered++;
+            write(conversation, conversation.first, null, 0);
+            conversation.pop();
+        }
+        free.push(conversation);
+    }
+
+    /**
+     * @return requests paired with their response
+     */
+    public long transactions() {
+        return transactions;
+    }
+
+    /**
+     * @return requests whose connection ended before the response
+     */
+    public long unanswered() {
+        return unanswered;
+    }
+
+    /**
+     * @return responses without a request, usually because the capture
+     * started in the middle of the connection
+     */
+    public long unmatched() {
+        return unmatched;
+    }
+
+    private static boolean isHttpPort(int port) {
+        for (int p : HTTP_PORTS) {
+            if (p == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes a transaction.
+     *
+     * @param slot the request's slot in the conversation's queue, -1 if the
+     * request was not seen
+     * @param response the complete response, null if there was none
+     */
+    private void write(Conversation c, int slot, HttpParser response, long completedAt) {
+        TextBuffer out = text;
+        out.clear();
+        out.append("\n---------HTTP Transaction---------\n");
+        out.append("Client: ");
+        FlowTracker.appendEndpoint(out, table, c.flow, FlowTable.CLIENT);
+        out.append("\nServer: ");
+        FlowTracker.appendEndpoint(out, table, c.flow, FlowTable.SERVER);
+        out.append('\n');
+        if (slot >= 0) {
+            out.append("Request: ").append(c.methods[slot], 0, c.methodLengths[slot]).append(' ');
+            out.append(c.targets[slot], 0, c.targetLengths[slot]).append('\n');
+            if (c.hostLengths[slot] > 0) {
+                out.append("Host: ").append(c.hosts[slot], 0, c.hostLengths[slot]).append('\n');
+            }
+            out.append("Request Body: ").append(c.requestBodies[slot]).append(" bytes\n");
+        } else {
+            out.append("Request: not captured\n");
+        }
+        if (response != null) {
+            out.append("Status: ").append(response.status()).append('\n');
+            out.append("Response Body: ").append(response.bodyBytes()).append(" bytes\n");
+            if (slot >= 0) {
+                out.append("Response Time: ").appendDecimal(completedAt - c.startedAt[slot], 3).append(" ms\n");
+            }
+        } else {
+            out.append("Status: no response\n");
+        }
+        output.write(out);
+    }
+
+    /**
+     * Both directions of one HTTP connection, with the requests that are
+     * waiting for their response.
+     */
+    private final class Conversation implements HttpParser.Listener {
+
+        private static final int MAX_PENDING = 16;
+        private static final int MAX_METHOD = 16;
+        private static final int MAX_TARGET = 256;
+        private static final int MAX_HOST = 128;
+
+        private final HttpParser client = new HttpParser(true, this);
+        private final HttpParser server = new HttpParser(false, this);
+        private int flow;
+
+        // Queue of requests waiting for a response
+        private final byte[][] methods = new byte[MAX_PENDING][MAX_METHOD];
+        private final int[] methodLengths = new int[MAX_PENDING];
+        private final int[] methodCodes = new int[MAX_PENDING];
+        private final byte[][] targets = new byte[MAX_PENDING][MAX_TARGET];
+        private final int[] targetLengths = new int[MAX_PENDING];
+        private final byte[][] hosts = new byte[MAX_PENDING][MAX_HOST];
+        private final int[] hostLengths = new int[MAX_PENDING];
+        private final long[] requestBodies = new long[MAX_PENDING];
+        private final long[] startedAt = new long[MAX_PENDING];
+        private int first;
+        private int pending;
+
+        void reset(int flow) {
+            this.flow = flow;
+            client.reset();
+            server.reset();
+            first = 0;
+            pending = 0;
+        }
+
+        HttpParser parser(int dir) {
+            return dir == FlowTable.CLIENT ? client : server;
+        }
+
+        public boolean headersComplete(HttpParser parser) {
+            return parser == server && pending > 0 && methodCodes[first] == PacketRecord.HTTP_HEAD;
+        }
+
+        public void messageComplete(HttpParser parser, long timestampMicros) {
+            if (parser == client) {
+                push(parser);
+                return;
+            }
+            int status = parser.status();
+            if (status >= 100 && status < 200 && status != 101) {
+                return; // Interim response, the real one follows
+            }
+            if (errorTrigger != null && status >= 500 && status < 600) {
+                errorTrigger.fire("http-5xx");
+            }
+            if (pending > 0) {
+                transactions++;
+                write(this, first, parser, timestampMicros);
+                pop();
+            } else {
+                unmatched++;
+                write(this, -1, parser, timestampMicros);
+            }
+            if (status == 101) {
+                client.stop();
+            }
+        }
+
+        private void push(HttpParser request) {
+            if (pending == MAX_PENDING) {
+                // Far more pipelining than clients do; report the oldest unanswered
+                unanswered++;
+                write(this, first, null, 0);
+                pop();
+            }
+            int slot = (first + pending++) % MAX_PENDING;
+            methodLengths[slot] = Math.min(request.methodLength(), MAX_METHOD);
+            System.arraycopy(request.methodText(), 0, methods[slot], 0, methodLengths[slot]);
+            methodCodes[slot] = request.method();
+            targetLengths[slot] = Math.min(request.targetLength(), MAX_TARGET);
+            System.arraycopy(request.target(), 0, targets[slot], 0, targetLengths[slot]);
+            hostLengths[slot] = Math.min(request.hostLength(), MAX_HOST);
+            System.arraycopy(request.host(), 0, hosts[slot], 0, hostLengths[slot]);
+            requestBodies[slot] = request.bodyBytes();
+            startedAt[slot] = request.startedAt();
+        }
+
+        private void pop() {
+            first = (first + 1) % MAX_PENDING;
+            pending--;
+        }
+    }
+}
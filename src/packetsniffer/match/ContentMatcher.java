@@ -0,0 +1,196 @@
+package packetsniffer.match;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+import packetsniffer.output.OutputSink;
+import packetsniffer.output.TextBuffer;
+import packetsniffer.sketch.Hash;
+
+/**
+ * Searches the payload of every TCP and UDP frame for the patterns of a
+ * {@link PatternFile} and writes a line block for each match.
+ *
+ * Each direction of a TCP connection keeps the automaton state it ended
+ * the last segment in, so a pattern split across segments is still found.
+ * The states live in a fixed direct-mapped table keyed by a hash of the
+ * addresses and ports; a direction that collides with another one, or
+ * whose next segment is not the one expected because of loss or
+ * reordering, starts over at the start state and can miss a match that
+ * spans the gap. Retransmitted bytes are skipped so nothing is reported
+ * twice. UDP datagrams are searched one by one.
+ *
+ * A match is reported with the offset of its first byte in the payload of
+ * the frame it ends in. For TCP that is the current segment only: a match
+ * that began in an earlier segment has a negative offset, and the sequence
+ * number of its first byte places it in the stream.
+ *
+ * When the pattern set is reloaded the table is cleared, the states belong
+ * to the old automaton. Used by one decoding thread only.
+ */
+public final class ContentMatcher implements RecordConsumer, PatternSet.Listener {
+
+    /** Directions of TCP connections whose state is kept, per thread */
+    static final int STREAM_SLOTS = 1 << 16;
+    /** Most matches written for one frame, the rest are only counted */
+    static final int MAX_EVENTS = 16;
+
+    private final PatternFile patterns;
+    private final OutputSink.Producer output;
+    private final TextBuffer text = new TextBuffer(256);
+    private final long[] keys = new long[STREAM_SLOTS];
+    private final int[] states = new int[STREAM_SLOTS];
+    private final int[] nextSeq = new int[STREAM_SLOTS];
+    private PatternSet set;
+    private long[] counts;
+    private PacketRecord rec;
+    private int frameEvents;
+    private long frames;
+    private long matches;
+    private long events;
+    private long resets;
+
+    ContentMatcher(PatternFile patterns, OutputSink.Producer output) {
+        this.patterns = patterns;
+        this.output = output;
+    }
+
+    public void accept(PacketRecord rec, ByteBuffer frame) {
+        boolean tcp = rec.isTcp();
+        if (!tcp && !rec.isUdp() || rec.isFragment()) {
+            return;
+        }
+        PatternSet current = patterns.current();
+        if (current != set) {
+            set = current;
+            counts = new long[current.size()];
+            Arrays.fill(keys, 0);
+        }
+        int from = rec.l7Offset;
+        int end = Math.min(rec.l7Offset + rec.l7Length, rec.frameEnd);
+        if (set.size() == 0 || (end <= from && !tcp)) {
+            return;
+        }
+        this.rec = rec;
+        frameEvents = 0;
+        if (!tcp) {
+            frames++;
+            set.scan(frame, from, end, PatternSet.START, this);
+            return;
+        }
+
+        long key = streamKey(rec);
+        int slot = (int) key & (STREAM_SLOTS - 1);
+        int seq = (int) rec.seq;
+        int state = PatternSet.START;
+        boolean syn = (rec.tcpFlags & PacketRecord.TCP_SYN) != 0;
+        if (syn) {
+            seq++;
+        } else if (keys[slot] == key) {
+            int behind = nextSeq[slot] - seq;
+            if (behind > 0) {
+                // Starts with bytes already searched
+                from += Math.min(behind, end - from);
+                seq += behind;
+                state = states[slot];
+            } else if (behind == 0) {
+                state = states[slot];
+            } else {
+                resets++;
+            }
+        }
+        if (end > from) {
+            frames++;
+            state = set.scan(frame, from, end, state, this);
+            seq += end - from;
+        }
+        if ((rec.tcpFlags & (PacketRecord.TCP_FIN | PacketRecord.TCP_RST)) != 0) {
+            keys[slot] = 0;
+        } else if (end > from || syn || keys[slot] != key) {
+            keys[slot] = key;
+            states[slot] = state;
+            nextSeq[slot] = seq;
+        }
+    }
+
+    /**
+     * @return a hash of the addresses and ports of one direction, never 0
+     */
+    private static long streamKey(PacketRecord rec) {
+        long src = Hash.mix64(rec.srcAddrHi ^ Hash.mix64(rec.srcAddrLo ^ (long) rec.srcPort << 48));
+        long dst = Hash.mix64(rec.dstAddrHi ^ Hash.mix64(rec.dstAddrLo ^ (long) rec.dstPort << 48));
+        long key = Hash.mix64(src * 31 + dst);
+        return key != 0 ? key : 1;
+    }
+
+    public void match(int pattern, int end) {
+        matches++;
+        counts[pattern]++;
+        if (++frameEvents > MAX_EVENTS) {
+            return;
+        }
+        events++;
+        PacketRecord rec = this.rec;
+        TextBuffer out = text;
+        out.clear();
+        out.append("\n---------Content Match---------\n");
+        out.append("Pattern: ").append(set.name(pattern)).append('\n');
+        out.append("Time: ").appendDecimal(rec.timestampMicros, 6).append('\n');
+        out.append(rec.isTcp() ? "TCP: " : "UDP: ");
+        appendAddress(out, rec.srcAddrHi, rec.srcAddrLo, rec.ipVersion);
+        out.append(':').append(rec.srcPort).append(" -> ");
+        appendAddress(out, rec.dstAddrHi, rec.dstAddrLo, rec.ipVersion);
+        out.append(':').append(rec.dstPort).append('\n');
+        int offset = end - set.length(pattern) - rec.l7Offset;
+        out.append("Payload offset: ").append(offset).append('\n');
+        if (rec.isTcp()) {
+            // The data of a SYN starts one after its sequence number
+            long first = rec.seq + offset + ((rec.tcpFlags & PacketRecord.TCP_SYN) != 0 ? 1 : 0);
+            out.append("Sequence: ").append(first & 0xFFFFFFFFL).append('\n');
+        }
+        output.write(out);
+    }
+
+    private static void appendAddress(TextBuffer out, long hi, long lo, int ipVersion) {
+        if (ipVersion == 6) {
+            out.append('[').appendIpv6(hi, lo).append(']');
+        } else {
+            out.appendIpv4(lo);
+        }
+    }
+
+    @Override
+    public void flush() {
+        output.flush();
+    }
+
+    long frames() {
+        return frames;
+    }
+
+    long matches() {
+        return matches;
+    }
+
+    long events() {
+        return events;
+    }
+
+    long resets() {
+        return resets;
+    }
+
+    /**
+     * Adds the matches of each pattern to {@code totals}, if they were
+     * counted with that set.
+     */
+    void addCounts(PatternSet set, long[] totals) {
+        if (set == this.set) {
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += counts[i];
+            }
+        }
+    }
+}
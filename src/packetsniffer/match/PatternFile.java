@@ -0,0 +1,122 @@
+package packetsniffer.match;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import packetsniffer.output.OutputSink;
+
+/**
+ * The pattern set of a file, compiled again whenever the file changes.
+ *
+ * A daemon thread looks at the file's modification time and size every
+ * {@link #POLL_MILLIS} and compiles it off the capture path; the matchers
+ * pick the new set up with their next frame. A file that cannot be read
+ * or compiled leaves the previous set in place, so a half-saved edit does
+ * not stop matching.
+ */
+public final class PatternFile {
+
+    static final long POLL_MILLIS = 1000;
+
+    private final Path file;
+    private volatile PatternSet current = PatternSet.compile(new String[0], new byte[0][]);
+    private volatile long loads;
+    private volatile long failures;
+    private long modified = Long.MIN_VALUE;
+    private long size = -1;
+    private final List<ContentMatcher> matchers = new ArrayList<ContentMatcher>();
+    private final Thread watcher;
+
+    /**
+     * Loads the file and starts watching it. When it cannot be loaded the
+     * set is empty until it can.
+     */
+    public PatternFile(Path file) {
+        this.file = file;
+        check();
+        this.watcher = new Thread("pattern-reload") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS));
+                    check();
+                }
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void check() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long m = attributes.lastModifiedTime().toMillis();
+            if (m == modified && attributes.size() == size) {
+                return;
+            }
+            modified = m;
+            size = attributes.size();
+            PatternSet set = PatternSet.load(file);
+            current = set;
+            loads++;
+            System.err.printf("Loaded %d patterns from %s (%d states)\n", set.size(), file, set.states());
+        } catch (IOException e) {
+            failures++;
+            System.err.printf("Can't load patterns: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * @return the latest set that compiled
+     */
+    public PatternSet current() {
+        return current;
+    }
+
+    /**
+     * @return a matcher for one more decoding thread
+     */
+    public synchronized ContentMatcher newMatcher(OutputSink.Producer output) {
+        ContentMatcher matcher = new ContentMatcher(this, output);
+        matchers.add(matcher);
+        return matcher;
+    }
+
+    /**
+     * Stops watching the file.
+     */
+    public void close() {
+        watcher.interrupt();
+    }
+
+    public synchronized void report(PrintStream out) {
+        PatternSet set = current;
+        long frames = 0, matches = 0, events = 0, resets = 0;
+        long[] counts = new long[set.size()];
+        for (ContentMatcher matcher : matchers) {
+            frames += matcher.frames();
+            matches += matcher.matches();
+            events += matcher.events();
+            resets += matcher.resets();
+            matcher.addCounts(set, counts);
+        }
+        out.println("\n---------Content Matches---------");
+        out.printf("Patterns: %d (%d states), loaded %d times, %d failed\n", set.size(), set.states(), loads,
+                failures);
+        out.printf("Payloads searched: %d\n", frames);
+        out.printf("Matches: %d (%d written)\n", matches, events);
+        out.printf("TCP streams restarted after a gap: %d\n", resets);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                out.printf("%10d  %s\n", counts[i], set.name(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package packetsniffer.match;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of byte strings compiled into one Aho-Corasick automaton, so a
+ * payload is searched for all of them in a single pass, one table lookup
+ * per byte, however many there are.
+ *
+ * The automaton is a full DFA: the failure links are folded into the
+ * transition table when it is built, so scanning never backtracks. To keep
+ * the table small, bytes that lead to the same transitions everywhere are
+ * given the same column: every byte that occurs in a pattern gets one of
+ * its own, all other bytes share column 0, which always leads back to the
+ * start. Entries hold the next state already multiplied by the row width,
+ * with the sign bit set when a pattern ends there.
+ *
+ * A set never changes once compiled and may be shared by any number of
+ * threads.
+ */
+public final class PatternSet {
+
+    /** Most table entries, 64 MB */
+    static final int MAX_TABLE = 1 << 24;
+    private static final int MATCH = 0x80000000;
+
+    /** State every search starts in */
+    public static final int START = 0;
+
+    /**
+     * Receives the patterns found by {@link PatternSet#scan}.
+     */
+    public interface Listener {
+
+        /**
+         * @param pattern number of the pattern, in the order given
+         * @param end index just after the last byte of the match
+         */
+        void match(int pattern, int end);
+    }
+
+    private final String[] names;
+    private final int[] lengths;
+    private final int[] columns = new int[256];
+    private final int width;
+    private final int[] table;
+    // Patterns that end in each state, those of its failure chain included
+    private final int[] outputStart;
+    private final int[] outputs;
+
+    private PatternSet(String[] names, byte[][] patterns) {
+        this.names = names;
+        this.lengths = new int[patterns.length];
+        for (int p = 0; p < patterns.length; p++) {
+            lengths[p] = patterns[p].length;
+        }
+        int width = 1;
+        for (byte[] pattern : patterns) {
+            for (byte b : pattern) {
+                if (columns[b & 0xFF] == 0) {
+                    columns[b & 0xFF] = width++;
+                }
+            }
+        }
+        this.width = width;
+
+        // The trie, missing edges -1
+        List<int[]> rows = new ArrayList<int[]>();
+        List<int[]> ends = new ArrayList<int[]>();
+        rows.add(newRow(width));
+        ends.add(null);
+        for (int p = 0; p < patterns.length; p++) {
+            int state = 0;
+            for (byte b : patterns[p]) {
+                int column = columns[b & 0xFF];
+                int next = rows.get(state)[column];
+                if (next < 0) {
+                    next = rows.size();
+                    if ((long) (next + 1) * width > MAX_TABLE) {
+                        throw new IllegalArgumentException("Too many patterns, the automaton would need more than "
+                                + MAX_TABLE * 4L / (1024 * 1024) + " MB");
+                    }
+                    rows.get(state)[column] = next;
+                    rows.add(newRow(width));
+                    ends.add(null);
+                }
+                state = next;
+            }
+            ends.set(state, add(ends.get(state), p));
+        }
+
+        // Breadth first, so the failure state of each state is done before
+        // it. The states are numbered again in this order, which keeps the
+        // rows of the shallow states, where most of the time is spent,
+        // together in the table.
+        int states = rows.size();
+        int[] fail = new int[states];
+        int[][] found = new int[states][];
+        int[] order = new int[states];
+        int[] rank = new int[states];
+        int ranked = 1;
+        found[0] = ends.get(0);
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        int[] root = rows.get(0);
+        for (int c = 0; c < width; c++) {
+            if (root[c] < 0) {
+                root[c] = 0;
+            } else {
+                found[root[c]] = ends.get(root[c]);
+                queue.add(root[c]);
+                rank[root[c]] = ranked;
+                order[ranked++] = root[c];
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] row = rows.get(state);
+            int[] failRow = rows.get(fail[state]);
+            for (int c = 0; c < width; c++) {
+                int child = row[c];
+                if (child < 0) {
+                    row[c] = failRow[c];
+                } else {
+                    fail[child] = failRow[c];
+                    found[child] = concat(ends.get(child), found[fail[child]]);
+                    queue.add(child);
+                    rank[child] = ranked;
+                    order[ranked++] = child;
+                }
+            }
+        }
+
+        table = new int[states * width];
+        outputStart = new int[states + 1];
+        int count = 0;
+        for (int s = 0; s < states; s++) {
+            count += found[s] == null ? 0 : found[s].length;
+        }
+        outputs = new int[count];
+        count = 0;
+        for (int r = 0; r < states; r++) {
+            int s = order[r];
+            outputStart[r] = count;
+            if (found[s] != null) {
+                System.arraycopy(found[s], 0, outputs, count, found[s].length);
+                count += found[s].length;
+            }
+            int[] row = rows.get(s);
+            for (int c = 0; c < width; c++) {
+                int next = row[c];
+                table[r * width + c] = rank[next] * width | (found[next] != null ? MATCH : 0);
+            }
+        }
+        outputStart[states] = count;
+    }
+
+    private static int[] newRow(int width) {
+        int[] row = new int[width];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static int[] add(int[] list, int value) {
+        return concat(list, new int[]{value});
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        int[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    /**
+     * Compiles patterns.
+     *
+     * @param names printable form of each pattern
+     * @param patterns the bytes to look for, none of them empty
+     * @throws IllegalArgumentException if the automaton would be too large
+     */
+    public static PatternSet compile(String[] names, byte[][] patterns) {
+        return new PatternSet(names.clone(), patterns);
+    }
+
+    /**
+     * Reads and compiles a pattern file: one pattern per line, matched
+     * byte for byte as ISO-8859-1, with {@code \xHH} for any byte and
+     * {@code \\} for a backslash. Empty lines and lines starting with
+     * {@code #} are skipped.
+     *
+     * @throws IOException if the file cannot be read or a line is invalid
+     */
+    public static PatternSet load(Path file) throws IOException {
+        List<String> names = new ArrayList<String>();
+        List<byte[]> patterns = new ArrayList<byte[]>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                byte[] pattern = unescape(line);
+                if (pattern == null) {
+                    throw new IOException(file + ":" + number + ": invalid escape in " + line);
+                }
+                names.add(line);
+                patterns.add(pattern);
+            }
+        }
+        try {
+            return new PatternSet(names.toArray(new String[0]), patterns.toArray(new byte[0][]));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the bytes of a pattern line, or null if an escape is invalid
+     */
+    private static byte[] unescape(String line) {
+        byte[] bytes = new byte[line.length()];
+        int length = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c != '\\') {
+                bytes[length++] = (byte) c;
+            } else if (i + 1 < line.length() && line.charAt(i + 1) == '\\') {
+                bytes[length++] = '\\';
+                i++;
+            } else if (i + 3 < line.length() && line.charAt(i + 1) == 'x'
+                    && Character.digit(line.charAt(i + 2), 16) >= 0 && Character.digit(line.charAt(i + 3), 16) >= 0) {
+                bytes[length++] = (byte) Integer.parseInt(line.substring(i + 2, i + 4), 16);
+                i += 3;
+            } else {
+                return null;
+            }
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Searches bytes, reporting every pattern that ends in them, overlapping
+     * ones included.
+     *
+     * @param state {@link #START}, or the state a previous scan of the bytes
+     * just before these ended in
+     * @return the state to continue from with the bytes that follow
+     */
+    public int scan(ByteBuffer buffer, int from, int end, int state, Listener listener) {
+        int[] table = this.table;
+        int[] columns = this.columns;
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (int i = from + offset; i < end + offset; i++) {
+                state = table[state + columns[array[i] & 0xFF]];
+                if (state < 0) {
+                    state &= ~MATCH;
+                    report(state, i + 1 - offset, listener);
+                }
+            }
+        } else {
+            for (int i = from; i < end; i++) {
+                state = table[state + columns[buffer.get(i) & 0xFF]];
+                if (state < 0) {
+                    state &= ~MATCH;
+                    report(state, i + 1, listener);
+                }
+            }
+        }
+        return state;
+    }
+
+    private void report(int state, int end, Listener listener) {
+        int s = state / width;
+        for (int k = outputStart[s]; k < outputStart[s + 1]; k++) {
+            listener.match(outputs[k], end);
+        }
+    }
+
+    /**
+     * @return number of patterns
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return the pattern as it was given
+     */
+    public String name(int pattern) {
+        return names[pattern];
+    }
+
+    /**
+     * @return number of bytes of the pattern
+     */
+    public int length(int pattern) {
+        return lengths[pattern];
+    }
+
+    /**
+     * @return number of states of the automaton
+     */
+    public int states() {
+        return outputStart.length - 1;
+    }
+}
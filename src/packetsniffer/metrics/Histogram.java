@@ -0,0 +1,93 @@
+package packetsniffer.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram that any number of threads can record into, with a bucket for
+ * every power of two between {@code 2^minShift} and
+ * {@code 2^(minShift + buckets - 1)} and one for everything larger.
+ *
+ * Recording adds to two {@link LongAdder}s, so threads on different cores
+ * do not fight over a cache line. Readers see a consistent enough picture
+ * for monitoring, not an atomic snapshot.
+ */
+public final class Histogram {
+
+    private final int minShift;
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param minShift the first bucket holds values up to {@code 2^minShift}
+     * @param buckets number of power of two buckets, not counting the one for
+     * larger values
+     */
+    public Histogram(int minShift, int buckets) {
+        this.minShift = minShift;
+        this.counts = new LongAdder[buckets + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        int bucket = value <= 1L << minShift ? 0 : 64 - Long.numberOfLeadingZeros(value - 1) - minShift;
+        counts[Math.min(bucket, counts.length - 1)].increment();
+        sum.add(value);
+    }
+
+    /**
+     * @return number of buckets, the last one without an upper bound
+     */
+    public int buckets() {
+        return counts.length;
+    }
+
+    /**
+     * @return largest value counted by a bucket, Long.MAX_VALUE for the last
+     */
+    public long upperBound(int bucket) {
+        return bucket < counts.length - 1 ? 1L << (minShift + bucket) : Long.MAX_VALUE;
+    }
+
+    public long count(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    public long count() {
+        long n = 0;
+        for (LongAdder c : counts) {
+            n += c.sum();
+        }
+        return n;
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket holding the percentile, 0 when empty
+     */
+    public long percentile(double percentile) {
+        long[] snapshot = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(snapshot.length - 1);
+    }
+}
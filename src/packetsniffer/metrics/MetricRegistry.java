@@ -0,0 +1,185 @@
+package packetsniffer.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named metrics, written out in the Prometheus text format or as a map for
+ * JMX.
+ *
+ * Metrics are registered while the sniffer starts up. The hot path then
+ * only touches the {@link LongAdder}s and {@link Histogram}s it got back;
+ * everything else is read from suppliers when someone asks.
+ */
+public final class MetricRegistry {
+
+    private static final int COUNTER = 0;
+    private static final int GAUGE = 1;
+    private static final int HISTOGRAM = 2;
+    private static final String[] TYPE_NAMES = {"counter", "gauge", "histogram"};
+
+    private final String prefix;
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+    /**
+     * @param prefix put in front of every metric name, for example
+     * "packetsniffer_"
+     */
+    public MetricRegistry(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param labels Prometheus labels without braces, for example
+     * {@code protocol="tcp"}, or "" for none
+     * @return the counter to add to
+     */
+    public LongAdder counter(String name, String help, String labels) {
+        LongAdder adder = new LongAdder();
+        add(name, help, COUNTER, labels, adder);
+        return adder;
+    }
+
+    /**
+     * Registers a counter that is kept elsewhere.
+     */
+    public void counter(String name, String help, String labels, LongSupplier value) {
+        add(name, help, COUNTER, labels, value);
+    }
+
+    public void gauge(String name, String help, String labels, LongSupplier value) {
+        add(name, help, GAUGE, labels, value);
+    }
+
+    /**
+     * @param scale factor from the recorded values to the unit of the metric,
+     * for example 1e-9 to record nanoseconds into a metric in seconds
+     */
+    public Histogram histogram(String name, String help, String labels, int minShift, int buckets, double scale) {
+        Histogram histogram = new Histogram(minShift, buckets);
+        add(name, help, HISTOGRAM, labels, new Scaled(histogram, scale));
+        return histogram;
+    }
+
+    private synchronized void add(String name, String help, int type, String labels, Object source) {
+        Family family = families.get(name);
+        if (family == null) {
+            families.put(name, family = new Family(prefix + name, help, type));
+        } else if (family.type != type) {
+            throw new IllegalArgumentException(name + " is already a " + TYPE_NAMES[family.type]);
+        }
+        family.labels.add(labels);
+        family.sources.add(source);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format.
+     */
+    public synchronized void writePrometheus(StringBuilder out) {
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(TYPE_NAMES[family.type]).append('\n');
+            for (int i = 0; i < family.sources.size(); i++) {
+                String labels = family.labels.get(i);
+                Object source = family.sources.get(i);
+                if (family.type == HISTOGRAM) {
+                    writeHistogram(out, family.name, labels, (Scaled) source);
+                } else {
+                    sample(out, family.name, "", labels, null);
+                    out.append(value(source)).append('\n');
+                }
+            }
+        }
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, Scaled scaled) {
+        Histogram histogram = scaled.histogram;
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets(); i++) {
+            cumulative += histogram.count(i);
+            long bound = histogram.upperBound(i);
+            sample(out, name, "_bucket", labels, bound == Long.MAX_VALUE ? "+Inf" : Double.toString(bound
+                    * scaled.scale));
+            out.append(cumulative).append('\n');
+        }
+        sample(out, name, "_sum", labels, null);
+        out.append(histogram.sum() * scaled.scale).append('\n');
+        sample(out, name, "_count", labels, null);
+        out.append(cumulative).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String suffix, String labels, String le) {
+        out.append(name).append(suffix);
+        if (!labels.isEmpty() || le != null) {
+            out.append('{').append(labels);
+            if (le != null) {
+                out.append(labels.isEmpty() ? "" : ",").append("le=\"").append(le).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ');
+    }
+
+    /**
+     * @return every value by metric name and labels; histograms give their
+     * count, sum and median and 99th percentile
+     */
+    public synchronized Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        for (Family family : families.values()) {
+            for (int i = 0; i < family.sources.size(); i++) {
+                String labels = family.labels.get(i);
+                String key = family.name + (labels.isEmpty() ? "" : "{" + labels + "}");
+                Object source = family.sources.get(i);
+                if (family.type == HISTOGRAM) {
+                    Scaled scaled = (Scaled) source;
+                    Histogram histogram = scaled.histogram;
+                    values.put(key + "_count", histogram.count());
+                    values.put(key + "_sum", histogram.sum() * scaled.scale);
+                    values.put(key + "_p50", histogram.percentile(50) * scaled.scale);
+                    values.put(key + "_p99", histogram.percentile(99) * scaled.scale);
+                } else {
+                    values.put(key, value(source));
+                }
+            }
+        }
+        return values;
+    }
+
+    private static long value(Object source) {
+        if (source instanceof LongAdder) {
+            return ((LongAdder) source).sum();
+        }
+        return ((LongSupplier) source).getAsLong();
+    }
+
+    private static final class Family {
+
+        final String name;
+        final String help;
+        final int type;
+        final List<String> labels = new ArrayList<String>();
+        final List<Object> sources = new ArrayList<Object>();
+
+        Family(String name, String help, int type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Scaled {
+
+        final Histogram histogram;
+        final double scale;
+
+        Scaled(Histogram histogram, double scale) {
+            this.histogram = histogram;
+            this.scale = scale;
+        }
+    }
+}
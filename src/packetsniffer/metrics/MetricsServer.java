@@ -0,0 +1,125 @@
+package packetsniffer.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes a registry over JMX, as the MBean {@value #OBJECT_NAME}, and
+ * over HTTP in the Prometheus text format at {@code /metrics}. The HTTP
+ * server only listens on the loopback address.
+ */
+public final class MetricsServer {
+
+    public static final String OBJECT_NAME = "packetsniffer:type=Metrics";
+
+    private final MetricRegistry registry;
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final ObjectName name;
+
+    private MetricsServer(MetricRegistry registry, HttpServer http, ExecutorService executor, ObjectName name) {
+        this.registry = registry;
+        this.http = http;
+        this.executor = executor;
+        this.name = name;
+    }
+
+    /**
+     * Registers the MBean and starts serving HTTP.
+     *
+     * @param port loopback port to listen on, 0 for any free port
+     * @throws IOException if the port can not be bound
+     */
+    public static MetricsServer start(final MetricRegistry registry, int port) throws IOException {
+        ObjectName name;
+        try {
+            name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(registry), name);
+        } catch (JMException e) {
+            throw new IOException("Can't register " + OBJECT_NAME + ": " + e.getMessage(), e);
+        }
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                scrape(registry, exchange);
+            }
+        });
+        // One daemon thread is plenty for a scraper every few seconds
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        http.setExecutor(executor);
+        http.start();
+        return new MetricsServer(registry, http, executor, name);
+    }
+
+    private static void scrape(MetricRegistry registry, HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(8 * 1024);
+            registry.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public MetricRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * @return the port the HTTP server listens on
+     */
+    public int port() {
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Stops the HTTP server and unregisters the MBean.
+     */
+    public void stop() {
+        http.stop(0);
+        executor.shutdown();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // Already gone
+        }
+    }
+}
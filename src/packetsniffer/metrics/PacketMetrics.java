@@ -0,0 +1,161 @@
+package packetsniffer.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import packetsniffer.decode.PacketDecoder;
+import packetsniffer.decode.PacketRecord;
+
+/**
+ * The sniffer's own metrics: packets and bytes per protocol and the decode
+ * time of each layer. Every decoding thread records through its own
+ * {@link Recorder}.
+ */
+public final class PacketMetrics {
+
+    /**
+     * One packet in this many has its layers timed; timing every packet
+     * would cost more than decoding it
+     */
+    public static final int LATENCY_SAMPLE = 16;
+
+    private static final int ETHERNET = 0;
+    private static final int IPV4 = 1;
+    private static final int IPV6 = 2;
+    private static final int TCP = 3;
+    private static final int UDP = 4;
+    private static final int ICMP = 5;
+    private static final int DNS = 6;
+    private static final int HTTP = 7;
+    private static final String[] PROTOCOL_NAMES = {"ethernet", "ipv4", "ipv6", "tcp", "udp", "icmp", "dns", "http"};
+    private static final String[] LAYER_NAMES = {"link", "network", "transport", "application"};
+
+    private static final int PROTO_ICMP = 1;
+    private static final int PROTO_ICMPV6 = 58;
+
+    private final MetricRegistry registry;
+    private final LongAdder[] packets = new LongAdder[PROTOCOL_NAMES.length];
+    private final LongAdder[] bytes = new LongAdder[PROTOCOL_NAMES.length];
+    private final Histogram[] layerNanos = new Histogram[PacketDecoder.LAYER_COUNT];
+
+    public PacketMetrics(MetricRegistry registry) {
+        this.registry = registry;
+        for (int i = 0; i < PROTOCOL_NAMES.length; i++) {
+            packets[i] = registry.counter("packets_total", "Packets decoded, by protocol",
+                    "protocol=\"" + PROTOCOL_NAMES[i] + "\"");
+        }
+        for (int i = 0; i < PROTOCOL_NAMES.length; i++) {
+            bytes[i] = registry.counter("bytes_total", "Bytes on the wire of the packets decoded, by protocol",
+                    "protocol=\"" + PROTOCOL_NAMES[i] + "\"");
+        }
+        for (int i = 0; i < layerNanos.length; i++) {
+            // Buckets from 16 ns to 16 ms
+            layerNanos[i] = registry.histogram("decode_seconds", "Time to decode one layer of a packet, sampled",
+                    "layer=\"" + LAYER_NAMES[i] + "\"", 4, 21, 1e-9);
+        }
+    }
+
+    public MetricRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Creates the recorder of one decoding thread.
+     */
+    public Recorder recorder() {
+        return new Recorder();
+    }
+
+    private void count(PacketRecord rec) {
+        int wire = rec.wireLength;
+        add(ETHERNET, wire);
+        if (rec.ipVersion == 4) {
+            add(IPV4, wire);
+        } else if (rec.ipVersion == 6) {
+            add(IPV6, wire);
+        } else {
+            return;
+        }
+        if (rec.protocol == PacketRecord.PROTO_TCP) {
+            add(TCP, wire);
+        } else if (rec.protocol == PacketRecord.PROTO_UDP) {
+            add(UDP, wire);
+        } else if (rec.protocol == PROTO_ICMP || rec.protocol == PROTO_ICMPV6) {
+            add(ICMP, wire);
+        }
+        if (rec.appProtocol == PacketRecord.APP_DNS) {
+            add(DNS, wire);
+        } else if (rec.appProtocol == PacketRecord.APP_HTTP) {
+            add(HTTP, wire);
+        }
+    }
+
+    private void add(int protocol, int wire) {
+        packets[protocol].increment();
+        bytes[protocol].add(wire);
+    }
+
+    /**
+     * Counts the packets of one decoding thread and times the decoder's
+     * layers for a sample of them. Not thread safe.
+     */
+    public final class Recorder {
+
+        private final long[] own = new long[PacketDecoder.LAYER_COUNT + 1];
+        private final long[] before = new long[PacketDecoder.LAYER_COUNT];
+        private long[] times;
+        private boolean installed;
+        private int countdown = LATENCY_SAMPLE;
+
+        private Recorder() {
+        }
+
+        /**
+         * Called before each decode; turns the decoder's layer timing on
+         * when the packet is part of the sample.
+         */
+        public void beforeDecode(PacketDecoder decoder) {
+            if (--countdown > 0) {
+                return;
+            }
+            countdown = LATENCY_SAMPLE;
+            // Replay statistics may already time every packet, then just read along
+            times = decoder.layerTimes();
+            if (times == null) {
+                times = own;
+                installed = true;
+                decoder.setLayerTimes(own);
+            }
+            System.arraycopy(times, 0, before, 0, before.length);
+        }
+
+        /**
+         * Called after each decode.
+         */
+        public void afterDecode(PacketDecoder decoder, PacketRecord rec) {
+            count(rec);
+            if (times == null) {
+                return;
+            }
+            // Only the layers the decoder got to were timed
+            layerNanos[PacketDecoder.LAYER_LINK].record(times[PacketDecoder.LAYER_LINK]
+                    - before[PacketDecoder.LAYER_LINK]);
+            if (rec.l3Offset != 0) {
+                layerNanos[PacketDecoder.LAYER_NETWORK].record(times[PacketDecoder.LAYER_NETWORK]
+                        - before[PacketDecoder.LAYER_NETWORK]);
+            }
+            if (rec.l4Offset != 0 && rec.ipFragmentOffset == 0) {
+                layerNanos[PacketDecoder.LAYER_TRANSPORT].record(times[PacketDecoder.LAYER_TRANSPORT]
+                        - before[PacketDecoder.LAYER_TRANSPORT]);
+            }
+            if (rec.l7Offset != 0) {
+                layerNanos[PacketDecoder.LAYER_APPLICATION].record(times[PacketDecoder.LAYER_APPLICATION]
+                        - before[PacketDecoder.LAYER_APPLICATION]);
+            }
+            if (installed) {
+                decoder.setLayerTimes(null);
+                installed = false;
+            }
+            times = null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package packetsniffer.output;
+
+import java.nio.ByteBuffer;
+
+import packetsniffer.decode.PacketRecord;
+
+/**
+ * Layout of the binary record segment files.
+ *
+ * A segment is a 64 byte header followed by fixed size records. Every field
+ * sits at a fixed offset, so a reader can jump straight to the field it
+ * needs without parsing anything, and record n is at
+ * {@code HEADER_SIZE + n * RECORD_SIZE}. Everything is little endian.
+ *
+ * <pre>
+ * Header
+ *   0  8  magic "PSREC\0\0\0"
+ *   8  2  version
+ *  10  2  record size
+ *  12  4  reserved
+ *  16  8  record count, kept up to date while the segment is written
+ *  24  8  timestamp of the first record (microseconds)
+ *  32  8  timestamp of the last record (microseconds)
+ *  40 24  reserved
+ *
+ * Record
+ *   0  8  timestamp (microseconds since the epoch)
+ *   8  4  wire length
+ *  12  4  captured length
+ *  16  8  source address, high 64 bits (0 for IPv4)
+ *  24  8  source address, low 64 bits (IPv4 in the low 32 bits)
+ *  32  8  destination address, high 64 bits
+ *  40  8  destination address, low 64 bits
+ *  48  2  source port
+ *  50  2  destination port
+ *  52  2  ethertype
+ *  54  1  IP version (0 if not IP)
+ *  55  1  IP protocol
+ *  56  4  TCP sequence number
+ *  60  4  TCP acknowledgement number
+ *  64  1  TCP flags, the low 8 bits (CWR down to FIN)
+ *  65  1  application protocol, see PacketRecord.APP_*
+ *  66  2  DNS id
+ *  68  2  DNS flags (the response code is the low 4 bits)
+ *  70  2  DNS question type
+ *  72  4  DNS question name hash, see PacketRecord.dnsQnameHash
+ *  76  1  HTTP method, see PacketRecord.HTTP_*
+ *  77  1  TCP flags, the high bits (NS); 0 in files written before it
+ *  78  2  HTTP status code
+ *  80  2  interface id, see PacketRecord.interfaceId
+ *  82 14  reserved, written as zero
+ * </pre>
+ *
+ * Reserved bytes let later versions add fields without moving the existing
+ * ones; readers must ignore them and step through records by the size in
+ * the header rather than by {@link #RECORD_SIZE}.
+ */
+public final class BinaryRecordFormat {
+
+    public static final long MAGIC = 0x0000004345525350L; // "PSREC" read little endian
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 96;
+
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 8;
+    static final int HEADER_RECORD_SIZE = 10;
+    static final int HEADER_COUNT = 16;
+    static final int HEADER_FIRST_TIMESTAMP = 24;
+    static final int HEADER_LAST_TIMESTAMP = 32;
+
+    public static final int TIMESTAMP = 0;
+    public static final int WIRE_LENGTH = 8;
+    public static final int CAPTURE_LENGTH = 12;
+    public static final int SRC_ADDR_HI = 16;
+    public static final int SRC_ADDR_LO = 24;
+    public static final int DST_ADDR_HI = 32;
+    public static final int DST_ADDR_LO = 40;
+    public static final int SRC_PORT = 48;
+    public static final int DST_PORT = 50;
+    public static final int ETHER_TYPE = 52;
+    public static final int IP_VERSION = 54;
+    public static final int PROTOCOL = 55;
+    public static final int TCP_SEQ = 56;
+    public static final int TCP_ACK = 60;
+    public static final int TCP_FLAGS = 64;
+    public static final int TCP_FLAGS_HIGH = 77;
+    public static final int APP_PROTOCOL = 65;
+    public static final int DNS_ID = 66;
+    public static final int DNS_FLAGS = 68;
+    public static final int DNS_QTYPE = 70;
+    public static final int DNS_QNAME_HASH = 72;
+    public static final int HTTP_METHOD = 76;
+    public static final int HTTP_STATUS = 78;
+    public static final int INTERFACE_ID = 80;
+
+    private BinaryRecordFormat() {
+    }
+
+    /**
+     * Writes one record at an absolute position. Every byte of the record,
+     * reserved ones included, is written.
+     *
+     * @param out a little endian buffer
+     * @param at index of the first byte of the record
+     */
+    static void write(ByteBuffer out, int at, PacketRecord rec) {
+        out.putLong(at + TIMESTAMP, rec.timestampMicros);
+        out.putInt(at + WIRE_LENGTH, rec.wireLength);
+        out.putInt(at + CAPTURE_LENGTH, rec.captureLength);
+        out.putLong(at + SRC_ADDR_HI, rec.srcAddrHi);
+        out.putLong(at + SRC_ADDR_LO, rec.srcAddrLo);
+        out.putLong(at + DST_ADDR_HI, rec.dstAddrHi);
+        out.putLong(at + DST_ADDR_LO, rec.dstAddrLo);
+        out.putShort(at + SRC_PORT, (short) rec.srcPort);
+        out.putShort(at + DST_PORT, (short) rec.dstPort);
+        out.putShort(at + ETHER_TYPE, (short) rec.etherType);
+        out.put(at + IP_VERSION, (byte) rec.ipVersion);
+        out.put(at + PROTOCOL, (byte) rec.protocol);
+        out.putInt(at + TCP_SEQ, (int) rec.seq);
+        out.putInt(at + TCP_ACK, (int) rec.ack);
+        out.put(at + TCP_FLAGS, (byte) rec.tcpFlags);
+        out.put(at + TCP_FLAGS_HIGH, (byte) (rec.tcpFlags >>> 8));
+        out.put(at + APP_PROTOCOL, (byte) rec.appProtocol);
+        out.putShort(at + DNS_ID, (short) rec.dnsId);
+        out.putShort(at + DNS_FLAGS, (short) rec.dnsFlags);
+        out.putShort(at + DNS_QTYPE, (short) rec.dnsQtype);
+        out.putInt(at + DNS_QNAME_HASH, rec.dnsQnameHash);
+        out.put(at + HTTP_METHOD, (byte) rec.httpMethod);
+        out.putShort(at + HTTP_STATUS, (short) rec.httpStatus);
+        out.putShort(at + INTERFACE_ID, (short) rec.interfaceId);
+        out.putShort(at + 82, (short) 0);
+        out.putInt(at + 84, 0);
+        out.putLong(at + 88, 0);
+    }
+
+    /**
+     * Writes an empty header.
+     *
+     * @param out a little endian buffer positioned anywhere
+     */
+    static void writeHeader(ByteBuffer out) {
+        out.putLong(HEADER_MAGIC, MAGIC);
+        out.putShort(HEADER_VERSION, (short) VERSION);
+        out.putShort(HEADER_RECORD_SIZE, (short) RECORD_SIZE);
+        out.putInt(12, 0);
+        out.putLong(HEADER_COUNT, 0);
+        out.putLong(HEADER_FIRST_TIMESTAMP, 0);
+        out.putLong(HEADER_LAST_TIMESTAMP, 0);
+        for (int i = 40; i < HEADER_SIZE; i += 8) {
+            out.putLong(i, 0);
+        }
+    }
+}
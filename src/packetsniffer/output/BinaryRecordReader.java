@@ -0,0 +1,333 @@
+package packetsniffer.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import packetsniffer.decode.PacketRecord;
+
+import static packetsniffer.output.BinaryRecordFormat.*;
+
+/**
+ * Reads a segment file written by {@link BinaryRecordWriter}.
+ *
+ * The reader is a cursor over the memory-mapped file: {@link #next()}
+ * moves to the next record and the accessors read single fields of the
+ * current record straight from the mapping. Nothing is copied or
+ * allocated per record, so a scan that only looks at a few fields runs at
+ * about the speed the pages can be read.
+ *
+ * <pre>
+ * for (Path file : BinaryRecordReader.segments(dir)) {
+ *     try (BinaryRecordReader reader = BinaryRecordReader.open(file)) {
+ *         while (reader.next()) {
+ *             if (reader.dnsRcode() == 2) ...
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * Segments that are still being written can be read too; the reader sees
+ * the records that were complete when it was opened.
+ */
+public final class BinaryRecordReader implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer data;
+    private final int recordSize;
+    private final long count;
+    private long index = -1;
+    private int at;
+
+    private BinaryRecordReader(FileChannel channel, MappedByteBuffer data, int recordSize, long count) {
+        this.channel = channel;
+        this.data = data;
+        this.recordSize = recordSize;
+        this.count = count;
+    }
+
+    /**
+     * Maps a segment file.
+     *
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    public static BinaryRecordReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file);
+        try {
+            long size = Math.min(channel.size(), Integer.MAX_VALUE);
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + " is too short for a record file");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            if (data.getLong(HEADER_MAGIC) != MAGIC) {
+                throw new IOException(file + " is not a record file");
+            }
+            int recordSize = data.getShort(HEADER_RECORD_SIZE) & 0xFFFF;
+            if (recordSize < INTERFACE_ID + 2) {
+                throw new IOException(file + " has an unsupported record size " + recordSize);
+            }
+            // The header count can be ahead of the mapped length while the file is written
+            long count = Math.min(data.getLong(HEADER_COUNT), (size - HEADER_SIZE) / recordSize);
+            return new BinaryRecordReader(channel, data, recordSize, count);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Lists the segment files in a directory in the order they were
+     * written, for each writing thread.
+     */
+    public static List<Path> segments(Path directory) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + BinaryRecordWriter.SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long firstTimestamp() {
+        return data.getLong(HEADER_FIRST_TIMESTAMP);
+    }
+
+    public long lastTimestamp() {
+        return data.getLong(HEADER_LAST_TIMESTAMP);
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false at the end of the segment
+     */
+    public boolean next() {
+        if (index + 1 >= count) {
+            return false;
+        }
+        index++;
+        at = HEADER_SIZE + (int) index * recordSize;
+        return true;
+    }
+
+    /**
+     * Moves to record {@code n}, so that {@link #next()} returns it.
+     */
+    public void seek(long n) {
+        index = Math.max(-1, Math.min(n, count) - 1);
+    }
+
+    public long index() {
+        return index;
+    }
+
+    /**
+     * Copies the current record into {@code rec}. Fields the format does not
+     * keep are cleared.
+     */
+    public void read(PacketRecord rec) {
+        rec.clear();
+        rec.timestampMicros = timestampMicros();
+        rec.wireLength = wireLength();
+        rec.captureLength = captureLength();
+        rec.srcAddrHi = srcAddrHi();
+        rec.srcAddrLo = srcAddrLo();
+        rec.dstAddrHi = dstAddrHi();
+        rec.dstAddrLo = dstAddrLo();
+        rec.srcPort = srcPort();
+        rec.dstPort = dstPort();
+        rec.etherType = etherType();
+        rec.ipVersion = ipVersion();
+        rec.protocol = protocol();
+        rec.seq = seq();
+        rec.ack = ack();
+        rec.tcpFlags = tcpFlags();
+        rec.appProtocol = appProtocol();
+        rec.dnsId = dnsId();
+        rec.dnsFlags = dnsFlags();
+        rec.dnsQtype = dnsQtype();
+        rec.dnsQnameHash = dnsQnameHash();
+        rec.httpMethod = httpMethod();
+        rec.httpStatus = httpStatus();
+        rec.interfaceId = interfaceId();
+    }
+
+    public long timestampMicros() {
+        return data.getLong(at + TIMESTAMP);
+    }
+
+    public int wireLength() {
+        return data.getInt(at + WIRE_LENGTH);
+    }
+
+    public int captureLength() {
+        return data.getInt(at + CAPTURE_LENGTH);
+    }
+
+    public long srcAddrHi() {
+        return data.getLong(at + SRC_ADDR_HI);
+    }
+
+    public long srcAddrLo() {
+        return data.getLong(at + SRC_ADDR_LO);
+    }
+
+    public long dstAddrHi() {
+        return data.getLong(at + DST_ADDR_HI);
+    }
+
+    public long dstAddrLo() {
+        return data.getLong(at + DST_ADDR_LO);
+    }
+
+    public int srcPort() {
+        return data.getShort(at + SRC_PORT) & 0xFFFF;
+    }
+
+    public int dstPort() {
+        return data.getShort(at + DST_PORT) & 0xFFFF;
+    }
+
+    public int etherType() {
+        return data.getShort(at + ETHER_TYPE) & 0xFFFF;
+    }
+
+    public int ipVersion() {
+        return data.get(at + IP_VERSION) & 0xFF;
+    }
+
+    public int protocol() {
+        return data.get(at + PROTOCOL) & 0xFF;
+    }
+
+    public long seq() {
+        return data.getInt(at + TCP_SEQ) & 0xFFFFFFFFL;
+    }
+
+    public long ack() {
+        return data.getInt(at + TCP_ACK) & 0xFFFFFFFFL;
+    }
+
+    public int tcpFlags() {
+        return (data.get(at + TCP_FLAGS_HIGH) & 0xFF) << 8 | data.get(at + TCP_FLAGS) & 0xFF;
+    }
+
+    public int appProtocol() {
+        return data.get(at + APP_PROTOCOL) & 0xFF;
+    }
+
+    public int dnsId() {
+        return data.getShort(at + DNS_ID) & 0xFFFF;
+    }
+
+    public int dnsFlags() {
+        return data.getShort(at + DNS_FLAGS) & 0xFFFF;
+    }
+
+    public int dnsRcode() {
+        return dnsFlags() & 0xF;
+    }
+
+    public int dnsQtype() {
+        return data.getShort(at + DNS_QTYPE) & 0xFFFF;
+    }
+
+    public int dnsQnameHash() {
+        return data.getInt(at + DNS_QNAME_HASH);
+    }
+
+    public int httpMethod() {
+        return data.get(at + HTTP_METHOD) & 0xFF;
+    }
+
+    public int httpStatus() {
+        return data.getShort(at + HTTP_STATUS) & 0xFFFF;
+    }
+
+    public int interfaceId() {
+        return data.getShort(at + INTERFACE_ID) & 0xFFFF;
+    }
+
+    /**
+     * Releases the file. The mapping itself goes away when the reader is
+     * collected.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Prints a summary of record files: how many records of each kind and
+     * how fast they were scanned.
+     *
+     * @param args segment files or directories holding them
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: BinaryRecordReader <file or directory>...");
+            return;
+        }
+        List<Path> files = new ArrayList<Path>();
+        for (String arg : args) {
+            Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                files.addAll(segments(path));
+            } else {
+                files.add(path);
+            }
+        }
+        long records = 0, tcp = 0, udp = 0, dns = 0, dnsErrors = 0, http = 0, bytes = 0;
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        long start = System.nanoTime();
+        for (Path file : files) {
+            try (BinaryRecordReader reader = open(file)) {
+                while (reader.next()) {
+                    records++;
+                    bytes += reader.wireLength();
+                    long ts = reader.timestampMicros();
+                    first = Math.min(first, ts);
+                    last = Math.max(last, ts);
+                    int protocol = reader.protocol();
+                    if (protocol == PacketRecord.PROTO_TCP) {
+                        tcp++;
+                    } else if (protocol == PacketRecord.PROTO_UDP) {
+                        udp++;
+                    }
+                    int app = reader.appProtocol();
+                    if (app == PacketRecord.APP_DNS) {
+                        dns++;
+                        if (reader.dnsRcode() != 0) {
+                            dnsErrors++;
+                        }
+                    } else if (app == PacketRecord.APP_HTTP) {
+                        http++;
+                    }
+                }
+            }
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        System.out.printf("Files: %d\n", files.size());
+        System.out.printf("Records: %d (%d bytes on the wire)\n", records, bytes);
+        if (records > 0) {
+            System.out.printf("Captured from %d to %d (%.3f s)\n", first, last, (last - first) / 1e6);
+        }
+        System.out.printf("TCP: %d, UDP: %d, DNS: %d (%d errors), HTTP: %d\n", tcp, udp, dns, dnsErrors, http);
+        System.out.printf("Scanned in %.3f s, %.0f records/s\n", seconds, records / seconds);
+    }
+}
@@ -0,0 +1,158 @@
+package packetsniffer.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+
+import static packetsniffer.output.BinaryRecordFormat.HEADER_COUNT;
+import static packetsniffer.output.BinaryRecordFormat.HEADER_FIRST_TIMESTAMP;
+import static packetsniffer.output.BinaryRecordFormat.HEADER_LAST_TIMESTAMP;
+import static packetsniffer.output.BinaryRecordFormat.HEADER_SIZE;
+import static packetsniffer.output.BinaryRecordFormat.RECORD_SIZE;
+
+/**
+ * Archives every record in the binary format of {@link BinaryRecordFormat}.
+ *
+ * Records go into memory-mapped segment files of a fixed size; writing a
+ * record is a handful of stores into the mapping and the kernel writes the
+ * pages back in the background, so there is no write call per packet and
+ * no copy through a heap buffer. When a segment is full it is cut to its
+ * used length and the next one is created.
+ *
+ * Like every consumer, a writer belongs to a single decoding thread. Each
+ * thread writes its own files, named
+ * {@code <prefix>-<thread>-<segment>.psr}.
+ */
+public final class BinaryRecordWriter implements RecordConsumer {
+
+    public static final String SUFFIX = ".psr";
+
+    private final Path directory;
+    private final String name;
+    private final int recordsPerSegment;
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private int count;
+    private long written;
+    private long dropped;
+    private boolean failed;
+
+    /**
+     * @param directory where the segment files are created, must exist
+     * @param prefix start of every file name, shared by the writers of one
+     * run
+     * @param thread index of the thread that owns this writer
+     * @param segmentSize maximum size of a segment file in bytes
+     */
+    public BinaryRecordWriter(Path directory, String prefix, int thread, long segmentSize) {
+        this.directory = directory;
+        this.name = prefix + "-" + thread + "-";
+        long records = (segmentSize - HEADER_SIZE) / RECORD_SIZE;
+        this.recordsPerSegment = (int) Math.max(1, Math.min(records, (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE));
+    }
+
+    public void accept(PacketRecord rec, ByteBuffer frame) {
+        if (segment == null || count == recordsPerSegment) {
+            if (failed || !roll()) {
+                dropped++;
+                return;
+            }
+        }
+        BinaryRecordFormat.write(segment, HEADER_SIZE + count * RECORD_SIZE, rec);
+        if (count == 0) {
+            segment.putLong(HEADER_FIRST_TIMESTAMP, rec.timestampMicros);
+        }
+        segment.putLong(HEADER_LAST_TIMESTAMP, rec.timestampMicros);
+        segment.putLong(HEADER_COUNT, ++count);
+        written++;
+    }
+
+    /**
+     * Cuts the current segment to its used length. The header is always up
+     * to date, so nothing needs to happen on a plain flush.
+     */
+    @Override
+    public void close() {
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public long written() {
+        return written;
+    }
+
+    /**
+     * @return records that were not archived because a segment could not be
+     * created
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    public int segments() {
+        return segmentNumber;
+    }
+
+    private boolean roll() {
+        try {
+            closeSegment();
+            Path path = directory.resolve(String.format("%s%06d%s", name, segmentNumber, SUFFIX));
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            BinaryRecordFormat.writeHeader(segment);
+            segmentNumber++;
+            count = 0;
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        // The mapping itself goes away when the buffer is collected
+        segment = null;
+        FileChannel done = channel;
+        channel = null;
+        try {
+            done.truncate(HEADER_SIZE + (long) count * RECORD_SIZE);
+        } finally {
+            done.close();
+        }
+    }
+
+    private void fail(IOException e) {
+        if (!failed) {
+            System.err.printf("Can't write binary records to %s: %s\n", directory, e.getMessage());
+        }
+        failed = true;
+        segment = null;
+        if (channel != null) {
+            // Opened by roll() before the mapping failed
+            try {
+                channel.close();
+            } catch (IOException closing) {
+                System.err.printf("Can't close a segment in %s: %s\n", directory, closing.getMessage());
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package packetsniffer.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import packetsniffer.pipeline.Backpressure;
+
+/**
+ * Writes formatted records on a dedicated thread.
+ *
+ * Every producing thread gets its own {@link Producer}, which copies
+ * records into a pooled chunk and hands the chunk to the writer thread when
+ * it is full, when it is older than the flush interval, or when the owner
+ * calls {@link Producer#flush()}. The writer thread also takes chunks that
+ * have waited longer than the flush interval itself, so the last records
+ * of a quiet capture are not held back until the next one arrives. It
+ * writes everything that is queued with one gathering write. The pool is
+ * fixed, so a slow disk or terminal makes producers drop or wait
+ * (depending on the policy) instead of growing the heap.
+ */
+public final class OutputSink {
+
+    private static final long FLUSH_INTERVAL_NANOS = 100L * 1000 * 1000;
+
+    private final GatheringByteChannel channel;
+    private final Backpressure backpressure;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final ArrayBlockingQueue<Chunk> free;
+    private final ArrayBlockingQueue<Chunk> full;
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final List<Producer> producers = new CopyOnWriteArrayList<Producer>();
+    // Held while chunks for a record larger than one are taken
+    private final Object reserving = new Object();
+    private final Thread writer;
+    private volatile boolean closing;
+    private volatile IOException error;
+
+    /**
+     * @param channel where the records go, for example a FileChannel of a
+     * file or of stdout
+     * @param chunkSize bytes per chunk
+     * @param chunkCount chunks in the pool; together they bound the memory
+     * the sink can hold back
+     * @param backpressure what producers do when every chunk is in use
+     */
+    public OutputSink(GatheringByteChannel channel, int chunkSize, int chunkCount, Backpressure backpressure) {
+        this.channel = channel;
+        this.backpressure = backpressure;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.free = new ArrayBlockingQueue<Chunk>(chunkCount);
+        this.full = new ArrayBlockingQueue<Chunk>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            free.add(new Chunk(chunkSize));
+        }
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "output-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Creates the producer for one thread. Producers are not thread safe.
+     */
+    public Producer newProducer() {
+        Producer producer = new Producer();
+        producers.add(producer);
+        return producer;
+    }
+
+    /**
+     * Writes what producers have already handed over and stops the writer
+     * thread. Producers should be flushed first.
+     *
+     * @throws IOException if a write failed
+     */
+    public void close() throws IOException {
+        closing = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public long droppedRecords() {
+        return droppedRecords.get();
+    }
+
+    public long writtenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * @return chunks waiting for the writer thread
+     */
+    public int backlog() {
+        return full.size();
+    }
+
+    private void writeLoop() {
+        List<Chunk> batch = new ArrayList<Chunk>(free.remainingCapacity() + free.size());
+        ByteBuffer[] buffers = new ByteBuffer[free.remainingCapacity() + free.size()];
+        long lastSweep = System.nanoTime();
+        while (true) {
+            long now = System.nanoTime();
+            if (now - lastSweep >= FLUSH_INTERVAL_NANOS / 2) {
+                lastSweep = now;
+                for (Producer producer : producers) {
+                    producer.flushStale(now);
+                }
+            }
+            Chunk first;
+            try {
+                first = full.poll(10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (closing && full.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            full.drainTo(batch);
+            int n = 0;
+            long bytes = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                for (Chunk chunk = batch.get(i); chunk != null; chunk = chunk.next) {
+                    ByteBuffer data = chunk.data;
+                    data.flip();
+                    bytes += data.remaining();
+                    buffers[n++] = data;
+                }
+            }
+            long written = 0;
+            try {
+                while (written < bytes && error == null) {
+                    written += channel.write(buffers, 0, n);
+                }
+            } catch (IOException e) {
+                // Keep recycling chunks so producers do not hang, report it on close
+                error = e;
+            }
+            writtenBytes.addAndGet(written);
+            for (int i = 0; i < n; i++) {
+                buffers[i] = null;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                recycle(batch.get(i));
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Returns a chunk and the ones linked to it to the pool.
+     */
+    private void recycle(Chunk chunk) {
+        while (chunk != null) {
+            Chunk next = chunk.next;
+            chunk.next = null;
+            chunk.data.clear();
+            free.offer(chunk);
+            chunk = next;
+        }
+    }
+
+    private static final class Chunk {
+
+        final ByteBuffer data;
+        long started;
+        // The rest of a record that did not fit in one chunk
+        Chunk next;
+
+        Chunk(int size) {
+            data = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /**
+     * Per-thread entry point of the sink.
+     */
+    public final class Producer {
+
+        // Held while the chunk is filled, so the writer thread can take it
+        private final ReentrantLock lock = new ReentrantLock();
+        private Chunk current;
+
+        private Producer() {
+        }
+
+        /**
+         * Queues one record. Records larger than a chunk get chunks of their
+         * own, which are taken together and handed over as one, so the
+         * record is written whole or dropped whole, and never interleaved
+         * with the records of other producers.
+         *
+         * @return false if the record was dropped
+         */
+        public boolean write(byte[] b, int off, int len) {
+            lock.lock();
+            try {
+                return append(b, off, len);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean append(byte[] b, int off, int len) {
+            if (current != null && current.data.remaining() < len) {
+                flush();
+            }
+            if (len > chunkSize) {
+                return appendLarge(b, off, len);
+            }
+            if (current == null) {
+                current = acquire();
+                if (current == null) {
+                    droppedRecords.incrementAndGet();
+                    return false;
+                }
+                current.started = System.nanoTime();
+            }
+            current.data.put(b, off, len);
+            if (System.nanoTime() - current.started > FLUSH_INTERVAL_NANOS) {
+                flush();
+            }
+            return true;
+        }
+
+        private boolean appendLarge(byte[] b, int off, int len) {
+            Chunk first = reserve((len + chunkSize - 1) / chunkSize);
+            if (first == null) {
+                droppedRecords.incrementAndGet();
+                return false;
+            }
+            for (Chunk chunk = first; chunk != null; chunk = chunk.next) {
+                int n = Math.min(len, chunkSize);
+                chunk.data.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+            full.offer(first);
+            return true;
+        }
+
+        /**
+         * Takes {@code count} chunks, linked, or none of them. One producer
+         * reserves at a time, so two of them cannot each hold part of what
+         * they need while they wait for the rest.
+         *
+         * @return the first chunk, or null if the chunks could not be had
+         */
+        private Chunk reserve(int count) {
+            if (count > chunkCount) {
+                return null;
+            }
+            synchronized (reserving) {
+                if (backpressure == Backpressure.DROP && free.size() < count) {
+                    return null;
+                }
+                Chunk first = null;
+                for (int i = 0; i < count; i++) {
+                    Chunk chunk = acquire();
+                    if (chunk == null) {
+                        recycle(first); // Another producer took the free chunks
+                        return null;
+                    }
+                    chunk.next = first;
+                    first = chunk;
+                }
+                return first;
+            }
+        }
+
+        public boolean write(TextBuffer text) {
+            return write(text.array(), 0, text.length());
+        }
+
+        /**
+         * Hands the partly filled chunk to the writer thread.
+         */
+        public void flush() {
+            lock.lock();
+            try {
+                if (current != null) {
+                    full.offer(current);
+                    current = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Hands the chunk over if it is older than the flush interval.
+         * Called by the writer thread, which skips a producer that is busy
+         * writing: it may be waiting for the writer to free a chunk.
+         */
+        void flushStale(long now) {
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                if (current != null && now - current.started > FLUSH_INTERVAL_NANOS) {
+                    full.offer(current);
+                    current = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Chunk acquire() {
+            if (backpressure == Backpressure.DROP) {
+                return free.poll();
+            }
+            try {
+                Chunk chunk;
+                while ((chunk = free.poll(10, TimeUnit.MILLISECONDS)) == null) {
+                    if (closing) {
+                        return null;
+                    }
+                }
+                return chunk;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+}
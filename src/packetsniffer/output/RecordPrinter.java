@@ -0,0 +1,418 @@
+package packetsniffer.output;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import packetsniffer.decode.ByteScan;
+import packetsniffer.decode.DissectorRegistry;
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+import packetsniffer.dns.DnsMessage;
+
+/**
+ * Prints decoded records in the sniffer's verbose text format.
+ *
+ * Header fields come straight from the record. The application layer is
+ * printed from the frame bytes, starting at the payload offset found by the
+ * decoder. Each frame is formatted into a reused buffer and handed to the
+ * output sink as one record, so several decoding threads can share a sink
+ * without mixing up packets.
+ */
+public final class RecordPrinter implements RecordConsumer {
+
+    private static final String SEPARATOR = "\n-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.-.\n";
+    private static final String[] DNS_SECTIONS = {"\nQuery:\n", "\nAnswer:\n", "\nAuthority:\n", "\nAdditional:\n"};
+
+    private final OutputSink.Producer sink;
+    private final String[] interfaceNames;
+    private final TextBuffer out = new TextBuffer(16 * 1024);
+    private final DnsMessage dns = new DnsMessage();
+    private ByteBuffer frame;
+    private int base;
+    private long dateSecond = Long.MIN_VALUE;
+    private String date;
+
+    public RecordPrinter(OutputSink.Producer sink) {
+        this(sink, null);
+    }
+
+    /**
+     * @param interfaceNames names of the interfaces or files by
+     * {@link PacketRecord#interfaceId}, to print with every frame; null when
+     * there is only one
+     */
+    public RecordPrinter(OutputSink.Producer sink, String[] interfaceNames) {
+        this.sink = sink;
+        this.interfaceNames = interfaceNames;
+    }
+
+    public void accept(PacketRecord rec, ByteBuffer frame) {
+        out.clear();
+        print(rec, frame);
+        sink.write(out);
+    }
+
+    @Override
+    public void flush() {
+        sink.flush();
+    }
+
+    private void print(PacketRecord rec, ByteBuffer frame) {
+        this.frame = frame;
+        this.base = rec.frameOffset;
+
+        /**
+         * ****************************FRAME*********************************************
+         */
+        out.append("\n---------Frame---------\n");
+        out.append("Arrival time: ").append(date(rec.timestampMicros / 1000));
+        if (interfaceNames != null) {
+            out.append("\nInterface: ").append(interfaceNames[rec.interfaceId]);
+        }
+        out.append("\nWire Length: ").appendPadded(rec.wireLength, 4); // Original length
+        out.append("\nCaptured Length: ").appendPadded(rec.captureLength, 4).append('\n'); // Length actually captured
+        if (rec.captureLength < 14) {
+            out.append(SEPARATOR);
+            return;
+        }
+
+        /**
+         * ******************************ETHERNET***************************************
+         */
+        //http://www.comptechdoc.org/independent/networking/guide/ethernetdata.gif
+        out.append("\n---------Ethernet---------\n");
+        out.append("Destination MAC Address: ").appendMac(rec.dstMac).append('\n');
+        out.append("Source MAC Address: ").appendMac(rec.srcMac).append('\n');
+        out.append("EtherType: 0x").appendHex(rec.etherType);
+        if (rec.etherType == PacketRecord.ETHERTYPE_IPV4) {
+            out.append(" [IPv4]\n");
+        } else if (rec.etherType == PacketRecord.ETHERTYPE_IPV6) {
+            out.append(" [IPv6]\n");
+        } else {
+            out.append(" [Other]\n");
+        }
+        if (rec.vlanCount > 0) {
+            out.append("VLAN: ").append(rec.outerVlan);
+            if (rec.vlanCount > 1) {
+                out.append(" (QinQ, inner VLAN ").append(rec.innerVlan).append(')');
+            }
+            out.append('\n');
+        }
+        if (rec.mplsCount > 0) {
+            out.append("MPLS Label: ").append(rec.mplsLabel).append(" (").append(rec.mplsCount)
+                    .append(rec.mplsCount == 1 ? " label)\n" : " labels)\n");
+        }
+        if (rec.tunnel != PacketRecord.TUNNEL_NONE) {
+            printTunnel(rec);
+        }
+
+        /**
+         * *****************************Internet Protocol***********************************
+         */
+        //http://www.diablotin.com/librairie/networking/puis/figs/puis_1603.gif
+        if (rec.ipVersion != 0) {
+            out.append("\n---------Internet Protocol---------\n");
+            out.append("Version: ").append(rec.ipVersion).append('\n');
+        }
+        if (rec.ipVersion == 4) { //IPv4
+            out.append("Header Length: ").append(rec.ipHeaderLength).append('\n');
+            out.append("Differentiated Services Field: ").append(rec.ipTos).append('\n');
+            out.append("Total Length: ").append(rec.ipLength).append('\n');
+            out.append("Identification: 0x").appendHex(rec.ipId).append(" (").append(rec.ipId).append(")\n");
+            out.append("Flags: 0x").appendHex(rec.ipFlags).append('\n');
+            out.append("Fragment offset: ").append(rec.ipFragmentOffset).append('\n');
+            out.append("Time to live: ").append(rec.ttl).append('\n');
+            out.append("Protocol: ").append(rec.protocol).append(protocolName(rec.protocol)).append('\n');
+            out.append("Checksum: ").append(rec.ipChecksum).append('\n');
+            out.append("Source IP: ").appendIpv4(rec.srcAddrLo).append('\n');
+            out.append("Destination IP: ").appendIpv4(rec.dstAddrLo).append('\n');
+        } else if (rec.ipVersion == 6) { //IPv6
+            out.append("Traffic Class: ").append(rec.ipTos).append('\n');
+            out.append("Flow Label: ").append(rec.ipFlowLabel).append('\n');
+            out.append("Payload Length: ").append(rec.ipLength).append('\n');
+            if (rec.ipHeaderLength > 40) {
+                out.append("Extension Headers Length: ").append(rec.ipHeaderLength - 40).append('\n');
+            }
+            if (rec.ipFragmentHeader != 0) {
+                out.append("Identification: 0x").appendHex(rec.ipId).append('\n');
+                out.append("More Fragments: ")
+                        .append((rec.ipFlags & PacketRecord.IP_MORE_FRAGMENTS) != 0 ? "Yes\n" : "No\n");
+                out.append("Fragment offset: ").append(rec.ipFragmentOffset).append('\n');
+            }
+            out.append("Next Header: ").append(rec.protocol).append(protocolName(rec.protocol)).append('\n');
+            out.append("Hop Limit: ").append(rec.ttl).append('\n');
+            out.append("Source IP: ").appendIpv6(rec.srcAddrHi, rec.srcAddrLo).append('\n');
+            out.append("Destination IP: ").appendIpv6(rec.dstAddrHi, rec.dstAddrLo).append('\n');
+        }
+        if (rec.ipFragments != 0) {
+            out.append("Reassembled from ").append(rec.ipFragments).append(" fragments\n");
+        }
+
+        /**
+         * *****************************Transport Layer***********************************
+         */
+        if (rec.isTcp() && rec.l7Offset != 0) {
+            out.append("\n---------Transmission Control Protocol---------\n");
+            out.append("Source Port: ").append(rec.srcPort).append('\n');
+            out.append("Destination Port: ").append(rec.dstPort).append('\n');
+            out.append("Sequence Number: ").append(rec.seq).append('\n');
+            out.append("Acknowledge Number: ").append(rec.ack).append('\n');
+            out.append("Data Offset: ").append(rec.tcpHeaderLength / 4).append('\n');
+            out.append("Flags: ").append(rec.tcpFlags).append('\n');
+            out.append("Window Size: ").append(rec.tcpWindow).append('\n');
+            out.append("Checksum: ").append(rec.l4Checksum).append('\n');
+            out.append("Urgent Pointer: ").append(rec.tcpUrgent).append('\n');
+        } else if (rec.isUdp() && rec.l7Offset != 0) {
+            out.append("\n---------User Datagram Protocol---------\n");
+            out.append("Source Port: ").append(rec.srcPort).append('\n');
+            out.append("Destination Port: ").append(rec.dstPort).append('\n');
+            out.append("Length: ").append(rec.udpLength).append('\n');
+            out.append("Checksum: ").append(rec.l4Checksum).append('\n');
+        }
+
+        /**
+         * *****************************Application Layer***********************************
+         */
+        if (rec.l7Offset != 0) {
+            out.append("\n---------Application Layer---------\n");
+            int x = rec.l7Offset - base;
+            // Every read below stays before size, within the captured bytes
+            int size = Math.min(x + rec.l7Length, rec.frameEnd - base);
+            if (rec.appProtocol == PacketRecord.APP_HTTP) {
+                printHttp(rec, x, size);
+            } else if (rec.appProtocol == PacketRecord.APP_DNS) {
+                printDns(rec, x, size);
+            } else {
+                String name = DissectorRegistry.shared().name(rec.appProtocol);
+                if (name != null) {
+                    out.append("Protocol: ").append(name).append('\n');
+                }
+                dumpPayload(x, size);
+            }
+            if (rec.captureLength < rec.wireLength && base + size == rec.frameEnd) {
+                out.append("\n[Truncated]\n");
+            }
+        }
+        out.append(SEPARATOR);
+    }
+
+    private void printHttp(PacketRecord rec, int x, int size) {
+        if (rec.httpMethod == PacketRecord.HTTP_RESPONSE) {
+            out.append("RequestVersion: ");
+            x = printWord(x, size);
+            out.append("\nResponseCode: ");
+            x = printWord(x, size);
+            out.append("\nResponseCodeMsg: ");
+            x = printWord(x, size);
+        } else {
+            out.append("RequestMethod: ");
+            x = printWord(x, size);
+            out.append("\nRequestURL: ");
+            x = printWord(x, size);
+            out.append("\nRequestVersion: ");
+            x = printWord(x, size);
+        }
+        while (x < size) {
+            x += printNextString(x, size);
+        }
+    }
+
+    /**
+     * Prints bytes up to the next space.
+     *
+     * @return offset after the space
+     */
+    private int printWord(int x, int size) {
+        int space = ByteScan.indexOf(frame, base + x, base + size, (byte) ' ') - base;
+        out.appendAscii(frame, base + x, base + space);
+        return Math.min(space + 1, size);
+    }
+
+    private void printDns(PacketRecord rec, int x, int size) {
+        if (!dns.wrap(frame, base + x, size - x) && dns.error() == DnsMessage.ERROR_SHORT
+                && dns.recordCount() == 0) {
+            dumpPayload(x, size);
+            return;
+        }
+        int flags = rec.dnsFlags;
+        out.append("--------DNS---------\n");
+        out.append("Id: ").append(rec.dnsId).append('\n');
+        out.append("Qr: ").append(flags >> 15).append('\n'); //Set to 0 when the query is generated; changed to 1 when that query is changed to a response by a replying server.
+        out.append("OpCode: ").append((flags >> 11) & 15).append('\n');
+        out.append("Authoritative Answer Flag: ").append((flags >> 10) & 1).append('\n');
+        out.append("Truncation Flag: ").append((flags >> 9) & 1).append('\n');
+        out.append("Recursion Desired: ").append((flags >> 8) & 1).append('\n');
+        out.append("RecursionAvailable: ").append((flags >> 7) & 1).append('\n');
+        out.append("ResponseCode: ").append(flags & 15).append('\n');
+        out.append("QD Count: ").append(rec.dnsQdCount).append('\n');
+        out.append("AN Count: ").append(rec.dnsAnCount).append('\n');
+        out.append("NS Count: ").append(rec.dnsNsCount).append('\n');
+        out.append("AR Count: ").append(rec.dnsArCount).append('\n');
+        for (int section = DnsMessage.SECTION_QUESTION; section <= DnsMessage.SECTION_ADDITIONAL; section++) {
+            int first = dns.firstRecord(section);
+            int last = dns.endRecord(section);
+            if (first < last) {
+                out.append(DNS_SECTIONS[section]);
+            }
+            for (int i = first; i < last; i++) {
+                printDnsRecord(i);
+            }
+        }
+        if (dns.error() != DnsMessage.ERROR_NONE) {
+            out.append("\n[Malformed: ").append(DnsMessage.errorName(dns.error())).append("]\n");
+        }
+    }
+
+    private void printDnsRecord(int i) {
+        out.append("\nName: ");
+        dns.appendName(dns.nameOffset(i), out).append('\n');
+        int type = dns.type(i);
+        out.append("Type: ").append(type);
+        String typeName = DnsMessage.typeName(type);
+        if (typeName != null) {
+            out.append(" (").append(typeName).append(')');
+        }
+        out.append('\n');
+        if (type == DnsMessage.TYPE_OPT) {
+            out.append("UDP Payload Size: ").append(dns.recordClass(i)).append('\n');
+        } else {
+            out.append("Class: ").append(dns.recordClass(i)).append('\n');
+        }
+        if (dns.section(i) == DnsMessage.SECTION_QUESTION) {
+            return;
+        }
+        out.append("Time to Live: ").append(dns.ttl(i)).append('\n');
+        out.append("Data Length: ").append(dns.dataLength(i)).append('\n');
+        switch (type) {
+            case DnsMessage.TYPE_A:
+                out.append("Address: ").appendIpv4(dns.ipv4(i)).append('\n');
+                break;
+            case DnsMessage.TYPE_AAAA:
+                out.append("AAAA Address: ").appendIpv6(dns.ipv6Hi(i), dns.ipv6Lo(i)).append('\n');
+                break;
+            case DnsMessage.TYPE_CNAME:
+                out.append("CNAME: ");
+                dns.appendName(dns.targetOffset(i), out).append('\n');
+                break;
+            case DnsMessage.TYPE_NS:
+                out.append("Name Server: ");
+                dns.appendName(dns.targetOffset(i), out).append('\n');
+                break;
+            case DnsMessage.TYPE_PTR:
+                out.append("Domain Name: ");
+                dns.appendName(dns.targetOffset(i), out).append('\n');
+                break;
+            case DnsMessage.TYPE_MX:
+                out.append("Preference: ").append(dns.mxPreference(i)).append('\n');
+                out.append("Mail Exchange: ");
+                dns.appendName(dns.targetOffset(i), out).append('\n');
+                break;
+            case DnsMessage.TYPE_SRV:
+                out.append("Priority: ").append(dns.srvPriority(i)).append('\n');
+                out.append("Weight: ").append(dns.srvWeight(i)).append('\n');
+                out.append("Port: ").append(dns.srvPort(i)).append('\n');
+                out.append("Target: ");
+                dns.appendName(dns.targetOffset(i), out).append('\n');
+                break;
+            case DnsMessage.TYPE_SOA:
+                out.append("Primary Name Server: ");
+                dns.appendName(dns.targetOffset(i), out).append('\n');
+                out.append("Responsible Authority's Mailbox: ");
+                dns.appendName(dns.soaMailboxOffset(i), out).append('\n');
+                out.append("Serial Number: ").append(dns.soaValue(i, 0)).append('\n');
+                out.append("Refresh Interval: ").append(dns.soaValue(i, 1)).append('\n');
+                out.append("Retry Interval: ").append(dns.soaValue(i, 2)).append('\n');
+                out.append("Expire Limit: ").append(dns.soaValue(i, 3)).append('\n');
+                out.append("Maximum TTL: ").append(dns.soaValue(i, 4)).append('\n');
+                break;
+            case DnsMessage.TYPE_TXT:
+                out.append("Text: ");
+                dns.appendTxt(i, out).append('\n');
+                break;
+            case DnsMessage.TYPE_OPT:
+                break;
+            default:
+                int x = dns.dataOffset(i) - base;
+                dumpPayload(x, x + dns.dataLength(i));
+        }
+    }
+
+    /**
+     * Prints the bytes up to the next line feed. After the blank line that
+     * ends the headers the body is dumped.
+     *
+     * @return bytes consumed
+     */
+    private int printNextString(int x, int size) {
+        int lf = ByteScan.indexOf(frame, base + x, base + size, (byte) '\n') - base;
+        out.appendAscii(frame, base + x, base + lf);
+        if (lf == size) {
+            return size - x;
+        }
+        out.append('\n');
+        if (lf + 1 < size && u8(lf + 1) == 13) {
+            out.append('\n');
+            dumpPayload(lf + 3, size);
+            return size - x;
+        }
+        return lf + 1 - x;
+    }
+
+    private void dumpPayload(int x, int size) {
+        out.appendHexDump(frame, base + x, base + size);
+    }
+
+    /**
+     * Prints the outermost tunnel, with the addresses of its endpoints read
+     * from the outer IP header.
+     */
+    private void printTunnel(PacketRecord rec) {
+        int x = rec.tunnelL3Offset;
+        out.append("\n---------Tunnel---------\n");
+        if (rec.tunnel == PacketRecord.TUNNEL_VXLAN) {
+            out.append("Type: VXLAN\nVNI: ").append(rec.tunnelKey).append('\n');
+        } else {
+            out.append("Type: GRE\n");
+            if (rec.tunnelKey >= 0) {
+                out.append("Key: ").append(rec.tunnelKey).append('\n');
+            }
+        }
+        if (frame.get(x) >> 4 == 4) {
+            out.append("Outer Source IP: ").appendIpv4(frame.getInt(x + 12) & 0xFFFFFFFFL).append('\n');
+            out.append("Outer Destination IP: ").appendIpv4(frame.getInt(x + 16) & 0xFFFFFFFFL).append('\n');
+        } else {
+            out.append("Outer Source IP: ").appendIpv6(frame.getLong(x + 8), frame.getLong(x + 16)).append('\n');
+            out.append("Outer Destination IP: ").appendIpv6(frame.getLong(x + 24), frame.getLong(x + 32))
+                    .append('\n');
+        }
+    }
+
+    /**
+     * Formats the arrival time like Date.toString(). The text only changes
+     * once a second, so it is cached.
+     */
+    private String date(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != dateSecond) {
+            dateSecond = second;
+            date = new Date(millis).toString();
+        }
+        return date;
+    }
+
+    /**
+     * Frame relative accessors, offset 0 is the first byte of the frame
+     */
+    private int u8(int i) {
+        return frame.get(base + i) & 0xFF;
+    }
+
+    private static String protocolName(int protocol) {
+        if (protocol == PacketRecord.PROTO_TCP) {
+            return " (TCP)";
+        } else if (protocol == PacketRecord.PROTO_UDP) {
+            return " (UDP)";
+        }
+        return "";
+    }
+}
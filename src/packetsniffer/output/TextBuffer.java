@@ -0,0 +1,281 @@
+package packetsniffer.output;
+
+import java.nio.ByteBuffer;
+
+import packetsniffer.decode.ByteScan;
+
+/**
+ * Growable ASCII text buffer with the handful of number formats the
+ * printer needs.
+ *
+ * It replaces {@code printf} on the hot path: formatting into a reused byte
+ * array does not box arguments, parse format strings or create Strings.
+ * Characters outside ASCII are written as '?'.
+ */
+public final class TextBuffer {
+
+    private static final byte[] HEX_LOWER = "0123456789abcdef".getBytes();
+    private static final byte[] HEX_UPPER = "0123456789ABCDEF".getBytes();
+    /** The two lower case hex digits of every byte value */
+    private static final byte[] HEX_PAIRS = new byte[512];
+    /** Every byte value as itself if printable ASCII, as '.' if not */
+    private static final byte[] PRINTABLE = new byte[256];
+    /** Longest line of a hex dump: bytes, group gaps, tab, ASCII, newline */
+    private static final int DUMP_LINE = 16 * 3 + 4 + 1 + 16 + 1;
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            HEX_PAIRS[2 * b] = HEX_LOWER[b >>> 4];
+            HEX_PAIRS[2 * b + 1] = HEX_LOWER[b & 15];
+            PRINTABLE[b] = (byte) (b >= 32 && b <= 126 ? b : '.');
+        }
+    }
+
+    private byte[] data;
+    private int length;
+    private byte[] dumpBytes = new byte[0];
+
+    public TextBuffer(int initialCapacity) {
+        data = new byte[initialCapacity];
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public TextBuffer append(char c) {
+        ensure(1);
+        data[length++] = c < 0x80 ? (byte) c : (byte) '?';
+        return this;
+    }
+
+    public TextBuffer append(CharSequence s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            data[length++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        return this;
+    }
+
+    public TextBuffer append(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, data, length, len);
+        length += len;
+        return this;
+    }
+
+    /**
+     * Appends bytes of a buffer as characters, like {@link #append(char)}
+     * for each of them.
+     */
+    public TextBuffer appendAscii(ByteBuffer src, int from, int end) {
+        ensure(end - from);
+        for (int i = from; i < end; i++) {
+            byte b = src.get(i);
+            data[length++] = b >= 0 ? b : (byte) '?';
+        }
+        return this;
+    }
+
+    /**
+     * Appends a hex dump of the bytes of a buffer, 16 to a line: each byte
+     * as two hex digits and a space, one more space after every fourth, a
+     * tab, then the bytes as printable ASCII or '.'.
+     *
+     * The bytes are copied out of the buffer once, then every character
+     * comes from a table and is written straight into the array.
+     */
+    public TextBuffer appendHexDump(ByteBuffer src, int from, int end) {
+        int n = end - from;
+        if (n <= 0) {
+            return this;
+        }
+        ensure((n + 15) / 16 * DUMP_LINE);
+        if (dumpBytes.length < n) {
+            dumpBytes = new byte[Math.max(n, dumpBytes.length * 2)];
+        }
+        byte[] s = dumpBytes;
+        ByteScan.copy(src, from, s, 0, n);
+        byte[] d = data;
+        int o = length;
+        for (int line = 0; line < n; line += 16) {
+            int lineEnd = Math.min(line + 16, n);
+            for (int i = line; i < lineEnd; i++) {
+                int b = (s[i] & 0xFF) << 1;
+                d[o] = HEX_PAIRS[b];
+                d[o + 1] = HEX_PAIRS[b + 1];
+                d[o + 2] = ' ';
+                o += 3;
+                if ((i & 3) == 3) {
+                    d[o++] = ' ';
+                }
+            }
+            d[o++] = '\t';
+            for (int i = line; i < lineEnd; i++) {
+                d[o++] = PRINTABLE[s[i] & 0xFF];
+            }
+            d[o++] = '\n';
+        }
+        length = o;
+        return this;
+    }
+
+    /**
+     * Appends a byte as a character if it is printable ASCII, as '.' if not.
+     */
+    public TextBuffer appendPrintable(int b) {
+        return append(b >= 32 && b <= 126 ? (char) b : '.');
+    }
+
+    /**
+     * Appends a decimal number, like {@code %d}.
+     */
+    public TextBuffer append(long v) {
+        if (v == Long.MIN_VALUE) {
+            return append("-9223372036854775808");
+        }
+        ensure(20);
+        if (v < 0) {
+            data[length++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) {
+            digits++;
+        }
+        int end = length + digits;
+        for (int i = end - 1; i >= length; i--) {
+            data[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        length = end;
+        return this;
+    }
+
+    /**
+     * Appends a fixed point number: {@code appendDecimal(12345, 3)} appends
+     * "12.345".
+     *
+     * @param fractionDigits how many of the lowest digits of {@code v} come
+     * after the decimal point
+     */
+    public TextBuffer appendDecimal(long v, int fractionDigits) {
+        if (fractionDigits == 0) {
+            return append(v);
+        }
+        long scale = 1;
+        for (int i = 0; i < fractionDigits; i++) {
+            scale *= 10;
+        }
+        if (v < 0) {
+            append('-');
+            v = -v;
+        }
+        append(v / scale).append('.');
+        long fraction = v % scale;
+        for (long s = scale / 10; s > fraction && s > 1; s /= 10) {
+            append('0');
+        }
+        return append(fraction);
+    }
+
+    /**
+     * Appends a decimal number padded with spaces on the right to at least
+     * {@code width} characters, like {@code %-4d}.
+     */
+    public TextBuffer appendPadded(long v, int width) {
+        int start = length;
+        append(v);
+        while (length - start < width) {
+            append(' ');
+        }
+        return this;
+    }
+
+    /**
+     * Appends exactly {@code digits} hex digits, like {@code %02x} or
+     * {@code %04X}.
+     */
+    public TextBuffer appendHex(long v, int digits, boolean upperCase) {
+        byte[] table = upperCase ? HEX_UPPER : HEX_LOWER;
+        ensure(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            data[length + i] = table[(int) (v & 15)];
+            v >>>= 4;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * Appends lower case hex without leading zeros, like {@code %x}.
+     */
+    public TextBuffer appendHex(long v) {
+        int digits = 1;
+        for (long t = v >>> 4; t != 0; t >>>= 4) {
+            digits++;
+        }
+        return appendHex(v, digits, false);
+    }
+
+    public TextBuffer appendMac(long mac) {
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            appendHex(mac >>> shift, 2, false);
+            if (shift > 0) {
+                append(':');
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends dotted decimal from the low 32 bits.
+     */
+    public TextBuffer appendIpv4(long addr) {
+        append((addr >> 24) & 0xFF).append('.').append((addr >> 16) & 0xFF).append('.');
+        return append((addr >> 8) & 0xFF).append('.').append(addr & 0xFF);
+    }
+
+    /**
+     * Appends all eight groups of an IPv6 address in upper case hex.
+     */
+    public TextBuffer appendIpv6(long hi, long lo) {
+        for (int shift = 48; shift >= 0; shift -= 16) {
+            appendHex(hi >>> shift, 4, true).append(':');
+        }
+        for (int shift = 48; shift >= 0; shift -= 16) {
+            appendHex(lo >>> shift, 4, true);
+            if (shift > 0) {
+                append(':');
+            }
+        }
+        return this;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > data.length) {
+            byte[] bigger = new byte[Math.max(data.length * 2, length + extra)];
+            System.arraycopy(data, 0, bigger, 0, length);
+            data = bigger;
+        }
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) data[i];
+        }
+        return new String(chars);
+    }
+}
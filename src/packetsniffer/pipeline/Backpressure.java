@@ -0,0 +1,31 @@
+package packetsniffer.pipeline;
+
+/**
+ * What a producer does when the queue in front of a slower stage is full.
+ */
+public enum Backpressure {
+
+    /**
+     * Throw the item away and count it. The producer never waits, which keeps
+     * the capture thread reading from the kernel.
+     */
+    DROP,
+    /**
+     * Wait until there is room. Nothing is lost in user space, but the kernel
+     * may drop instead while the producer waits.
+     */
+    BLOCK;
+
+    /**
+     * @param name "drop" or "block", case insensitive
+     * @return the matching policy, or null if there is none
+     */
+    public static Backpressure parse(String name) {
+        for (Backpressure policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,250 @@
+package packetsniffer.pipeline;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import packetsniffer.decode.PacketDecoder;
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+import packetsniffer.metrics.PacketMetrics;
+
+/**
+ * Moves decoding off the capture thread.
+ *
+ * The capture thread only copies each frame into the ring of one worker;
+ * the worker decodes it and passes the record to its own consumer. Frames
+ * are assigned by flow hash, so every packet of a flow (in both directions)
+ * is handled by the same worker, in capture order. Consumers therefore only
+ * ever see their own flows and need no locking for per-flow state.
+ */
+public final class DecodePipeline {
+
+    private static final int SPINS = 100;
+    private static final long IDLE_PARK_NANOS = 50 * 1000;
+
+    private final Worker[] workers;
+    private final Backpressure backpressure;
+    private volatile boolean closing;
+    private int sampleRate = 1;
+
+    /**
+     * @param workerCount number of decoding threads
+     * @param queueDepth frames each worker can have queued
+     * @param snaplen largest frame that will be queued
+     * @param backpressure what to do when a worker's queue is full
+     * @param consumers called once per worker to create that worker's
+     * consumer
+     * @param metrics where the workers count their packets, or null
+     */
+    public DecodePipeline(int workerCount, int queueDepth, int snaplen, Backpressure backpressure,
+            Supplier<RecordConsumer> consumers, PacketMetrics metrics) {
+        this.backpressure = backpressure;
+        this.workers = new Worker[workerCount];
+        // Room for a full queue of typical frames, and always for two of the largest
+        int arenaSize = (int) Math.min(Integer.MAX_VALUE, Math.max(2L * snaplen, queueDepth * 2048L));
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i, new FrameRing(queueDepth, arenaSize), consumers.get(),
+                    metrics == null ? null : metrics.recorder());
+        }
+    }
+
+    /**
+     * Turns on per-layer timing in every worker; see
+     * {@link PacketDecoder#setLayerTimes(long[])}. Must be called before
+     * {@link #start()}.
+     */
+    public void enableLayerTimes() {
+        for (Worker worker : workers) {
+            worker.layerNanos = new long[PacketDecoder.LAYER_COUNT + 1];
+            worker.decoder.setLayerTimes(worker.layerNanos);
+        }
+    }
+
+    /**
+     * Sets the {@link PacketRecord#sampleRate} of every record the workers
+     * decode. Must be called before {@link #start()}.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public void start() {
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a frame for the worker that owns its flow. Called from the
+     * capture thread only.
+     *
+     * @param interfaceId number of the interface the frame was captured on
+     * @param flowHash see {@link PacketRecord#flowHash()}
+     * @return false if the frame was dropped
+     */
+    public boolean offer(long timestampMicros, int wireLength, int interfaceId, ByteBuffer frame, int flowHash) {
+        FrameRing ring = workers[(flowHash & Integer.MAX_VALUE) % workers.length].ring;
+        if (ring.offer(timestampMicros, wireLength, interfaceId, frame)) {
+            return true;
+        }
+        if (backpressure == Backpressure.DROP) {
+            ring.drop();
+            return false;
+        }
+        while (!ring.offer(timestampMicros, wireLength, interfaceId, frame)) {
+            if (closing) {
+                ring.drop();
+                return false;
+            }
+            LockSupport.parkNanos(1000);
+        }
+        return true;
+    }
+
+    /**
+     * Lets the workers finish everything already queued and waits for them
+     * to exit.
+     */
+    public void close() {
+        closing = true;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public long drops() {
+        long total = 0;
+        for (Worker worker : workers) {
+            total += worker.ring.drops();
+        }
+        return total;
+    }
+
+    public int workerCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return frames queued for a worker right now; may be read from any
+     * thread
+     */
+    public int backlog(int worker) {
+        return workers[worker].ring.size();
+    }
+
+    public long drops(int worker) {
+        return workers[worker].ring.drops();
+    }
+
+    /**
+     * @return how full the fullest queue is right now, in percent; may be
+     * read from any thread
+     */
+    public int fill() {
+        int fill = 0;
+        for (Worker worker : workers) {
+            FrameRing ring = worker.ring;
+            fill = Math.max(fill, ring.size() * 100 / ring.capacity());
+        }
+        return fill;
+    }
+
+    /**
+     * Adds the workers' per-layer times to {@code nanos}. Only meaningful
+     * after {@link #close()}.
+     *
+     * @param nanos array indexed by the PacketDecoder layers, with the time
+     * spent in the consumer at index {@link PacketDecoder#LAYER_COUNT}
+     */
+    public void addLayerTimes(long[] nanos) {
+        for (Worker worker : workers) {
+            if (worker.layerNanos != null) {
+                for (int i = 0; i < worker.layerNanos.length; i++) {
+                    nanos[i] += worker.layerNanos[i];
+                }
+            }
+        }
+    }
+
+    public void report(PrintStream out) {
+        out.println("\n---------Decode Pipeline---------");
+        for (Worker worker : workers) {
+            FrameRing ring = worker.ring;
+            out.printf("Worker %d: queued %d, dropped %d, backlog %d/%d\n", worker.index,
+                    ring.enqueued(), ring.drops(), ring.size(), ring.capacity());
+        }
+    }
+
+    private final class Worker extends Thread {
+
+        private final int index;
+        private final FrameRing ring;
+        private final RecordConsumer consumer;
+        private final PacketDecoder decoder = new PacketDecoder();
+        private final PacketRecord record = new PacketRecord();
+        private final PacketMetrics.Recorder recorder;
+        private long[] layerNanos;
+
+        Worker(int index, FrameRing ring, RecordConsumer consumer, PacketMetrics.Recorder recorder) {
+            super("decode-" + index);
+            setDaemon(true);
+            this.index = index;
+            this.ring = ring;
+            this.consumer = consumer;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                long seq = ring.poll();
+                if (seq < 0) {
+                    if (closing && ring.poll() < 0) {
+                        consumer.flush();
+                        consumer.close();
+                        return;
+                    }
+                    if (idle == 0) {
+                        consumer.flush();
+                    }
+                    if (++idle < SPINS) {
+                        Thread.yield();
+                    } else {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    continue;
+                }
+                idle = 0;
+                ByteBuffer frame = ring.frame(seq);
+                if (recorder != null) {
+                    recorder.beforeDecode(decoder);
+                }
+                decoder.decode(ring.timestamp(seq), ring.wireLength(seq), frame, record);
+                record.interfaceId = ring.interfaceId(seq);
+                record.sampleRate = sampleRate;
+                if (recorder != null) {
+                    recorder.afterDecode(decoder, record);
+                }
+                if (layerNanos == null) {
+                    consumer.accept(record, frame);
+                } else {
+                    long start = System.nanoTime();
+                    consumer.accept(record, frame);
+                    layerNanos[PacketDecoder.LAYER_COUNT] += System.nanoTime() - start;
+                }
+                ring.release(seq);
+            }
+        }
+    }
+}
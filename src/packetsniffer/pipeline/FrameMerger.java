@@ -0,0 +1,175 @@
+package packetsniffer.pipeline;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Merges the frames of several capture threads into one stream in
+ * timestamp order.
+ *
+ * Every source has its own {@link FrameRing}, so capture threads never
+ * wait for each other. The merging thread looks at the oldest frame of
+ * every source and passes on the one with the earliest timestamp (a k-way
+ * merge). It can only be sure of the order when every source has a frame
+ * queued. Files always either have one or have ended, so their merge is
+ * exact. A live interface may stay silent for a long time; its frames are
+ * assumed to arrive within the reordering window of their capture time,
+ * so a frame is passed on once it is older than the window even though a
+ * silent source might still come up with an earlier one. Frames that turn
+ * up later than that are passed on out of order and counted as late.
+ */
+public final class FrameMerger {
+
+    /**
+     * Receives the merged frames, on the merging thread.
+     */
+    public interface Output {
+
+        /**
+         * @param frame valid until the call returns
+         * @param source number of the source the frame came from
+         */
+        void frame(long timestampMicros, int wireLength, ByteBuffer frame, int source);
+    }
+
+    private static final int SPINS = 100;
+    private static final long IDLE_PARK_NANOS = 50 * 1000;
+
+    private final FrameRing[] rings;
+    private final AtomicIntegerArray finished;
+    private final long windowMicros;
+    private final Backpressure backpressure;
+    private final long[] merged;
+    private long late;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private volatile boolean closing;
+
+    /**
+     * @param sources number of capture threads
+     * @param queueDepth frames each source can have queued
+     * @param snaplen largest frame that will be queued
+     * @param windowMicros how long after its capture time a frame is passed
+     * on even if a source has nothing queued; -1 to always wait for every
+     * source, which is right for files
+     * @param backpressure what a capture thread does when its queue is full
+     */
+    public FrameMerger(int sources, int queueDepth, int snaplen, long windowMicros, Backpressure backpressure) {
+        this.rings = new FrameRing[sources];
+        this.finished = new AtomicIntegerArray(sources);
+        this.windowMicros = windowMicros;
+        this.backpressure = backpressure;
+        this.merged = new long[sources];
+        int arenaSize = (int) Math.min(Integer.MAX_VALUE, Math.max(2L * snaplen, queueDepth * 2048L));
+        for (int i = 0; i < sources; i++) {
+            rings[i] = new FrameRing(queueDepth, arenaSize);
+        }
+    }
+
+    /**
+     * Queues a frame. Called from the source's capture thread only.
+     *
+     * @return false if the frame was dropped
+     */
+    public boolean offer(int source, long timestampMicros, int wireLength, ByteBuffer frame) {
+        FrameRing ring = rings[source];
+        if (ring.offer(timestampMicros, wireLength, source, frame)) {
+            return true;
+        }
+        if (backpressure == Backpressure.DROP) {
+            ring.drop();
+            return false;
+        }
+        while (!ring.offer(timestampMicros, wireLength, source, frame)) {
+            if (closing) {
+                ring.drop();
+                return false;
+            }
+            LockSupport.parkNanos(1000);
+        }
+        return true;
+    }
+
+    /**
+     * Tells the merger that a source has no more frames. Called from the
+     * source's capture thread after its last {@link #offer}.
+     */
+    public void finish(int source) {
+        finished.set(source, 1);
+    }
+
+    /**
+     * Makes blocked capture threads drop their frames instead of waiting,
+     * for when the merging thread has stopped.
+     */
+    public void close() {
+        closing = true;
+    }
+
+    /**
+     * Merges until every source has finished and its queue is empty.
+     */
+    public void run(Output output) {
+        int idle = 0;
+        while (true) {
+            int best = -1;
+            long bestSeq = -1;
+            long bestTimestamp = Long.MAX_VALUE;
+            boolean silent = false;
+            for (int i = 0; i < rings.length; i++) {
+                // Read the flag first: a finished source with an empty ring is done
+                boolean done = finished.get(i) != 0;
+                long seq = rings[i].poll();
+                if (seq >= 0) {
+                    long timestamp = rings[i].timestamp(seq);
+                    if (timestamp < bestTimestamp) {
+                        best = i;
+                        bestSeq = seq;
+                        bestTimestamp = timestamp;
+                    }
+                } else if (!done) {
+                    silent = true;
+                }
+            }
+            boolean wait = best < 0 || silent && (windowMicros < 0
+                    || System.currentTimeMillis() * 1000 - bestTimestamp < windowMicros);
+            if (wait) {
+                if (best < 0 && !silent) {
+                    return;
+                }
+                if (++idle < SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                continue;
+            }
+            idle = 0;
+            FrameRing ring = rings[best];
+            if (bestTimestamp < lastTimestamp) {
+                late++;
+            } else {
+                lastTimestamp = bestTimestamp;
+            }
+            output.frame(bestTimestamp, ring.wireLength(bestSeq), ring.frame(bestSeq), best);
+            ring.release(bestSeq);
+            merged[best]++;
+        }
+    }
+
+    public long late() {
+        return late;
+    }
+
+    /**
+     * @param names name of every source, for the report
+     */
+    public void report(PrintStream out, String[] names) {
+        out.println("\n---------Merge---------");
+        for (int i = 0; i < rings.length; i++) {
+            out.printf("%s: merged %d, dropped %d\n", names[i], merged[i], rings[i].drops());
+        }
+        out.printf("Out of order by more than the window: %d\n", late);
+    }
+}
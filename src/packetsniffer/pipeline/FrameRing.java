@@ -0,0 +1,180 @@
+package packetsniffer.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer queue of captured frames.
+ *
+ * Frame bytes are copied into one preallocated arena; slot metadata lives
+ * in parallel primitive arrays. A frame takes as many arena bytes as it
+ * has, so a queue of thousands of small frames does not need thousands of
+ * snaplen sized buffers. Nothing is allocated after construction.
+ *
+ * The producer publishes a slot by advancing {@code head}; the consumer
+ * hands it back by advancing {@code tail} and the number of arena bytes it
+ * has released. Both are ordered stores, so slot contents written before
+ * the store are visible to the other side after it reads the counter.
+ */
+public final class FrameRing {
+
+    private final int mask;
+    private final long[] timestamps;
+    private final int[] wireLengths;
+    private final int[] interfaces;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] ends;
+
+    private final int arenaSize;
+    private final ByteBuffer producerView;
+    private final ByteBuffer consumerView;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private long writePosition; // Producer only
+
+    /**
+     * @param depth maximum number of queued frames, rounded up to a power of
+     * two
+     * @param arenaSize bytes available for queued frame data, must be at
+     * least as large as the largest frame
+     */
+    public FrameRing(int depth, int arenaSize) {
+        int slots = Integer.highestOneBit(Math.max(2, depth - 1)) << 1;
+        this.mask = slots - 1;
+        this.timestamps = new long[slots];
+        this.wireLengths = new int[slots];
+        this.interfaces = new int[slots];
+        this.offsets = new int[slots];
+        this.lengths = new int[slots];
+        this.ends = new long[slots];
+        this.arenaSize = arenaSize;
+        ByteBuffer arena = ByteBuffer.allocate(arenaSize);
+        this.producerView = arena.duplicate();
+        this.consumerView = arena.duplicate();
+    }
+
+    /*
+     * Producer side
+     */
+
+    /**
+     * Copies the frame between {@code frame.position()} and
+     * {@code frame.limit()} into the ring. The frame's position is restored
+     * afterwards.
+     *
+     * @param interfaceId number of the interface the frame was captured on
+     * @return false if there is no free slot or not enough arena space
+     */
+    public boolean offer(long timestampMicros, int wireLength, int interfaceId, ByteBuffer frame) {
+        int length = frame.remaining();
+        long h = head.get();
+        if (h - tail.get() > mask) {
+            return false;
+        }
+        long position = writePosition;
+        int offset = (int) (position % arenaSize);
+        if (offset + length > arenaSize) {
+            // Frames are never split, skip the rest of the arena
+            position += arenaSize - offset;
+            offset = 0;
+        }
+        if (position + length - released.get() > arenaSize) {
+            return false;
+        }
+        int start = frame.position();
+        producerView.clear();
+        producerView.position(offset);
+        producerView.put(frame);
+        frame.position(start);
+
+        int slot = (int) h & mask;
+        timestamps[slot] = timestampMicros;
+        wireLengths[slot] = wireLength;
+        interfaces[slot] = interfaceId;
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        ends[slot] = position + length;
+        writePosition = position + length;
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * Counts a frame the producer had to throw away.
+     */
+    public void drop() {
+        drops.lazySet(drops.get() + 1);
+    }
+
+    /*
+     * Consumer side
+     */
+
+    /**
+     * @return sequence number of the oldest queued frame, or -1 if the ring
+     * is empty
+     */
+    public long poll() {
+        long t = tail.get();
+        return t < head.get() ? t : -1;
+    }
+
+    public long timestamp(long seq) {
+        return timestamps[(int) seq & mask];
+    }
+
+    public int wireLength(long seq) {
+        return wireLengths[(int) seq & mask];
+    }
+
+    public int interfaceId(long seq) {
+        return interfaces[(int) seq & mask];
+    }
+
+    /**
+     * Points the consumer's view of the arena at a queued frame. The view is
+     * only valid until {@link #release(long)}.
+     *
+     * @return a buffer whose position and limit delimit the frame
+     */
+    public ByteBuffer frame(long seq) {
+        int slot = (int) seq & mask;
+        consumerView.clear();
+        consumerView.position(offsets[slot]);
+        consumerView.limit(offsets[slot] + lengths[slot]);
+        return consumerView;
+    }
+
+    /**
+     * Hands the slot and its arena bytes back to the producer. Frames must be
+     * released in the order they were polled.
+     */
+    public void release(long seq) {
+        released.lazySet(ends[(int) seq & mask]);
+        tail.lazySet(seq + 1);
+    }
+
+    /*
+     * Either side
+     */
+
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long enqueued() {
+        return head.get();
+    }
+
+    public long drops() {
+        return drops.get();
+    }
+}
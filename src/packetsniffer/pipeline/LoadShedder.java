@@ -0,0 +1,135 @@
+package packetsniffer.pipeline;
+
+import java.io.PrintStream;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Chooses how deep frames are decoded, giving up detail before frames are
+ * lost.
+ *
+ * At {@link #FULL} every frame is decoded and handed on in full. At
+ * {@link #HEADERS} the application layer is skipped and frames are cut
+ * after their transport header, so printing, queueing and reassembling
+ * them gets cheaper, but payloads and what is parsed from them are gone.
+ * At {@link #COUNTERS} frames are only counted by the capture side and
+ * never reach the consumers.
+ *
+ * Every {@link #CHECK_NANOS} the queues of the decoding threads and the
+ * frames dropped since the last check are looked at. Drops, or a queue
+ * more than half full, make decoding one step shallower; only after
+ * {@link #CALM_CHECKS} checks in a row with nearly empty queues and no
+ * drops is it made one step deeper again, so it does not flap with every
+ * burst.
+ *
+ * Used on the capture thread only.
+ */
+public final class LoadShedder {
+
+    public static final int FULL = 0;
+    public static final int HEADERS = 1;
+    public static final int COUNTERS = 2;
+    private static final String[] NAMES = {"full", "headers", "counters"};
+
+    static final long CHECK_NANOS = 100L * 1000 * 1000;
+    static final int CALM_CHECKS = 20;
+    private static final int HIGH_FILL = 50;
+    private static final int LOW_FILL = 10;
+    /** Frames between looks at the clock */
+    private static final int CLOCK_FRAMES = 256;
+
+    private final int deepest;
+    private final IntSupplier fill;
+    private final LongSupplier drops;
+    private volatile int depth;
+    private int clock = CLOCK_FRAMES;
+    private long lastCheck = System.nanoTime();
+    private long lastDrops;
+    private int calm;
+    private long changes;
+    private final long[] frames = new long[NAMES.length];
+    private final long[] nanos = new long[NAMES.length];
+
+    /**
+     * @param deepest the depth to decode at while there is no pressure,
+     * {@link #FULL} or {@link #HEADERS}
+     * @param fill percent of the fullest decoding queue, or null when
+     * decoding on the capture thread
+     * @param drops frames dropped so far for lack of time, or null to never
+     * change the depth
+     */
+    public LoadShedder(int deepest, IntSupplier fill, LongSupplier drops) {
+        this.deepest = deepest;
+        this.depth = deepest;
+        this.fill = fill;
+        this.drops = drops;
+        this.lastDrops = drops == null ? 0 : drops.getAsLong();
+    }
+
+    /**
+     * @return the depth to decode the next frame at
+     */
+    public int depth() {
+        if (drops != null && --clock == 0) {
+            clock = CLOCK_FRAMES;
+            long now = System.nanoTime();
+            if (now - lastCheck >= CHECK_NANOS) {
+                check(now);
+            }
+        }
+        frames[depth]++;
+        return depth;
+    }
+
+    private void check(long now) {
+        nanos[depth] += now - lastCheck;
+        lastCheck = now;
+        long dropped = drops.getAsLong();
+        int full = fill == null ? 0 : fill.getAsInt();
+        if (dropped > lastDrops || full >= HIGH_FILL) {
+            calm = 0;
+            if (depth < COUNTERS) {
+                depth++;
+                changes++;
+            }
+        } else if (full <= LOW_FILL && ++calm >= CALM_CHECKS) {
+            calm = 0;
+            if (depth > deepest) {
+                depth--;
+                changes++;
+            }
+        } else if (full > LOW_FILL) {
+            calm = 0;
+        }
+        lastDrops = dropped;
+    }
+
+    /**
+     * @return frames decoded at a depth so far
+     */
+    public long frames(int depth) {
+        return frames[depth];
+    }
+
+    /**
+     * @return the current depth; may be read from any thread, but is only
+     * as fresh as the last frame
+     */
+    public int currentDepth() {
+        return depth;
+    }
+
+    public static String name(int depth) {
+        return NAMES[depth];
+    }
+
+    public void report(PrintStream out) {
+        nanos[depth] += System.nanoTime() - lastCheck;
+        lastCheck = System.nanoTime();
+        out.println("\n---------Decode Depth---------");
+        for (int d = deepest; d < NAMES.length; d++) {
+            out.printf("%s: %d frames, %.1f s\n", NAMES[d], frames[d], nanos[d] / 1e9);
+        }
+        out.printf("Depth changes: %d\n", changes);
+    }
+}
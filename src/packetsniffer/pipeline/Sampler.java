@@ -0,0 +1,82 @@
+package packetsniffer.pipeline;
+
+import java.io.PrintStream;
+
+import packetsniffer.sketch.Hash;
+
+/**
+ * Decides which frames are decoded when only a sample of the traffic is
+ * wanted.
+ *
+ * Flow sampling keeps every frame of one flow in {@code flows} and none of
+ * the others, picked by flow hash, so whatever is kept can still be
+ * followed from start to end. Frame sampling then keeps one frame in
+ * {@code every}, by count, which is fair to all flows but leaves holes in
+ * each. The two multiply; {@link #rate()} is what counts of the kept
+ * frames have to be scaled by.
+ *
+ * Used on the capture thread only.
+ */
+public final class Sampler {
+
+    private final int every;
+    private final int flows;
+    private int countdown;
+    private long seen;
+    private long kept;
+
+    /**
+     * @param every keep one frame in this many, 1 to keep all
+     * @param flows keep one flow in this many, 1 to keep all
+     */
+    public Sampler(int every, int flows) {
+        this.every = Math.max(1, every);
+        this.flows = Math.max(1, flows);
+        this.countdown = 1;
+    }
+
+    /**
+     * @param flowHash {@link packetsniffer.decode.PacketRecord#flowHash()}
+     * of the frame
+     * @return whether to decode the frame
+     */
+    public boolean keep(int flowHash) {
+        seen++;
+        // Mixed again, the pipeline already divides the flows by their hash
+        if (flows > 1 && (Hash.mix64(flowHash) >>> 1) % flows != 0) {
+            return false;
+        }
+        if (--countdown > 0) {
+            return false;
+        }
+        countdown = every;
+        kept++;
+        return true;
+    }
+
+    /**
+     * @return how many frames each kept frame stands for
+     */
+    public int rate() {
+        return every * flows;
+    }
+
+    public long seen() {
+        return seen;
+    }
+
+    public long dropped() {
+        return seen - kept;
+    }
+
+    public void report(PrintStream out) {
+        out.println("\n---------Sampling---------");
+        if (flows > 1) {
+            out.printf("Flows: 1 in %d\n", flows);
+        }
+        if (every > 1) {
+            out.printf("Frames: 1 in %d\n", every);
+        }
+        out.printf("Decoded: %d of %d frames, counts scaled by %d\n", kept, seen, rate());
+    }
+}
@@ -0,0 +1,392 @@
+package packetsniffer.recorder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import packetsniffer.metrics.MetricRegistry;
+
+/**
+ * Keeps the most recent frames in memory and writes them to a pcap file
+ * when something goes wrong.
+ *
+ * The frames are held in a preallocated off-heap ring, already laid out as
+ * pcap records, so a dump is the pcap file header followed by at most two
+ * slices of the ring handed to one gathering write; no frame is copied or
+ * formatted again. The oldest frames are overwritten when the ring is full
+ * or when they are older than the window, going by capture time, so a
+ * replayed file behaves like the live capture it came from.
+ *
+ * There are two rings. On a trigger the dump thread swaps them under the
+ * lock the capture thread appends under and writes the full one while
+ * capture carries on into the empty one. The memory used is therefore
+ * twice the ring size, all of it allocated up front. Triggers that arrive
+ * while a dump is being written, or within a second after it, are combined
+ * into one dump of the frames captured since.
+ */
+public final class FlightRecorder implements Trigger, FlightRecorderMBean {
+
+    public static final String OBJECT_NAME = "packetsniffer:type=FlightRecorder";
+
+    private static final int RECORD_HEADER = 16;
+    private static final int FILE_HEADER = 24;
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final long HOLDOFF_MILLIS = 1000;
+
+    private final Path dir;
+    private final long windowMicros;
+    private final int snaplen;
+    private Ring active;
+    private Ring spare;
+    private long tooLarge;
+
+    private final AtomicReference<String> pending = new AtomicReference<String>();
+    private final AtomicLong triggers = new AtomicLong();
+    private final AtomicLong combined = new AtomicLong();
+    private volatile long dumps;
+    private volatile long failed;
+    private volatile String lastFile;
+    private volatile boolean closed;
+    private final ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer[] parts = new ByteBuffer[3];
+    private final Thread dumper;
+    private ObjectName name;
+
+    /**
+     * @param dir directory the dump files are written to
+     * @param windowMicros how far back the recorded frames go
+     * @param bytes size of each of the two rings
+     * @param snaplen largest frame that will be recorded
+     */
+    public FlightRecorder(Path dir, long windowMicros, int bytes, int snaplen) {
+        this.dir = dir;
+        this.windowMicros = windowMicros;
+        this.snaplen = snaplen;
+        this.active = new Ring(bytes);
+        this.spare = new Ring(bytes);
+        this.dumper = new Thread("flight-recorder") {
+            @Override
+            public void run() {
+                dumpLoop();
+            }
+        };
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    /**
+     * Records a frame. Called from the capture thread only.
+     *
+     * @param frame the frame between position and limit, left unchanged
+     */
+    public synchronized void append(long timestampMicros, int wireLength, ByteBuffer frame) {
+        if (!active.append(timestampMicros, wireLength, frame, windowMicros)) {
+            tooLarge++;
+        }
+    }
+
+    public void fire(String reason) {
+        triggers.incrementAndGet();
+        if (pending.compareAndSet(null, reason)) {
+            LockSupport.unpark(dumper);
+        } else {
+            combined.incrementAndGet();
+        }
+    }
+
+    public void dump() {
+        fire("jmx");
+    }
+
+    public synchronized long getFrames() {
+        return active.frames;
+    }
+
+    public synchronized long getBytes() {
+        return active.bytes;
+    }
+
+    public long getDumps() {
+        return dumps;
+    }
+
+    /**
+     * Registers the JMX MBean, whose dump operation is a trigger.
+     *
+     * @throws JMException if the name is taken by something else
+     */
+    public void registerMBean() throws JMException {
+        ObjectName objectName = new ObjectName(OBJECT_NAME);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(this, objectName);
+        name = objectName;
+    }
+
+    /**
+     * Makes a signal a trigger. The signal API is not part of the Java SE
+     * platform, so it is looked up at run time; some JVMs use the signal
+     * themselves and refuse it.
+     *
+     * @param signal signal name without the SIG prefix, for example USR2
+     * @return true if the handler was installed
+     */
+    public boolean handleSignal(final String signal) {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[]{handlerClass},
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("handle")) {
+                                fire("signal");
+                                return null;
+                            }
+                            // equals, hashCode and toString
+                            return method.getName().equals("equals") ? proxy == args[0]
+                                    : method.getName().equals("hashCode") ? System.identityHashCode(proxy)
+                                    : "SIG" + signal + " flight recorder trigger";
+                        }
+                    });
+            signalClass.getMethod("handle", signalClass, handlerClass)
+                    .invoke(null, signalClass.getConstructor(String.class).newInstance(signal), handler);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    public void register(MetricRegistry registry) {
+        registry.gauge("flight_recorder_bytes", "Bytes of recent frames held by the flight recorder", "",
+                new LongSupplier() {
+                    public long getAsLong() {
+                        return getBytes();
+                    }
+                });
+        registry.counter("flight_recorder_triggers_total", "Events that asked for a flight recorder dump", "",
+                new LongSupplier() {
+                    public long getAsLong() {
+                        return triggers.get();
+                    }
+                });
+        registry.counter("flight_recorder_dumps_total", "Flight recorder dump files written", "",
+                new LongSupplier() {
+                    public long getAsLong() {
+                        return dumps;
+                    }
+                });
+    }
+
+    /**
+     * Writes the dump still asked for, if any, and stops the dump thread.
+     * Called after the last {@link #append}.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(dumper);
+        try {
+            dumper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // Gone already
+            }
+        }
+    }
+
+    public void report(PrintStream out) {
+        out.println("\n---------Flight Recorder---------");
+        out.printf("Triggers: %d (%d combined with another dump)\n", triggers.get(), combined.get());
+        out.printf("Dumps: %d written, %d failed\n", dumps, failed);
+        if (lastFile != null) {
+            out.printf("Last dump: %s\n", lastFile);
+        }
+        if (tooLarge > 0) {
+            out.printf("Frames larger than the ring: %d\n", tooLarge);
+        }
+    }
+
+    private void dumpLoop() {
+        while (true) {
+            String reason = pending.getAndSet(null);
+            if (reason == null) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.park(this);
+                continue;
+            }
+            Ring full;
+            synchronized (this) {
+                full = active;
+                active = spare;
+            }
+            if (full.frames > 0) {
+                write(full, reason);
+                full.clear();
+            } else {
+                // Everything up to the trigger is in the previous dump
+                combined.incrementAndGet();
+            }
+            spare = full;
+            if (!closed) {
+                // Combines a burst of triggers, such as a failing DNS server
+                LockSupport.parkNanos(HOLDOFF_MILLIS * 1000 * 1000);
+            }
+        }
+    }
+
+    private void write(Ring ring, String reason) {
+        Path file = dir.resolve("flight-" + System.currentTimeMillis() + "-" + reason + ".pcap");
+        fileHeader.clear();
+        fileHeader.putInt(PCAP_MAGIC).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0)
+                .putInt(snaplen).putInt(LINKTYPE_ETHERNET);
+        fileHeader.flip();
+        parts[0] = fileHeader;
+        ring.slices(parts);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            while (parts[0].hasRemaining() || parts[1].hasRemaining() || parts[2].hasRemaining()) {
+                channel.write(parts);
+            }
+            dumps++;
+            lastFile = file.toString();
+        } catch (IOException e) {
+            failed++;
+            System.err.printf("Can't write flight recorder dump %s: %s\n", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Off-heap ring of pcap records, oldest first. The records are kept
+     * whole: one that does not fit before the end of the buffer starts again
+     * at the beginning, and the data then runs from head to wrapAt and on
+     * from 0 to tail.
+     */
+    private static final class Ring {
+
+        private final ByteBuffer arena;
+        private final ByteBuffer first;
+        private final ByteBuffer second;
+        private int head;
+        private int tail;
+        private int wrapAt = -1;
+        private long frames;
+        private long bytes;
+
+        Ring(int capacity) {
+            arena = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            first = arena.duplicate();
+            second = arena.duplicate();
+        }
+
+        /**
+         * @return false if the frame can never fit
+         */
+        boolean append(long timestampMicros, int wireLength, ByteBuffer frame, long windowMicros) {
+            int caplen = frame.remaining();
+            int size = RECORD_HEADER + caplen;
+            if (size > arena.capacity()) {
+                return false;
+            }
+            while (frames > 0 && timestampMicros - timestamp(head) > windowMicros) {
+                evict();
+            }
+            if (frames == 0) {
+                head = tail = 0;
+            }
+            while (true) {
+                if (wrapAt < 0) {
+                    if (tail + size <= arena.capacity()) {
+                        break;
+                    }
+                    wrapAt = tail;
+                    tail = 0;
+                }
+                if (tail + size <= head) {
+                    break;
+                }
+                evict();
+            }
+            arena.putInt(tail, (int) (timestampMicros / 1000000));
+            arena.putInt(tail + 4, (int) (timestampMicros % 1000000));
+            arena.putInt(tail + 8, caplen);
+            arena.putInt(tail + 12, wireLength);
+            int position = frame.position();
+            arena.position(tail + RECORD_HEADER);
+            arena.put(frame);
+            frame.position(position);
+            tail += size;
+            frames++;
+            bytes += size;
+            return true;
+        }
+
+        private long timestamp(int record) {
+            return (arena.getInt(record) & 0xffffffffL) * 1000000L + arena.getInt(record + 4);
+        }
+
+        private void evict() {
+            int size = RECORD_HEADER + arena.getInt(head + 8);
+            head += size;
+            frames--;
+            bytes -= size;
+            if (head == wrapAt) {
+                head = 0;
+                wrapAt = -1;
+            }
+        }
+
+        /**
+         * Sets parts[1] and parts[2] to the records, oldest first.
+         */
+        void slices(ByteBuffer[] parts) {
+            first.clear();
+            second.clear();
+            if (frames == 0) {
+                first.limit(0);
+                second.limit(0);
+            } else if (wrapAt < 0) {
+                first.limit(tail).position(head);
+                second.limit(0);
+            } else {
+                first.limit(wrapAt).position(head);
+                second.limit(tail);
+            }
+            parts[1] = first;
+            parts[2] = second;
+        }
+
+        void clear() {
+            head = tail = 0;
+            wrapAt = -1;
+            frames = 0;
+            bytes = 0;
+        }
+    }
+}
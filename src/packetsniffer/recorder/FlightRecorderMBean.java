@@ -0,0 +1,28 @@
+package packetsniffer.recorder;
+
+/**
+ * JMX view of the flight recorder, registered as
+ * {@value FlightRecorder#OBJECT_NAME}.
+ */
+public interface FlightRecorderMBean {
+
+    /**
+     * Dumps the frames recorded so far, like any other trigger.
+     */
+    void dump();
+
+    /**
+     * @return frames currently held
+     */
+    long getFrames();
+
+    /**
+     * @return bytes currently held, including the pcap record headers
+     */
+    long getBytes();
+
+    /**
+     * @return dump files written
+     */
+    long getDumps();
+}
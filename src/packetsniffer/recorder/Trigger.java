@@ -0,0 +1,13 @@
+package packetsniffer.recorder;
+
+/**
+ * Something worth keeping the frames around it for, for example a DNS
+ * server failure. May be fired from any thread.
+ */
+public interface Trigger {
+
+    /**
+     * @param reason short name of the event, used in the dump file name
+     */
+    void fire(String reason);
+}
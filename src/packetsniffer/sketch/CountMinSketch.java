@@ -0,0 +1,83 @@
+package packetsniffer.sketch;
+
+import java.util.Arrays;
+
+/**
+ * Count-Min sketch: estimates how much of a stream belongs to a key in a
+ * fixed amount of memory, however many keys there are.
+ *
+ * Every key adds its count to one cell in each of the rows, and the
+ * estimate is the smallest of those cells. Other keys can only add to a
+ * cell, so the estimate is never too low, and with width w it is too high
+ * by more than e/w of the total with a probability of at most e^-depth.
+ * The cells of a row are picked with double hashing from one 64 bit hash.
+ */
+public final class CountMinSketch {
+
+    private final int depth;
+    private final int mask;
+    private final long[] cells;
+    private long total;
+
+    /**
+     * @param width cells per row, a power of two
+     * @param depth rows
+     */
+    public CountMinSketch(int width, int depth) {
+        if (Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("width must be a power of two: " + width);
+        }
+        this.depth = depth;
+        this.mask = width - 1;
+        this.cells = new long[width * depth];
+    }
+
+    /**
+     * @param key hash of the key, see {@link Hash}
+     * @return the estimate of the key, this count included
+     */
+    public long add(long key, long count) {
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32) | 1;
+        int width = mask + 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, cells[row * width + (h1 + row * h2 & mask)] += count);
+        }
+        total += count;
+        return min;
+    }
+
+    public long estimate(long key) {
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32) | 1;
+        int width = mask + 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, cells[row * width + (h1 + row * h2 & mask)]);
+        }
+        return min;
+    }
+
+    /**
+     * @return sum of all counts added
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Adds the counts of a sketch of the same size.
+     */
+    public void merge(CountMinSketch other) {
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] += other.cells[i];
+        }
+        total += other.total;
+    }
+
+    public void clear() {
+        Arrays.fill(cells, 0);
+        total = 0;
+    }
+}
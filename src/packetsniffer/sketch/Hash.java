@@ -0,0 +1,28 @@
+package packetsniffer.sketch;
+
+/**
+ * 64 bit hashes for the sketches. The finalizer of MurmurHash3 spreads every
+ * input bit over the whole result, so keys that differ in a few bits, such
+ * as neighbouring addresses, end up in unrelated cells.
+ */
+public final class Hash {
+
+    private Hash() {
+    }
+
+    public static long mix64(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Hashes a 128 bit key, for example an IPv6 address.
+     */
+    public static long mix64(long hi, long lo) {
+        return mix64(hi ^ mix64(lo));
+    }
+}
@@ -0,0 +1,72 @@
+package packetsniffer.sketch;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog: estimates the number of distinct keys in a stream with one
+ * byte per register. The first bits of a key's hash pick a register, which
+ * keeps the longest run of leading zeros seen in the rest. With 2^p
+ * registers the standard error is about 1.04 / sqrt(2^p). Small counts,
+ * where registers are still empty, are estimated by linear counting.
+ */
+public final class HyperLogLog {
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param precision number of hash bits that pick the register, 4 to 18
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be between 4 and 18: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * @param key hash of the key, see {@link Hash}
+     */
+    public void add(long key) {
+        int register = (int) (key >>> (64 - precision));
+        // The marker bit keeps the run finite when the remaining bits are all zero
+        int run = Long.numberOfLeadingZeros(key << precision | 1L << (precision - 1)) + 1;
+        if (run > registers[register]) {
+            registers[register] = (byte) run;
+        }
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Adds the keys of a sketch of the same precision.
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(registers, (byte) 0);
+    }
+}
@@ -0,0 +1,334 @@
+package packetsniffer.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Space-Saving: keeps the heaviest keys of a stream in a fixed number of
+ * entries.
+ *
+ * A key that has an entry adds to its count. A new key takes over the
+ * entry with the smallest count when all are in use, and starts from that
+ * count, which is remembered as its possible error. Every key whose true
+ * count is above total / capacity is guaranteed an entry, and no count is
+ * too low. The entries are kept in a min-heap by count, so the entry to
+ * give up is always at the top, and found through an open addressing
+ * index by key.
+ *
+ * An entry carries two longs and a short label that the caller sets when
+ * the entry is taken over, such as the address or name the key was hashed
+ * from.
+ */
+public final class SpaceSaving {
+
+    /**
+     * Returned by {@link #offer(long, long, long)} for a key that did not
+     * get an entry
+     */
+    public static final int SKIPPED = Integer.MIN_VALUE;
+
+    private final int capacity;
+    private final long[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private final long[] hi;
+    private final long[] lo;
+    private final int labelCapacity;
+    private final byte[] labels;
+    private final int[] labelLengths;
+    private int size;
+
+    private final int[] heap;
+    private final int[] heapIndex;
+
+    // Entry + 1 by key hash, 0 for a free slot
+    private final int[] index;
+    private final int indexMask;
+
+    /**
+     * @param capacity entries
+     * @param labelCapacity most label bytes per entry, 0 for none
+     */
+    public SpaceSaving(int capacity, int labelCapacity) {
+        this.capacity = capacity;
+        keys = new long[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        hi = new long[capacity];
+        lo = new long[capacity];
+        this.labelCapacity = labelCapacity;
+        labels = new byte[capacity * labelCapacity];
+        labelLengths = new int[capacity];
+        heap = new int[capacity];
+        heapIndex = new int[capacity];
+        int indexSize = Integer.highestOneBit(Math.max(2, capacity - 1)) << 2;
+        index = new int[indexSize];
+        indexMask = indexSize - 1;
+    }
+
+    /**
+     * Adds to the count of a key.
+     *
+     * @param key hash of the key, see {@link Hash}
+     * @return the key's entry, or ~entry if the key has just taken it over
+     * and its values and label have to be set
+     */
+    public int offer(long key, long count) {
+        int entry = find(key);
+        if (entry >= 0) {
+            counts[entry] += count;
+            down(heapIndex[entry]);
+            return entry;
+        }
+        if (size < capacity) {
+            return ~insert(key, count, 0);
+        }
+        return ~replace(key, counts[heap[0]] + count, counts[heap[0]]);
+    }
+
+    /**
+     * Adds to the count of a key that a larger sketch, such as a
+     * {@link CountMinSketch}, counts as well. A key without an entry only
+     * takes over the smallest one if its estimate is larger, and starts from
+     * the estimate instead of from the smallest count. The light keys of a
+     * scan or a flood then no longer take turns in the entries, which costs
+     * far more than counting them.
+     *
+     * @param estimate the other sketch's count of the key, at least its true
+     * count, this count included
+     * @return like {@link #offer(long, long)}, or {@link #SKIPPED} if the key
+     * did not get an entry
+     */
+    public int offer(long key, long count, long estimate) {
+        int entry = find(key);
+        if (entry >= 0) {
+            counts[entry] += count;
+            down(heapIndex[entry]);
+            return entry;
+        }
+        if (size < capacity) {
+            return ~insert(key, estimate, estimate - count);
+        }
+        if (estimate <= counts[heap[0]]) {
+            return SKIPPED;
+        }
+        return ~replace(key, estimate, estimate - count);
+    }
+
+    private int find(long key) {
+        int slot = (int) key & indexMask;
+        while (index[slot] != 0) {
+            int entry = index[slot] - 1;
+            if (keys[entry] == key) {
+                return entry;
+            }
+            slot = slot + 1 & indexMask;
+        }
+        return -1;
+    }
+
+    private int insert(long key, long count, long error) {
+        int entry = size++;
+        counts[entry] = count;
+        errors[entry] = error;
+        heap[entry] = entry;
+        heapIndex[entry] = entry;
+        up(entry);
+        assign(entry, key);
+        return entry;
+    }
+
+    /**
+     * Gives the entry with the smallest count to a new key.
+     */
+    private int replace(long key, long count, long error) {
+        int entry = heap[0];
+        remove(keys[entry]);
+        counts[entry] = count;
+        errors[entry] = error;
+        down(0);
+        assign(entry, key);
+        return entry;
+    }
+
+    private void assign(int entry, long key) {
+        int slot = (int) key & indexMask;
+        while (index[slot] != 0) {
+            slot = slot + 1 & indexMask;
+        }
+        index[slot] = entry + 1;
+        keys[entry] = key;
+        hi[entry] = 0;
+        lo[entry] = 0;
+        labelLengths[entry] = 0;
+    }
+
+    public void set(int entry, long hiValue, long loValue) {
+        hi[entry] = hiValue;
+        lo[entry] = loValue;
+    }
+
+    /**
+     * Copies the label of an entry, cut to the label capacity.
+     */
+    public void setLabel(int entry, ByteBuffer buffer, int offset, int length) {
+        length = Math.min(length, labelCapacity);
+        for (int i = 0; i < length; i++) {
+            labels[entry * labelCapacity + i] = buffer.get(offset + i);
+        }
+        labelLengths[entry] = length;
+    }
+
+    /**
+     * Adds the entries of another summary, as if its stream had been
+     * offered here too.
+     */
+    public void merge(SpaceSaving other) {
+        for (int e = 0; e < other.size; e++) {
+            int entry = offer(other.keys[e], other.counts[e]);
+            if (entry < 0) {
+                entry = ~entry;
+                hi[entry] = other.hi[e];
+                lo[entry] = other.lo[e];
+                int length = Math.min(other.labelLengths[e], labelCapacity);
+                System.arraycopy(other.labels, e * other.labelCapacity, labels, entry * labelCapacity, length);
+                labelLengths[entry] = length;
+            }
+            errors[entry] += other.errors[e];
+        }
+    }
+
+    public void clear() {
+        size = 0;
+        Arrays.fill(index, 0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long key(int entry) {
+        return keys[entry];
+    }
+
+    /**
+     * @return the count of an entry, at least the true count of its key
+     */
+    public long count(int entry) {
+        return counts[entry];
+    }
+
+    /**
+     * @return how much of the count may belong to keys that had the entry
+     * before
+     */
+    public long error(int entry) {
+        return errors[entry];
+    }
+
+    public long hi(int entry) {
+        return hi[entry];
+    }
+
+    public long lo(int entry) {
+        return lo[entry];
+    }
+
+    public byte[] labels() {
+        return labels;
+    }
+
+    public int labelOffset(int entry) {
+        return entry * labelCapacity;
+    }
+
+    public int labelLength(int entry) {
+        return labelLengths[entry];
+    }
+
+    /**
+     * @return up to n entries with the largest counts, largest first; this
+     * allocates and is meant for reports
+     */
+    public int[] top(int n) {
+        int[] order = new int[size];
+        for (int e = 0; e < size; e++) {
+            order[e] = e;
+        }
+        // Selection sort of the first n, n is small
+        n = Math.min(n, size);
+        for (int i = 0; i < n; i++) {
+            int best = i;
+            for (int j = i + 1; j < size; j++) {
+                if (counts[order[j]] > counts[order[best]]) {
+                    best = j;
+                }
+            }
+            int t = order[i];
+            order[i] = order[best];
+            order[best] = t;
+        }
+        return Arrays.copyOf(order, n);
+    }
+
+    /**
+     * Removes a key from the index, moving later keys of its probe run back
+     * so that lookups never stop at the hole.
+     */
+    private void remove(long key) {
+        int slot = (int) key & indexMask;
+        while (keys[index[slot] - 1] != key) {
+            slot = slot + 1 & indexMask;
+        }
+        int hole = slot;
+        while (true) {
+            slot = slot + 1 & indexMask;
+            if (index[slot] == 0) {
+                break;
+            }
+            int home = (int) keys[index[slot] - 1] & indexMask;
+            // Move the entry back unless its home lies cyclically in (hole, slot]
+            if ((slot - home & indexMask) >= (slot - hole & indexMask)) {
+                index[hole] = index[slot];
+                hole = slot;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    private void up(int i) {
+        int entry = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[entry]) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heapIndex[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = entry;
+        heapIndex[entry] = i;
+    }
+
+    private void down(int i) {
+        int entry = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[child]] >= counts[entry]) {
+                break;
+            }
+            heap[i] = heap[child];
+            heapIndex[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = entry;
+        heapIndex[entry] = i;
+    }
+}
@@ -0,0 +1,305 @@
+package packetsniffer.source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Reads pcap and pcapng files in plain Java, without libpcap.
+ *
+ * The file is mapped into memory a window at a time and each frame is
+ * handed over as a view of the mapping, so reading a file copies nothing
+ * and makes no system call per frame. Both byte orders are read, pcap
+ * files with microsecond or nanosecond timestamps, and pcapng files with
+ * any number of sections and interfaces, their timestamp resolution and
+ * offset. Only Ethernet is decoded: a pcap file of another link type is
+ * refused, pcapng frames of such interfaces are skipped.
+ *
+ * A {@link ProtocolFilter} stands in for the libpcap filter, frames it
+ * does not match are skipped before they are handed over.
+ *
+ * Not thread safe, except for {@link #stop()}.
+ */
+public final class CaptureFileReader implements PacketSource {
+
+    /** Most bytes of the file mapped at once */
+    static final long WINDOW = 256L * 1024 * 1024;
+
+    private static final int PCAP_MICROS = 0xa1b2c3d4;
+    private static final int PCAP_NANOS = 0xa1b23c4d;
+    private static final int PCAP_HEADER = 24;
+    private static final int PCAP_RECORD_HEADER = 16;
+    private static final int PCAPNG_SECTION = 0x0A0D0D0A;
+    private static final int PCAPNG_BYTE_ORDER = 0x1A2B3C4D;
+    private static final int PCAPNG_INTERFACE = 1;
+    private static final int PCAPNG_PACKET = 2;
+    private static final int PCAPNG_SIMPLE_PACKET = 3;
+    private static final int PCAPNG_ENHANCED_PACKET = 6;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_TSRESOL = 9;
+    private static final int OPTION_TSOFFSET = 14;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final long MICROS = 1000 * 1000;
+
+    private final Path file;
+    private final String name;
+    private final int snaplen;
+    private final ProtocolFilter filter;
+    private final FileChannel channel;
+    private final long size;
+    private ByteOrder order;
+    private long windowStart;
+    private MappedByteBuffer window;
+    // Views of the window: header fields in file order, frames in network order
+    private ByteBuffer fields;
+    private ByteBuffer frame;
+    private volatile boolean stopped;
+    private long skipped;
+
+    // Interfaces of the current pcapng section
+    private int interfaces;
+    private int[] linkTypes = new int[4];
+    private long[] unitsPerSecond = new long[4];
+    private long[] offsetMicros = new long[4];
+    private long lastTimestamp;
+
+    /**
+     * @param snaplen longer frames are cut to this length
+     * @param filter frames to hand over, null for all
+     * @throws IOException if the file cannot be opened
+     */
+    public CaptureFileReader(Path file, int snaplen, ProtocolFilter filter) throws IOException {
+        this.file = file;
+        this.name = file.toString();
+        this.snaplen = snaplen;
+        this.filter = filter;
+        this.channel = FileChannel.open(file);
+        this.size = channel.size();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void capture(Handler handler) throws IOException {
+        skipped = 0;
+        if (size < 12) {
+            throw new IOException(file + ": not a pcap or pcapng file");
+        }
+        setOrder(ByteOrder.LITTLE_ENDIAN);
+        ensure(0, 12);
+        int magic = fields.getInt(0);
+        if (magic == PCAPNG_SECTION) {
+            readPcapng(handler);
+        } else if (magic == PCAP_MICROS || magic == PCAP_NANOS) {
+            readPcap(handler, magic == PCAP_NANOS);
+        } else if (magic == Integer.reverseBytes(PCAP_MICROS) || magic == Integer.reverseBytes(PCAP_NANOS)) {
+            setOrder(ByteOrder.BIG_ENDIAN);
+            readPcap(handler, magic == Integer.reverseBytes(PCAP_NANOS));
+        } else {
+            throw new IOException(file + ": not a pcap or pcapng file");
+        }
+        if (skipped > 0) {
+            System.err.printf("%s: skipped %d frames that are not Ethernet\n", file, skipped);
+        }
+    }
+
+    private void readPcap(Handler handler, boolean nanos) throws IOException {
+        if (size < PCAP_HEADER) {
+            throw new IOException(file + ": truncated file header");
+        }
+        ensure(0, PCAP_HEADER);
+        // The upper bits may describe a frame check sequence
+        int linkType = fields.getInt(20) & 0xFFFF;
+        if (linkType != LINKTYPE_ETHERNET) {
+            throw new IOException(file + ": link type " + linkType + " is not supported, only Ethernet");
+        }
+        long position = PCAP_HEADER;
+        while (position < size && !stopped) {
+            if (size - position < PCAP_RECORD_HEADER) {
+                throw new IOException(file + ": truncated record at offset " + position);
+            }
+            ensure(position, PCAP_RECORD_HEADER);
+            int at = (int) (position - windowStart);
+            long seconds = fields.getInt(at) & 0xFFFFFFFFL;
+            long fraction = fields.getInt(at + 4) & 0xFFFFFFFFL;
+            int caplen = fields.getInt(at + 8);
+            int wireLength = fields.getInt(at + 12);
+            long end = position + PCAP_RECORD_HEADER + caplen;
+            if (caplen < 0 || end > size) {
+                throw new IOException(file + ": truncated record at offset " + position);
+            }
+            ensure(position, PCAP_RECORD_HEADER + caplen);
+            deliver(handler, seconds * MICROS + (nanos ? fraction / 1000 : fraction), wireLength,
+                    position + PCAP_RECORD_HEADER, caplen);
+            position = end;
+        }
+    }
+
+    private void readPcapng(Handler handler) throws IOException {
+        long position = 0;
+        while (position < size && !stopped) {
+            if (size - position < 12) {
+                throw new IOException(file + ": truncated block at offset " + position);
+            }
+            ensure(position, 12);
+            int at = (int) (position - windowStart);
+            int type = fields.getInt(at);
+            if (type == PCAPNG_SECTION) {
+                // A section may change the byte order, the magic reads the same in both
+                int byteOrder = fields.getInt(at + 8);
+                if (byteOrder == Integer.reverseBytes(PCAPNG_BYTE_ORDER)) {
+                    setOrder(order == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                } else if (byteOrder != PCAPNG_BYTE_ORDER) {
+                    throw new IOException(file + ": invalid section at offset " + position);
+                }
+                interfaces = 0;
+            }
+            long length = fields.getInt(at + 4) & 0xFFFFFFFFL;
+            if (length < 12 || length % 4 != 0 || position + length > size) {
+                throw new IOException(file + ": invalid block at offset " + position);
+            }
+            if (length > WINDOW) {
+                throw new IOException(file + ": block of " + length + " bytes at offset " + position);
+            }
+            ensure(position, (int) length);
+            at = (int) (position - windowStart);
+            int body = (int) length - 12;
+            if (type == PCAPNG_INTERFACE && body >= 8) {
+                addInterface(fields.getShort(at + 8) & 0xFFFF, at + 16, at + 8 + body);
+            } else if (type == PCAPNG_ENHANCED_PACKET && body >= 20) {
+                packet(handler, fields.getInt(at + 8), at + 12, fields.getInt(at + 20), fields.getInt(at + 24),
+                        at + 28, body - 20, position);
+            } else if (type == PCAPNG_PACKET && body >= 20) {
+                packet(handler, fields.getShort(at + 8) & 0xFFFF, at + 12, fields.getInt(at + 20),
+                        fields.getInt(at + 24), at + 28, body - 20, position);
+            } else if (type == PCAPNG_SIMPLE_PACKET && body >= 4) {
+                // No interface and no timestamp: the first interface, the time of the frame before
+                int wireLength = fields.getInt(at + 8);
+                packet(handler, 0, -1, Math.min(wireLength, body - 4), wireLength, at + 12, body - 4, position);
+            }
+            position += length;
+        }
+    }
+
+    private void addInterface(int linkType, int options, int end) {
+        if (interfaces == linkTypes.length) {
+            linkTypes = Arrays.copyOf(linkTypes, interfaces * 2);
+            unitsPerSecond = Arrays.copyOf(unitsPerSecond, interfaces * 2);
+            offsetMicros = Arrays.copyOf(offsetMicros, interfaces * 2);
+        }
+        long units = MICROS;
+        long offset = 0;
+        while (options + 4 <= end) {
+            int code = fields.getShort(options) & 0xFFFF;
+            int length = fields.getShort(options + 2) & 0xFFFF;
+            if (code == OPTION_END || options + 4 + length > end) {
+                break;
+            }
+            if (code == OPTION_TSRESOL && length >= 1) {
+                int resolution = fields.get(options + 4);
+                if ((resolution & 0x80) != 0) {
+                    units = 1L << Math.min(resolution & 0x7F, 62);
+                } else {
+                    units = 1;
+                    for (int i = 0; i < Math.min(resolution, 18); i++) {
+                        units *= 10;
+                    }
+                }
+            } else if (code == OPTION_TSOFFSET && length >= 8) {
+                offset = fields.getLong(options + 4) * MICROS;
+            }
+            options += 4 + (length + 3 & ~3);
+        }
+        linkTypes[interfaces] = linkType;
+        unitsPerSecond[interfaces] = units;
+        offsetMicros[interfaces] = offset;
+        interfaces++;
+    }
+
+    /**
+     * @param timestamp index of the two timestamp words, -1 if there are none
+     * @param room bytes of the block left for the frame
+     */
+    private void packet(Handler handler, int id, int timestamp, int caplen, int wireLength, int data, int room,
+            long position) throws IOException {
+        if (id < 0 || id >= interfaces) {
+            throw new IOException(file + ": frame of an undescribed interface at offset " + position);
+        }
+        if (caplen < 0 || caplen > room) {
+            throw new IOException(file + ": invalid frame length at offset " + position);
+        }
+        if (linkTypes[id] != LINKTYPE_ETHERNET) {
+            skipped++;
+            return;
+        }
+        if (timestamp >= 0) {
+            long units = (long) fields.getInt(timestamp) << 32 | fields.getInt(timestamp + 4) & 0xFFFFFFFFL;
+            lastTimestamp = toMicros(units, unitsPerSecond[id]) + offsetMicros[id];
+        }
+        deliver(handler, lastTimestamp, wireLength, windowStart + data, caplen);
+    }
+
+    private static long toMicros(long units, long perSecond) {
+        if (perSecond == MICROS) {
+            return units;
+        }
+        if (perSecond % MICROS == 0) {
+            return units / (perSecond / MICROS);
+        }
+        return units / perSecond * MICROS + (long) ((double) (units % perSecond) * MICROS / perSecond);
+    }
+
+    /**
+     * Hands a frame in the window to the handler.
+     */
+    private void deliver(Handler handler, long timestampMicros, int wireLength, long position, int caplen) {
+        int at = (int) (position - windowStart);
+        frame.clear();
+        frame.position(at);
+        frame.limit(at + Math.min(caplen, snaplen));
+        if (filter == null || filter.matches(frame)) {
+            handler.frame(timestampMicros, wireLength, frame);
+        }
+    }
+
+    /**
+     * Maps the window again unless it already holds {@code length} bytes
+     * from {@code position}.
+     */
+    private void ensure(long position, int length) throws IOException {
+        if (window != null && position >= windowStart && position + length <= windowStart + window.capacity()) {
+            return;
+        }
+        if (length > WINDOW) {
+            throw new IOException(file + ": record of " + length + " bytes at offset " + position);
+        }
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+        windowStart = position;
+        fields = window.duplicate().order(order);
+        frame = window.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private void setOrder(ByteOrder order) {
+        this.order = order;
+        if (fields != null) {
+            fields.order(order);
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.printf("Can't close %s: %s\n", file, e.getMessage());
+        }
+    }
+}
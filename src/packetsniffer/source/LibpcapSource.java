@@ -0,0 +1,58 @@
+package packetsniffer.source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jnetpcap.ByteBufferHandler;
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapHeader;
+
+/**
+ * A live interface, or a capture file that needs a libpcap filter, read
+ * through jnetpcap.
+ *
+ * Frames arrive as a direct buffer over libpcap's own memory, so they are
+ * not copied on the way in and every read after that is a plain memory
+ * access rather than a JNI call.
+ */
+public final class LibpcapSource implements PacketSource, ByteBufferHandler<PacketSource.Handler> {
+
+    private final Pcap pcap;
+    private final String name;
+    private final int snaplen;
+
+    /**
+     * @param pcap an open handle, closed by {@link #close()}
+     * @param snaplen longer frames are cut to this length
+     */
+    public LibpcapSource(Pcap pcap, String name, int snaplen) {
+        this.pcap = pcap;
+        this.name = name;
+        this.snaplen = snaplen;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void capture(Handler handler) throws IOException {
+        if (pcap.loop(Pcap.LOOP_INFINITE, this, handler) == Pcap.ERROR) {
+            throw new IOException(pcap.getErr());
+        }
+    }
+
+    public void nextPacket(PcapHeader header, ByteBuffer buffer, Handler handler) {
+        if (buffer.remaining() > snaplen) {
+            buffer.limit(buffer.position() + snaplen);
+        }
+        handler.frame(header.timestampInMicros(), header.wirelen(), buffer);
+    }
+
+    public void stop() {
+        pcap.breakloop();
+    }
+
+    public void close() {
+        pcap.close();
+    }
+}
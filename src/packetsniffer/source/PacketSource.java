@@ -0,0 +1,55 @@
+package packetsniffer.source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An interface or capture file that frames are read from.
+ *
+ * Frames are handed over in place, as a view of wherever the source keeps
+ * them, without being copied first: libpcap's buffer for a live capture,
+ * the mapped file for a capture file. The decoder reads them with the
+ * ordinary absolute and bulk {@link ByteBuffer} methods, which is plain
+ * Java in both cases.
+ */
+public interface PacketSource {
+
+    /**
+     * Receives the frames of a source, on the thread that runs
+     * {@link PacketSource#capture}.
+     */
+    interface Handler {
+
+        /**
+         * @param frame the captured bytes between position and limit, in
+         * network byte order. Only valid for the duration of the call; the
+         * handler may move position and limit but has to copy what it wants
+         * to keep.
+         */
+        void frame(long timestampMicros, int wireLength, ByteBuffer frame);
+    }
+
+    /**
+     * @return the interface or file name
+     */
+    String name();
+
+    /**
+     * Reads frames into the handler until the source ends or
+     * {@link #stop()} is called. A file is read from its start each time.
+     *
+     * @throws IOException if reading fails; the frames before the failure
+     * have been handed over
+     */
+    void capture(Handler handler) throws IOException;
+
+    /**
+     * Makes {@link #capture} return soon. Called from another thread.
+     */
+    void stop();
+
+    /**
+     * Releases the source, after the last {@link #capture}.
+     */
+    void close();
+}
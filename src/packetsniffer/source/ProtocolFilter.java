@@ -0,0 +1,97 @@
+package packetsniffer.source;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The tcpdump filter expressions simple enough to be run without libpcap:
+ * one or more of ip, ip6, arp, tcp, udp, icmp and icmp6 joined by "or".
+ *
+ * Frames are tested the way the compiled libpcap program would test them:
+ * untagged Ethernet only, the protocol taken from the IPv4 header or from
+ * the IPv6 header or a fragment header right after it.
+ */
+public final class ProtocolFilter {
+
+    private static final String[] NAMES = {"ip", "ip6", "arp", "tcp", "udp", "icmp", "icmp6"};
+    private static final int IP = 1;
+    private static final int IP6 = 1 << 1;
+    private static final int ARP = 1 << 2;
+    private static final int TCP = 1 << 3;
+    private static final int UDP = 1 << 4;
+    private static final int ICMP = 1 << 5;
+    private static final int ICMP6 = 1 << 6;
+
+    private final int protocols;
+
+    private ProtocolFilter(int protocols) {
+        this.protocols = protocols;
+    }
+
+    /**
+     * @return the filter, or null if the expression needs libpcap
+     */
+    public static ProtocolFilter parse(String expression) {
+        String[] words = expression.trim().split("\\s+");
+        int protocols = 0;
+        for (int i = 0; i < words.length; i++) {
+            if (i % 2 == 1) {
+                if (!words[i].equals("or") || i == words.length - 1) {
+                    return null;
+                }
+                continue;
+            }
+            int bit = -1;
+            for (int k = 0; k < NAMES.length; k++) {
+                if (NAMES[k].equals(words[i])) {
+                    bit = 1 << k;
+                }
+            }
+            if (bit < 0) {
+                return null;
+            }
+            protocols |= bit;
+        }
+        return new ProtocolFilter(protocols);
+    }
+
+    /**
+     * @param frame the frame between position and limit, left unchanged
+     */
+    public boolean matches(ByteBuffer frame) {
+        int x = frame.position();
+        int length = frame.limit() - x;
+        if (length < 14) {
+            return false;
+        }
+        int etherType = frame.getShort(x + 12) & 0xFFFF;
+        if (etherType == 0x0806) {
+            return (protocols & ARP) != 0;
+        }
+        if (etherType == 0x0800) {
+            if ((protocols & IP) != 0) {
+                return true;
+            }
+            if (length < 24) {
+                return false;
+            }
+            int protocol = frame.get(x + 23) & 0xFF;
+            return protocol == 6 && (protocols & TCP) != 0 || protocol == 17 && (protocols & UDP) != 0
+                    || protocol == 1 && (protocols & ICMP) != 0;
+        }
+        if (etherType == 0x86DD) {
+            if ((protocols & IP6) != 0) {
+                return true;
+            }
+            if (length < 54) {
+                return false;
+            }
+            int next = frame.get(x + 20) & 0xFF;
+            if (next == 44 && length > 54) {
+                next = frame.get(x + 54) & 0xFF;
+            }
+            return next == 6 && (protocols & TCP) != 0 || next == 17 && (protocols & UDP) != 0
+                    || next == 58 && (protocols & ICMP6) != 0;
+        }
+        return false;
+    }
+}
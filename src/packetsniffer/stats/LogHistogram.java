@@ -0,0 +1,127 @@
+package packetsniffer.stats;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative values with log-linear buckets, in the style
+ * of HdrHistogram.
+ *
+ * Values below {@link #SUB_BUCKETS} get a bucket each; above that, every
+ * power of two is split into {@code SUB_BUCKETS / 2} equal buckets, so a
+ * recorded value is off by at most 1 / 16 (about 6%) of itself whatever
+ * its size. The whole range of long fits in {@link #BUCKETS} counters, so
+ * recording is a few shifts and an increment and the memory never grows.
+ * Not thread safe; merge per-thread histograms with {@link #add}.
+ */
+public final class LogHistogram {
+
+    private static final int SUB_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    public static final int BUCKETS = (64 - SUB_BITS + 1) * HALF + HALF;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds every value recorded in {@code other}.
+     */
+    public void add(LogHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long min() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value of the bucket holding the percentile, never
+     * more than the largest recorded value; 0 when empty
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        rank = Math.max(1, Math.min(count, rank));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValue(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return number of the bucket that counts {@code value}
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return (shift + 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /**
+     * @return the lowest value counted by a bucket
+     */
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / HALF - 1;
+        return (long) (bucket % HALF + HALF) << shift;
+    }
+
+    static long highestValue(int bucket) {
+        return bucket + 1 < BUCKETS ? lowestValue(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,183 @@
+package packetsniffer.store;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A directory of indexed capture segments, see {@link StoreFormat}.
+ *
+ * Every decoding thread writes through its own {@link StoreWriter}; the
+ * store only hears about a segment once it is sealed, and then retires the
+ * oldest segments while the sealed ones together are larger than the size
+ * limit, or older than the age limit. Age is measured in capture time,
+ * back from the newest frame stored, so replaying an old file does not
+ * retire everything at once. Segments left by earlier runs count too.
+ */
+public final class CaptureStore {
+
+    private final Path directory;
+    private final long segmentSize;
+    private final long maxBytes;
+    private final long maxAgeMicros;
+    private final String prefix;
+    // Sealed segments, the one holding the oldest newest frame first
+    private final PriorityQueue<Segment> segments = new PriorityQueue<Segment>(16, new Comparator<Segment>() {
+        public int compare(Segment a, Segment b) {
+            return Long.compare(a.lastTimestamp, b.lastTimestamp);
+        }
+    });
+    private final List<StoreWriter> writers = new ArrayList<StoreWriter>();
+    private long bytes;
+    private long newest = Long.MIN_VALUE;
+    private long sealed;
+    private long retired;
+
+    private static final class Segment {
+        final Path data;
+        final Path index;
+        final long bytes;
+        final long lastTimestamp;
+
+        Segment(Path data, Path index, long bytes, long lastTimestamp) {
+            this.data = data;
+            this.index = index;
+            this.bytes = bytes;
+            this.lastTimestamp = lastTimestamp;
+        }
+    }
+
+    /**
+     * @param directory where the segments are kept, must exist
+     * @param segmentSize size of each data file in bytes
+     * @param maxBytes most bytes all sealed segments may take, 0 for no limit
+     * @param maxAgeMicros how far back segments are kept, 0 for no limit
+     */
+    public CaptureStore(Path directory, long segmentSize, long maxBytes, long maxAgeMicros) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAgeMicros = maxAgeMicros;
+        // Files of one run sort together and after those of earlier runs
+        this.prefix = "capture-" + System.currentTimeMillis() + "-";
+    }
+
+    /**
+     * Takes stock of the sealed segments already in the directory, so they
+     * are retired in turn.
+     */
+    public void open() throws IOException {
+        for (Path index : files(directory, StoreFormat.INDEX_SUFFIX)) {
+            Path data = dataFile(index);
+            if (!Files.exists(data)) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(index)) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, StoreFormat.HEADER_SIZE);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getLong(StoreFormat.HEADER_MAGIC) != StoreFormat.MAGIC) {
+                    continue;
+                }
+                add(new Segment(data, index, Files.size(data) + channel.size(),
+                        header.getLong(StoreFormat.HEADER_LAST_TIMESTAMP)));
+            } catch (IOException e) {
+                System.err.printf("Skipping %s: %s\n", index, e.getMessage());
+            }
+        }
+        retire();
+    }
+
+    /**
+     * @return a writer for one more decoding thread
+     */
+    public synchronized StoreWriter newWriter() {
+        StoreWriter writer = new StoreWriter(this, prefix + writers.size() + "-", segmentSize);
+        writers.add(writer);
+        return writer;
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    /**
+     * Called by a writer when it has sealed a segment.
+     */
+    synchronized void sealed(Path data, Path index, long dataBytes, long packets, long lastTimestamp)
+            throws IOException {
+        sealed++;
+        add(new Segment(data, index, dataBytes + Files.size(index), lastTimestamp));
+        retire();
+    }
+
+    private void add(Segment segment) {
+        segments.add(segment);
+        bytes += segment.bytes;
+        newest = Math.max(newest, segment.lastTimestamp);
+    }
+
+    private void retire() {
+        while (!segments.isEmpty() && (maxBytes > 0 && bytes > maxBytes
+                || maxAgeMicros > 0 && newest - segments.peek().lastTimestamp > maxAgeMicros)) {
+            Segment oldest = segments.poll();
+            bytes -= oldest.bytes;
+            try {
+                // The index goes first, a data file without one is still scanned
+                Files.deleteIfExists(oldest.index);
+                Files.deleteIfExists(oldest.data);
+                retired++;
+            } catch (IOException e) {
+                System.err.printf("Can't retire %s: %s\n", oldest.data, e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void report(PrintStream out) {
+        long written = 0, dropped = 0;
+        for (StoreWriter writer : writers) {
+            written += writer.written();
+            dropped += writer.dropped();
+        }
+        out.println("\n---------Capture Store---------");
+        out.printf("Frames: %d stored, %d dropped\n", written, dropped);
+        out.printf("Segments: %d sealed, %d retired, %d kept (%d MB)\n", sealed, retired, segments.size(),
+                bytes / (1024 * 1024));
+    }
+
+    /**
+     * Lists the files of the store with a suffix, in the order they were
+     * written for each thread.
+     */
+    static List<Path> files(Path directory, String suffix) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "capture-*" + suffix)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    static Path indexFile(Path data) {
+        String name = data.getFileName().toString();
+        return data.resolveSibling(name.substring(0, name.length() - StoreFormat.DATA_SUFFIX.length())
+                + StoreFormat.INDEX_SUFFIX);
+    }
+
+    static Path dataFile(Path index) {
+        String name = index.getFileName().toString();
+        return index.resolveSibling(name.substring(0, name.length() - StoreFormat.INDEX_SUFFIX.length())
+                + StoreFormat.DATA_SUFFIX);
+    }
+}
@@ -0,0 +1,248 @@
+package packetsniffer.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import packetsniffer.decode.PacketRecord;
+
+import static packetsniffer.store.StoreFormat.*;
+
+/**
+ * Collects the index of the segment being written, and writes it out in
+ * the layout of {@link StoreFormat} when the segment is sealed.
+ *
+ * Every key has a linked list of the blocks it occurs in; a key is only
+ * added once per block, so after the first packet of a flow in a block
+ * the cost per packet is a few table lookups. The arrays grow with the
+ * number of keys and are kept for the next segment. Not thread safe.
+ */
+final class IndexBuilder {
+
+    // Open addressing table of keys, linear probing; the keys are hashes
+    // already, so their low bits pick the slot
+    private long[] keys = new long[1024];
+    private int[] lastBlock = new int[1024];
+    private int[] first = new int[1024];
+    private int[] last = new int[1024];
+    private int[] counts = new int[1024];
+    private boolean[] used = new boolean[1024];
+    private int keyCount;
+
+    // Postings as linked lists: the block and the next node
+    private int[] nodeBlock = new int[4096];
+    private int[] nodeNext = new int[4096];
+    private int nodes;
+
+    private long[] blockOffset = new long[256];
+    private long[] blockMin = new long[256];
+    private long[] blockMax = new long[256];
+    private int blocks;
+    private int inBlock;
+    private long packets;
+
+    /**
+     * Indexes a frame.
+     *
+     * @param offset where its record header starts in the data file
+     */
+    void add(PacketRecord rec, long offset) {
+        long ts = rec.timestampMicros;
+        if (blocks == 0 || inBlock == BLOCK_PACKETS) {
+            if (blocks == blockOffset.length) {
+                blockOffset = Arrays.copyOf(blockOffset, blocks * 2);
+                blockMin = Arrays.copyOf(blockMin, blocks * 2);
+                blockMax = Arrays.copyOf(blockMax, blocks * 2);
+            }
+            blockOffset[blocks] = offset;
+            blockMin[blocks] = ts;
+            blockMax[blocks] = ts;
+            blocks++;
+            inBlock = 0;
+        }
+        int block = blocks - 1;
+        blockMin[block] = Math.min(blockMin[block], ts);
+        blockMax[block] = Math.max(blockMax[block], ts);
+        inBlock++;
+        packets++;
+        if (rec.ipVersion == 0) {
+            return;
+        }
+        add(addressKey(rec.srcAddrHi, rec.srcAddrLo), block);
+        add(addressKey(rec.dstAddrHi, rec.dstAddrLo), block);
+        if (rec.isTcp() || rec.isUdp()) {
+            add(portKey(rec.srcPort), block);
+            add(portKey(rec.dstPort), block);
+        }
+        add(flowKey(rec.flowHash()), block);
+    }
+
+    private void add(long key, int block) {
+        int mask = keys.length - 1;
+        int i = (int) key & mask;
+        while (used[i] && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (used[i]) {
+            if (lastBlock[i] == block) {
+                return;
+            }
+            int node = node(block);
+            nodeNext[last[i]] = node;
+            last[i] = node;
+        } else {
+            used[i] = true;
+            keys[i] = key;
+            first[i] = last[i] = node(block);
+            counts[i] = 0;
+            keyCount++;
+        }
+        lastBlock[i] = block;
+        counts[i]++;
+        if (keyCount * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    private int node(int block) {
+        if (nodes == nodeBlock.length) {
+            nodeBlock = Arrays.copyOf(nodeBlock, nodes * 2);
+            nodeNext = Arrays.copyOf(nodeNext, nodes * 2);
+        }
+        nodeBlock[nodes] = block;
+        nodeNext[nodes] = -1;
+        return nodes++;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldLastBlock = lastBlock;
+        int[] oldFirst = first;
+        int[] oldLast = last;
+        int[] oldCounts = counts;
+        boolean[] oldUsed = used;
+        int size = oldKeys.length * 2;
+        keys = new long[size];
+        lastBlock = new int[size];
+        first = new int[size];
+        last = new int[size];
+        counts = new int[size];
+        used = new boolean[size];
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldUsed[j]) {
+                int i = (int) oldKeys[j] & (size - 1);
+                while (used[i]) {
+                    i = (i + 1) & (size - 1);
+                }
+                used[i] = true;
+                keys[i] = oldKeys[j];
+                lastBlock[i] = oldLastBlock[j];
+                first[i] = oldFirst[j];
+                last[i] = oldLast[j];
+                counts[i] = oldCounts[j];
+            }
+        }
+    }
+
+    long packets() {
+        return packets;
+    }
+
+    long lastTimestamp() {
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < blocks; i++) {
+            max = Math.max(max, blockMax[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Writes the index file.
+     *
+     * @param dataLength bytes of the data file in use
+     */
+    void write(Path file, long dataLength) throws IOException {
+        int[] slots = new int[keyCount];
+        long[] sorted = new long[keyCount];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                sorted[n++] = keys[i];
+            }
+        }
+        Arrays.sort(sorted);
+        for (int k = 0; k < keyCount; k++) {
+            int mask = keys.length - 1;
+            int i = (int) sorted[k] & mask;
+            while (keys[i] != sorted[k] || !used[i]) {
+                i = (i + 1) & mask;
+            }
+            slots[k] = i;
+        }
+        // At most five bytes per block number
+        ByteBuffer postings = ByteBuffer.allocate(nodes * 5);
+        int postingsOffset = HEADER_SIZE + blocks * BLOCK_SIZE + keyCount * KEY_SIZE;
+        ByteBuffer head = ByteBuffer.allocate(postingsOffset).order(ByteOrder.LITTLE_ENDIAN);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int b = 0; b < blocks; b++) {
+            int at = HEADER_SIZE + b * BLOCK_SIZE;
+            head.putLong(at, blockOffset[b]);
+            head.putLong(at + 8, blockMin[b]);
+            head.putLong(at + 16, blockMax[b]);
+            min = Math.min(min, blockMin[b]);
+            max = Math.max(max, blockMax[b]);
+        }
+        for (int k = 0; k < keyCount; k++) {
+            int slot = slots[k];
+            int at = HEADER_SIZE + blocks * BLOCK_SIZE + k * KEY_SIZE;
+            head.putLong(at, keys[slot]);
+            head.putInt(at + 8, postings.position());
+            head.putInt(at + 12, counts[slot]);
+            int previous = -1;
+            for (int node = first[slot]; node >= 0; node = nodeNext[node]) {
+                int delta = nodeBlock[node] - previous;
+                previous = nodeBlock[node];
+                while (delta >= 0x80) {
+                    postings.put((byte) (delta | 0x80));
+                    delta >>>= 7;
+                }
+                postings.put((byte) delta);
+            }
+        }
+        head.putLong(HEADER_MAGIC, MAGIC);
+        head.putShort(HEADER_VERSION, (short) VERSION);
+        head.putShort(HEADER_BLOCK_PACKETS, (short) BLOCK_PACKETS);
+        head.putInt(HEADER_BLOCKS, blocks);
+        head.putLong(HEADER_FIRST_TIMESTAMP, min);
+        head.putLong(HEADER_LAST_TIMESTAMP, max);
+        head.putLong(HEADER_PACKETS, packets);
+        head.putInt(HEADER_KEYS, keyCount);
+        head.putInt(HEADER_POSTINGS, postingsOffset);
+        head.putLong(HEADER_DATA_LENGTH, dataLength);
+        postings.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer[] parts = {head, postings};
+            while (head.hasRemaining() || postings.hasRemaining()) {
+                channel.write(parts);
+            }
+        }
+    }
+
+    /**
+     * Forgets everything for the next segment, keeping the arrays.
+     */
+    void clear() {
+        Arrays.fill(used, false);
+        keyCount = 0;
+        nodes = 0;
+        blocks = 0;
+        inBlock = 0;
+        packets = 0;
+    }
+}
@@ -0,0 +1,134 @@
+package packetsniffer.store;
+
+import java.nio.ByteBuffer;
+
+import packetsniffer.sketch.Hash;
+
+/**
+ * Layout of the capture store files.
+ *
+ * A segment is a pair of files. The data file
+ * {@code <prefix>-<thread>-<segment>.pcap} is a plain little endian pcap
+ * file with microsecond timestamps, so any tool can open it. It is created
+ * at its full size, filled through a memory mapping and cut to its used
+ * length when the segment is sealed; in a segment that was never sealed a
+ * record header of zeros marks the end.
+ *
+ * The index file {@code <same name>.idx} is written when the segment is
+ * sealed. It divides the frames into blocks of {@link #BLOCK_PACKETS} and
+ * keeps, for every address, port and flow seen, the list of blocks it
+ * occurs in. A query reads only the blocks on the lists of what it asks
+ * for and within its time range. Everything is little endian.
+ *
+ * <pre>
+ * Header
+ *   0  8  magic "PSIDX\0\0\0"
+ *   8  2  version
+ *  10  2  packets per block
+ *  12  4  block count
+ *  16  8  lowest timestamp (microseconds)
+ *  24  8  highest timestamp
+ *  32  8  packets
+ *  40  4  key count
+ *  44  4  offset of the postings in this file
+ *  48  8  bytes of the data file in use
+ *  56  8  reserved
+ *
+ * Block, 24 bytes each
+ *   0  8  offset of the first record header in the data file
+ *   8  8  lowest timestamp in the block
+ *  16  8  highest timestamp in the block
+ *
+ * Key, 16 bytes each, sorted by key as signed longs
+ *   0  8  key, see {@link #addressKey}, {@link #portKey} and {@link #flowKey}
+ *   8  4  offset of the key's postings from the start of the postings
+ *  12  4  number of blocks in the postings
+ *
+ * Postings
+ *   the block numbers of a key in increasing order, each as the
+ *   difference to the previous one (the first to -1) in 7 bit groups,
+ *   low group first, the high bit set on all but the last group
+ * </pre>
+ *
+ * Keys are 64 bit hashes, so now and then a block is read that does not
+ * hold what the query asks for; the frames are always checked.
+ */
+public final class StoreFormat {
+
+    public static final long MAGIC = 0x0000005844495350L; // "PSIDX" read little endian
+    public static final int VERSION = 1;
+
+    public static final String DATA_SUFFIX = ".pcap";
+    public static final String INDEX_SUFFIX = ".idx";
+
+    public static final int BLOCK_PACKETS = 64;
+
+    static final int HEADER_SIZE = 64;
+    static final int BLOCK_SIZE = 24;
+    static final int KEY_SIZE = 16;
+
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 8;
+    static final int HEADER_BLOCK_PACKETS = 10;
+    static final int HEADER_BLOCKS = 12;
+    static final int HEADER_FIRST_TIMESTAMP = 16;
+    static final int HEADER_LAST_TIMESTAMP = 24;
+    static final int HEADER_PACKETS = 32;
+    static final int HEADER_KEYS = 40;
+    static final int HEADER_POSTINGS = 44;
+    static final int HEADER_DATA_LENGTH = 48;
+
+    static final int PCAP_MAGIC = 0xa1b2c3d4;
+    static final int PCAP_SNAPLEN = 262144;
+    static final int LINKTYPE_ETHERNET = 1;
+    static final int PCAP_HEADER_SIZE = 24;
+    static final int PCAP_RECORD_HEADER_SIZE = 16;
+
+    private static final int KIND_ADDRESS = 1;
+    private static final int KIND_PORT = 2;
+    private static final int KIND_FLOW = 3;
+
+    private StoreFormat() {
+    }
+
+    /**
+     * @return the index key of an IP address, in either direction
+     */
+    public static long addressKey(long hi, long lo) {
+        return key(KIND_ADDRESS, hi, lo);
+    }
+
+    /**
+     * @return the index key of a TCP or UDP port, in either direction
+     */
+    public static long portKey(int port) {
+        return key(KIND_PORT, 0, port);
+    }
+
+    /**
+     * @param flowHash {@link packetsniffer.decode.PacketRecord#flowHash()},
+     * the same for both directions
+     * @return the index key of a flow
+     */
+    public static long flowKey(int flowHash) {
+        return key(KIND_FLOW, 0, flowHash);
+    }
+
+    private static long key(int kind, long hi, long lo) {
+        return Hash.mix64(hi + kind * 0x9E3779B97F4A7C15L, lo);
+    }
+
+    /**
+     * Writes a pcap file header, version 2.4, at the start of a little
+     * endian buffer.
+     */
+    static void writePcapHeader(ByteBuffer out) {
+        out.putInt(0, PCAP_MAGIC);
+        out.putShort(4, (short) 2);
+        out.putShort(6, (short) 4);
+        out.putInt(8, 0);
+        out.putInt(12, 0);
+        out.putInt(16, PCAP_SNAPLEN);
+        out.putInt(20, LINKTYPE_ETHERNET);
+    }
+}
@@ -0,0 +1,549 @@
+package packetsniffer.store;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import packetsniffer.decode.PacketDecoder;
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+import packetsniffer.output.TextBuffer;
+
+import static packetsniffer.store.StoreFormat.*;
+
+/**
+ * Finds the frames in a {@link CaptureStore} directory that fall in a time
+ * range and involve given hosts, ports and protocol.
+ *
+ * For every sealed segment whose time range overlaps the query, the index
+ * gives the blocks holding all of the hosts and ports asked for (or the
+ * flow, when both ends are given), and only those blocks are read from
+ * the mapped data file. Segments still being written have no index yet
+ * and are read from start to end. The frames found are decoded again and
+ * checked exactly before they are handed on, in the order they were
+ * stored in each segment.
+ */
+public final class StoreQuery {
+
+    private final Path directory;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private final List<long[]> hosts = new ArrayList<long[]>();
+    private final List<Integer> ports = new ArrayList<Integer>();
+    private int protocol = -1;
+
+    private final PacketDecoder decoder = new PacketDecoder();
+    private final PacketRecord rec = new PacketRecord();
+    private long matched;
+    private long blocksRead;
+    private long blocksTotal;
+    private long segmentsScanned;
+
+    public StoreQuery(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Keeps frames captured from {@code from} up to, but not including,
+     * {@code to}, both in microseconds since the epoch.
+     */
+    public StoreQuery between(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Keeps frames from or to a host. Given more than once, all of the
+     * hosts have to be in the frame.
+     */
+    public StoreQuery host(InetAddress address) {
+        byte[] b = address.getAddress();
+        ByteBuffer bytes = ByteBuffer.wrap(b);
+        if (address instanceof Inet4Address) {
+            hosts.add(new long[]{0, bytes.getInt() & 0xFFFFFFFFL});
+        } else {
+            hosts.add(new long[]{bytes.getLong(), bytes.getLong()});
+        }
+        return this;
+    }
+
+    /**
+     * Keeps TCP and UDP frames from or to a port. Given more than once, all
+     * of the ports have to be in the frame.
+     */
+    public StoreQuery port(int port) {
+        ports.add(port);
+        return this;
+    }
+
+    /**
+     * Keeps frames of one transport protocol, such as
+     * {@link PacketRecord#PROTO_TCP}.
+     */
+    public StoreQuery protocol(int protocol) {
+        this.protocol = protocol;
+        return this;
+    }
+
+    /**
+     * Runs the query, handing every matching frame to {@code consumer}.
+     * The consumer is not closed.
+     *
+     * @return how many frames matched
+     */
+    public long run(RecordConsumer consumer) throws IOException {
+        List<Path> indexed = new ArrayList<Path>();
+        for (Path index : CaptureStore.files(directory, INDEX_SUFFIX)) {
+            if (Files.exists(CaptureStore.dataFile(index))) {
+                indexed.add(index);
+            }
+        }
+        for (Path index : indexed) {
+            searchIndexed(CaptureStore.dataFile(index), index, consumer);
+        }
+        for (Path data : CaptureStore.files(directory, DATA_SUFFIX)) {
+            if (!indexed.contains(CaptureStore.indexFile(data))) {
+                scan(data, consumer);
+            }
+        }
+        consumer.flush();
+        return matched;
+    }
+
+    public long matched() {
+        return matched;
+    }
+
+    /**
+     * @return blocks of indexed segments read by the query
+     */
+    public long blocksRead() {
+        return blocksRead;
+    }
+
+    /**
+     * @return blocks in the indexed segments that were looked at
+     */
+    public long blocksTotal() {
+        return blocksTotal;
+    }
+
+    /**
+     * @return segments without an index that were read in full
+     */
+    public long segmentsScanned() {
+        return segmentsScanned;
+    }
+
+    private void searchIndexed(Path dataFile, Path indexFile, RecordConsumer consumer) throws IOException {
+        ByteBuffer index = map(indexFile);
+        if (index.capacity() < HEADER_SIZE || index.getLong(HEADER_MAGIC) != MAGIC
+                || index.getShort(HEADER_VERSION) != VERSION) {
+            System.err.printf("Skipping %s: not a capture store index\n", indexFile);
+            return;
+        }
+        int blocks = index.getInt(HEADER_BLOCKS);
+        blocksTotal += blocks;
+        if (blocks == 0 || index.getLong(HEADER_LAST_TIMESTAMP) < from
+                || index.getLong(HEADER_FIRST_TIMESTAMP) >= to) {
+            return;
+        }
+        int[] candidates = candidates(index, blocks);
+        if (candidates != null && candidates.length == 0) {
+            return;
+        }
+        long dataLength = index.getLong(HEADER_DATA_LENGTH);
+        ByteBuffer data = map(dataFile);
+        if (data.capacity() < dataLength) {
+            System.err.printf("Skipping %s: shorter than its index\n", dataFile);
+            return;
+        }
+        int n = candidates == null ? blocks : candidates.length;
+        for (int i = 0; i < n; i++) {
+            int b = candidates == null ? i : candidates[i];
+            int at = HEADER_SIZE + b * BLOCK_SIZE;
+            if (index.getLong(at + 16) < from || index.getLong(at + 8) >= to) {
+                continue;
+            }
+            long end = b + 1 < blocks ? index.getLong(at + BLOCK_SIZE) : dataLength;
+            blocksRead++;
+            read(data, (int) index.getLong(at), (int) end, consumer);
+        }
+    }
+
+    /**
+     * @return the blocks holding every key of the query, in increasing
+     * order, or null when the query has no keys
+     */
+    private int[] candidates(ByteBuffer index, int blocks) {
+        if (hosts.size() == 2 && ports.size() == 2 && protocol >= 0 && !Arrays.equals(hosts.get(0), hosts.get(1))
+                && !ports.get(0).equals(ports.get(1))) {
+            // Both ends are known: the flow key alone narrows it most, in
+            // either of the two ways the ports can go with the hosts
+            return union(postings(index, blocks, flowKey(flow(0, 1))), postings(index, blocks, flowKey(flow(1, 0))));
+        }
+        int[] result = null;
+        for (long[] host : hosts) {
+            result = intersect(result, postings(index, blocks, addressKey(host[0], host[1])));
+        }
+        for (int port : ports) {
+            result = intersect(result, postings(index, blocks, portKey(port)));
+        }
+        return result;
+    }
+
+    private int flow(int first, int second) {
+        rec.clear();
+        long[] src = hosts.get(0);
+        long[] dst = hosts.get(1);
+        rec.ipVersion = src[0] == 0 && dst[0] == 0 ? 4 : 6;
+        rec.protocol = protocol;
+        rec.srcAddrHi = src[0];
+        rec.srcAddrLo = src[1];
+        rec.dstAddrHi = dst[0];
+        rec.dstAddrLo = dst[1];
+        rec.srcPort = ports.get(first);
+        rec.dstPort = ports.get(second);
+        return rec.flowHash();
+    }
+
+    /**
+     * Looks a key up in the sorted key table and decodes its postings.
+     */
+    private static int[] postings(ByteBuffer index, int blocks, long key) {
+        int keysAt = HEADER_SIZE + blocks * BLOCK_SIZE;
+        int low = 0;
+        int high = index.getInt(HEADER_KEYS) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int at = keysAt + mid * KEY_SIZE;
+            long k = index.getLong(at);
+            if (k < key) {
+                low = mid + 1;
+            } else if (k > key) {
+                high = mid - 1;
+            } else {
+                int x = index.getInt(HEADER_POSTINGS) + index.getInt(at + 8);
+                int[] result = new int[index.getInt(at + 12)];
+                int block = -1;
+                for (int i = 0; i < result.length; i++) {
+                    int delta = 0;
+                    int shift = 0;
+                    int b;
+                    do {
+                        b = index.get(x++);
+                        delta |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    block += delta;
+                    result[i] = block;
+                }
+                return result;
+            }
+        }
+        return new int[0];
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        if (a == null) {
+            return b;
+        }
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int n = 0;
+        int i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || i < a.length && a[i] < b[j]) {
+                result[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Reads a segment that has no index, up to the first empty record
+     * header.
+     */
+    private void scan(Path dataFile, RecordConsumer consumer) throws IOException {
+        ByteBuffer data = map(dataFile);
+        if (data.capacity() < PCAP_HEADER_SIZE || data.getInt(0) != PCAP_MAGIC) {
+            return;
+        }
+        segmentsScanned++;
+        read(data, PCAP_HEADER_SIZE, data.capacity(), consumer);
+    }
+
+    /**
+     * Decodes and checks the records between two offsets of a data file.
+     */
+    private void read(ByteBuffer data, int at, int end, RecordConsumer consumer) {
+        ByteBuffer frame = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        while (at + PCAP_RECORD_HEADER_SIZE <= end) {
+            int length = data.getInt(at + 8);
+            if (length <= 0 || length > end - at - PCAP_RECORD_HEADER_SIZE) {
+                return;
+            }
+            long ts = (data.getInt(at) & 0xFFFFFFFFL) * 1000000 + data.getInt(at + 4);
+            int wireLength = data.getInt(at + 12);
+            int start = at + PCAP_RECORD_HEADER_SIZE;
+            at = start + length;
+            if (ts < from || ts >= to) {
+                continue;
+            }
+            frame.limit(at).position(start);
+            decoder.decode(ts, wireLength, frame, rec);
+            if (matches(rec)) {
+                matched++;
+                consumer.accept(rec, frame);
+            }
+        }
+    }
+
+    private boolean matches(PacketRecord rec) {
+        if (protocol >= 0 && (rec.ipVersion == 0 || rec.protocol != protocol)) {
+            return false;
+        }
+        for (long[] host : hosts) {
+            if (rec.ipVersion == 0 || !(rec.srcAddrHi == host[0] && rec.srcAddrLo == host[1]
+                    || rec.dstAddrHi == host[0] && rec.dstAddrLo == host[1])) {
+                return false;
+            }
+        }
+        for (int port : ports) {
+            if (!(rec.isTcp() || rec.isUdp()) || rec.isFragment() || rec.srcPort != port && rec.dstPort != port) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    /**
+     * Parses a time given as {@code HH:mm[:ss]} (today), as
+     * {@code yyyy-MM-dd HH:mm[:ss]} with a space or a T, both in the local
+     * time zone, or as seconds since the epoch.
+     *
+     * @return microseconds since the epoch
+     */
+    static long parseTime(String text) {
+        try {
+            return (long) (Double.parseDouble(text) * 1e6);
+        } catch (NumberFormatException e) {
+            // Not a number
+        }
+        LocalDateTime time;
+        try {
+            time = text.length() <= 8 ? LocalDate.now().atTime(LocalTime.parse(text))
+                    : LocalDateTime.parse(text.replace(' ', 'T'));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Can't read the time " + text);
+        }
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() * 1000;
+    }
+
+    /**
+     * Runs a query on a store directory from the command line and prints a
+     * line for each matching frame, or writes them to a pcap file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: StoreQuery <directory> [--from time] [--to time] [--host address]..."
+                    + " [--port number]... [--proto tcp|udp|number] [-w file.pcap]");
+            System.err.println("Times are HH:mm[:ss], yyyy-MM-dd HH:mm[:ss] or seconds since the epoch");
+            return;
+        }
+        StoreQuery query = new StoreQuery(Paths.get(args[0]));
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        String out = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 == args.length) {
+                    System.err.printf("%s needs a value\n", arg);
+                    return;
+                }
+                String value = args[++i];
+                if (arg.equals("--from")) {
+                    from = parseTime(value);
+                } else if (arg.equals("--to")) {
+                    to = parseTime(value);
+                } else if (arg.equals("--host")) {
+                    query.host(InetAddress.getByName(value));
+                } else if (arg.equals("--port")) {
+                    query.port(Integer.parseInt(value));
+                } else if (arg.equals("--proto")) {
+                    query.protocol(value.equalsIgnoreCase("tcp") ? PacketRecord.PROTO_TCP
+                            : value.equalsIgnoreCase("udp") ? PacketRecord.PROTO_UDP : Integer.parseInt(value));
+                } else if (arg.equals("-w")) {
+                    out = value;
+                } else {
+                    System.err.printf("Unknown option %s\n", arg);
+                    return;
+                }
+            }
+        } catch (UnknownHostException e) {
+            System.err.printf("Unknown host %s\n", e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        query.between(from, to);
+        long start = System.nanoTime();
+        if (out != null) {
+            PcapFileWriter writer = new PcapFileWriter(Paths.get(out));
+            try {
+                query.run(writer);
+            } finally {
+                writer.finish();
+            }
+        } else {
+            query.run(new LinePrinter());
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        System.err.printf("Matched %d frames, read %d of %d indexed blocks and %d unindexed segments in %.3f s\n",
+                query.matched(), query.blocksRead(), query.blocksTotal(), query.segmentsScanned(), seconds);
+    }
+
+    /**
+     * Prints one line per frame: time, protocol, endpoints and length.
+     */
+    private static final class LinePrinter implements RecordConsumer {
+        private final TextBuffer line = new TextBuffer(256);
+
+        public void accept(PacketRecord rec, ByteBuffer frame) {
+            line.clear();
+            line.appendDecimal(rec.timestampMicros, 6).append(' ');
+            if (rec.ipVersion == 0) {
+                line.append("0x").appendHex(rec.etherType, 4, false).append(' ').appendMac(rec.srcMac)
+                        .append(" > ").appendMac(rec.dstMac);
+            } else {
+                line.append(rec.isTcp() ? "TCP " : rec.isUdp() ? "UDP " : "IP ");
+                endpoint(rec.ipVersion, rec.srcAddrHi, rec.srcAddrLo, rec.srcPort, rec);
+                line.append(" > ");
+                endpoint(rec.ipVersion, rec.dstAddrHi, rec.dstAddrLo, rec.dstPort, rec);
+                if (!rec.isTcp() && !rec.isUdp()) {
+                    line.append(" proto ").append(rec.protocol);
+                }
+            }
+            line.append(" length ").append(rec.wireLength).append('\n');
+            System.out.write(line.array(), 0, line.length());
+        }
+
+        private void endpoint(int version, long hi, long lo, int port, PacketRecord rec) {
+            if (version == 4) {
+                line.appendIpv4(lo);
+            } else {
+                line.append('[').appendIpv6(hi, lo).append(']');
+            }
+            if ((rec.isTcp() || rec.isUdp()) && !rec.isFragment()) {
+                line.append(':').append(port);
+            }
+        }
+
+        @Override
+        public void flush() {
+            System.out.flush();
+        }
+    }
+
+    /**
+     * Writes the frames to a new little endian pcap file.
+     */
+    private static final class PcapFileWriter implements RecordConsumer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private IOException failure;
+
+        PcapFileWriter(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            writePcapHeader(buffer);
+            buffer.position(PCAP_HEADER_SIZE);
+        }
+
+        public void accept(PacketRecord rec, ByteBuffer frame) {
+            int length = rec.frameEnd - rec.frameOffset;
+            if (buffer.remaining() < PCAP_RECORD_HEADER_SIZE + length) {
+                flush();
+            }
+            buffer.putInt((int) (rec.timestampMicros / 1000000));
+            buffer.putInt((int) (rec.timestampMicros % 1000000));
+            buffer.putInt(length);
+            buffer.putInt(rec.wireLength);
+            int position = frame.position();
+            int limit = frame.limit();
+            frame.limit(rec.frameEnd).position(rec.frameOffset);
+            buffer.put(frame);
+            frame.limit(limit).position(position);
+        }
+
+        @Override
+        public void flush() {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            buffer.clear();
+        }
+
+        void finish() throws IOException {
+            flush();
+            channel.close();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
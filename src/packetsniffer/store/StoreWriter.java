@@ -0,0 +1,155 @@
+package packetsniffer.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+
+import static packetsniffer.store.StoreFormat.PCAP_HEADER_SIZE;
+import static packetsniffer.store.StoreFormat.PCAP_RECORD_HEADER_SIZE;
+
+/**
+ * Appends every frame to the segments of a {@link CaptureStore} and
+ * indexes it on the way.
+ *
+ * Like {@link packetsniffer.output.BinaryRecordWriter}, frames go into a
+ * memory-mapped segment of a fixed size, so storing a frame is one bulk
+ * copy into the mapping. When a segment is full it is sealed: cut to its
+ * used length, its index written next to it and handed to the store,
+ * which retires old segments.
+ *
+ * Belongs to a single decoding thread, which writes its own files.
+ */
+public final class StoreWriter implements RecordConsumer {
+
+    private final CaptureStore store;
+    private final String name;
+    private final long segmentSize;
+    private final IndexBuilder index = new IndexBuilder();
+
+    private Path dataFile;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int used;
+    private int segmentNumber;
+    private long written;
+    private long dropped;
+    private boolean failed;
+
+    StoreWriter(CaptureStore store, String name, long segmentSize) {
+        this.store = store;
+        this.name = name;
+        this.segmentSize = segmentSize;
+    }
+
+    public void accept(PacketRecord rec, ByteBuffer frame) {
+        int length = rec.frameEnd - rec.frameOffset;
+        int size = PCAP_RECORD_HEADER_SIZE + length;
+        if (segment == null || segment.capacity() - used < size) {
+            if (failed || PCAP_HEADER_SIZE + size > segmentSize || !roll()) {
+                dropped++;
+                return;
+            }
+        }
+        long ts = rec.timestampMicros;
+        segment.putInt(used, (int) (ts / 1000000));
+        segment.putInt(used + 4, (int) (ts % 1000000));
+        segment.putInt(used + 8, length);
+        segment.putInt(used + 12, rec.wireLength);
+        // One bulk copy, with the frame's position and limit put back after
+        int position = frame.position();
+        int limit = frame.limit();
+        frame.limit(rec.frameEnd).position(rec.frameOffset);
+        segment.position(used + PCAP_RECORD_HEADER_SIZE);
+        segment.put(frame);
+        frame.limit(limit).position(position);
+        index.add(rec, used);
+        used += size;
+        written++;
+    }
+
+    /**
+     * Seals the segment being written.
+     */
+    @Override
+    public void close() {
+        try {
+            seal();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public long written() {
+        return written;
+    }
+
+    /**
+     * @return frames that were not stored because a segment could not be
+     * created or the frame is larger than a segment
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    private boolean roll() {
+        try {
+            seal();
+            dataFile = store.directory().resolve(String.format("%s%06d%s", name, segmentNumber,
+                    StoreFormat.DATA_SUFFIX));
+            channel = FileChannel.open(dataFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            StoreFormat.writePcapHeader(segment);
+            used = PCAP_HEADER_SIZE;
+            segmentNumber++;
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private void seal() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        // The mapping itself goes away when the buffer is collected
+        segment = null;
+        FileChannel done = channel;
+        channel = null;
+        try {
+            done.truncate(used);
+        } finally {
+            done.close();
+        }
+        Path indexFile = CaptureStore.indexFile(dataFile);
+        index.write(indexFile, used);
+        store.sealed(dataFile, indexFile, used, index.packets(), index.lastTimestamp());
+        index.clear();
+    }
+
+    private void fail(IOException e) {
+        if (!failed) {
+            System.err.printf("Can't write to the capture store %s: %s\n", store.directory(), e.getMessage());
+        }
+        failed = true;
+        segment = null;
+        if (channel != null) {
+            // Opened by roll() before the mapping failed
+            try {
+                channel.close();
+            } catch (IOException closing) {
+                System.err.printf("Can't close %s: %s\n", dataFile, closing.getMessage());
+            }
+            channel = null;
+        }
+    }
+}
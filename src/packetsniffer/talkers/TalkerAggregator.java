@@ -0,0 +1,260 @@
+package packetsniffer.talkers;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import packetsniffer.output.OutputSink;
+import packetsniffer.output.TextBuffer;
+import packetsniffer.sketch.SpaceSaving;
+
+/**
+ * Merges the sketches of all decoding threads and writes the top talkers
+ * of every window.
+ *
+ * Time is cut into slices by capture time, and a window is the last few
+ * slices: one slice per window makes tumbling windows, several make
+ * sliding ones. Each thread hands over a slice when its own packets move
+ * past it. A slice is written once every thread has moved past it, or once
+ * any thread is two slices further, so a thread that gets no packets does
+ * not hold the output back; a slice that arrives after that is merged into
+ * the windows still to be written and counted as late. All memory is
+ * allocated up front: one slice per thread, one per slice of the window
+ * and one to merge the window in.
+ *
+ * Called from the decoding threads, under the aggregator's lock.
+ */
+public final class TalkerAggregator {
+
+    private final long sliceMicros;
+    private final int slices;
+    private final int top;
+    private final OutputSink.Producer output;
+    private final int entries;
+    private final long[] threadSlice;
+    private final TalkerWindow[] ring;
+    private final long[] ringSlice;
+    private final TalkerWindow merged;
+    private final TextBuffer text = new TextBuffer(4096);
+    private int threads;
+    private long next = -1;
+    private long written = -1;
+    private long latest = -1;
+    private long snapshots;
+    private long late;
+
+    /**
+     * @param threads decoding threads
+     * @param windowMicros length of a window
+     * @param sliceMicros how often a window is written, a divisor of the
+     * window length
+     * @param top keys written per dimension
+     * @param output where the windows are written
+     */
+    public TalkerAggregator(int threads, long windowMicros, long sliceMicros, int top, OutputSink.Producer output) {
+        this.sliceMicros = sliceMicros;
+        this.slices = (int) (windowMicros / sliceMicros);
+        this.top = top;
+        this.output = output;
+        // Far more entries than are written keeps the written counts exact
+        // unless the traffic is spread very evenly
+        this.entries = Math.max(64, 8 * top);
+        this.threadSlice = new long[threads];
+        Arrays.fill(threadSlice, -1);
+        this.ring = new TalkerWindow[slices];
+        this.ringSlice = new long[slices];
+        Arrays.fill(ringSlice, -1);
+        for (int i = 0; i < slices; i++) {
+            ring[i] = new TalkerWindow(entries);
+        }
+        this.merged = new TalkerWindow(entries);
+    }
+
+    /**
+     * Creates the consumer of the next decoding thread.
+     */
+    public synchronized TopTalkers newConsumer() {
+        return new TopTalkers(this, threads++, entries);
+    }
+
+    long sliceMicros() {
+        return sliceMicros;
+    }
+
+    /**
+     * @param slice the slice the window belongs to
+     * @param window the thread's sketches of that slice, or null if it had
+     * none
+     * @param nextSlice the slice the thread moves on to, Long.MAX_VALUE when
+     * it has finished
+     */
+    synchronized void publish(int thread, long slice, TalkerWindow window, long nextSlice) {
+        threadSlice[thread] = nextSlice;
+        if (window != null) {
+            latest = Math.max(latest, slice);
+            if (slice <= written) {
+                late++;
+                // Still part of the windows to come if it is recent enough
+                int i = ringIndex(slice);
+                if (ringSlice[i] == slice) {
+                    ring[i].merge(window);
+                }
+            } else {
+                if (next < 0 || slice < next) {
+                    next = slice;
+                }
+                while (slice - next >= slices) {
+                    // The slot is needed before the slice it holds was written
+                    write(next);
+                    advance();
+                    next = Math.min(next, slice);
+                }
+                int i = ringIndex(slice);
+                if (ringSlice[i] != slice) {
+                    ring[i].clear();
+                    ringSlice[i] = slice;
+                }
+                ring[i].merge(window);
+            }
+        }
+        while (next >= 0 && next != Long.MAX_VALUE && complete(next)) {
+            write(next);
+            advance();
+        }
+    }
+
+    /**
+     * @return true if no more of the slice is to be expected
+     */
+    private boolean complete(long slice) {
+        long furthest = -1;
+        boolean all = true;
+        for (long s : threadSlice) {
+            // A thread that has not seen a packet yet does not count
+            if (s >= 0 && s <= slice) {
+                all = false;
+            }
+            if (s != Long.MAX_VALUE) {
+                furthest = Math.max(furthest, s);
+            }
+        }
+        return all || furthest >= slice + 2;
+    }
+
+    /**
+     * Moves on to the next slice that can have a window to write, skipping
+     * quiet stretches without any traffic.
+     */
+    private void advance() {
+        long slice = next + 1;
+        long earliest = Long.MAX_VALUE;
+        boolean finished = true;
+        for (long s : threadSlice) {
+            finished &= s == Long.MAX_VALUE;
+        }
+        for (int i = 0; i < slices; i++) {
+            // Once capture is over, windows that end after it are not written
+            if (ringSlice[i] > slice - slices && ringSlice[i] <= slice && !(finished && slice > latest)) {
+                next = slice;
+                return;
+            }
+            if (ringSlice[i] > slice) {
+                earliest = Math.min(earliest, ringSlice[i]);
+            }
+        }
+        for (long s : threadSlice) {
+            if (s >= slice) {
+                earliest = Math.min(earliest, s);
+            }
+        }
+        next = earliest;
+    }
+
+    private int ringIndex(long slice) {
+        return (int) (slice % slices);
+    }
+
+    /**
+     * Writes the window that ends with a slice.
+     */
+    private void write(long slice) {
+        written = slice;
+        merged.clear();
+        for (int i = 0; i < slices; i++) {
+            if (ringSlice[i] > slice - slices && ringSlice[i] <= slice) {
+                merged.merge(ring[i]);
+            }
+        }
+        if (merged.isEmpty()) {
+            return;
+        }
+        snapshots++;
+        long end = (slice + 1) * sliceMicros;
+        text.clear();
+        text.append("\n---------Top talkers ").append(new Date((end - slices * sliceMicros) / 1000).toString())
+                .append(" - ").append(new Date(end / 1000).toString()).append("---------\n");
+        text.append("Packets: ").append(merged.packets).append(", bytes: ")
+                .append(merged.bytes[TalkerWindow.SOURCES].total()).append('\n');
+        dimension(TalkerWindow.SOURCES, "Sources");
+        dimension(TalkerWindow.PORTS, "Ports");
+        dimension(TalkerWindow.NAMES, "DNS names");
+        output.write(text);
+        output.flush();
+    }
+
+    private void dimension(int d, String title) {
+        SpaceSaving heavy = merged.heavy[d];
+        text.append(title).append(": about ").append(merged.distinct[d].estimate()).append(" distinct, ")
+                .append(merged.bytes[d].total()).append(" bytes\n");
+        for (int entry : heavy.top(top)) {
+            // Both sketches only ever count too much, the smaller is closer
+            long bytes = Math.min(heavy.count(entry), merged.bytes[d].estimate(heavy.key(entry)));
+            text.append("  ").appendPadded(bytes, 14).append(' ');
+            if (d == TalkerWindow.SOURCES) {
+                if (heavy.hi(entry) == 0 && heavy.lo(entry) >>> 32 == 0xFFFF) {
+                    text.appendIpv4(heavy.lo(entry) & 0xFFFFFFFFL);
+                } else {
+                    text.appendIpv6(heavy.hi(entry), heavy.lo(entry));
+                }
+            } else if (d == TalkerWindow.PORTS) {
+                long port = heavy.lo(entry);
+                text.append(port >>> 16 == 6 ? "tcp/" : "udp/").append(port & 0xFFFF);
+            } else {
+                appendName(heavy, entry);
+            }
+            if (heavy.error(entry) > 0) {
+                text.append(" (up to ").append(heavy.error(entry)).append(" bytes of others)");
+            }
+            text.append('\n');
+        }
+    }
+
+    /**
+     * Appends a question name kept in DNS wire format as dotted text.
+     */
+    private void appendName(SpaceSaving heavy, int entry) {
+        byte[] labels = heavy.labels();
+        int x = heavy.labelOffset(entry);
+        int end = x + heavy.labelLength(entry);
+        if (x == end) {
+            text.append("<Root>");
+        }
+        while (x < end) {
+            int length = labels[x++] & 0xFF;
+            for (int i = x; i < Math.min(x + length, end); i++) {
+                int c = labels[i] & 0xFF;
+                text.appendPrintable(c >= 'A' && c <= 'Z' ? c + 32 : c);
+            }
+            x += length;
+            if (x < end) {
+                text.append('.');
+            }
+        }
+    }
+
+    public synchronized void report(PrintStream out) {
+        out.println("\n---------Top Talkers---------");
+        out.printf("Windows written: %d\n", snapshots);
+        out.printf("Late slices: %d\n", late);
+    }
+}
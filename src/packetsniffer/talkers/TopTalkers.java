@@ -0,0 +1,87 @@
+package packetsniffer.talkers;
+
+import java.nio.ByteBuffer;
+
+import packetsniffer.decode.PacketRecord;
+import packetsniffer.decode.RecordConsumer;
+import packetsniffer.sketch.Hash;
+import packetsniffer.sketch.SpaceSaving;
+
+/**
+ * Counts the bytes of one decoding thread per source address, per service
+ * port and per DNS question name into sketches, and hands them to the
+ * {@link TalkerAggregator} whenever the capture time moves into the next
+ * slice.
+ *
+ * IPv4 addresses are kept as IPv4-mapped IPv6 addresses. The service port
+ * of a TCP or UDP packet is the lower of its two ports, which is the
+ * server's in nearly all traffic. DNS bytes count for the first question
+ * name, queries and responses alike.
+ */
+public final class TopTalkers implements RecordConsumer {
+
+    private static final long IPV4_MAPPED = 0xFFFFL << 32;
+    private static final int DNS_QUESTION = 12;
+
+    private final TalkerAggregator aggregator;
+    private final int thread;
+    private final TalkerWindow window;
+    private long slice = -1;
+    private long sliceEnd;
+
+    TopTalkers(TalkerAggregator aggregator, int thread, int entries) {
+        this.aggregator = aggregator;
+        this.thread = thread;
+        this.window = new TalkerWindow(entries);
+    }
+
+    public void accept(PacketRecord rec, ByteBuffer frame) {
+        if (rec.ipVersion == 0) {
+            return;
+        }
+        if (rec.timestampMicros >= sliceEnd) {
+            long next = rec.timestampMicros / aggregator.sliceMicros();
+            // The first call only tells the aggregator where this thread is
+            aggregator.publish(thread, slice, slice >= 0 ? window : null, next);
+            window.clear();
+            slice = next;
+            sliceEnd = (next + 1) * aggregator.sliceMicros();
+        }
+        // Sampled traffic is scaled back up to estimate all of it
+        window.packets += rec.sampleRate;
+        int length = rec.wireLength * rec.sampleRate;
+        long addrHi = rec.srcAddrHi;
+        long addrLo = rec.ipVersion == 4 ? IPV4_MAPPED | rec.srcAddrLo : rec.srcAddrLo;
+        int entry = window.add(TalkerWindow.SOURCES, Hash.mix64(addrHi, addrLo), length);
+        if (entry < 0 && entry != SpaceSaving.SKIPPED) {
+            window.heavy[TalkerWindow.SOURCES].set(~entry, addrHi, addrLo);
+        }
+        if (rec.isTcp() || rec.isUdp()) {
+            long port = (long) rec.protocol << 16 | Math.min(rec.srcPort, rec.dstPort);
+            entry = window.add(TalkerWindow.PORTS, Hash.mix64(port), length);
+            if (entry < 0 && entry != SpaceSaving.SKIPPED) {
+                window.heavy[TalkerWindow.PORTS].set(~entry, 0, port);
+            }
+        }
+        if (rec.appProtocol == PacketRecord.APP_DNS && rec.dnsQnameHash != 0) {
+            entry = window.add(TalkerWindow.NAMES, Hash.mix64(rec.dnsQnameHash), length);
+            if (entry < 0 && entry != SpaceSaving.SKIPPED) {
+                // The decoder only hashes uncompressed names that fit the frame
+                int name = rec.l7Offset + DNS_QUESTION;
+                int end = name;
+                while (frame.get(end) != 0) {
+                    end += 1 + (frame.get(end) & 0xFF);
+                }
+                window.heavy[TalkerWindow.NAMES].setLabel(~entry, frame, name, end - name);
+            }
+        }
+    }
+
+    /**
+     * Hands over the last slice.
+     */
+    @Override
+    public void close() {
+        aggregator.publish(thread, slice, slice >= 0 ? window : null, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,94 @@
+package packetsniffer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import packetsniffer.decode.PacketDecoder;
+import packetsniffer.decode.PacketRecord;
+
+/**
+ * Builds Ethernet frames for the tests, with valid lengths and zero
+ * checksums.
+ */
+public final class TestFrames {
+
+    public static final int CLIENT = 0x0a000005;
+    public static final int SERVER = 0x08080808;
+
+    public static final int FIN = 0x01;
+    public static final int SYN = 0x02;
+    public static final int RST = 0x04;
+    public static final int PSH = 0x08;
+    public static final int ACK = 0x10;
+
+    /** IPv4 flags and fragment offset field with only Don't Fragment set */
+    public static final int DONT_FRAGMENT = 0x4000;
+    public static final int MORE_FRAGMENTS = 0x2000;
+
+    private static final PacketDecoder DECODER = new PacketDecoder();
+
+    private TestFrames() {
+    }
+
+    public static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public static byte[] ethernet(int etherType, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(14 + payload.length);
+        b.putShort((short) 0x0011).putInt(0x22334455);
+        b.putShort((short) 0x6677).putInt(0x8899aabb);
+        b.putShort((short) etherType).put(payload);
+        return b.array();
+    }
+
+    /**
+     * @param fragment the flags and fragment offset field
+     */
+    public static byte[] ipv4(int protocol, int src, int dst, int id, int fragment, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(20 + payload.length);
+        b.put((byte) 0x45).put((byte) 0).putShort((short) (20 + payload.length));
+        b.putShort((short) id).putShort((short) fragment);
+        b.put((byte) 64).put((byte) protocol).putShort((short) 0);
+        b.putInt(src).putInt(dst).put(payload);
+        return b.array();
+    }
+
+    public static byte[] tcp(int srcPort, int dstPort, long seq, long ack, int flags, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(20 + payload.length);
+        b.putShort((short) srcPort).putShort((short) dstPort);
+        b.putInt((int) seq).putInt((int) ack);
+        b.put((byte) 0x50).put((byte) flags).putShort((short) 65535);
+        b.putShort((short) 0).putShort((short) 0).put(payload);
+        return b.array();
+    }
+
+    public static byte[] udp(int srcPort, int dstPort, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(8 + payload.length);
+        b.putShort((short) srcPort).putShort((short) dstPort);
+        b.putShort((short) (8 + payload.length)).putShort((short) 0).put(payload);
+        return b.array();
+    }
+
+    public static byte[] tcp4(int src, int dst, int srcPort, int dstPort, long seq, long ack, int flags,
+            byte[] payload) {
+        return ethernet(PacketRecord.ETHERTYPE_IPV4, ipv4(PacketRecord.PROTO_TCP, src, dst, 1, DONT_FRAGMENT,
+                tcp(srcPort, dstPort, seq, ack, flags, payload)));
+    }
+
+    public static byte[] udp4(int src, int dst, int srcPort, int dstPort, byte[] payload) {
+        return ethernet(PacketRecord.ETHERTYPE_IPV4, ipv4(PacketRecord.PROTO_UDP, src, dst, 1, DONT_FRAGMENT,
+                udp(srcPort, dstPort, payload)));
+    }
+
+    /**
+     * Decodes a frame into a record.
+     *
+     * @return the buffer the record points into
+     */
+    public static ByteBuffer decode(byte[] frame, long timestampMicros, PacketRecord rec) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        DECODER.decode(timestampMicros, frame.length, buffer, rec);
+        return buffer;
+    }
+}
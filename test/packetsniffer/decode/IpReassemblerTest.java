@@ -0,0 +1,85 @@
+package packetsniffer.decode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static packetsniffer.TestFrames.CLIENT;
+import static packetsniffer.TestFrames.MORE_FRAGMENTS;
+import static packetsniffer.TestFrames.SERVER;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import packetsniffer.TestFrames;
+
+public class IpReassemblerTest {
+
+    private final IpReassembler reassembler = new IpReassembler(16, 1 << 20, 30L * 1000 * 1000);
+    private final PacketRecord rec = new PacketRecord();
+    /** A UDP header and 32 bytes of payload, fragmented in 8 byte units */
+    private final byte[] datagram = TestFrames.udp(5353, 53, TestFrames.bytes("0123456789abcdefghijklmnopqrstuv"));
+    private long time = 1;
+
+    private int fragment(int from, int to) {
+        return fragment(from, to, to < datagram.length);
+    }
+
+    private int fragment(int from, int to, boolean more) {
+        int flags = more ? MORE_FRAGMENTS : 0;
+        byte[] frame = TestFrames.ethernet(PacketRecord.ETHERTYPE_IPV4, TestFrames.ipv4(PacketRecord.PROTO_UDP,
+                CLIENT, SERVER, 0x4242, flags | from / 8, Arrays.copyOfRange(datagram, from, to)));
+        ByteBuffer buffer = TestFrames.decode(frame, time++, rec);
+        assertTrue(rec.isFragment());
+        return reassembler.add(rec, buffer);
+    }
+
+    private void assertDatagram(int fragments) {
+        ByteBuffer frame = reassembler.datagram();
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        TestFrames.decode(bytes, time, rec);
+        assertEquals(false, rec.isFragment());
+        assertEquals(5353, rec.srcPort);
+        assertEquals(datagram.length - 8, rec.l7Length);
+        assertEquals("0123456789abcdefghijklmnopqrstuv", new String(bytes, rec.l7Offset, rec.l7Length));
+        assertEquals(fragments, reassembler.datagramFragments());
+    }
+
+    @Test
+    public void reassemblesFragmentsInAnyOrder() {
+        assertEquals(IpReassembler.HELD, fragment(24, 40));
+        assertEquals(IpReassembler.HELD, fragment(0, 16));
+        assertEquals(IpReassembler.COMPLETE, fragment(16, 24));
+        assertDatagram(3);
+        assertEquals(1, reassembler.reassembled());
+    }
+
+    @Test
+    public void ignoresExactDuplicates() {
+        assertEquals(IpReassembler.HELD, fragment(0, 16));
+        assertEquals(IpReassembler.HELD, fragment(0, 16));
+        assertEquals(IpReassembler.COMPLETE, fragment(16, 40));
+        assertDatagram(2);
+        assertEquals(0, reassembler.dropped());
+    }
+
+    @Test
+    public void overlapDropsTheDatagram() {
+        assertEquals(IpReassembler.HELD, fragment(0, 16));
+        assertEquals(IpReassembler.PASS, fragment(8, 24));
+        assertEquals(1, reassembler.dropped());
+        // What came before the overlap is gone, so this does not complete it
+        assertEquals(IpReassembler.HELD, fragment(16, 40));
+        reassembler.close();
+        assertEquals(0, reassembler.reassembled());
+    }
+
+    @Test
+    public void secondLastFragmentDropsTheDatagram() {
+        assertEquals(IpReassembler.HELD, fragment(24, 40));
+        // Claims to be the last fragment, but ends before the one that was
+        assertEquals(IpReassembler.PASS, fragment(8, 16, false));
+        assertEquals(1, reassembler.dropped());
+    }
+}
@@ -0,0 +1,180 @@
+package packetsniffer.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class DnsMessageTest {
+
+    private final DnsMessage dns = new DnsMessage();
+
+    /**
+     * A message with a header for the given number of questions, the rest
+     * written by the caller.
+     */
+    private static ByteBuffer message(int questions) {
+        ByteBuffer b = ByteBuffer.allocate(16 * 1024);
+        b.putShort((short) 0x1234).putShort((short) 0x0100).putShort((short) questions);
+        b.putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        return b;
+    }
+
+    private static void label(ByteBuffer b, String label) {
+        b.put((byte) label.length());
+        for (int i = 0; i < label.length(); i++) {
+            b.put((byte) label.charAt(i));
+        }
+    }
+
+    private static void typeAndClass(ByteBuffer b) {
+        b.putShort((short) DnsMessage.TYPE_A).putShort((short) 1);
+    }
+
+    private boolean wrap(ByteBuffer b) {
+        return dns.wrap(b, 0, b.position());
+    }
+
+    @Test
+    public void readsCompressedNames() {
+        ByteBuffer b = message(2);
+        label(b, "www");
+        label(b, "example");
+        label(b, "com");
+        b.put((byte) 0);
+        typeAndClass(b);
+        int second = b.position();
+        label(b, "mail");
+        b.putShort((short) (0xC000 | 16)); // "example.com"
+        typeAndClass(b);
+        assertTrue(wrap(b));
+        assertEquals(2, dns.recordCount());
+        assertEquals("www.example.com", dns.name(DnsMessage.HEADER_LENGTH));
+        assertEquals("mail.example.com", dns.name(second));
+        int compressed = dns.nameHash(second);
+
+        // The hash ignores case and compression
+        b = message(1);
+        label(b, "Mail");
+        label(b, "EXAMPLE");
+        label(b, "com");
+        b.put((byte) 0);
+        typeAndClass(b);
+        assertTrue(wrap(b));
+        assertEquals(compressed, dns.nameHash(DnsMessage.HEADER_LENGTH));
+    }
+
+    @Test
+    public void rejectsPointerToItself() {
+        ByteBuffer b = message(1);
+        b.putShort((short) (0xC000 | DnsMessage.HEADER_LENGTH));
+        typeAndClass(b);
+        assertFalse(wrap(b));
+        assertEquals(DnsMessage.ERROR_BAD_NAME, dns.error());
+        assertEquals(0, dns.recordCount());
+    }
+
+    @Test
+    public void rejectsPointerLoop() {
+        ByteBuffer b = message(2);
+        label(b, "a");
+        b.put((byte) 0);
+        typeAndClass(b);
+        // Forward to the second name, which points back to the first label
+        int second = b.position();
+        label(b, "b");
+        b.putShort((short) (0xC000 | second + 4));
+        b.putShort((short) (0xC000 | second));
+        typeAndClass(b);
+        assertFalse(wrap(b));
+        assertEquals(DnsMessage.ERROR_BAD_NAME, dns.error());
+        assertEquals(1, dns.recordCount());
+    }
+
+    /**
+     * Question n points at question n - 1, so its name takes n jumps.
+     */
+    private static ByteBuffer pointerChain(int questions) {
+        ByteBuffer b = message(questions);
+        int previous = b.position();
+        label(b, "a");
+        b.put((byte) 0);
+        typeAndClass(b);
+        for (int i = 1; i < questions; i++) {
+            int at = b.position();
+            b.putShort((short) (0xC000 | previous));
+            typeAndClass(b);
+            previous = at;
+        }
+        return b;
+    }
+
+    @Test
+    public void limitsPointerJumps() {
+        assertTrue(wrap(pointerChain(DnsMessage.MAX_POINTERS + 1)));
+        assertFalse(wrap(pointerChain(DnsMessage.MAX_POINTERS + 2)));
+        assertEquals(DnsMessage.ERROR_BAD_NAME, dns.error());
+        assertEquals(DnsMessage.MAX_POINTERS + 1, dns.recordCount());
+    }
+
+    private static String repeat(char c, int n) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            s.append(c);
+        }
+        return s.toString();
+    }
+
+    @Test
+    public void limitsNameLength() {
+        // 255 bytes including the length bytes, the most allowed
+        ByteBuffer b = message(1);
+        label(b, repeat('a', 63));
+        label(b, repeat('b', 63));
+        label(b, repeat('c', 63));
+        label(b, repeat('d', 62));
+        b.put((byte) 0);
+        typeAndClass(b);
+        assertTrue(wrap(b));
+
+        b = message(1);
+        for (int i = 0; i < 4; i++) {
+            label(b, repeat('a', 63));
+        }
+        b.put((byte) 0);
+        typeAndClass(b);
+        assertFalse(wrap(b));
+        assertEquals(DnsMessage.ERROR_BAD_NAME, dns.error());
+    }
+
+    @Test
+    public void rejectsLabelPastTheEnd() {
+        ByteBuffer b = message(1);
+        b.put((byte) 10).put((byte) 'a');
+        assertFalse(wrap(b));
+        assertEquals(DnsMessage.ERROR_BAD_NAME, dns.error());
+        assertEquals(0, dns.recordCount());
+    }
+
+    @Test
+    public void limitsRecordCount() {
+        ByteBuffer b = message(DnsMessage.MAX_RECORDS + 1);
+        for (int i = 0; i <= DnsMessage.MAX_RECORDS; i++) {
+            b.put((byte) 0);
+            typeAndClass(b);
+        }
+        assertFalse(wrap(b));
+        assertEquals(DnsMessage.ERROR_TOO_MANY_RECORDS, dns.error());
+        assertEquals(DnsMessage.MAX_RECORDS, dns.recordCount());
+    }
+
+    @Test
+    public void shortMessage() {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        assertFalse(dns.wrap(b, 0, 8));
+        assertEquals(DnsMessage.ERROR_SHORT, dns.error());
+    }
+}
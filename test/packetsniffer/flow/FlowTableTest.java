@@ -0,0 +1,117 @@
+package packetsniffer.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static packetsniffer.TestFrames.ACK;
+import static packetsniffer.TestFrames.CLIENT;
+import static packetsniffer.TestFrames.PSH;
+import static packetsniffer.TestFrames.RST;
+import static packetsniffer.TestFrames.SERVER;
+import static packetsniffer.TestFrames.SYN;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import packetsniffer.TestFrames;
+import packetsniffer.decode.PacketRecord;
+
+public class FlowTableTest {
+
+    private static final long SECOND = 1000 * 1000;
+
+    private final PacketRecord rec = new PacketRecord();
+    private final int[] evicted = new int[FlowTable.EVICT_REASONS];
+    private final FlowTable table = new FlowTable(64, 3600 * SECOND, new FlowListener() {
+        public void flowEvicted(FlowTable table, int flow, int reason) {
+            evicted[reason]++;
+        }
+    });
+    private long time = SECOND;
+
+    /** Client port of each flow id, 0 if the id is not live */
+    private final int[] portOf = new int[64];
+
+    private int send(int clientPort, int flags) {
+        TestFrames.decode(TestFrames.tcp4(CLIENT, SERVER, clientPort, 80, 1000, 1, flags, new byte[0]), time++, rec);
+        return table.update(rec);
+    }
+
+    private void open(int clientPort) {
+        int flow = send(clientPort, SYN);
+        assertEquals(0, portOf[flow]);
+        portOf[flow] = clientPort;
+    }
+
+    private void reset(int flow) {
+        assertEquals(flow, send(portOf[flow], RST | ACK));
+        portOf[flow] = 0;
+    }
+
+    /**
+     * Every live flow must still be found by its key after the removals
+     * that shifted entries of the index around.
+     */
+    private void assertAllFound() {
+        long created = table.created();
+        for (int flow = 0; flow < portOf.length; flow++) {
+            if (portOf[flow] != 0) {
+                long packets = table.packets(flow, FlowTable.CLIENT);
+                assertEquals(flow, send(portOf[flow], PSH | ACK));
+                assertEquals(packets + 1, table.packets(flow, FlowTable.CLIENT));
+            }
+        }
+        assertEquals(created, table.created());
+    }
+
+    @Test
+    public void findsFlowsAfterRemovals() {
+        for (int port = 40000; port < 40060; port++) {
+            open(port);
+        }
+        assertEquals(60, table.size());
+        for (int flow = 0; flow < portOf.length; flow += 3) {
+            if (portOf[flow] != 0) {
+                reset(flow);
+            }
+        }
+        table.expire(time + 3 * SECOND);
+        time += 3 * SECOND;
+        assertEquals(40, table.size());
+        assertEquals(20, evicted[FlowTable.EVICT_CLOSED]);
+        assertAllFound();
+    }
+
+    @Test
+    public void findsFlowsThroughChurn() {
+        Random random = new Random(42);
+        int nextPort = 1024;
+        for (int round = 0; round < 200; round++) {
+            while (table.size() < 56) {
+                open(nextPort++);
+            }
+            for (int i = 0; i < 8; i++) {
+                int flow = random.nextInt(portOf.length);
+                if (portOf[flow] != 0) {
+                    reset(flow);
+                }
+            }
+            time += 3 * SECOND;
+            table.expire(time);
+            assertAllFound();
+        }
+        assertEquals(0, evicted[FlowTable.EVICT_FULL]);
+    }
+
+    @Test
+    public void newSynReusesPortsOfAClosedFlow() {
+        open(40000);
+        int flow = send(40000, RST | ACK);
+        assertEquals(FlowTable.STATE_RESET, table.state(flow));
+        long created = table.created();
+        assertNotEquals(FlowTable.STATE_RESET, table.state(send(40000, SYN)));
+        assertEquals(created + 1, table.created());
+        assertEquals(1, evicted[FlowTable.EVICT_CLOSED]);
+        assertEquals(1, table.size());
+    }
+}
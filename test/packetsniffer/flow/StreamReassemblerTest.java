@@ -0,0 +1,155 @@
+package packetsniffer.flow;
+
+import static org.junit.Assert.assertEquals;
+import static packetsniffer.TestFrames.ACK;
+import static packetsniffer.TestFrames.CLIENT;
+import static packetsniffer.TestFrames.FIN;
+import static packetsniffer.TestFrames.PSH;
+import static packetsniffer.TestFrames.SERVER;
+import static packetsniffer.TestFrames.SYN;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import packetsniffer.TestFrames;
+import packetsniffer.decode.PacketRecord;
+
+public class StreamReassemblerTest {
+
+    /** Client side of the stream as the listener saw it, gaps as {@code <gap n>} */
+    private final StringBuilder stream = new StringBuilder();
+    private final PacketRecord rec = new PacketRecord();
+    private final FlowTable table = new FlowTable(64, 60L * 1000 * 1000, new FlowListener() {
+        public void flowEvicted(FlowTable table, int flow, int reason) {
+        }
+    });
+    private StreamReassembler reassembler;
+    private long time = 1;
+
+    private void open(int streamLimit) {
+        reassembler = new StreamReassembler(new StreamListener() {
+            public boolean open(int flow, PacketRecord rec) {
+                return true;
+            }
+
+            public void data(int flow, int dir, ByteBuffer buffer, int offset, int length, long timestampMicros) {
+                if (dir == FlowTable.CLIENT) {
+                    for (int i = offset; i < offset + length; i++) {
+                        stream.append((char) buffer.get(i));
+                    }
+                }
+            }
+
+            public void gap(int flow, int dir, int length) {
+                if (dir == FlowTable.CLIENT) {
+                    stream.append("<gap ").append(length).append('>');
+                }
+            }
+
+            public void end(int flow, int dir, long timestampMicros) {
+                if (dir == FlowTable.CLIENT) {
+                    stream.append("<end>");
+                }
+            }
+
+            public void close(int flow) {
+            }
+        }, 1 << 20, streamLimit);
+        send(CLIENT, SYN, 999, 0, "");
+    }
+
+    private void send(int from, int flags, long seq, long ack, String payload) {
+        int to = from == CLIENT ? SERVER : CLIENT;
+        byte[] frame = TestFrames.tcp4(from, to, from == CLIENT ? 40000 : 80, from == CLIENT ? 80 : 40000, seq,
+                ack, flags, TestFrames.bytes(payload));
+        ByteBuffer buffer = TestFrames.decode(frame, time++, rec);
+        int flow = table.update(rec);
+        reassembler.segment(flow, table.direction(), rec, buffer);
+    }
+
+    private void data(long seq, String payload) {
+        send(CLIENT, PSH, seq, 0, payload);
+    }
+
+    @Test
+    public void deliversSegmentsInOrder() {
+        open(1 << 16);
+        data(1000, "GET ");
+        data(1004, "/ HTTP/1.1");
+        assertEquals("GET / HTTP/1.1", stream.toString());
+        assertEquals(0, reassembler.bufferedSegments());
+    }
+
+    @Test
+    public void buffersSegmentsAheadOfAHole() {
+        open(1 << 16);
+        data(1004, "efgh");
+        data(1008, "ijkl");
+        assertEquals("", stream.toString());
+        data(1000, "abcd");
+        assertEquals("abcdefghijkl", stream.toString());
+        assertEquals(2, reassembler.bufferedSegments());
+        assertEquals(0, reassembler.bufferedBytes());
+    }
+
+    @Test
+    public void dropsRetransmittedBytes() {
+        open(1 << 16);
+        data(1000, "abcd");
+        data(1000, "abcd");
+        data(1002, "cdef");
+        data(1000, "abcdefgh");
+        assertEquals("abcdefgh", stream.toString());
+        assertEquals(8, reassembler.deliveredBytes());
+    }
+
+    @Test
+    public void trimsOverlappingBufferedSegments() {
+        open(1 << 16);
+        data(1004, "efgh");
+        data(1002, "cdefghij");
+        data(1000, "ab");
+        assertEquals("abcdefghij", stream.toString());
+    }
+
+    @Test
+    public void overflowSkipsTheHoleWithoutDuplicates() {
+        open(8);
+        data(1005, "WXYZ");
+        // Over the stream limit: the hole before it is given up on
+        data(1005, "WXYZ!!");
+        data(1011, "abcdef");
+        assertEquals("<gap 5>WXYZ!!abcdef", stream.toString());
+        assertEquals(1, reassembler.overflows());
+    }
+
+    @Test
+    public void overflowDeliversOnlyWhatIsMissing() {
+        open(8);
+        data(1004, "efghij");
+        // Buffered data reaches past the segment that overflows
+        data(1006, "ghi");
+        data(1010, "klmn");
+        assertEquals("<gap 4>efghijklmn", stream.toString());
+    }
+
+    @Test
+    public void acknowledgedHoleIsReportedAsGap() {
+        open(1 << 16);
+        data(1000, "abcd");
+        data(1008, "ijkl");
+        send(SERVER, ACK, 5000, 1012, "");
+        assertEquals("abcd<gap 4>ijkl", stream.toString());
+        assertEquals(1, reassembler.gaps());
+        assertEquals(4, reassembler.gapBytes());
+    }
+
+    @Test
+    public void finEndsTheStream() {
+        open(1 << 16);
+        data(1000, "abcd");
+        send(CLIENT, FIN | ACK, 1004, 1, "");
+        assertEquals("abcd<end>", stream.toString());
+    }
+}
@@ -0,0 +1,159 @@
+package packetsniffer.match;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PatternSetTest {
+
+    private static final String[] PATTERNS = {"abcd", "bc", "cdef", "d", "abcdabce", "ee"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static PatternSet compile(String... patterns) {
+        byte[][] bytes = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; i++) {
+            bytes[i] = patterns[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return PatternSet.compile(patterns, bytes);
+    }
+
+    /**
+     * Scans the text in segments split at the given points, carrying the
+     * state across them.
+     *
+     * @return "pattern@end" for each match, end counted from the start of
+     * the text
+     */
+    private static List<String> scan(PatternSet set, ByteBuffer text, int... splits) {
+        final List<String> matches = new ArrayList<String>();
+        int state = PatternSet.START;
+        int from = 0;
+        for (int i = 0; i <= splits.length; i++) {
+            final int base = from;
+            int end = i < splits.length ? splits[i] : text.limit();
+            // Each segment starts at index 0 of its own buffer, like a payload
+            ByteBuffer segment = ((ByteBuffer) text.duplicate().position(from).limit(end)).slice();
+            state = set.scan(segment, 0, end - from, state, new PatternSet.Listener() {
+                public void match(int pattern, int end) {
+                    matches.add(pattern + "@" + (base + end));
+                }
+            });
+            from = end;
+        }
+        return matches;
+    }
+
+    private static List<String> bruteForce(String[] patterns, String text) {
+        List<String> matches = new ArrayList<String>();
+        for (int end = 1; end <= text.length(); end++) {
+            for (int p = 0; p < patterns.length; p++) {
+                if (text.startsWith(patterns[p], end - patterns[p].length())) {
+                    matches.add(p + "@" + end);
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static ByteBuffer heap(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static ByteBuffer direct(String text) {
+        ByteBuffer b = ByteBuffer.allocateDirect(text.length());
+        b.put(text.getBytes(StandardCharsets.ISO_8859_1)).flip();
+        return b;
+    }
+
+    private static void sort(List<String> matches) {
+        // The order of patterns ending at the same byte is not specified
+        String[] sorted = matches.toArray(new String[0]);
+        Arrays.sort(sorted);
+        matches.clear();
+        matches.addAll(Arrays.asList(sorted));
+    }
+
+    @Test
+    public void reportsOverlappingMatches() {
+        PatternSet set = compile(PATTERNS);
+        List<String> matches = scan(set, heap("xabcdefx"));
+        sort(matches);
+        assertEquals(Arrays.asList("0@5", "1@4", "2@7", "3@5"), matches);
+    }
+
+    @Test
+    public void matchesAcrossSegments() {
+        PatternSet set = compile(PATTERNS);
+        String text = "abcdabcdefee";
+        List<String> expected = bruteForce(PATTERNS, text);
+        sort(expected);
+        for (int a = 0; a <= text.length(); a++) {
+            for (int b = a; b <= text.length(); b++) {
+                List<String> heap = scan(set, heap(text), a, b);
+                List<String> direct = scan(set, direct(text), a, b);
+                sort(heap);
+                sort(direct);
+                assertEquals(a + "," + b, expected, heap);
+                assertEquals(a + "," + b, expected, direct);
+            }
+        }
+    }
+
+    @Test
+    public void agreesWithBruteForce() {
+        PatternSet set = compile(PATTERNS);
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            char[] chars = new char[random.nextInt(200)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) ('a' + random.nextInt(6));
+            }
+            String text = new String(chars);
+            int[] splits = new int[random.nextInt(5)];
+            for (int i = 0; i < splits.length; i++) {
+                splits[i] = random.nextInt(text.length() + 1);
+            }
+            Arrays.sort(splits);
+            List<String> expected = bruteForce(PATTERNS, text);
+            List<String> matches = scan(set, heap(text), splits);
+            sort(expected);
+            sort(matches);
+            assertEquals(text, expected, matches);
+        }
+    }
+
+    @Test
+    public void loadsEscapes() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.asList("# comment", "", "a\\\\b", "\\x00\\xff"), StandardCharsets.ISO_8859_1);
+        PatternSet set = PatternSet.load(file);
+        assertEquals(2, set.size());
+        assertEquals("a\\\\b", set.name(0));
+        assertEquals(3, set.length(0));
+        assertEquals(2, set.length(1));
+        List<String> matches = scan(set, ByteBuffer.wrap(new byte[] {'a', '\\', 'b', 0, (byte) 0xff}), 4);
+        assertArrayEquals(new String[] {"0@3", "1@5"}, matches.toArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidEscapes() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.asList("\\x4"), StandardCharsets.ISO_8859_1);
+        PatternSet.load(file);
+    }
+}
@@ -0,0 +1,131 @@
+package packetsniffer.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import packetsniffer.pipeline.Backpressure;
+
+public class OutputSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private FileChannel channel;
+
+    private OutputSink open(int chunkSize, int chunkCount, Backpressure backpressure) throws IOException {
+        file = folder.newFile();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        return new OutputSink(channel, chunkSize, chunkCount, backpressure);
+    }
+
+    private String close(OutputSink sink) throws IOException {
+        sink.close();
+        channel.close();
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean write(OutputSink.Producer producer, String record) {
+        byte[] bytes = record.getBytes(StandardCharsets.ISO_8859_1);
+        return producer.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void writesRecordsInOrder() throws IOException {
+        OutputSink sink = open(16, 4, Backpressure.BLOCK);
+        OutputSink.Producer producer = sink.newProducer();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(write(producer, "record " + i + "\n"));
+        }
+        producer.flush();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            expected.append("record ").append(i).append('\n');
+        }
+        assertEquals(expected.toString(), close(sink));
+        assertEquals(expected.length(), sink.writtenBytes());
+    }
+
+    @Test
+    public void recordLargerThanAChunkIsNotInterleaved() throws IOException {
+        OutputSink sink = open(16, 4, Backpressure.BLOCK);
+        OutputSink.Producer a = sink.newProducer();
+        OutputSink.Producer b = sink.newProducer();
+        assertTrue(write(a, "AAAAAAAAAAAAAAAAaaaaaaaa\n"));
+        assertTrue(write(b, "BBBB\n"));
+        b.flush();
+        a.flush();
+        assertEquals("AAAAAAAAAAAAAAAAaaaaaaaa\nBBBB\n", close(sink));
+    }
+
+    @Test
+    public void recordTooLargeForThePoolIsDroppedWhole() throws IOException {
+        OutputSink sink = open(16, 4, Backpressure.DROP);
+        OutputSink.Producer producer = sink.newProducer();
+        char[] large = new char[100];
+        Arrays.fill(large, 'x');
+        assertFalse(write(producer, new String(large)));
+        assertTrue(write(producer, "small\n"));
+        producer.flush();
+        assertEquals("small\n", close(sink));
+        assertEquals(1, sink.droppedRecords());
+    }
+
+    @Test
+    public void idleProducerIsFlushedByTheWriter() throws Exception {
+        OutputSink sink = open(1024, 4, Backpressure.BLOCK);
+        OutputSink.Producer producer = sink.newProducer();
+        write(producer, "quiet\n");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.writtenBytes() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("quiet\n", close(sink));
+    }
+
+    @Test
+    public void concurrentProducersKeepRecordsWhole() throws Exception {
+        final OutputSink sink = open(64, 8, Backpressure.BLOCK);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final char c = (char) ('a' + t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    OutputSink.Producer producer = sink.newProducer();
+                    for (int i = 0; i < 2000; i++) {
+                        char[] record = new char[1 + i % 200];
+                        Arrays.fill(record, c);
+                        record[record.length - 1] = '\n';
+                        write(producer, new String(record));
+                    }
+                    producer.flush();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        String[] lines = close(sink).split("\n");
+        assertEquals(4 * 2000, lines.length);
+        for (String line : lines) {
+            for (int i = 1; i < line.length(); i++) {
+                assertEquals(line, line.charAt(0), line.charAt(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package packetsniffer.source;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import packetsniffer.TestFrames;
+
+public class CaptureFileReaderTest {
+
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW = 101;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteBuffer file = ByteBuffer.allocate(4096);
+
+    /*
+     * pcapng blocks, written in the byte order the buffer is set to
+     */
+
+    private int begin(int type) {
+        int start = file.position();
+        file.putInt(type).putInt(0);
+        return start;
+    }
+
+    private void end(int start) {
+        while (file.position() % 4 != 0) {
+            file.put((byte) 0);
+        }
+        int length = file.position() - start + 4;
+        file.putInt(start + 4, length);
+        file.putInt(length);
+    }
+
+    private void section(ByteOrder order) {
+        file.order(order);
+        int start = begin(0x0A0D0D0A);
+        file.putInt(0x1A2B3C4D).putShort((short) 1).putShort((short) 0).putLong(-1);
+        end(start);
+    }
+
+    /**
+     * @param resolution the tsresol option, -1 for none
+     * @param offsetSeconds the tsoffset option, 0 for none
+     */
+    private void iface(int linkType, int resolution, long offsetSeconds) {
+        int start = begin(1);
+        file.putShort((short) linkType).putShort((short) 0).putInt(65535);
+        if (resolution >= 0) {
+            file.putShort((short) 9).putShort((short) 1).put((byte) resolution).put(new byte[3]);
+        }
+        if (offsetSeconds != 0) {
+            file.putShort((short) 14).putShort((short) 8).putLong(offsetSeconds);
+        }
+        file.putShort((short) 0).putShort((short) 0);
+        end(start);
+    }
+
+    private void enhanced(int iface, long units, int wireLength, String frame) {
+        int start = begin(6);
+        byte[] bytes = TestFrames.bytes(frame);
+        file.putInt(iface).putInt((int) (units >>> 32)).putInt((int) units);
+        file.putInt(bytes.length).putInt(wireLength).put(bytes);
+        end(start);
+    }
+
+    private void simple(String frame) {
+        int start = begin(3);
+        byte[] bytes = TestFrames.bytes(frame);
+        file.putInt(bytes.length).put(bytes);
+        end(start);
+    }
+
+    /**
+     * @return "timestamp wire length bytes" of each frame read
+     */
+    private List<String> read(int snaplen) throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, Arrays.copyOf(file.array(), file.position()));
+        final List<String> frames = new ArrayList<String>();
+        CaptureFileReader reader = new CaptureFileReader(path, snaplen, null);
+        try {
+            reader.capture(new PacketSource.Handler() {
+                public void frame(long timestampMicros, int wireLength, ByteBuffer frame) {
+                    assertEquals(ByteOrder.BIG_ENDIAN, frame.order());
+                    byte[] bytes = new byte[frame.remaining()];
+                    frame.get(bytes);
+                    frames.add(timestampMicros + " " + wireLength + " "
+                            + new String(bytes, StandardCharsets.ISO_8859_1));
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        return frames;
+    }
+
+    @Test
+    public void readsSectionsInBothByteOrders() throws IOException {
+        section(ByteOrder.LITTLE_ENDIAN);
+        iface(LINKTYPE_ETHERNET, 9, 100);
+        iface(LINKTYPE_RAW, -1, 0);
+        iface(LINKTYPE_ETHERNET, 0x80 | 10, 0);
+        enhanced(0, 1234567891L, 60, "nanoseconds");
+        enhanced(1, 1, 60, "not ethernet");
+        enhanced(2, 3 * 1024 + 512, 60, "binary");
+        section(ByteOrder.BIG_ENDIAN);
+        iface(LINKTYPE_ETHERNET, -1, 0);
+        enhanced(0, 0x100000000L + 5, 1500, "big endian");
+        simple("simple");
+        section(ByteOrder.LITTLE_ENDIAN);
+        iface(LINKTYPE_ETHERNET, 3, 0);
+        enhanced(0, 2500, 60, "milliseconds");
+        assertEquals(Arrays.asList(
+                "101234567 60 nanoseconds",
+                "3500000 60 binary",
+                "4294967301 1500 big endian",
+                "4294967301 6 simple",
+                "2500000 60 milliseconds"), read(65535));
+    }
+
+    @Test(expected = IOException.class)
+    public void sectionForgetsItsInterfaces() throws IOException {
+        section(ByteOrder.BIG_ENDIAN);
+        iface(LINKTYPE_ETHERNET, -1, 0);
+        iface(LINKTYPE_ETHERNET, -1, 0);
+        section(ByteOrder.BIG_ENDIAN);
+        iface(LINKTYPE_ETHERNET, -1, 0);
+        enhanced(1, 0, 60, "undescribed");
+        read(65535);
+    }
+
+    @Test
+    public void cutsFramesToTheSnaplen() throws IOException {
+        section(ByteOrder.BIG_ENDIAN);
+        iface(LINKTYPE_ETHERNET, -1, 0);
+        enhanced(0, 7, 60, "truncated");
+        assertEquals(Arrays.asList("7 60 trun"), read(4));
+    }
+
+    @Test
+    public void readsPcapWithNanoseconds() throws IOException {
+        file.order(ByteOrder.BIG_ENDIAN);
+        file.putInt(0xa1b23c4d).putShort((short) 2).putShort((short) 4);
+        file.putInt(0).putInt(0).putInt(65535).putInt(LINKTYPE_ETHERNET);
+        byte[] bytes = TestFrames.bytes("pcap");
+        file.putInt(10).putInt(999999999).putInt(bytes.length).putInt(64).put(bytes);
+        assertEquals(Arrays.asList("10999999 64 pcap"), read(65535));
+    }
+}